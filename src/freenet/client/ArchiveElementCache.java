@@ -0,0 +1,353 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The cache of files extracted from archives, for ArchiveManager, keyed by the archive's URI and
+ * the file name. Bounded by the total size of the data and by the number of items.
+ *
+ * Lookups don't block: the items are in a ConcurrentHashMap, and the recency order and access
+ * frequencies are only updated if nobody else holds the lock. FProxy looks up every file of every
+ * freesite container here, so it must not serialise on one lock; losing a few updates when busy
+ * makes little difference to what gets evicted.
+ *
+ * Eviction is W-TinyLFU. New items go into a small LRU window. When they are pushed out of the
+ * window they compete with the least recently used item of the main LRU, and only replace it if
+ * they have been asked for more often recently. How often is estimated by a count-min sketch of
+ * recent lookups, including misses, which is halved periodically so old popularity fades. So a
+ * burst of files from a container nobody looks at again, or somebody crawling a big site, doesn't
+ * push out the metadata and pages of popular freesites, which would then have to be fetched and
+ * extracted again.
+ */
+class ArchiveElementCache {
+
+	/** Percentage of the cache used for the window, by size and by count. Big enough for a few
+	 * containers, since we extract whole containers at once. */
+	static final int WINDOW_PERCENT = 20;
+
+	private final long maxWeight;
+	private final int maxItems;
+	private final long maxWindowWeight;
+	private final int maxWindowItems;
+
+	private final ConcurrentHashMap<ArchiveKey, Node> items;
+	/** Protects the lists, the sketch and the totals. */
+	private final ReentrantLock lock;
+	private final NodeList window;
+	private final NodeList main;
+	private final FrequencySketch sketch;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong hitNanos = new AtomicLong();
+	private long admitted;
+	private long rejected;
+	private long evicted;
+
+	private static class Node {
+		final ArchiveStoreItem item;
+		final long weight;
+		boolean inWindow;
+		Node prev;
+		Node next;
+		Node(ArchiveStoreItem item) {
+			this.item = item;
+			this.weight = item == null ? 0 : item.spaceUsed();
+		}
+	}
+
+	/** Doubly linked list in LRU order, least recently used first. */
+	private static class NodeList {
+		private final Node head = new Node(null);
+		long weight;
+		int count;
+
+		NodeList() {
+			head.prev = head;
+			head.next = head;
+		}
+
+		void addLast(Node node) {
+			node.prev = head.prev;
+			node.next = head;
+			head.prev.next = node;
+			head.prev = node;
+			weight += node.weight;
+			count++;
+		}
+
+		void remove(Node node) {
+			node.prev.next = node.next;
+			node.next.prev = node.prev;
+			node.prev = null;
+			node.next = null;
+			weight -= node.weight;
+			count--;
+		}
+
+		void moveToEnd(Node node) {
+			if(head.prev == node) return;
+			node.prev.next = node.next;
+			node.next.prev = node.prev;
+			node.prev = head.prev;
+			node.next = head;
+			head.prev.next = node;
+			head.prev = node;
+		}
+
+		Node first() {
+			return head.next == head ? null : head.next;
+		}
+	}
+
+	ArchiveElementCache(long maxWeight, int maxItems) {
+		this.maxWeight = maxWeight;
+		this.maxItems = maxItems;
+		maxWindowWeight = maxWeight * WINDOW_PERCENT / 100;
+		maxWindowItems = Math.max(1, (int)((long)maxItems * WINDOW_PERCENT / 100));
+		items = new ConcurrentHashMap<ArchiveKey, Node>();
+		lock = new ReentrantLock();
+		window = new NodeList();
+		main = new NodeList();
+		sketch = new FrequencySketch(Math.min(maxItems, 1 << 16));
+	}
+
+	/** Look up an item, and record that it was asked for.
+	 * @return The item, or null if it is not cached. */
+	ArchiveStoreItem get(ArchiveKey key) {
+		long start = System.nanoTime();
+		Node node = items.get(key);
+		if(lock.tryLock()) {
+			try {
+				sketch.increment(key);
+				// It may have been removed since.
+				if(node != null && node.prev != null)
+					(node.inWindow ? window : main).moveToEnd(node);
+			} finally {
+				lock.unlock();
+			}
+		}
+		if(node == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		hitNanos.addAndGet(System.nanoTime() - start);
+		return node.item;
+	}
+
+	/**
+	 * Add an item, replacing any item with the same key.
+	 * @return Items which are no longer in the cache and must be closed by the caller: the old
+	 * item, items evicted to make room, and possibly the new item itself, if it isn't worth
+	 * keeping. The caller must have already got anything it needs from the new item.
+	 */
+	List<ArchiveStoreItem> put(ArchiveStoreItem item) {
+		List<ArchiveStoreItem> dropped = new ArrayList<ArchiveStoreItem>(1);
+		Node node = new Node(item);
+		lock.lock();
+		try {
+			sketch.increment(item.key);
+			Node old = items.put(item.key, node);
+			if(old != null) {
+				unlink(old);
+				dropped.add(old.item);
+			}
+			node.inWindow = true;
+			window.addLast(node);
+			evict(dropped);
+		} finally {
+			lock.unlock();
+		}
+		return dropped;
+	}
+
+	/** Remove the given item, if it is still cached.
+	 * @return True if it was removed. */
+	boolean remove(ArchiveStoreItem item) {
+		lock.lock();
+		try {
+			Node node = items.get(item.key);
+			if(node == null || node.item != item) return false;
+			items.remove(item.key);
+			unlink(node);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void unlink(Node node) {
+		if(node.prev == null) return;
+		(node.inWindow ? window : main).remove(node);
+	}
+
+	/** Move items beyond the window's share into the main area, where they must compete with the
+	 * items already there for space. Call with the lock held. */
+	private void evict(List<ArchiveStoreItem> dropped) {
+		long maxMainWeight = maxWeight - maxWindowWeight;
+		int maxMainItems = Math.max(1, maxItems - maxWindowItems);
+		while(window.weight > maxWindowWeight || window.count > maxWindowItems) {
+			Node candidate = window.first();
+			window.remove(candidate);
+			candidate.inWindow = false;
+			boolean admit = candidate.weight <= maxMainWeight;
+			if(admit) {
+				int frequency = sketch.frequency(candidate.item.key);
+				while(main.weight + candidate.weight > maxMainWeight || main.count + 1 > maxMainItems) {
+					Node victim = main.first();
+					if(victim == null) break;
+					if(sketch.frequency(victim.item.key) >= frequency) {
+						admit = false;
+						break;
+					}
+					main.remove(victim);
+					items.remove(victim.item.key);
+					dropped.add(victim.item);
+					evicted++;
+				}
+			}
+			if(admit) {
+				main.addLast(candidate);
+				admitted++;
+			} else {
+				items.remove(candidate.item.key);
+				dropped.add(candidate.item);
+				rejected++;
+			}
+		}
+	}
+
+	/** @return The total size of the items cached. */
+	long weight() {
+		lock.lock();
+		try {
+			return window.weight + main.weight;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	int size() {
+		return items.size();
+	}
+
+	long getHits() {
+		return hits.get();
+	}
+
+	long getMisses() {
+		return misses.get();
+	}
+
+	/** @return The average time to look up an item which is in the cache, in nanoseconds. */
+	long getAverageHitNanos() {
+		long h = hits.get();
+		return h == 0 ? 0 : hitNanos.get() / h;
+	}
+
+	/** @return The number of items which got past the window into the main cache. */
+	long getAdmitted() {
+		lock.lock();
+		try {
+			return admitted;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** @return The number of items dropped from the window because the items they would have
+	 * replaced were more popular. */
+	long getRejected() {
+		lock.lock();
+		try {
+			return rejected;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** @return The number of items dropped from the main cache to make room. */
+	long getEvicted() {
+		lock.lock();
+		try {
+			return evicted;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Count-min sketch of how often keys have been asked for, with four counters per key, up to 15.
+	 * After 10 increments per expected item, all the counters are halved. Not thread safe.
+	 */
+	static class FrequencySketch {
+
+		private static final long[] SEEDS = {
+			0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+		private static final int MAX_COUNT = 15;
+
+		private final byte[][] rows;
+		private final int mask;
+		private final int sampleSize;
+		private int increments;
+
+		FrequencySketch(int expectedItems) {
+			expectedItems = Math.max(16, expectedItems);
+			// Several counters per item per row, so that a counter is mostly counting one key.
+			int width = Integer.highestOneBit(expectedItems * 4 - 1) << 1;
+			rows = new byte[SEEDS.length][width];
+			mask = width - 1;
+			sampleSize = expectedItems * 10;
+		}
+
+		private int index(int hash, int row) {
+			long h = (hash + SEEDS[row]) * SEEDS[row];
+			h += h >>> 32;
+			return (int) h & mask;
+		}
+
+		private static int spread(Object key) {
+			int h = key.hashCode() * 0x9E3779B9;
+			return h ^ (h >>> 16);
+		}
+
+		void increment(Object key) {
+			int hash = spread(key);
+			boolean added = false;
+			for(int row = 0; row < rows.length; row++) {
+				int i = index(hash, row);
+				if(rows[row][i] < MAX_COUNT) {
+					rows[row][i]++;
+					added = true;
+				}
+			}
+			if(added && ++increments >= sampleSize)
+				reset();
+		}
+
+		int frequency(Object key) {
+			int hash = spread(key);
+			int frequency = MAX_COUNT;
+			for(int row = 0; row < rows.length; row++)
+				frequency = Math.min(frequency, rows[row][index(hash, row)]);
+			return frequency;
+		}
+
+		/** Halve all the counters, so that things which were popular a while ago fade. */
+		private void reset() {
+			for(byte[] row : rows)
+				for(int i = 0; i < row.length; i++)
+					row[i] >>= 1;
+			increments /= 2;
+		}
+	}
+
+}
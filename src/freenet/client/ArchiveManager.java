@@ -3,17 +3,16 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.client;
 
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
@@ -35,6 +34,7 @@ import freenet.support.compress.CompressionOutputSizeException;
 import freenet.support.compress.Compressor;
 import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
 import freenet.support.io.BucketTools;
+import freenet.support.io.ChunkedPipe;
 import freenet.support.io.Closer;
 import freenet.support.io.SkipShieldingInputStream;
 import net.contrapunctus.lzma.LzmaInputStream;
@@ -44,9 +44,10 @@ import net.contrapunctus.lzma.LzmaInputStream;
  * - Keep up to N ArchiveHandler's in RAM (this can be large; we don't keep the
  * files open due to the limitations of the java.util.zip API)
  * - Keep up to Y bytes (after padding and overheads) of decoded data on disk
- * (the OS is quite capable of determining what to keep in actual RAM)
+ * (the OS is quite capable of determining what to keep in actual RAM), in
+ * an ArchiveElementCache, which decides what is worth keeping.
  *
- * Always take the lock on ArchiveStoreContext before the lock on ArchiveManager, NOT the other way around.
+ * Always take the lock on ArchiveStoreContext before the locks on ArchiveManager, NOT the other way around.
  */
 public class ArchiveManager {
 
@@ -121,12 +122,13 @@ public class ArchiveManager {
 	final int maxCachedElements;
 	/** Maximum cached data in bytes */
 	final long maxCachedData;
-	/** Currently cached data in bytes */
-	private long cachedData;
 	/** Map from ArchiveKey to ArchiveStoreElement */
-	private final LRUMap<ArchiveKey, ArchiveStoreItem> storedData;
+	private final ArchiveElementCache storedData;
 	/** Bucket Factory */
 	private final BucketFactory tempBucketFactory;
+	
+	private final AtomicLong extractions = new AtomicLong();
+	private final AtomicLong extractionNanos = new AtomicLong();
 
 	/**
 	 * Create an ArchiveManager.
@@ -148,21 +150,21 @@ public class ArchiveManager {
 		archiveHandlers = LRUMap.createSafeMap(FreenetURI.FAST_COMPARATOR);
 		this.maxCachedElements = maxCachedElements;
 		this.maxCachedData = maxCachedData;
-		storedData = new LRUMap<ArchiveKey, ArchiveStoreItem>();
+		storedData = new ArchiveElementCache(maxCachedData, maxCachedElements);
 		this.maxArchivedFileSize = maxArchivedFileSize;
 		this.tempBucketFactory = tempBucketFactory;
 		logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
 	}
 
-	/** Add an ArchiveHandler by key */
-	private synchronized void putCached(FreenetURI key, ArchiveStoreContext zip) {
+	/** Add an ArchiveHandler by key. Call synchronized on archiveHandlers. */
+	private void putCached(FreenetURI key, ArchiveStoreContext zip) {
 		if(logMINOR) Logger.minor(this, "Put cached AH for "+key+" : "+zip);
 		archiveHandlers.push(key, zip);
 		while(archiveHandlers.size() > maxArchiveHandlers)
 			archiveHandlers.popKey(); // dump it
 	}
 
-	/** Get an ArchiveHandler by key */
+	/** Get an ArchiveHandler by key. Call synchronized on archiveHandlers. */
 	ArchiveStoreContext getCached(FreenetURI key) {
 		if(logMINOR) Logger.minor(this, "Get cached AH for "+key);
 		ArchiveStoreContext handler = archiveHandlers.get(key);
@@ -180,14 +182,16 @@ public class ArchiveManager {
 	 * @param archiveType The archive type, defined in Metadata.
 	 * @return An archive handler.
 	 */
-	synchronized ArchiveStoreContext makeContext(FreenetURI key, ARCHIVE_TYPE archiveType, COMPRESSOR_TYPE ctype, boolean returnNullIfNotFound) {
-		ArchiveStoreContext handler = null;
-		handler = getCached(key);
-		if(handler != null) return handler;
-		if(returnNullIfNotFound) return null;
-		handler = new ArchiveStoreContext(key, archiveType);
-		putCached(key, handler);
-		return handler;
+	ArchiveStoreContext makeContext(FreenetURI key, ARCHIVE_TYPE archiveType, COMPRESSOR_TYPE ctype, boolean returnNullIfNotFound) {
+		synchronized(archiveHandlers) {
+			ArchiveStoreContext handler = null;
+			handler = getCached(key);
+			if(handler != null) return handler;
+			if(returnNullIfNotFound) return null;
+			handler = new ArchiveStoreContext(key, archiveType);
+			putCached(key, handler);
+			return handler;
+		}
 	}
 
 	/**
@@ -213,13 +217,8 @@ public class ArchiveManager {
 	public Bucket getCached(FreenetURI key, String filename) throws ArchiveFailureException {
 		if(logMINOR) Logger.minor(this, "Fetch cached: "+key+ ' ' +filename);
 		ArchiveKey k = new ArchiveKey(key, filename);
-		ArchiveStoreItem asi = null;
-		synchronized (this) {
-			asi = storedData.get(k);
-			if(asi == null) return null;
-			// Promote to top of LRU
-			storedData.push(k, asi);
-		}
+		ArchiveStoreItem asi = storedData.get(k);
+		if(asi == null) return null;
 		if(logMINOR) Logger.minor(this, "Found data");
 		return asi.getReaderBucket();
 	}
@@ -229,14 +228,8 @@ public class ArchiveManager {
 	 * ArchiveHandler.
 	 * @param item The ArchiveStoreItem to remove.
 	 */
-	synchronized void removeCachedItem(ArchiveStoreItem item) {
-		long size = item.spaceUsed();
-		storedData.removeKey(item.key);
-		// Hard disk space limit = remove it here.
-		// Soft disk space limit would be to remove it outside the lock.
-		// Soft disk space limit = we go over the limit significantly when we
-		// are overloaded.
-		cachedData -= size;
+	void removeCachedItem(ArchiveStoreItem item) {
+		storedData.remove(item);
 		if(logMINOR) Logger.minor(this, "removeCachedItem: "+item);
 		item.close();
 	}
@@ -256,6 +249,16 @@ public class ArchiveManager {
 	 * changed.
 	 */
 	public void extractToCache(FreenetURI key, ARCHIVE_TYPE archiveType, COMPRESSOR_TYPE ctype, final Bucket data, ArchiveContext archiveContext, ArchiveStoreContext ctx, String element, ArchiveExtractCallback callback, ClientContext context) throws ArchiveFailureException, ArchiveRestartException {
+		long startTime = System.nanoTime();
+		try {
+			innerExtractToCache(key, archiveType, ctype, data, archiveContext, ctx, element, callback, context);
+		} finally {
+			extractions.incrementAndGet();
+			extractionNanos.addAndGet(System.nanoTime() - startTime);
+		}
+	}
+
+	private void innerExtractToCache(FreenetURI key, ARCHIVE_TYPE archiveType, COMPRESSOR_TYPE ctype, final Bucket data, ArchiveContext archiveContext, ArchiveStoreContext ctx, String element, ArchiveExtractCallback callback, ClientContext context) throws ArchiveFailureException, ArchiveRestartException {
 		logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
 
 		MutableBoolean gotElement = element != null ? new MutableBoolean() : null;
@@ -310,10 +313,8 @@ public class ArchiveManager {
 			} else if(ctype == COMPRESSOR_TYPE.LZMA_NEW) {
 				// LZMA internally uses pipe streams, so we may as well do it here.
 				// In fact we need to for LZMA_NEW, because of the properties bytes.
-				PipedInputStream pis = new PipedInputStream();
-				PipedOutputStream pos = new PipedOutputStream();
-				pis.connect(pos);
-				final OutputStream os = new BufferedOutputStream(pos);
+				ChunkedPipe pipe = new ChunkedPipe();
+				final ChunkedPipe.Output os = pipe.getOutputStream();
 				wrapper = new ExceptionWrapper();
 				context.mainExecutor.execute(new Runnable() {
 
@@ -325,21 +326,23 @@ public class ArchiveManager {
 						} catch (CompressionOutputSizeException e) {
 							Logger.error(this, "Failed to decompress archive: "+e, e);
 							wrapper.set(e);
+							os.abort(e);
 						} catch (IOException e) {
 							Logger.error(this, "Failed to decompress archive: "+e, e);
 							wrapper.set(e);
+							os.abort(e);
 						} finally {
 							try {
 								os.close();
 							} catch (IOException e) {
-								Logger.error(this, "Failed to close PipedOutputStream: "+e, e);
+								Logger.error(this, "Failed to close pipe: "+e, e);
 							}
 							Closer.close(is);
 						}
 					}
 					
 				});
-				is = pis;
+				is = pipe.getInputStream();
 			} else if(ctype == COMPRESSOR_TYPE.LZMA) {
 				if(logMINOR) Logger.minor(this, "dealing with LZMA");
 				is = new LzmaInputStream(data.getInputStream());
@@ -425,7 +428,6 @@ outerTAR:		while(true) {
 					if(size <= maxArchivedFileSize) {
 						addStoreElement(ctx, key, name, output, gotElement, element, callback, context);
 						names.add(name);
-						trimStoredData();
 					} else {
 						// We are here because they asked for this file.
 						callback.gotBucket(output, context);
@@ -438,7 +440,6 @@ outerTAR:		while(true) {
 			// If no metadata, generate some
 			if(!gotMetadata) {
 				generateMetadata(ctx, key, names, gotElement, element, callback, context);
-				trimStoredData();
 			}
 			if(throwAtExit) throw new ArchiveRestartException("Archive changed on re-fetch");
 
@@ -505,7 +506,6 @@ outerZIP:		while(true) {
 					if(size <= maxArchivedFileSize) {
 						addStoreElement(ctx, key, name, output, gotElement, element, callback, context);
 						names.add(name);
-						trimStoredData();
 					} else {
 						// We are here because they asked for this file.
 						callback.gotBucket(output, context);
@@ -518,7 +518,6 @@ outerZIP:		while(true) {
 			// If no metadata, generate some
 			if(!gotMetadata) {
 				generateMetadata(ctx, key, names, gotElement, element, callback, context);
-				trimStoredData();
 			}
 			if(throwAtExit) throw new ArchiveRestartException("Archive changed on re-fetch");
 
@@ -638,16 +637,7 @@ outerZIP:		while(true) {
 		ErrorArchiveStoreItem element = new ErrorArchiveStoreItem(ctx, key, name, error, tooBig);
 		element.addToContext();
 		if(logMINOR) Logger.minor(this, "Adding error element: "+element+" for "+key+ ' ' +name);
-		ArchiveStoreItem oldItem;
-		synchronized (this) {
-			oldItem = storedData.get(element.key);
-			storedData.push(element.key, element);
-			if(oldItem != null) {
-				oldItem.close();
-				cachedData -= oldItem.spaceUsed();
-				if(logMINOR) Logger.minor(this, "Dropping old store element from archive cache: "+oldItem);
-			}
-		}
+		close(storedData.put(element));
 	}
 
 	/**
@@ -665,22 +655,12 @@ outerZIP:		while(true) {
 		RealArchiveStoreItem element = new RealArchiveStoreItem(ctx, key, name, temp);
 		element.addToContext();
 		if(logMINOR) Logger.minor(this, "Adding store element: "+element+" ( "+key+ ' ' +name+" size "+element.spaceUsed()+" )");
-		ArchiveStoreItem oldItem;
 		// Let it throw, if it does something is drastically wrong
 		Bucket matchBucket = null;
 		if((!gotElement.value) && name.equals(callbackName)) {
 			matchBucket = element.getReaderBucket();
 		}
-		synchronized (this) {
-			oldItem = storedData.get(element.key);
-			storedData.push(element.key, element);
-			cachedData += element.spaceUsed();
-			if(oldItem != null) {
-				cachedData -= oldItem.spaceUsed();
-				if(logMINOR) Logger.minor(this, "Dropping old store element from archive cache: "+oldItem);
-				oldItem.close();
-			}
-		}
+		close(storedData.put(element));
 		if(matchBucket != null) {
 			callback.gotBucket(matchBucket, context);
 			gotElement.value = true;
@@ -688,30 +668,57 @@ outerZIP:		while(true) {
 		return element;
 	}
 
-	/**
-	 * Drop any stored data beyond the limit.
-	 * Call synchronized on storedData.
-	 */
-	private void trimStoredData() {
-		synchronized(this) {
-		while(true) {
-			ArchiveStoreItem item;
-				if(cachedData <= maxCachedData && storedData.size() <= maxCachedElements) return;
-				if(storedData.isEmpty()) {
-					// Race condition? cachedData out of sync?
-					Logger.error(this, "storedData is empty but still over limit: cachedData="+cachedData+" / "+maxCachedData);
-					return;
-				}
-				item = storedData.popValue();
-				long space = item.spaceUsed();
-				cachedData -= space;
-				// Hard limits = delete file within lock, soft limits = delete outside of lock
-				// Here we use a hard limit
-			if(logMINOR)
-				Logger.minor(this, "Dropping "+item+" : cachedData="+cachedData+" of "+maxCachedData+" stored items : "+storedData.size()+" of "+maxCachedElements);
+	/** Close items which have been dropped from the cache, deleting their data. */
+	private void close(List<ArchiveStoreItem> dropped) {
+		for(ArchiveStoreItem item : dropped) {
+			if(logMINOR) Logger.minor(this, "Dropping "+item+" from archive cache");
 			item.close();
 		}
-		}
+	}
+
+	/** @return The number of files in the cache. */
+	public int getCachedElements() {
+		return storedData.size();
+	}
+
+	/** @return The size of the files in the cache, in bytes. */
+	public long getCachedData() {
+		return storedData.weight();
+	}
+
+	public long getCacheHits() {
+		return storedData.getHits();
+	}
+
+	public long getCacheMisses() {
+		return storedData.getMisses();
+	}
+
+	/** @return The average time to find a file in the cache, in nanoseconds. */
+	public long getAverageCacheHitTime() {
+		return storedData.getAverageHitNanos();
+	}
+
+	/** @return The number of files dropped from the cache because they were less popular than
+	 * what is already there. */
+	public long getCacheRejected() {
+		return storedData.getRejected();
+	}
+
+	/** @return The number of files dropped from the cache to make room for more popular ones. */
+	public long getCacheEvicted() {
+		return storedData.getEvicted();
+	}
+
+	/** @return The number of times we have extracted an archive. */
+	public long getExtractions() {
+		return extractions.get();
+	}
+
+	/** @return The average time to extract an archive, in nanoseconds. */
+	public long getAverageExtractionTime() {
+		long count = extractions.get();
+		return count == 0 ? 0 : extractionNanos.get() / count;
 	}
 
 }
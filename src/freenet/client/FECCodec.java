@@ -11,6 +11,10 @@ public abstract class FECCodec {
     public static final long MIN_MEMORY_ALLOCATION = 8*1024*1024+256*1024;
     public static final int MAX_TOTAL_BLOCKS_PER_SEGMENT = 256;
     
+    /** If true, use TableFECCodec rather than OnionFECCodec for ONION_STANDARD. Both produce the
+     * same blocks, so this can be changed at any time; it affects codecs created afterwards. */
+    private static volatile boolean useTableCodec;
+    
     /** Maximum memory usage with the given number of data blocks and check blocks, not including 
      * the blocks themselves. */
     public abstract long maxMemoryOverheadDecode(int dataBlocks, int checkBlocks);
@@ -48,12 +52,20 @@ public abstract class FECCodec {
         case NONREDUNDANT:
             return null;
         case ONION_STANDARD:
-            return new OnionFECCodec();
+            return useTableCodec ? new TableFECCodec() : new OnionFECCodec();
         default:
             throw new IllegalArgumentException();
         }
     }
 
+    public static void setUseTableCodec(boolean val) {
+        useTableCodec = val;
+    }
+
+    public static boolean getUseTableCodec() {
+        return useTableCodec;
+    }
+
     /** Get the recommended number of check blocks per segment for a given number of data blocks 
      * for a given compatibility mode.
      * @param dataBlocks The number of data blocks per segment.
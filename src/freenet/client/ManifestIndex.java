@@ -0,0 +1,297 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import freenet.support.LRUMap;
+
+/**
+ * Index of the entry table of a simple manifest, over the original metadata bytes. Lets Metadata
+ * find and parse a single entry without parsing all of them: a big freesite's manifest can have
+ * thousands of entries, and FProxy only wants one of them per request. The bytes are not copied;
+ * sub-manifests index a range of the same array.
+ *
+ * Immutable once built apart from the indexes of sub-manifests, which are built when first needed,
+ * so one index can be shared between any number of Metadata's. Recently used top level indexes are
+ * cached by the content of the metadata, so fetching another file from the same site doesn't even
+ * scan the entry table again.
+ */
+final class ManifestIndex implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Maximum number of manifests to keep indexes of. */
+	static final int MAX_CACHED = 256;
+	/** Maximum total size of the manifests to keep indexes of. */
+	static final long MAX_CACHED_BYTES = 16*1024*1024;
+
+	private static final LRUMap<Content, ManifestIndex> cache = new LRUMap<Content, ManifestIndex>();
+	private static long cachedBytes;
+	private static long cacheHits;
+	private static long cacheMisses;
+
+	/** The metadata. Never modified. */
+	private final byte[] data;
+	/** Per entry: offset of the name, length of the name, offset of the metadata, length of the
+	 * metadata. */
+	private final int[] entries;
+	/** Open addressing hash table of entry number + 1 by name, 0 if empty. If a name occurs more
+	 * than once, the last one wins, as it did when manifests were parsed into a HashMap. */
+	private final int[] table;
+	/** Number of distinct names. */
+	private final int size;
+	/** Indexes of sub-manifests, by entry number. Created when needed. */
+	private transient ManifestIndex[] children;
+
+	private ManifestIndex(byte[] data, int[] entries, int[] table, int size) {
+		this.data = data;
+		this.entries = entries;
+		this.table = table;
+		this.size = size;
+	}
+
+	/**
+	 * Get the index of a top level manifest, from the cache if the same manifest has been parsed
+	 * recently.
+	 * @param data The metadata.
+	 * @param offset The start of the metadata.
+	 * @param tableStart The start of the entry table, i.e. the entry count.
+	 * @param end The end of the metadata.
+	 * @return The index, or null if it can't be indexed and must be parsed the old way.
+	 * @throws MetadataParseException If the entry table is invalid.
+	 */
+	static ManifestIndex get(byte[] data, int offset, int tableStart, int end) throws MetadataParseException {
+		Content content = new Content(data, offset, end);
+		synchronized(ManifestIndex.class) {
+			ManifestIndex index = cache.get(content);
+			if(index != null) {
+				cache.push(content, index);
+				cacheHits++;
+				return index;
+			}
+			cacheMisses++;
+		}
+		ManifestIndex index = build(data, tableStart, end);
+		if(index == null || end - offset > MAX_CACHED_BYTES / 4) return index;
+		synchronized(ManifestIndex.class) {
+			if(cache.get(content) == null) {
+				cachedBytes += content.length();
+				while(cache.size() >= MAX_CACHED || cachedBytes > MAX_CACHED_BYTES) {
+					Content evicted = cache.popKey();
+					if(evicted == null) break;
+					cachedBytes -= evicted.length();
+				}
+				cache.push(content, index);
+			}
+		}
+		return index;
+	}
+
+	/** @return The number of times a manifest was found in the cache. */
+	static synchronized long getCacheHits() {
+		return cacheHits;
+	}
+
+	/** @return The number of times a manifest was not found in the cache and had to be indexed. */
+	static synchronized long getCacheMisses() {
+		return cacheMisses;
+	}
+
+	static synchronized void clearCache() {
+		cache.clear();
+		cachedBytes = 0;
+	}
+
+	/** Scan the entry table, checking that every entry is within the metadata, without parsing
+	 * the entries or even decoding the names.
+	 * @return Null if a name is not valid UTF-8, because then the name we'd look it up by is not
+	 * the same as the bytes. */
+	private static ManifestIndex build(byte[] data, int tableStart, int end) throws MetadataParseException {
+		int pos = tableStart;
+		if(end - pos < 4) throw new MetadataParseException("Truncated manifest");
+		int count = readInt(data, pos);
+		pos += 4;
+		if(count < 0)
+			throw new MetadataParseException("Invalid manifest entry count: "+count);
+		// Each entry is at least 4 bytes.
+		if(count > (end - pos) / 4)
+			throw new MetadataParseException("Impossible manifest entry count: "+count+" - metadata size "+(end - tableStart));
+		int[] entries = new int[count * 4];
+		int[] table = new int[Math.max(4, Integer.highestOneBit(Math.max(1, count) * 2 - 1) << 1)];
+		int mask = table.length - 1;
+		int size = 0;
+		for(int i=0;i<count;i++) {
+			if(end - pos < 2) throw new MetadataParseException("Truncated manifest");
+			int nameLength = readShort(data, pos);
+			pos += 2;
+			if(nameLength < 0 || end - pos < nameLength + 2)
+				throw new MetadataParseException("Invalid manifest entry name length: "+nameLength);
+			int nameOffset = pos;
+			if(!isCanonical(data, nameOffset, nameLength)) return null;
+			pos += nameLength;
+			int len = readShort(data, pos);
+			pos += 2;
+			if(len < 0)
+				throw new MetadataParseException("Invalid manifest entry size: "+len);
+			if(end - pos < len)
+				throw new MetadataParseException("Impossibly long manifest entry: "+len+" - metadata size "+(end - tableStart));
+			entries[i*4] = nameOffset;
+			entries[i*4+1] = nameLength;
+			entries[i*4+2] = pos;
+			entries[i*4+3] = len;
+			pos += len;
+			int slot = hash(data, nameOffset, nameLength) & mask;
+			while(true) {
+				int e = table[slot] - 1;
+				if(e == -1) {
+					table[slot] = i + 1;
+					size++;
+					break;
+				}
+				if(nameEquals(data, entries, e, data, nameOffset, nameLength)) {
+					table[slot] = i + 1;
+					break;
+				}
+				slot = (slot + 1) & mask;
+			}
+		}
+		return new ManifestIndex(data, entries, table, size);
+	}
+
+	/** @return The number of distinct names in the manifest. */
+	int size() {
+		return size;
+	}
+
+	/** Parse the entry with the given name.
+	 * @return The entry, or null if there isn't one. */
+	Metadata getDocument(String name) throws MetadataParseException {
+		byte[] buf = name.getBytes(UTF8);
+		int mask = table.length - 1;
+		int slot = hash(buf, 0, buf.length) & mask;
+		while(true) {
+			int e = table[slot] - 1;
+			if(e == -1) return null;
+			if(nameEquals(data, entries, e, buf, 0, buf.length))
+				return parse(e);
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	/** Parse every entry which isn't in the map already, and add it. */
+	void parseAll(HashMap<String, Metadata> map) throws MetadataParseException {
+		for(int slot : table) {
+			int e = slot - 1;
+			if(e == -1) continue;
+			String name = new String(data, entries[e*4], entries[e*4+1], UTF8).intern();
+			if(!map.containsKey(name))
+				map.put(name, parse(e));
+		}
+	}
+
+	private Metadata parse(int e) throws MetadataParseException {
+		try {
+			return new Metadata(data, entries[e*4+2], entries[e*4+3], this, e);
+		} catch (IOException ex) {
+			throw (MetadataParseException)new MetadataParseException("Caught "+ex).initCause(ex);
+		}
+	}
+
+	/** Get the index of a sub-manifest. Called by Metadata when parsing one of our entries.
+	 * @param e The entry number.
+	 * @param tableStart The start of the sub-manifest's entry table. */
+	ManifestIndex getChild(int e, int tableStart) throws MetadataParseException {
+		synchronized(this) {
+			if(children != null && children[e] != null) return children[e];
+		}
+		ManifestIndex child = build(data, tableStart, entries[e*4+2] + entries[e*4+3]);
+		if(child == null) return null;
+		synchronized(this) {
+			if(children == null) children = new ManifestIndex[entries.length / 4];
+			if(children[e] == null) children[e] = child;
+			return children[e];
+		}
+	}
+
+	private static int readInt(byte[] buf, int offset) {
+		return ((buf[offset] & 0xff) << 24) | ((buf[offset+1] & 0xff) << 16) |
+			((buf[offset+2] & 0xff) << 8) | (buf[offset+3] & 0xff);
+	}
+
+	private static int readShort(byte[] buf, int offset) {
+		return (short) (((buf[offset] & 0xff) << 8) | (buf[offset+1] & 0xff));
+	}
+
+	private static int hash(byte[] buf, int offset, int length) {
+		int h = 0;
+		for(int i=offset;i<offset+length;i++)
+			h = 31 * h + buf[i];
+		return h ^ (h >>> 16);
+	}
+
+	private static boolean nameEquals(byte[] data, int[] entries, int e, byte[] buf, int offset, int length) {
+		if(entries[e*4+1] != length) return false;
+		int nameOffset = entries[e*4];
+		for(int i=0;i<length;i++)
+			if(data[nameOffset+i] != buf[offset+i]) return false;
+		return true;
+	}
+
+	/** @return True if the bytes are what encoding the decoded name would give. Always true for
+	 * ASCII, which is nearly all names. */
+	private static boolean isCanonical(byte[] buf, int offset, int length) {
+		for(int i=offset;i<offset+length;i++) {
+			if(buf[i] < 0) {
+				byte[] name = Arrays.copyOfRange(buf, offset, offset + length);
+				return Arrays.equals(name, new String(name, UTF8).getBytes(UTF8));
+			}
+		}
+		return true;
+	}
+
+	/** Cache key: a range of bytes, compared by content. */
+	private static final class Content {
+		private final byte[] data;
+		private final int offset;
+		private final int end;
+		private final int hashCode;
+
+		Content(byte[] data, int offset, int end) {
+			this.data = data;
+			this.offset = offset;
+			this.end = end;
+			int h = end - offset;
+			for(int i=offset;i<end;i++)
+				h = 31 * h + data[i];
+			hashCode = h;
+		}
+
+		int length() {
+			return end - offset;
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof Content)) return false;
+			Content c = (Content) o;
+			if(c.hashCode != hashCode || c.length() != length()) return false;
+			for(int i=0;i<length();i++)
+				if(data[offset+i] != c.data[c.offset+i]) return false;
+			return true;
+		}
+	}
+
+}
@@ -8,7 +8,6 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
@@ -37,6 +36,7 @@ import freenet.support.api.Bucket;
 import freenet.support.api.BucketFactory;
 import freenet.support.api.RandomAccessBucket;
 import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+import freenet.support.io.BucketTools;
 import freenet.support.io.Closer;
 import freenet.support.io.CountedOutputStream;
 import freenet.support.io.NullOutputStream;
@@ -191,8 +191,12 @@ public class Metadata implements Cloneable, Serializable {
 	CompatibilityMode maxCompatMode = CompatibilityMode.COMPAT_UNKNOWN;
 
 	// Manifests
-	/** Manifest entries by name */
+	/** Manifest entries by name. If manifestIndex is set, only those which have been asked for so
+	 * far. */
 	HashMap<String, Metadata> manifestEntries;
+	/** If the manifest was parsed from a byte array, the index of its entries, which are only
+	 * parsed when they are asked for. Null once they have all been parsed. */
+	private ManifestIndex manifestIndex;
 
 	/** Archive internal redirect: name of file in archive
 	 *  SympolicShortLink: Target name*/
@@ -245,6 +249,7 @@ public class Metadata implements Cloneable, Serializable {
 			for(int i=0;i<hashes.length;i++)
 				hashes[i] = orig.hashes[i].clone();
 		}
+		// The index is immutable so can be shared.
 		if(manifestEntries != null) {
 			manifestEntries = new HashMap<String, Metadata>(orig.manifestEntries);
 			for(Map.Entry<String, Metadata> entry : manifestEntries.entrySet()) {
@@ -273,22 +278,24 @@ public class Metadata implements Cloneable, Serializable {
 	 * @throws IOException If we could not read the metadata from the bucket.
 	 */
 	public static Metadata construct(Bucket data) throws MetadataParseException, IOException {
-		InputStream is = data.getInputStream();
-		Metadata m;
-		try {
-			DataInputStream dis = new DataInputStream(is);
-			m = new Metadata(dis, data.size());
-		} finally {
-			is.close();
-		}
-		return m;
+		// Metadata is limited to a reasonable size by the callers. Read it all, so that the
+		// entries of a manifest can be parsed only when they are needed.
+		return new Metadata(BucketTools.toByteArray(data));
 	}
 
 	/** Parse some metadata from a byte[].
 	 * @throws IOException If the data is incomplete, or something wierd happens.
 	 * @throws MetadataParseException */
 	private Metadata(byte[] data) throws IOException, MetadataParseException {
-		this(new DataInputStream(new ByteArrayInputStream(data)), data.length);
+		this(data, 0, data.length, null, -1);
+	}
+
+	/** Parse some metadata from part of a byte[]. Manifest entries are parsed when they are
+	 * asked for, from the same array, which must not be modified afterwards.
+	 * @param parent If this is an entry in a manifest, the manifest's index.
+	 * @param entry If this is an entry in a manifest, its number. */
+	Metadata(byte[] data, int offset, int length, ManifestIndex parent, int entry) throws IOException, MetadataParseException {
+		this(new DataInputStream(new ByteArrayInputStream(data, offset, length)), length, data, offset, parent, entry);
 	}
 
 	@Override
@@ -299,6 +306,11 @@ public class Metadata implements Cloneable, Serializable {
 	/** Parse some metadata from a DataInputStream
 	 * @throws IOException If an I/O error occurs, or the data is incomplete. */
 	public Metadata(DataInputStream dis, long length) throws IOException, MetadataParseException {
+		this(dis, length, null, 0, null, -1);
+	}
+
+	/** @param source If not null, the array which dis reads from, starting at offset. */
+	private Metadata(DataInputStream dis, long length, byte[] source, int offset, ManifestIndex parent, int entry) throws IOException, MetadataParseException {
 		hashCode = super.hashCode();
 		long magic = dis.readLong();
 		if(magic != FREENET_METADATA_MAGIC)
@@ -673,7 +685,20 @@ public class Metadata implements Cloneable, Serializable {
 		
 		}
 			
-		if(documentType == DocumentType.SIMPLE_MANIFEST) {
+		if(documentType == DocumentType.SIMPLE_MANIFEST && source != null) {
+			// dis reads directly from the ByteArrayInputStream, so this is exact.
+			int tableStart = (int) (offset + length - dis.available());
+			if(parent != null)
+				manifestIndex = parent.getChild(entry, tableStart);
+			else
+				manifestIndex = ManifestIndex.get(source, offset, tableStart, (int) (offset + length));
+			if(manifestIndex != null) {
+				manifestEntries = new HashMap<String, Metadata>();
+				if(logMINOR) Logger.minor(this, "Simple manifest, "+manifestIndex.size()+" entries, parsed on demand");
+			}
+		}
+
+		if(documentType == DocumentType.SIMPLE_MANIFEST && manifestIndex == null) {
 			int manifestEntryCount = dis.readInt();
 			if(manifestEntryCount < 0)
 				throw new MetadataParseException("Invalid manifest entry count: "+manifestEntryCount);
@@ -1291,26 +1316,42 @@ public class Metadata implements Cloneable, Serializable {
 
 	/**
 	 * Get the sub-document in a manifest file with the given name.
-	 * @throws MetadataParseException
+	 * @throws MetadataParseException If the sub-document is invalid. Entries of a manifest
+	 * parsed from a byte array are only parsed when they are asked for.
 	 */
-	public Metadata getDocument(String name) {
-		return manifestEntries.get(name);
+	public Metadata getDocument(String name) throws MetadataParseException {
+		Metadata m = manifestEntries.get(name);
+		if(m != null || manifestIndex == null) return m;
+		m = manifestIndex.getDocument(name);
+		if(m != null) manifestEntries.put(name, m);
+		return m;
+	}
+
+	/** Parse any entries which haven't been parsed yet.
+	 * @return All the entries. */
+	private HashMap<String, Metadata> allDocuments() throws MetadataParseException {
+		if(manifestIndex != null) {
+			manifestIndex.parseAll(manifestEntries);
+			manifestIndex = null;
+		}
+		return manifestEntries;
 	}
 
 	/**
 	 * Return and remove a specific document. Used in persistent requests
 	 * so that when removeFrom() is called, the default document won't be
 	 * removed, since it is being processed.
+	 * @throws MetadataParseException
 	 */
-	public Metadata grabDocument(String name) {
-		return manifestEntries.remove(name);
+	public Metadata grabDocument(String name) throws MetadataParseException {
+		return allDocuments().remove(name);
 	}
 
 	/**
 	 * The default document is the one which has an empty name.
 	 * @throws MetadataParseException
 	 */
-	public Metadata getDefaultDocument() {
+	public Metadata getDefaultDocument() throws MetadataParseException {
 		return getDocument("");
 	}
 
@@ -1318,8 +1359,9 @@ public class Metadata implements Cloneable, Serializable {
 	 * Return and remove the default document. Used in persistent requests
 	 * so that when removeFrom() is called, the default document won't be
 	 * removed, since it is being processed.
+	 * @throws MetadataParseException
 	 */
-	public Metadata grabDefaultDocument() {
+	public Metadata grabDefaultDocument() throws MetadataParseException {
 		return grabDocument("");
 	}
 
@@ -1327,9 +1369,9 @@ public class Metadata implements Cloneable, Serializable {
      * Get all documents in the manifest (ignores default doc).
      * @throws MetadataParseException
      */
-    public HashMap<String, Metadata> getDocuments() {
+    public HashMap<String, Metadata> getDocuments() throws MetadataParseException {
     	HashMap<String, Metadata> docs = new HashMap<String, Metadata>();
-		for (Map.Entry<String, Metadata> entry: manifestEntries.entrySet()) {
+		for (Map.Entry<String, Metadata> entry: allDocuments().entrySet()) {
         	String st = entry.getKey();
         	if (st.length()>0)
         		docs.put(st, entry.getValue());
@@ -1575,6 +1617,11 @@ public class Metadata implements Cloneable, Serializable {
 		}
 
 		if(documentType == DocumentType.SIMPLE_MANIFEST) {
+			try {
+				allDocuments();
+			} catch (MetadataParseException e) {
+				throw new IOException("Invalid manifest entry: "+e, e);
+			}
 			dos.writeInt(manifestEntries.size());
 			boolean kill = false;
 			LinkedList<Metadata> unresolvedMetadata = null;
@@ -1726,7 +1773,7 @@ public class Metadata implements Cloneable, Serializable {
 	}
 
 	public int countDocuments() {
-		return manifestEntries.size();
+		return manifestIndex != null ? manifestIndex.size() : manifestEntries.size();
 	}
 
 	/**
@@ -1809,6 +1856,11 @@ public class Metadata implements Cloneable, Serializable {
 			dumpline(indent, sb, "Target name: "+targetName);
 
 		if(manifestEntries != null) {
+			try {
+				allDocuments();
+			} catch (MetadataParseException e) {
+				dumpline(indent, sb, "Invalid manifest entry: "+e);
+			}
 			for(Map.Entry<String, Metadata> entry : manifestEntries.entrySet()) {
 				dumpline(indent, sb, "Entry: "+entry.getKey()+":");
 				entry.getValue().dump(indent + 1, sb);
@@ -1,48 +1,117 @@
 package freenet.client;
 
 import java.lang.ref.SoftReference;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinPool.ForkJoinWorkerThreadFactory;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
 
 import com.onionnetworks.fec.PureCode;
 import com.onionnetworks.util.Buffer;
 
 import freenet.client.InsertContext.CompatibilityMode;
+import freenet.keys.CHKBlock;
 import freenet.support.LRUMap;
 
+/**
+ * FEC codec using the Onion Networks pure Java Reed-Solomon implementation.
+ *
+ * Reed-Solomon works on each byte offset of the blocks independently, so a large segment is
+ * split into stripes (byte ranges of every block) which are encoded or decoded in parallel on a
+ * shared fork-join pool, and the calling MemoryLimitedJobRunner thread waits for them. Each
+ * stripe being decoded needs its own decode matrix, so we limit how many stripes are decoded at
+ * once to what maxMemoryOverheadDecode() already accounts for.
+ */
 public class OnionFECCodec extends FECCodec {
 
+    /** Don't split blocks into stripes smaller than this. */
+    static final int MIN_STRIPE_LENGTH = 2048;
+    /** Shared by all FEC jobs. MemoryLimitedJobRunner limits how many segments are encoded or
+     * decoded at once; this lets each of them use all the cores. */
+    private static final ForkJoinPool stripePool = new ForkJoinPool(
+            Runtime.getRuntime().availableProcessors(), new ForkJoinWorkerThreadFactory() {
+                @Override
+                public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                    ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                    t.setName("FEC stripe worker " + t.getPoolIndex());
+                    t.setDaemon(true);
+                    return t;
+                }
+            }, null, false);
+    /** Maximum number of stripes per segment, for a full size block. */
+    static final int MAX_STRIPES = Math.max(1, Math.min(stripePool.getParallelism(),
+            CHKBlock.DATA_LENGTH / MIN_STRIPE_LENGTH));
+
     @Override
     public void decode(byte[][] dataBlocks, byte[][] checkBlocks, boolean[] dataBlocksPresent, boolean[] checkBlocksPresent, int blockLength) {
         int k = dataBlocks.length;
         int n = dataBlocks.length + checkBlocks.length;
-        PureCode codec = getCodec(k, n);
+        decode(dataBlocks, checkBlocks, dataBlocksPresent, checkBlocksPresent, blockLength,
+                Math.min(stripes(blockLength), maxDecodeStripes(k, n)));
+    }
+
+    /** Each stripe being decoded has its own k*k decode matrix. Limit the number of stripes so 
+     * that they fit in what we already account for in maxMemoryOverheadDecode(). */
+    int maxDecodeStripes(int k, int n) {
+        long perStripe = k*k*2; // char[] of k*k
+        return (int) Math.max(1, Math.min(MAX_STRIPES, maxMemoryOverheadDecode(k, n - k) / perStripe));
+    }
+
+    void decode(byte[][] dataBlocks, byte[][] checkBlocks, boolean[] dataBlocksPresent, boolean[] checkBlocksPresent, int blockLength, int stripes) {
+        int k = dataBlocks.length;
+        int n = dataBlocks.length + checkBlocks.length;
         int[] blockNumbers = new int[k];
-        Buffer[] buffers = new Buffer[k];
+        boolean[] filled = new boolean[k];
         // The data blocks are already in the correct positions in dataBlocks.
         for(int i=0;i<dataBlocks.length;i++) {
             if(dataBlocks[i].length != blockLength) throw new IllegalArgumentException();
             if(!dataBlocksPresent[i]) continue;
-            buffers[i] = new Buffer(dataBlocks[i], 0, blockLength);
+            filled[i] = true;
             blockNumbers[i] = i;
         }
         int target = 0;
+        boolean mustDecode = false;
         // Fill in the gaps with the check blocks.
         for(int i=0;i<checkBlocks.length;i++) {
             if(!checkBlocksPresent[i]) continue;
             if(checkBlocks[i].length != blockLength) throw new IllegalArgumentException();
-            while(target < dataBlocks.length && buffers[target] != null) target++; // Scan for slot.
+            while(target < dataBlocks.length && filled[target]) target++; // Scan for slot.
             if(target >= dataBlocks.length) continue;
             // Decode into the slot for the relevant data block.
-            buffers[target] = new Buffer(dataBlocks[target]);
+            filled[target] = true;
+            mustDecode = true;
             // Provide the data from the check block.
             blockNumbers[target] = i + dataBlocks.length;
             System.arraycopy(checkBlocks[i], 0, dataBlocks[target], 0, blockLength);
         }
+        if(!mustDecode) return; // All the data blocks are present already.
         
-        // Now do the decode.
-        codec.decode(buffers, blockNumbers);
+        // Now do the decode, one stripe at a time.
+        runStripes(blockLength, stripes, decoder(k, n, dataBlocks, filled, blockNumbers));
         // The data blocks are now decoded and in the correct locations.
     }
 
+    /** Called once per decode.
+     * @param filled Which slots in dataBlocks have valid contents: either the data block, or a 
+     * check block copied into the slot of a missing data block.
+     * @param blockNumbers The block number in each filled slot.
+     * @return A Stripe which decodes one byte range of the missing data blocks, in place. */
+    Stripe decoder(int k, int n, final byte[][] dataBlocks, final boolean[] filled, 
+            final int[] blockNumbers) {
+        final PureCode codec = getCodec(k, n);
+        return new Stripe() {
+            @Override
+            public void run(int offset, int length) {
+                Buffer[] buffers = new Buffer[dataBlocks.length];
+                for(int i=0;i<buffers.length;i++) {
+                    if(filled[i]) buffers[i] = new Buffer(dataBlocks[i], offset, length);
+                }
+                // decode() shuffles and updates the block numbers, so each stripe needs a copy.
+                codec.decode(buffers, blockNumbers.clone());
+            }
+        };
+    }
+
     /** Cache of PureCode by {k,n}. The memory usage is relatively small so we account for it in 
      * the FEC jobs, see maxMemoryOverheadDecode() etc. */
     private synchronized static PureCode getCodec(int k, int n) {
@@ -112,14 +181,16 @@ public class OnionFECCodec extends FECCodec {
     @Override
     public void encode(byte[][] dataBlocks, byte[][] checkBlocks, boolean[] checkBlocksPresent, 
             int blockLength) {
+        encode(dataBlocks, checkBlocks, checkBlocksPresent, blockLength, stripes(blockLength));
+    }
+
+    void encode(byte[][] dataBlocks, byte[][] checkBlocks, boolean[] checkBlocksPresent, 
+            int blockLength, int stripes) {
         int k = dataBlocks.length;
         int n = dataBlocks.length + checkBlocks.length;
-        PureCode codec = getCodec(k, n);
-        Buffer[] data = new Buffer[dataBlocks.length];
-        for(int i=0;i<data.length;i++) {
+        for(int i=0;i<dataBlocks.length;i++) {
             if(dataBlocks[i] == null || dataBlocks[i].length != blockLength)
                 throw new IllegalArgumentException();
-            data[i] = new Buffer(dataBlocks[i]);
         }
         int mustEncode = 0;
         for(int i=0;i<checkBlocks.length;i++) {
@@ -127,16 +198,86 @@ public class OnionFECCodec extends FECCodec {
                 throw new IllegalArgumentException();
             if(!checkBlocksPresent[i]) mustEncode++;
         }
-        Buffer[] check = new Buffer[mustEncode];
         if(mustEncode == 0) return; // Done already.
+        byte[][] check = new byte[mustEncode][];
         int[] toEncode = new int[mustEncode];
         int x = 0;
         for(int i=0;i<checkBlocks.length;i++) {
             if(checkBlocksPresent[i]) continue;
-            check[x] = new Buffer(checkBlocks[i]);
+            check[x] = checkBlocks[i];
             toEncode[x++] = i+dataBlocks.length;
         }
-        codec.encode(data, check, toEncode);
+        runStripes(blockLength, stripes, encoder(k, n, dataBlocks, check, toEncode));
+    }
+
+    /** Called once per encode.
+     * @param check The check blocks to encode.
+     * @param toEncode The block number of each of them.
+     * @return A Stripe which encodes one byte range of the check blocks. */
+    Stripe encoder(int k, int n, final byte[][] dataBlocks, final byte[][] check, 
+            final int[] toEncode) {
+        final PureCode codec = getCodec(k, n);
+        return new Stripe() {
+            @Override
+            public void run(int offset, int length) {
+                Buffer[] data = new Buffer[dataBlocks.length];
+                for(int i=0;i<data.length;i++)
+                    data[i] = new Buffer(dataBlocks[i], offset, length);
+                Buffer[] checkBuffers = new Buffer[check.length];
+                for(int i=0;i<checkBuffers.length;i++)
+                    checkBuffers[i] = new Buffer(check[i], offset, length);
+                codec.encode(data, checkBuffers, toEncode);
+            }
+        };
+    }
+
+    /** One byte range of every block. Must be safe to run several stripes at once. */
+    interface Stripe {
+        void run(int offset, int length);
+    }
+
+    /** @return The number of stripes to split blocks of the given length into. */
+    static int stripes(int blockLength) {
+        return Math.max(1, Math.min(MAX_STRIPES, blockLength / MIN_STRIPE_LENGTH));
+    }
+
+    /** Run the stripes in parallel, returning when they have all finished. Runs on the calling
+     * thread if there is only one. */
+    private static void runStripes(int blockLength, int stripes, Stripe stripe) {
+        if(stripes <= 1) {
+            stripe.run(0, blockLength);
+            return;
+        }
+        int stripeLength = (blockLength + stripes - 1) / stripes;
+        stripePool.invoke(new StripeTask(stripe, 0, blockLength, stripeLength));
+    }
+
+    @SuppressWarnings("serial")
+    private static class StripeTask extends RecursiveAction {
+        private final Stripe stripe;
+        private final int offset;
+        private final int length;
+        private final int stripeLength;
+
+        StripeTask(Stripe stripe, int offset, int length, int stripeLength) {
+            this.stripe = stripe;
+            this.offset = offset;
+            this.length = length;
+            this.stripeLength = stripeLength;
+        }
+
+        @Override
+        protected void compute() {
+            if(length <= stripeLength) {
+                stripe.run(offset, length);
+                return;
+            }
+            // Split in half, on a stripe boundary.
+            int stripes = (length + stripeLength - 1) / stripeLength;
+            int split = (stripes / 2) * stripeLength;
+            invokeAll(new StripeTask(stripe, offset, split, stripeLength),
+                    new StripeTask(stripe, offset + split, length - split, stripeLength));
+        }
     }
 
     @Override
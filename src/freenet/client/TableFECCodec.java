@@ -0,0 +1,219 @@
+package freenet.client;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pure Java Reed-Solomon codec over GF(2^8), producing exactly the same check blocks as the Onion
+ * Networks codec (same field polynomial, same systematic Vandermonde encoding matrix), so it can
+ * be used for ONION_STANDARD splitfiles. Selected by FECCodec.setUseTableCodec().
+ *
+ * Multiplication is by lookup in a precomputed 64KiB table, a whole row of a block at a time,
+ * with plain XOR loops for the coefficient 1 rows that HotSpot vectorises. Blocks are processed in
+ * small chunks so the inputs of a chunk stay in cache while all its outputs are computed. Unlike
+ * PureCode, the decode matrix is inverted once per segment, not once per stripe. Striping across
+ * cores is inherited from OnionFECCodec.
+ */
+public class TableFECCodec extends OnionFECCodec {
+
+    /** x^8 + x^4 + x^3 + x^2 + 1, as used by Onion FEC. */
+    private static final int PRIMITIVE_POLYNOMIAL = 0x11D;
+    /** Process this many bytes of every block at a time, to stay in the cache. */
+    static final int CHUNK_LENGTH = 1024;
+    /** Don't cache more encode matrices than this. */
+    private static final int MAX_CACHED_MATRICES = 64;
+
+    private static final int[] EXP = new int[510];
+    private static final int[] LOG = new int[256];
+    /** MUL[a][b] = a * b in GF(2^8). */
+    private static final byte[][] MUL = new byte[256][256];
+
+    static {
+        int x = 1;
+        for(int i=0;i<255;i++) {
+            EXP[i] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if(x >= 256) x ^= PRIMITIVE_POLYNOMIAL;
+        }
+        for(int i=255;i<EXP.length;i++)
+            EXP[i] = EXP[i - 255];
+        for(int a=1;a<256;a++)
+            for(int b=1;b<256;b++)
+                MUL[a][b] = (byte) EXP[LOG[a] + LOG[b]];
+    }
+
+    /** Encode matrices (n rows of k) by k and n. Only read once created. */
+    private static final ConcurrentHashMap<Integer, byte[]> encodeMatrices =
+        new ConcurrentHashMap<Integer, byte[]>();
+
+    @Override
+    int maxDecodeStripes(int k, int n) {
+        // The decode matrix is shared between stripes.
+        return MAX_STRIPES;
+    }
+
+    @Override
+    Stripe encoder(final int k, int n, final byte[][] dataBlocks, final byte[][] check,
+            final int[] toEncode) {
+        final byte[] matrix = getEncodeMatrix(k, n);
+        return new Stripe() {
+            @Override
+            public void run(int offset, int length) {
+                for(int chunk = offset; chunk < offset + length; chunk += CHUNK_LENGTH) {
+                    int chunkLength = Math.min(CHUNK_LENGTH, offset + length - chunk);
+                    for(int i=0;i<check.length;i++) {
+                        int row = toEncode[i] * k;
+                        zero(check[i], chunk, chunkLength);
+                        for(int j=0;j<k;j++)
+                            addMul(check[i], chunk, dataBlocks[j], chunk, matrix[row + j] & 0xFF,
+                                    chunkLength);
+                    }
+                }
+            }
+        };
+    }
+
+    @Override
+    Stripe decoder(final int k, int n, final byte[][] dataBlocks, boolean[] filled,
+            int[] blockNumbers) {
+        byte[] encodeMatrix = getEncodeMatrix(k, n);
+        final byte[] decodeMatrix = new byte[k*k];
+        int missing = 0;
+        for(int i=0;i<k;i++) {
+            if(!filled[i]) throw new IllegalArgumentException("Not enough blocks to decode");
+            System.arraycopy(encodeMatrix, blockNumbers[i] * k, decodeMatrix, i * k, k);
+            if(blockNumbers[i] >= k) missing++;
+        }
+        invert(decodeMatrix, k);
+        final int[] toDecode = new int[missing];
+        int x = 0;
+        for(int i=0;i<k;i++)
+            if(blockNumbers[i] >= k) toDecode[x++] = i;
+        return new Stripe() {
+            @Override
+            public void run(int offset, int length) {
+                // The slots we are decoding into are also inputs, so decode into a buffer first.
+                byte[][] decoded = new byte[toDecode.length][length];
+                for(int chunk = 0; chunk < length; chunk += CHUNK_LENGTH) {
+                    int chunkLength = Math.min(CHUNK_LENGTH, length - chunk);
+                    for(int i=0;i<toDecode.length;i++) {
+                        int row = toDecode[i] * k;
+                        for(int j=0;j<k;j++)
+                            addMul(decoded[i], chunk, dataBlocks[j], offset + chunk,
+                                    decodeMatrix[row + j] & 0xFF, chunkLength);
+                    }
+                }
+                for(int i=0;i<toDecode.length;i++)
+                    System.arraycopy(decoded[i], 0, dataBlocks[toDecode[i]], offset, length);
+            }
+        };
+    }
+
+    /** dst[dstOffset...] ^= c * src[srcOffset...] */
+    static void addMul(byte[] dst, int dstOffset, byte[] src, int srcOffset, int c, int length) {
+        if(c == 0) return;
+        if(c == 1) {
+            for(int i=0;i<length;i++)
+                dst[dstOffset + i] ^= src[srcOffset + i];
+            return;
+        }
+        byte[] table = MUL[c];
+        for(int i=0;i<length;i++)
+            dst[dstOffset + i] ^= table[src[srcOffset + i] & 0xFF];
+    }
+
+    private static void zero(byte[] buf, int offset, int length) {
+        for(int i=0;i<length;i++)
+            buf[offset + i] = 0;
+    }
+
+    static int mul(int a, int b) {
+        return MUL[a][b] & 0xFF;
+    }
+
+    private static int inverse(int a) {
+        return EXP[255 - LOG[a]];
+    }
+
+    /** @return The n by k systematic encode matrix. Must not be modified. */
+    static byte[] getEncodeMatrix(int k, int n) {
+        Integer key = (n << 16) | k;
+        byte[] matrix = encodeMatrices.get(key);
+        if(matrix != null) return matrix;
+        matrix = createEncodeMatrix(k, n);
+        if(encodeMatrices.size() >= MAX_CACHED_MATRICES) encodeMatrices.clear();
+        encodeMatrices.put(key, matrix);
+        return matrix;
+    }
+
+    /**
+     * Build the encode matrix the same way Onion FEC does: a Vandermonde matrix whose first row
+     * is (1, 0, ..., 0) and whose row r > 0 is alpha^((r-1)*c), multiplied by the inverse of its
+     * top k rows so that the code is systematic.
+     */
+    static byte[] createEncodeMatrix(int k, int n) {
+        if(k < 1 || n <= k || n > 256) throw new IllegalArgumentException("k="+k+" n="+n);
+        byte[] vandermonde = new byte[n*k];
+        vandermonde[0] = 1;
+        for(int row=1;row<n;row++)
+            for(int col=0;col<k;col++)
+                vandermonde[row*k + col] = (byte) EXP[((row - 1) * col) % 255];
+        byte[] top = new byte[k*k];
+        System.arraycopy(vandermonde, 0, top, 0, k*k);
+        invert(top, k);
+        byte[] matrix = new byte[n*k];
+        for(int i=0;i<k;i++)
+            matrix[i*k + i] = 1;
+        for(int row=k;row<n;row++) {
+            for(int col=0;col<k;col++) {
+                int sum = 0;
+                for(int j=0;j<k;j++)
+                    sum ^= mul(vandermonde[row*k + j] & 0xFF, top[j*k + col] & 0xFF);
+                matrix[row*k + col] = (byte) sum;
+            }
+        }
+        return matrix;
+    }
+
+    /** Invert a k by k matrix in place, by Gauss-Jordan elimination. */
+    static void invert(byte[] matrix, int k) {
+        byte[] inverse = new byte[k*k];
+        for(int i=0;i<k;i++)
+            inverse[i*k + i] = 1;
+        for(int col=0;col<k;col++) {
+            int pivot = col;
+            while(pivot < k && matrix[pivot*k + col] == 0) pivot++;
+            if(pivot == k) throw new IllegalArgumentException("Singular matrix");
+            if(pivot != col) {
+                swapRows(matrix, k, pivot, col);
+                swapRows(inverse, k, pivot, col);
+            }
+            int factor = inverse(matrix[col*k + col] & 0xFF);
+            scaleRow(matrix, k, col, factor);
+            scaleRow(inverse, k, col, factor);
+            for(int row=0;row<k;row++) {
+                if(row == col) continue;
+                int c = matrix[row*k + col] & 0xFF;
+                if(c == 0) continue;
+                addMul(matrix, row*k, matrix, col*k, c, k);
+                addMul(inverse, row*k, inverse, col*k, c, k);
+            }
+        }
+        System.arraycopy(inverse, 0, matrix, 0, k*k);
+    }
+
+    private static void swapRows(byte[] matrix, int k, int a, int b) {
+        for(int i=0;i<k;i++) {
+            byte t = matrix[a*k + i];
+            matrix[a*k + i] = matrix[b*k + i];
+            matrix[b*k + i] = t;
+        }
+    }
+
+    private static void scaleRow(byte[] matrix, int k, int row, int factor) {
+        byte[] table = MUL[factor];
+        for(int i=0;i<k;i++)
+            matrix[row*k + i] = table[matrix[row*k + i] & 0xFF];
+    }
+
+}
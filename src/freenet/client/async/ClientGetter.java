@@ -11,8 +11,6 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.io.RandomAccessFile;
 import java.io.Serializable;
 import java.net.MalformedURLException;
@@ -47,6 +45,7 @@ import freenet.support.api.Bucket;
 import freenet.support.compress.CompressionOutputSizeException;
 import freenet.support.compress.Compressor;
 import freenet.support.compress.DecompressorThreadManager;
+import freenet.support.io.ChunkedPipe;
 import freenet.support.io.Closer;
 import freenet.support.io.FileBucket;
 import freenet.support.io.FileUtil;
@@ -109,6 +108,8 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 	 * be compatible with this extension. */
 	final String forceCompatibleExtension;
 	private transient boolean resumedFetcher;
+	/** Throughput of each decompressor on the final data, or null if it wasn't compressed. */
+	private transient List<DecompressorThreadManager.StageStats> decompressionStats;
 
 	// Shorter constructors for convenience and backwards compatibility.
 
@@ -299,8 +300,9 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 		// nested locking resulting in deadlocks, it also prevents long locks due to
 		// doing massive encrypted I/Os while holding a lock.
 
-		PipedOutputStream dataOutput = new PipedOutputStream();
-		PipedInputStream dataInput = new PipedInputStream();
+		ChunkedPipe pipe = new ChunkedPipe();
+		OutputStream dataOutput = pipe.getOutputStream();
+		InputStream dataInput = pipe.getInputStream();
 		OutputStream output = null;
 
 		DecompressorThreadManager decompressorManager = null;
@@ -326,13 +328,15 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 			if(returnBucket == null) finalResult = context.getBucketFactory(persistent()).makeBucket(maxLen);
 			else finalResult = returnBucket;
 			if(logMINOR) Logger.minor(this, "Writing final data to "+finalResult+" return bucket is "+returnBucket);
-			dataOutput .connect(dataInput);
 			result = new FetchResult(clientMetadata, finalResult);
 
 			// Decompress
 			if(decompressors != null) {
 				if(logMINOR) Logger.minor(this, "Decompressing...");
 				decompressorManager =  new DecompressorThreadManager(dataInput, decompressors, maxLen);
+				synchronized(this) {
+					decompressionStats = decompressorManager.getStats();
+				}
 				dataInput = decompressorManager.execute();
 			}
 
@@ -357,6 +361,7 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 			if(decompressorManager != null) {
 				if(logMINOR) Logger.minor(this, "Waiting for decompression to finalize");
 				decompressorManager.waitFinished();
+				if(logMINOR) Logger.minor(this, "Decompression: "+decompressorManager.getStats());
 			}
 
 			if(worker.getClientMetadata() != null) {
@@ -858,6 +863,12 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 	    return expectedSize;
 	}
 
+	/** @return How long decompressing the final data took so far, for each compressor, or null
+	 * if we haven't started or it wasn't compressed. Not persisted. */
+	public synchronized List<DecompressorThreadManager.StageStats> getDecompressionStats() {
+	    return decompressionStats;
+	}
+
 	/** @return The callback to be notified when we complete the request. */
 	public ClientGetCallback getClientCallback() {
 		return clientCallback;
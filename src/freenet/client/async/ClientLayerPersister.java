@@ -104,6 +104,11 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
     private static final long MAGIC = 0xd332925f3caf4aedL;
     private static final int VERSION = 1;
     
+    /** Serialized records (identifier, request and recovery data) for requests that have 
+     * finished, so we don't have to serialize them again on every checkpoint. Only accessed 
+     * while holding serializeCheckpoints. */
+    private final SavedRecordCache<ClientRequest> savedRecords;
+    
     private static volatile boolean logMINOR;
     static {
         Logger.registerClass(ClientLayerPersister.class);
@@ -123,6 +128,15 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         this.tempBucketFactory = tempBucketFactory;
         this.checker = new CRCChecksumChecker();
         this.bandwidthStatsPutter = stats;
+        this.savedRecords = new SavedRecordCache<ClientRequest>(
+                new SavedRecordCache.RecordWriter<ClientRequest>() {
+
+            @Override
+            public boolean writeRecord(OutputStream os, ClientRequest req) throws IOException {
+                return ClientLayerPersister.this.writeRecord(os, req);
+            }
+
+        }, tempBucketFactory);
     }
     
     /** Set the files to write to and set up encryption
@@ -593,17 +607,13 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                     }
                 }
             }
+            // The shutdown callbacks may have changed anything.
+            savedRecords.startCheckpoint(shutdown);
             oos.writeInt(requests.length);
-            for(ClientRequest req : requests) {
-                // Write the request identifier so we can skip reading the request if we already have it.
-                writeRequestIdentifier(oos, req.getRequestIdentifier());
-                // Write the actual request.
-                writeChecksummedObject(oos, req, req.toString());
-                // Write recovery data. This is just enough to restart the request from scratch, 
-                // but may support continuing the request in simple cases e.g. if a fetch is now
-                // just a single splitfile.
-                writeRecoveryData(oos, req);
-            }
+            for(ClientRequest req : requests)
+                savedRecords.write(oos, req, req.getPersistentStateVersion());
+            // Requests that have been removed.
+            savedRecords.finishCheckpoint();
             bandwidthStatsPutter.updateData(node);
             oos.writeObject(bandwidthStatsPutter);
             if(buckets == null) {
@@ -615,12 +625,15 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
             }
             oos.close();
             fos = null;
-            Logger.normal(this, "Saved "+requests.length+" requests to "+writeToFilename);
+            Logger.normal(this, "Saved "+requests.length+" requests to "+writeToFilename+
+                    " ("+savedRecords.reused()+" unchanged)");
             persistentTempFactory.finishDelayedFree(buckets);
             return true;
         } catch (IOException e) {
             System.err.println("Failed to write persistent requests: "+e);
             e.printStackTrace();
+            // Might be a problem with the temp buckets.
+            savedRecords.clear();
             return false;
         } finally {
             try {
@@ -632,18 +645,34 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
     
-    private void writeRecoveryData(ObjectOutputStream os, ClientRequest req) throws IOException {
+    /** Write everything we store for a single request.
+     * @return False if the request or its recovery data could not be serialized. */
+    private boolean writeRecord(OutputStream os, ClientRequest req) throws IOException {
+        // Write the request identifier so we can skip reading the request if we already have it.
+        writeRequestIdentifier(new DataOutputStream(os), req.getRequestIdentifier());
+        // Write the actual request.
+        boolean success = writeChecksummedObject(os, req, req.toString());
+        // Write recovery data. This is just enough to restart the request from scratch, 
+        // but may support continuing the request in simple cases e.g. if a fetch is now
+        // just a single splitfile.
+        if(!writeRecoveryData(os, req)) success = false;
+        return success;
+    }
+    
+    private boolean writeRecoveryData(OutputStream os, ClientRequest req) throws IOException {
         PrependLengthOutputStream oos = checker.checksumWriterWithLength(os, tempBucketFactory);
         DataOutputStream dos = new DataOutputStream(oos);
         try {
             req.getClientDetail(dos, checker);
             dos.close();
             oos = null;
+            return true;
         } catch (Throwable e) {
             Logger.error(this, "Unable to write recovery data for "+req+" : "+e, e);
             System.err.println("Unable to write recovery data for "+req+" : "+e);
             e.printStackTrace();
             oos.abort();
+            return false;
         } finally {
             if(oos != null) oos.close();
         }
@@ -666,16 +695,18 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
 
-    private void writeChecksummedObject(ObjectOutputStream os, Object req, String name) throws IOException {
+    private boolean writeChecksummedObject(OutputStream os, Object req, String name) throws IOException {
         PrependLengthOutputStream oos = checker.checksumWriterWithLength(os, tempBucketFactory);
         try {
             ObjectOutputStream innerOOS = new ObjectOutputStream(oos);
             innerOOS.writeObject(req);
             innerOOS.close();
             oos = null;
+            return true;
         } catch (Throwable e) {
             Logger.error(this, "Unable to write recovery data for "+name+" : "+e, e);
             oos.abort();
+            return false;
         } finally {
             if(oos != null) oos.close();
         }
@@ -765,6 +796,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
             writeToFilename = null;
             writeToBackupFilename = null;
             writeToBucket = null;
+            savedRecords.clear();
         }
         super.disableWrite();
     }
@@ -1,16 +1,24 @@
 package freenet.client.async;
 
+import java.util.Arrays;
 import java.util.Random;
 
-/** A block chooser including support for cooldown */
+/** A block chooser including support for cooldown. Blocks in cooldown are taken out of the
+ * running in SimpleBlockChooser, and queued in order of when they wake up. Since every block
+ * cools down for the same length of time, that is the order they went into cooldown, so this is
+ * a linked list threaded through two arrays, and waking up and cancelling are both O(1). */
 public class CooldownBlockChooser extends SimpleBlockChooser {
 
-    public CooldownBlockChooser(int blocks, Random random, int maxRetries, int cooldownTries, 
+    public CooldownBlockChooser(int blocks, Random random, int maxRetries, int cooldownTries,
             long cooldownTime) {
         super(blocks, random, maxRetries);
         this.cooldownTries = cooldownTries;
         this.cooldownTime = cooldownTime;
         blockCooldownTimes = new long[blocks];
+        nextCooldown = new int[blocks];
+        prevCooldown = new int[blocks];
+        Arrays.fill(nextCooldown, -1);
+        Arrays.fill(prevCooldown, -1);
     }
 
     /** Every cooldownTries attempts, a key will enter cooldown, and won't be re-tried for a period. */
@@ -18,65 +26,71 @@ public class CooldownBlockChooser extends SimpleBlockChooser {
     /** Cooldown lasts this long for each key. */
     private final long cooldownTime;
     /** Time at which the whole block chooser will next become fetchable. 0 to mean it is fetchable
-     * now. Equal to the earliest valid cooldown time for any individual block. INVARIANT: This can 
+     * now. Equal to the earliest valid cooldown time for any individual block. INVARIANT: This can
      * safely be too early (small) but not too late (large). */
     private long overallCooldownTime;
     /** Time at which each block becomes fetchable again. 0 means it is fetchable now. */
     private long[] blockCooldownTimes;
-    /** Current time, updated at the beginning of chooseKey(). */
-    private long now;
-    
+    /** Next block in the cooldown queue, or -1. */
+    private final int[] nextCooldown;
+    /** Previous block in the cooldown queue, or -1. */
+    private final int[] prevCooldown;
+    /** The block which will wake up first, or -1 if none are in cooldown. */
+    private int firstCooldown = -1;
+    /** The block which went into cooldown last, or -1. */
+    private int lastCooldown = -1;
+
     @Override
     public synchronized int chooseKey() {
-        now = System.currentTimeMillis();
+        long now = System.currentTimeMillis();
         if(overallCooldownTime > now) return -1;
-        overallCooldownTime = Long.MAX_VALUE; // Will find the earliest wake-up.
+        while(firstCooldown != -1 && blockCooldownTimes[firstCooldown] < now)
+            endCooldown(firstCooldown);
         int ret = super.chooseKey();
-        if(ret != -1) 
+        if(ret != -1)
             overallCooldownTime = 0; // Fetchable now, else waiting for cooldown.
+        else if(firstCooldown != -1)
+            overallCooldownTime = blockCooldownTimes[firstCooldown];
+        else
+            overallCooldownTime = Long.MAX_VALUE; // Until something changes.
         return ret;
     }
-    
+
     @Override
-    protected boolean checkValid(int blockNo) {
-        if(!super.checkValid(blockNo)) return false;
-        long wakeUp = blockCooldownTimes[blockNo];
-        if(now > wakeUp) {
-            blockCooldownTimes[blockNo] = 0;
-            return true;
-        } else {
-            // Update the overall cooldown wakeup time.
-            overallCooldownTime = Math.min(overallCooldownTime, wakeUp);
-            return false;
-        }
+    protected boolean isWaiting(int blockNo) {
+        return blockCooldownTimes[blockNo] != 0;
     }
-    
+
     @Override
     protected synchronized int innerOnNonFatalFailure(int blockNo) {
+        // Take it out of the queue first, so that the superclass updates it correctly.
+        if(blockCooldownTimes[blockNo] != 0) removeCooldown(blockNo);
         int ret = super.innerOnNonFatalFailure(blockNo);
         if(ret > maxRetries && maxRetries != -1) return ret;
         if(ret % cooldownTries == 0) {
             blockCooldownTimes[blockNo] = System.currentTimeMillis() + cooldownTime;
+            addCooldown(blockNo);
+            update(blockNo);
             overallCooldownTime = Math.min(blockCooldownTimes[blockNo], overallCooldownTime); // Must not be left at infinite!
         } else {
             // Fetchable.
-            blockCooldownTimes[blockNo] = 0;
             overallCooldownTime = 0;
         }
         return ret;
     }
-    
+
     /** Should be called e.g. when getMaxBlockNumber() changes. */
     public final synchronized void clearCooldown() {
         overallCooldownTime = 0;
     }
-    
+
     @Override
     public synchronized void onUnSuccess(int blockNo) {
-        blockCooldownTimes[blockNo] = 0;
+        if(blockCooldownTimes[blockNo] != 0) endCooldown(blockNo);
+        super.onUnSuccess(blockNo);
         clearCooldown();
     }
-    
+
     public synchronized long overallCooldownTime() {
         return overallCooldownTime;
     }
@@ -86,4 +100,37 @@ public class CooldownBlockChooser extends SimpleBlockChooser {
         return blockCooldownTimes[blockNumber];
     }
 
+    private void endCooldown(int blockNo) {
+        removeCooldown(blockNo);
+        update(blockNo);
+    }
+
+    /** Append to the queue. Wakes up no earlier than anything already in it. */
+    private void addCooldown(int blockNo) {
+        prevCooldown[blockNo] = lastCooldown;
+        nextCooldown[blockNo] = -1;
+        if(lastCooldown == -1)
+            firstCooldown = blockNo;
+        else
+            nextCooldown[lastCooldown] = blockNo;
+        lastCooldown = blockNo;
+    }
+
+    /** Remove from the queue and clear the cooldown time. Caller must update() if necessary. */
+    private void removeCooldown(int blockNo) {
+        int prev = prevCooldown[blockNo];
+        int next = nextCooldown[blockNo];
+        if(prev == -1)
+            firstCooldown = next;
+        else
+            nextCooldown[prev] = next;
+        if(next == -1)
+            lastCooldown = prev;
+        else
+            prevCooldown[next] = prev;
+        prevCooldown[blockNo] = -1;
+        nextCooldown[blockNo] = -1;
+        blockCooldownTimes[blockNo] = 0;
+    }
+
 }
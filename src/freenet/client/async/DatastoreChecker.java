@@ -4,13 +4,14 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import freenet.support.math.MersenneTwister;
 
 import freenet.keys.Key;
 import freenet.keys.KeyBlock;
-import freenet.keys.NodeSSK;
 import freenet.node.LowLevelGetException;
 import freenet.node.Node;
 import freenet.node.PrioRunnable;
@@ -52,7 +53,7 @@ public class DatastoreChecker implements PrioRunnable {
 		});
 	}
 
-	private static class QueueItem {
+	static class QueueItem {
 		/** Request which we will call finishRegister() for when we have
 		 *  checked the keys lists. Deactivated (if persistent). */
 		final SendableGet getter;
@@ -84,6 +85,24 @@ public class DatastoreChecker implements PrioRunnable {
 	/** List of requests to check the datastore for. */
 	private final ArrayDeque<QueueItem>[] queue;
 
+	/** Check the keys of several requests at once, up to about this many keys. */
+	static final int BATCH_KEYS = 1024;
+	/** Maximum number of threads looking up keys at once, including the checker thread. */
+	static final int MAX_WORKERS = 4;
+	/** Don't start another worker for fewer keys than this. */
+	static final int KEYS_PER_WORKER = 64;
+
+	// Throughput stats.
+	private long requestsChecked;
+	private long keysChecked;
+	private long keysFound;
+	/** Time spent checking keys, in nanoseconds. */
+	private long checkingTime;
+	/** When the queue stopped being empty, or 0 if it is empty. */
+	private long busySince;
+	private long periodKeys;
+	private int periodRequests;
+
 	private ClientContext context;
 	private final Node node;
 
@@ -104,8 +123,10 @@ public class DatastoreChecker implements PrioRunnable {
 	}
 
 	public void queueRequest(SendableGet getter, BlockSet blocks) {
-		Key[] checkKeys = getter.listKeys();
-		short prio = getter.getPriorityClass();
+		queueRequest(getter.listKeys(), getter, blocks, getter.getPriorityClass());
+	}
+
+	void queueRequest(Key[] checkKeys, SendableGet getter, BlockSet blocks, short prio) {
 		if(logMINOR) Logger.minor(this, "Queueing transient request "+getter+" priority "+prio+" keys "+checkKeys.length);
 		// FIXME check using store.probablyInStore
 		ArrayList<Key> finalKeysToCheck = new ArrayList<Key>(checkKeys.length);
@@ -136,42 +157,23 @@ public class DatastoreChecker implements PrioRunnable {
 		}
 	}
 
-	/** Process a single job, waiting if necessary.
+	/** Process a batch of jobs, waiting if necessary.
 	 * @return True if lazy=true and there are no jobs to run.
 	 */
 	private boolean realRun() {
-		Random random;
-		if(KILL_BLOCKS != 0)
-			random = new MersenneTwister();
-		else
-			random = null;
-		Key[] keys = null;
-		SendableGet getter = null;
-		ClientRequestScheduler sched = null;
-		BlockSet blocks = null;
-		boolean waited = false;
+		ArrayList<QueueItem> items = new ArrayList<QueueItem>();
+		int totalKeys;
 		synchronized(this) {
 			while(true) {
-				for(short prio = 0;prio<queue.length;prio++) {
-				    QueueItem trans;
-					if((trans = queue[prio].pollFirst()) != null) {
-						keys = trans.keys;
-						getter = trans.getter;
-						// sched assigned out of loop
-						blocks = trans.blockSet;
-						if(logMINOR)
-							Logger.minor(this, "Checking transient request "+getter+" prio "+prio+" of "+queue[prio].size());
-						break;
-					}
-				}
-				if(keys != null)
+				totalKeys = takeBatch(items);
+				if(!items.isEmpty())
 					break;
 				if(logMINOR) Logger.minor(this, "Waiting for more transient requests");
+				reportFinished();
 				if(lazy) {
 				    running = false;
 				    return true;
 				}
-				waited = true;
 				try {
 					// Wait for anything.
 					wait(SECONDS.toMillis(100));
@@ -179,50 +181,73 @@ public class DatastoreChecker implements PrioRunnable {
 					// Ok
 				}
 			}
+			if(busySince == 0) busySince = System.currentTimeMillis();
 		}
-		sched = getter.getScheduler(context);
-		boolean anyValid = false;
-		for(Key key : keys) {
-			if(random != null) {
-				if(random.nextInt(RESET_COUNTER) < KILL_BLOCKS) {
+		long startTime = System.nanoTime();
+		CheckBatch batch = new CheckBatch(items, totalKeys);
+		batch.check();
+		int found = 0;
+		int offset = 0;
+		for(QueueItem item : items) {
+			SendableGet getter = item.getter;
+			ClientRequestScheduler sched = getter.getScheduler(context);
+			boolean anyValid = false;
+			for(int i=0;i<item.keys.length;i++) {
+				KeyBlock block = batch.results[offset + i];
+				if(block != null) {
+					if(logMINOR) Logger.minor(this, "Found key");
+					sched.tripPendingKey(block);
+					found++;
+				} else {
 					anyValid = true;
-					continue;
 				}
 			}
-			KeyBlock block;
-			if(blocks != null)
-				block = blocks.get(key);
-			else
-				block = node.fetch(key, true, true, false, false, null);
-			if(block != null) {
-				if(logMINOR) Logger.minor(this, "Found key");
-				if(key instanceof NodeSSK)
-					sched.tripPendingKey(block);
-				else // CHK
-					sched.tripPendingKey(block);
-			} else {
-				anyValid = true;
+			offset += item.keys.length;
+			if(logMINOR) Logger.minor(this, "Checked "+item.keys.length+" keys");
+			finishRegister(getter, sched, anyValid);
+		}
+		long time = System.nanoTime() - startTime;
+		synchronized(this) {
+			requestsChecked += items.size();
+			keysChecked += totalKeys;
+			keysFound += found;
+			checkingTime += time;
+			periodRequests += items.size();
+			periodKeys += totalKeys;
+		}
+		return false;
+	}
+
+	/** Take requests in priority order, until we have enough keys to be worth spreading across 
+	 * the workers. Always take at least one, if there are any.
+	 * @return The total number of keys in the requests taken. */
+	synchronized int takeBatch(List<QueueItem> items) {
+		int totalKeys = 0;
+		for(short prio = 0;prio<queue.length && totalKeys < BATCH_KEYS;prio++) {
+			QueueItem trans;
+			while(totalKeys < BATCH_KEYS && (trans = queue[prio].pollFirst()) != null) {
+				items.add(trans);
+				totalKeys += trans.keys.length;
+				if(logMINOR)
+					Logger.minor(this, "Checking transient request "+trans.getter+" prio "+prio+" of "+queue[prio].size());
 			}
-//			synchronized(this) {
-//				keysToCheck[priority].remove(key);
-//			}
 		}
-		if(logMINOR) Logger.minor(this, "Checked "+keys.length+" keys");
+		return totalKeys;
+	}
+
+	private void finishRegister(final SendableGet getter, final ClientRequestScheduler sched, final boolean anyValid) {
 		if(getter.persistent()) {
-			final SendableGet get = getter;
-			final ClientRequestScheduler scheduler = sched;
-			final boolean valid = anyValid;
 			try {
 				context.jobRunner.queue(new PersistentJob() {
 
 					@Override
 					public boolean run(ClientContext context) {
 						try {
-							scheduler.finishRegister(new SendableGet[] { get }, true, valid);
+							sched.finishRegister(new SendableGet[] { getter }, true, anyValid);
 						} catch (Throwable t) {
-							Logger.error(this, "Failed to register "+get+": "+t, t);
+							Logger.error(this, "Failed to register "+getter+": "+t, t);
 							try {
-								get.onFailure(new LowLevelGetException(LowLevelGetException.INTERNAL_ERROR, "Internal error: "+t, t), null, context);
+								getter.onFailure(new LowLevelGetException(LowLevelGetException.INTERNAL_ERROR, "Internal error: "+t, t), null, context);
 							} catch (Throwable t1) {
 								Logger.error(this, "Failed to fail: "+t, t);
 							}
@@ -242,7 +267,118 @@ public class DatastoreChecker implements PrioRunnable {
 		} else {
 			sched.finishRegister(new SendableGet[] { getter }, false, anyValid);
 		}
-		return false;
+	}
+
+	/** The queue is empty: log how long it took to get through it. */
+	private synchronized void reportFinished() {
+		if(busySince == 0) return;
+		long elapsed = System.currentTimeMillis() - busySince;
+		Logger.normal(this, "Checked the datastore for "+periodKeys+" keys for "+periodRequests+
+				" requests in "+elapsed+"ms ("+(periodKeys * 1000 / Math.max(1, elapsed))+" keys/sec)");
+		busySince = 0;
+		periodKeys = 0;
+		periodRequests = 0;
+	}
+
+	/** The keys of a group of requests, looked up in parallel. Any lookup may block on disk, so
+	 * as well as the checker thread, up to MAX_WORKERS - 1 threads from the executor help. */
+	class CheckBatch implements PrioRunnable {
+
+		final Key[] keys;
+		/** Where to look for each key, or null to look in the datastore. */
+		final BlockSet[] blockSets;
+		final KeyBlock[] results;
+		private final AtomicInteger next;
+		private int workers;
+
+		CheckBatch(List<QueueItem> items, int totalKeys) {
+			keys = new Key[totalKeys];
+			blockSets = new BlockSet[totalKeys];
+			results = new KeyBlock[totalKeys];
+			next = new AtomicInteger();
+			Random random = KILL_BLOCKS != 0 ? new MersenneTwister() : null;
+			int x = 0;
+			for(QueueItem item : items) {
+				for(Key key : item.keys) {
+					// Killed keys are never looked up, so are treated as not found.
+					if(random == null || random.nextInt(RESET_COUNTER) >= KILL_BLOCKS)
+						keys[x] = key;
+					blockSets[x] = item.blockSet;
+					x++;
+				}
+			}
+		}
+
+		void check() {
+			int count = Math.min(MAX_WORKERS - 1, keys.length / KEYS_PER_WORKER);
+			synchronized(this) {
+				workers = count;
+			}
+			for(int i=0;i<count;i++)
+				executor.execute(this, threadName+" worker");
+			checkKeys();
+			synchronized(this) {
+				while(workers > 0) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						// Ok
+					}
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				checkKeys();
+			} catch (Throwable t) {
+				Logger.error(this, "Caught "+t+" checking the datastore", t);
+			} finally {
+				synchronized(this) {
+					workers--;
+					notifyAll();
+				}
+			}
+		}
+
+		private void checkKeys() {
+			int i;
+			while((i = next.getAndIncrement()) < keys.length) {
+				Key key = keys[i];
+				if(key == null) continue;
+				if(blockSets[i] != null)
+					results[i] = blockSets[i].get(key);
+				else
+					results[i] = node.fetch(key, true, true, false, false, null);
+			}
+		}
+
+		@Override
+		public int getPriority() {
+			return NativeThread.NORM_PRIORITY;
+		}
+
+	}
+
+	/** Total number of keys checked since startup. */
+	public synchronized long getKeysChecked() {
+		return keysChecked;
+	}
+
+	/** Total number of keys found in the datastore since startup. */
+	public synchronized long getKeysFound() {
+		return keysFound;
+	}
+
+	public synchronized long getRequestsChecked() {
+		return requestsChecked;
+	}
+
+	/** Average number of keys checked per second, while there was something to check. */
+	public synchronized double getKeysPerSecond() {
+		if(checkingTime == 0) return 0;
+		return keysChecked * 1e9 / checkingTime;
 	}
 
 	synchronized void wakeUp() {
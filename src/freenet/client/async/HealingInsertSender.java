@@ -0,0 +1,201 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import freenet.client.InsertException;
+import freenet.client.async.SimpleHealingQueue.HealingBlock;
+import freenet.keys.CHKBlock;
+import freenet.keys.ClientCHKBlock;
+import freenet.keys.ClientKey;
+import freenet.node.KeysFetchingLocally;
+import freenet.node.LowLevelPutException;
+import freenet.node.Node;
+import freenet.node.NodeClientCore;
+import freenet.node.RequestClient;
+import freenet.node.RequestScheduler;
+import freenet.node.SendableInsert;
+import freenet.node.SendableRequestItem;
+import freenet.node.SendableRequestSender;
+import freenet.store.KeyCollisionException;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+import freenet.support.io.BucketTools;
+import freenet.support.io.ResumeFailedException;
+
+/**
+ * Interface to the low level insertion code for the healing queue. Registered once, and stays
+ * registered, giving the scheduler one block at a time from the queue when there is room for it.
+ *
+ * PERSISTENCE: Not persisted.
+ */
+@SuppressWarnings("serial") // Not persisted.
+public class HealingInsertSender extends SendableInsert {
+
+	final SimpleHealingQueue queue;
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	HealingInsertSender(SimpleHealingQueue queue) {
+		super(false, false);
+		this.queue = queue;
+	}
+
+	@Override
+	public void onSuccess(SendableRequestItem keyNum, ClientKey key, ClientContext context) {
+		if(logMINOR) Logger.minor(this, "Successfully inserted healing block: "+key);
+		queue.onFinished((HealingBlock) keyNum, true, context);
+	}
+
+	@Override
+	public void onFailure(LowLevelPutException e, SendableRequestItem keyNum, ClientContext context) {
+		if(logMINOR) Logger.minor(this, "Failed to insert healing block: "+e);
+		if(keyNum == null) return;
+		// Collision means it's there already.
+		queue.onFinished((HealingBlock) keyNum, e.code == LowLevelPutException.COLLISION, context);
+	}
+
+	@Override
+	public boolean canWriteClientCache() {
+		return queue.ctx.canWriteClientCache;
+	}
+
+	@Override
+	public boolean localRequestOnly() {
+		return queue.ctx.localRequestOnly;
+	}
+
+	@Override
+	public boolean forkOnCacheable() {
+		return queue.ctx.forkOnCacheable;
+	}
+
+	@Override
+	public void onEncode(SendableRequestItem token, ClientKey key, ClientContext context) {
+		// Ignore.
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return queue.getQueued() == 0;
+	}
+
+	@Override
+	protected void innerOnResume(ClientContext context) throws InsertException,
+			ResumeFailedException {
+		throw new UnsupportedOperationException(); // Not persisted.
+	}
+
+	@Override
+	public short getPriorityClass() {
+		return queue.getPriorityClass();
+	}
+
+	@Override
+	public SendableRequestItem chooseKey(KeysFetchingLocally keys, ClientContext context) {
+		return queue.chooseBlock();
+	}
+
+	@Override
+	public long countAllKeys(ClientContext context) {
+		return queue.getQueued() + queue.getRunning();
+	}
+
+	@Override
+	public long countSendableKeys(ClientContext context) {
+		return queue.getQueued();
+	}
+
+	class MySendableRequestSender implements SendableRequestSender {
+
+		@Override
+		public boolean send(NodeClientCore node, RequestScheduler sched, ClientContext context,
+				ChosenBlock request) {
+			HealingBlock token = (HealingBlock) request.token;
+			try {
+				ClientCHKBlock clientBlock = ClientCHKBlock.encodeSplitfileBlock(
+						BucketTools.toByteArray(token.data), token.cryptoKey, token.cryptoAlgorithm);
+				CHKBlock block = clientBlock.getBlock();
+				if(request.localRequestOnly) {
+					node.node.store(block, false, request.canWriteClientCache, true, false);
+				} else {
+					node.realPut(block, request.canWriteClientCache, request.forkOnCacheable,
+							Node.PREFER_INSERT_DEFAULT, Node.IGNORE_LOW_BACKOFF_DEFAULT, false);
+				}
+				request.onInsertSuccess(clientBlock.getClientKey(), context);
+				return true;
+			} catch (KeyCollisionException e) {
+				request.onFailure(new LowLevelPutException(LowLevelPutException.COLLISION), context);
+				return true;
+			} catch (LowLevelPutException e) {
+				request.onFailure(e, context);
+				return true;
+			} catch (Throwable t) {
+				Logger.error(this, "Failed to send healing insert: "+t, t);
+				// We still need to terminate the insert.
+				request.onFailure(new LowLevelPutException(LowLevelPutException.INTERNAL_ERROR, "Failed: "+t, t), context);
+				return true;
+			}
+		}
+
+		@Override
+		public boolean sendIsBlocking() {
+			return true;
+		}
+
+	}
+
+	final MySendableRequestSender sender = new MySendableRequestSender();
+
+	@Override
+	public SendableRequestSender getSender(ClientContext context) {
+		return sender;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return false;
+	}
+
+	@Override
+	public RequestClient getClient() {
+		return SimpleHealingQueue.REQUEST_CLIENT;
+	}
+
+	@Override
+	public ClientRequester getClientRequest() {
+		return queue;
+	}
+
+	@Override
+	public boolean isSSK() {
+		return false;
+	}
+
+	/** Register with the scheduler if we haven't already, otherwise tell it there may be
+	 * something to send. */
+	void schedule(ClientContext context) {
+		if(getParentGrabArray() != null) {
+			clearWakeupTime(context);
+			context.getChkInsertScheduler(false).wakeStarter();
+		} else {
+			context.getChkInsertScheduler(false).registerInsert(this, false);
+		}
+	}
+
+	@Override
+	public long getWakeupTime(ClientContext context, long now) {
+		// Never finished, so stay registered.
+		return queue.getWakeupTime(now);
+	}
+
+}
@@ -7,7 +7,9 @@ import freenet.support.api.Bucket;
 
 public interface HealingQueue {
 
-	/** Queue a Bucket of data to insert as a CHK. */
-	void queue(Bucket data, byte[] cryptoKey, byte cryptoAlgorithm, ClientContext context);
+	/** Queue a Bucket of data to insert as a CHK.
+	 * @param prio The priority class of the download the block came from. Blocks from higher
+	 * priority downloads are healed first. */
+	void queue(Bucket data, byte[] cryptoKey, byte cryptoAlgorithm, short prio, ClientContext context);
 
 }
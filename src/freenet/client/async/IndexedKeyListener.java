@@ -0,0 +1,24 @@
+package freenet.client.async;
+
+import freenet.keys.Key;
+
+/**
+ * A KeyListener which can list all the keys it is waiting for, so that KeyListenerTracker can add
+ * it to its SaltedKeyIndex, and only ask it about those keys. Listeners whose keys change after
+ * they are registered (e.g. USKFetcher) must not implement this, and are asked about every key.
+ */
+public interface IndexedKeyListener extends KeyListener {
+
+	/**
+	 * List the keys we are waiting for. Called once, after the listener has been registered, and
+	 * possibly off-thread. May involve disk I/O. It doesn't matter if some of the keys have
+	 * already been found; probablyWantKey() will still be called.
+	 * @return The keys, or null if they cannot be listed, in which case the listener will be
+	 * asked about every key.
+	 */
+	public Key[] listKeys();
+
+	/** @return True if listKeys() is slow, so we should call it off-thread. */
+	public boolean listKeysIsSlow();
+
+}
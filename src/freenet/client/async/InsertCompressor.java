@@ -22,6 +22,7 @@ import freenet.support.compress.CompressionOutputSizeException;
 import freenet.support.compress.CompressionRatioException;
 import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
 import freenet.support.compress.InvalidCompressionCodecException;
+import freenet.support.compress.ParallelCompressorTrial;
 import freenet.support.io.Closer;
 import freenet.support.io.NativeThread;
 
@@ -108,31 +109,33 @@ public class InsertCompressor implements CompressJob {
 			long amountOfDataToCheckCompressionRatio = config.get("node").getLong("amountOfDataToCheckCompressionRatio");
 			int minimumCompressionPercentage = config.get("node").getInt("minimumCompressionPercentage");
 			int maxTimeForSingleCompressor = config.get("node").getInt("maxTimeForSingleCompressor");
-			for (final COMPRESSOR_TYPE comp : comps) {
+			if(comps.length > 1 && config.get("node").getBoolean("parallelCompressorTrial") &&
+					context.rc.reserveTrialThreads(comps.length)) {
+				// Try them all at once, reading and hashing the data only once.
+				ParallelCompressorTrial.Result result;
+				try {
+					for(COMPRESSOR_TYPE comp : comps)
+						startCompression(comp, context);
+					result = new ParallelCompressorTrial(comps,
+							CHKBlock.DATA_LENGTH, minSize, bucketFactory, amountOfDataToCheckCompressionRatio,
+							minimumCompressionPercentage, maxTimeForSingleCompressor,
+							context.rc.getTrialExecutor()).run(origData, generateHashes);
+				} finally {
+					context.rc.releaseTrialThreads(comps.length);
+				}
+				if(result.codec != null) {
+					bestCodec = result.codec;
+					bestCompressedData = result.data;
+				}
+				hashes = result.hashes;
+			} else for (final COMPRESSOR_TYPE comp : comps) {
 				long compressionStartTime = System.currentTimeMillis();
 				boolean shouldFreeOnFinally = true;
 				RandomAccessBucket result = null;
 				try {
 					if(logMINOR)
 						Logger.minor(this, "Attempt to compress using " + comp);
-					// Only produce if we are compressing *the original data*
-					if(persistent) {
-						context.jobRunner.queue(new PersistentJob() {
-
-							@Override
-							public boolean run(ClientContext context) {
-								inserter.onStartCompression(comp, context);
-								return false;
-							}
-
-						}, NativeThread.NORM_PRIORITY+1);
-					} else {
-						try {
-							inserter.onStartCompression(comp, context);
-						} catch (Throwable t) {
-							Logger.error(this, "Transient insert callback threw "+t, t);
-						}
-					}
+					startCompression(comp, context);
 
 					InputStream is = null;
 					OutputStream os = null;
@@ -260,6 +263,27 @@ public class InsertCompressor implements CompressJob {
 		}
 	}
 
+	private void startCompression(final COMPRESSOR_TYPE comp, ClientContext context) throws PersistenceDisabledException {
+		// Only produce if we are compressing *the original data*
+		if(persistent) {
+			context.jobRunner.queue(new PersistentJob() {
+
+				@Override
+				public boolean run(ClientContext context) {
+					inserter.onStartCompression(comp, context);
+					return false;
+				}
+
+			}, NativeThread.NORM_PRIORITY+1);
+		} else {
+			try {
+				inserter.onStartCompression(comp, context);
+			} catch (Throwable t) {
+				Logger.error(this, "Transient insert callback threw "+t, t);
+			}
+		}
+	}
+
 	private void fail(final InsertException ie, ClientContext context, Bucket bestCompressedData) {
 		if(persistent) {
 			try {
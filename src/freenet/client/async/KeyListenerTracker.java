@@ -7,6 +7,7 @@ import static java.lang.String.format;
 
 import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 
 import freenet.crypt.RandomSource;
@@ -14,11 +15,13 @@ import freenet.crypt.SHA256;
 import freenet.keys.Key;
 import freenet.keys.KeyBlock;
 import freenet.keys.NodeSSK;
+import freenet.node.PrioRunnable;
 import freenet.node.SendableGet;
 import freenet.node.SendableRequest;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
+import freenet.support.io.NativeThread;
 
 /**
  * <p>Tracks exactly which keys we are listening for. This is 
@@ -61,7 +64,12 @@ class KeyListenerTracker implements KeySalter {
 	
 	protected final ClientRequestScheduler sched;
 	/** Transient even for persistent scheduler. There is one for each of transient, persistent. */
-	private final ArrayList<KeyListener> keyListeners;
+	private final HashSet<KeyListener> keyListeners;
+	/** Listeners which have listed their keys, so we only need to ask them about those keys. */
+	private final SaltedKeyIndex index;
+	/** Listeners which we have to ask about every key: those which can't list their keys, and
+	 * those whose keys are still being listed. */
+	private final HashSet<KeyListener> unindexedListeners;
 
 	final boolean persistent;
 	
@@ -74,7 +82,9 @@ class KeyListenerTracker implements KeySalter {
 		this.isSSKScheduler = forSSKs;
 		this.isRTScheduler = forRT;
 		this.sched = sched;
-		keyListeners = new ArrayList<KeyListener>();
+		keyListeners = new HashSet<KeyListener>();
+		index = new SaltedKeyIndex();
+		unindexedListeners = new HashSet<KeyListener>();
 		if(globalSalt == null) {
 		    globalSalt = new byte[32];
 		    random.nextBytes(globalSalt);
@@ -97,24 +107,75 @@ class KeyListenerTracker implements KeySalter {
 
 	public void addPendingKeys(KeyListener listener) {
 		if(listener == null) throw new NullPointerException();
+		int size;
 		synchronized (this) {
 			// We have to register before checking the disk, so it may well get registered twice.
-			if(keyListeners.contains(listener))
+			if(!keyListeners.add(listener))
 				return;
-			keyListeners.add(listener);
+			// Until it is indexed, ask it about every key.
+			unindexedListeners.add(listener);
+			size = keyListeners.size();
 		}
 		if (logMINOR)
-			Logger.minor(this, "Added pending keys to "+this+" : size now "+keyListeners.size()+" : "+listener);
+			Logger.minor(this, "Added pending keys to "+this+" : size now "+size+" : "+listener);
+		if(listener instanceof IndexedKeyListener)
+			queueIndexListener((IndexedKeyListener) listener);
+	}
+	
+	private void queueIndexListener(final IndexedKeyListener listener) {
+		if(sched == null || !listener.listKeysIsSlow()) {
+			indexListener(listener);
+			return;
+		}
+		sched.clientContext.mainExecutor.execute(new PrioRunnable() {
+
+			@Override
+			public void run() {
+				indexListener(listener);
+			}
+
+			@Override
+			public int getPriority() {
+				return NativeThread.LOW_PRIORITY;
+			}
+
+		}, "Index keys for "+listener);
+	}
+	
+	/** Add the listener's keys to the index, so we don't have to ask it about every key. */
+	void indexListener(IndexedKeyListener listener) {
+		Key[] keys;
+		try {
+			keys = listener.listKeys();
+		} catch (Throwable t) {
+			Logger.error(this, format("Error in listKeys callback for %s", listener), t);
+			return;
+		}
+		if(keys == null) return;
+		byte[][] saltedKeys = new byte[keys.length][];
+		for(int i=0;i<keys.length;i++)
+			saltedKeys[i] = saltKey(keys[i]);
+		synchronized(this) {
+			// May have been removed while we were listing the keys.
+			if(!unindexedListeners.remove(listener)) return;
+			index.add(listener, saltedKeys);
+		}
+		if (logMINOR)
+			Logger.minor(this, "Indexed "+keys.length+" keys for "+listener+" on "+this);
 	}
 	
 	public boolean removePendingKeys(KeyListener listener) {
 		boolean ret;
+		int size;
 		synchronized (this) {
 			ret = keyListeners.remove(listener);
+			if(ret && !unindexedListeners.remove(listener))
+				index.remove(listener);
+			size = keyListeners.size();
 		}
 		listener.onRemove();
 		if (logMINOR)
-			Logger.minor(this, "Removed pending keys from "+this+" : size now "+keyListeners.size()+" : "+listener, new Exception("debug"));
+			Logger.minor(this, "Removed pending keys from "+this+" : size now "+size+" : "+listener, new Exception("debug"));
 		return ret;
 	}
 	
@@ -201,7 +262,16 @@ class KeyListenerTracker implements KeySalter {
 	public synchronized boolean anyProbablyWantKey(Key key, ClientContext context) {
 		assert(key instanceof NodeSSK == isSSKScheduler);
 		byte[] saltedKey = saltKey(key);
-		for (KeyListener listener : keyListeners) {
+		if(index.any(saltedKey)) {
+			ArrayList<KeyListener> candidates = new ArrayList<KeyListener>();
+			index.get(saltedKey, candidates);
+			if(anyProbablyWantKey(candidates, key, saltedKey)) return true;
+		}
+		return anyProbablyWantKey(unindexedListeners, key, saltedKey);
+	}
+	
+	private boolean anyProbablyWantKey(Iterable<KeyListener> listeners, Key key, byte[] saltedKey) {
+		for (KeyListener listener : listeners) {
 			try {
 				if (listener.probablyWantKey(key, saltedKey)) {
 					return true;
@@ -267,6 +337,15 @@ class KeyListenerTracker implements KeySalter {
 		return list.toArray(new SendableGet[list.size()]);
 	}
 	
+	/** For stats and tests: number of listeners asked about every key. */
+	synchronized int countUnindexedListeners() {
+		return unindexedListeners.size();
+	}
+	
+	synchronized int countIndexedKeys() {
+		return index.countKeys();
+	}
+	
 	@Override
 	public String toString() {
 		StringBuffer sb = new StringBuffer();
@@ -301,9 +380,12 @@ class KeyListenerTracker implements KeySalter {
 	 * Returns all KeyListeners that return true on probablyWantKey(key, saltedKey)
 	 */
 	private List<KeyListener> probablyWantKey(Key key, byte[] saltedKey) {
+		ArrayList<KeyListener> candidates = new ArrayList<KeyListener>();
 		ArrayList<KeyListener> matches = new ArrayList<KeyListener>();
 		synchronized (this) {
-			for (KeyListener listener : keyListeners) {
+			index.get(saltedKey, candidates);
+			candidates.addAll(unindexedListeners);
+			for (KeyListener listener : candidates) {
 				try {
 					if (!listener.probablyWantKey(key, saltedKey)) {
 						continue;
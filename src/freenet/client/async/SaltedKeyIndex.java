@@ -0,0 +1,196 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Maps salted keys to the KeyListeners which may want them, so that KeyListenerTracker only has
+ * to ask a handful of listeners about each block, rather than every splitfile on the queue.
+ *
+ * This is an open addressing hash table of (fingerprint, listener ID) pairs, one per key per
+ * listener. The fingerprint is 32 bits of the salted key, and also determines the slot. So there
+ * are false positives (roughly 1 in 4 billion per key per probe), but no false negatives: the
+ * caller must still check probablyWantKey() on the candidates. Entries are not removed when a
+ * key is found, only when the listener is removed, and then lazily: the listener's ID is marked
+ * dead and the table is rebuilt once half of it is dead.
+ *
+ * Not thread-safe, the caller (KeyListenerTracker) must synchronize.
+ */
+class SaltedKeyIndex {
+
+	private static final int MIN_CAPACITY = 1024;
+	/** Empty slots are 0, so listener IDs start at 1. */
+	private static final long EMPTY = 0;
+
+	/** Fingerprint in the top 32 bits, listener ID in the bottom 32 bits. */
+	private long[] table;
+	private int mask;
+	/** Number of used slots, including those belonging to removed listeners. */
+	private int used;
+	/** Number of used slots belonging to removed listeners. */
+	private int dead;
+	/** Listeners by ID, null if removed. */
+	private KeyListener[] listeners;
+	/** Number of entries for each listener ID. */
+	private int[] counts;
+	private int nextID;
+	private final IdentityHashMap<KeyListener, Integer> ids;
+
+	SaltedKeyIndex() {
+		table = new long[MIN_CAPACITY];
+		mask = MIN_CAPACITY - 1;
+		listeners = new KeyListener[16];
+		counts = new int[16];
+		nextID = 1;
+		ids = new IdentityHashMap<KeyListener, Integer>();
+	}
+
+	/** Add a listener and all the (salted) keys it is interested in. Must not already be
+	 * indexed. */
+	void add(KeyListener listener, byte[][] saltedKeys) {
+		if(ids.containsKey(listener)) throw new IllegalArgumentException("Already indexed: "+listener);
+		if(nextID == listeners.length) {
+			listeners = Arrays.copyOf(listeners, listeners.length * 2);
+			counts = Arrays.copyOf(counts, counts.length * 2);
+		}
+		int id = nextID++;
+		listeners[id] = listener;
+		ids.put(listener, id);
+		for(byte[] saltedKey : saltedKeys) {
+			if(insert(table, mask, entry(saltedKey, id), slot(saltedKey))) {
+				counts[id]++;
+				if(++used > (table.length >> 1) + (table.length >> 2)) {
+					rebuild(table.length * 2);
+					id = ids.get(listener);
+				}
+			}
+		}
+	}
+
+	/** @return False if the listener wasn't indexed. */
+	boolean remove(KeyListener listener) {
+		Integer id = ids.remove(listener);
+		if(id == null) return false;
+		listeners[id] = null;
+		dead += counts[id];
+		counts[id] = 0;
+		if(dead > used / 2 && dead > MIN_CAPACITY / 4) {
+			int capacity = table.length;
+			while(capacity > MIN_CAPACITY && (used - dead) * 4 < capacity)
+				capacity >>= 1;
+			rebuild(capacity);
+		}
+		return true;
+	}
+
+	boolean contains(KeyListener listener) {
+		return ids.containsKey(listener);
+	}
+
+	/** Add every listener which may want the key to the list. Each listener is added at most
+	 * once. */
+	void get(byte[] saltedKey, List<KeyListener> matches) {
+		int fingerprint = fingerprint(saltedKey);
+		for(int i = slot(saltedKey) & mask;;i = (i + 1) & mask) {
+			long e = table[i];
+			if(e == EMPTY) return;
+			if((int)(e >>> 32) != fingerprint) continue;
+			KeyListener listener = listeners[(int)e];
+			if(listener != null) matches.add(listener);
+		}
+	}
+
+	/** @return True if any listener may want the key. */
+	boolean any(byte[] saltedKey) {
+		int fingerprint = fingerprint(saltedKey);
+		for(int i = slot(saltedKey) & mask;;i = (i + 1) & mask) {
+			long e = table[i];
+			if(e == EMPTY) return false;
+			if((int)(e >>> 32) == fingerprint && listeners[(int)e] != null) return true;
+		}
+	}
+
+	int countListeners() {
+		return ids.size();
+	}
+
+	/** Number of keys indexed, for listeners which have not been removed. */
+	int countKeys() {
+		return used - dead;
+	}
+
+	int capacity() {
+		return table.length;
+	}
+
+	/** Rehash into a table of the given size, dropping removed listeners and renumbering the
+	 * rest. */
+	private void rebuild(int capacity) {
+		int[] newIDs = new int[nextID];
+		KeyListener[] newListeners = new KeyListener[Math.max(16, Integer.highestOneBit(ids.size()) * 2)];
+		int[] newCounts = new int[newListeners.length];
+		int id = 1;
+		for(int i=1;i<nextID;i++) {
+			if(listeners[i] == null) continue;
+			newIDs[i] = id;
+			newListeners[id] = listeners[i];
+			newCounts[id] = counts[i];
+			ids.put(listeners[i], id);
+			id++;
+		}
+		long[] newTable = new long[capacity];
+		int newMask = capacity - 1;
+		for(long e : table) {
+			if(e == EMPTY) continue;
+			int newID = newIDs[(int)e];
+			if(newID == 0) continue;
+			insert(newTable, newMask, (e & 0xFFFFFFFF00000000L) | newID, slotOfEntry(e));
+		}
+		table = newTable;
+		mask = newMask;
+		listeners = newListeners;
+		counts = newCounts;
+		nextID = id;
+		used -= dead;
+		dead = 0;
+	}
+
+	/** @return False if the entry was already present. */
+	private static boolean insert(long[] table, int mask, long entry, int slot) {
+		for(int i = slot & mask;;i = (i + 1) & mask) {
+			long e = table[i];
+			if(e == entry) return false;
+			if(e == EMPTY) {
+				table[i] = entry;
+				return true;
+			}
+		}
+	}
+
+	private static long entry(byte[] saltedKey, int id) {
+		return ((long)fingerprint(saltedKey) << 32) | id;
+	}
+
+	/** The salted key is a SHA-256 hash with a random salt, so any 4 bytes will do. */
+	private static int fingerprint(byte[] saltedKey) {
+		return readInt(saltedKey, 0);
+	}
+
+	private static int slot(byte[] saltedKey) {
+		return fingerprint(saltedKey);
+	}
+
+	private static int slotOfEntry(long e) {
+		return (int)(e >>> 32);
+	}
+
+	private static int readInt(byte[] buf, int offset) {
+		return ((buf[offset] & 0xFF) << 24) | ((buf[offset+1] & 0xFF) << 16) |
+			((buf[offset+2] & 0xFF) << 8) | (buf[offset+3] & 0xFF);
+	}
+
+}
@@ -0,0 +1,133 @@
+package freenet.client.async;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
+import freenet.support.io.BucketTools;
+
+/** Keeps the serialized records of requests that have finished, so a checkpoint can copy them
+ * rather than serialize them again. On a node with thousands of completed downloads, these are
+ * most of client.dat and don't change. Used by ClientLayerPersister, only while holding
+ * serializeCheckpoints, so not thread-safe.
+ * @param <T> The type of the objects being written, e.g. ClientRequest.
+ */
+class SavedRecordCache<T> {
+
+    /** Serialize everything from scratch every this many checkpoints, in case we missed a change
+     * to a finished request. */
+    static final int FULL_SAVE_INTERVAL = 6;
+
+    interface RecordWriter<T> {
+        /** Write the record for an object.
+         * @return False if it could not be serialized, e.g. a non-fatal failure that was
+         * written as an empty/corrupt record. Such records are not kept. */
+        boolean writeRecord(OutputStream os, T object) throws IOException;
+    }
+
+    private static class SavedRecord {
+        /** The version passed in when the record was written. */
+        final int version;
+        final Bucket data;
+        SavedRecord(int version, Bucket data) {
+            this.version = version;
+            this.data = data;
+        }
+    }
+
+    private final RecordWriter<T> writer;
+    private final BucketFactory bf;
+    private Map<T, SavedRecord> records = new IdentityHashMap<T, SavedRecord>();
+    /** Records from the last checkpoint not yet written in this one. */
+    private Map<T, SavedRecord> oldRecords = new IdentityHashMap<T, SavedRecord>();
+    private int checkpointsSinceFullSave;
+    private boolean reuseRecords;
+    private int reused;
+
+    SavedRecordCache(RecordWriter<T> writer, BucketFactory bf) {
+        this.writer = writer;
+        this.bf = bf;
+    }
+
+    /** Start writing a checkpoint. Each object must be written at most once.
+     * @param full If true, serialize everything from scratch, e.g. because the shutdown
+     * callbacks may have changed anything. Also done every FULL_SAVE_INTERVAL checkpoints. */
+    void startCheckpoint(boolean full) {
+        freeRecords(oldRecords);
+        oldRecords = records;
+        records = new IdentityHashMap<T, SavedRecord>();
+        reuseRecords = !full && ++checkpointsSinceFullSave < FULL_SAVE_INTERVAL;
+        if(!reuseRecords)
+            checkpointsSinceFullSave = 0;
+        reused = 0;
+    }
+
+    /** Write the record for an object, copying the saved one if it hasn't changed.
+     * @param version -1 if the object may change at any time (e.g. the request is still
+     * running), in which case it is serialized every time. Otherwise a number which changes
+     * whenever the serialized form does. */
+    void write(OutputStream os, T object, int version) throws IOException {
+        SavedRecord record = oldRecords.remove(object);
+        if(record != null && !(reuseRecords && record.version == version)) {
+            record.data.free();
+            record = null;
+        }
+        if(record != null)
+            reused++;
+        else if(version != -1)
+            record = writeSavedRecord(object, version);
+        if(record != null) {
+            records.put(object, record);
+            BucketTools.copyTo(record.data, os, Long.MAX_VALUE);
+        } else {
+            // Still running, so will probably have changed by the next checkpoint,
+            // or failed to serialize, so try again.
+            writer.writeRecord(os, object);
+        }
+    }
+
+    /** Free the records of objects that weren't written in this checkpoint, e.g. requests that
+     * have been removed. */
+    void finishCheckpoint() {
+        freeRecords(oldRecords);
+    }
+
+    /** @return The number of records copied rather than serialized in this checkpoint. */
+    int reused() {
+        return reused;
+    }
+
+    /** Free everything, e.g. after an error that may have been caused by the temp buckets. The
+     * next checkpoint will serialize everything. */
+    void clear() {
+        freeRecords(oldRecords);
+        freeRecords(records);
+    }
+
+    private SavedRecord writeSavedRecord(T object, int version) throws IOException {
+        Bucket data = bf.makeBucket(-1);
+        boolean success = false;
+        try {
+            OutputStream os = new BufferedOutputStream(data.getOutputStream());
+            try {
+                success = writer.writeRecord(os, object);
+            } finally {
+                os.close();
+            }
+            return success ? new SavedRecord(version, data) : null;
+        } finally {
+            if(!success) data.free();
+        }
+    }
+
+    private void freeRecords(Map<T, SavedRecord> map) {
+        for(SavedRecord record : map.values())
+            record.data.free();
+        map.clear();
+    }
+
+}
@@ -11,6 +11,14 @@ import freenet.support.io.StorageFormatException;
 
 /** Tracks which blocks have been completed, how many attempts have been made for which blocks,
  * allows choosing a random block, failing a block etc.
+ * 
+ * The blocks which could be chosen are kept at the front of a permutation of the block numbers,
+ * grouped by retry count, so chooseKey() only has to look at the blocks with the fewest retries,
+ * and only until it finds one that checkValid() accepts, rather than scanning the whole segment
+ * every time. There is a group only for each retry count some block actually has, so there are
+ * never more groups than blocks, even with unlimited retries. Completed blocks, blocks which
+ * have run out of retries and blocks which a subclass says are waiting (e.g. for cooldown) are
+ * moved to the end.
  * @author toad
  */
 public class SimpleBlockChooser {
@@ -27,6 +35,18 @@ public class SimpleBlockChooser {
     private final int[] retries;
     protected final int maxRetries;
     private final Random random;
+    /** Permutation of the block numbers. The blocks which can be chosen come first, in order of 
+     * retry count; the rest are after levelStart[levels]. */
+    private final int[] order;
+    /** Index of each block in order. */
+    private final int[] position;
+    /** Start of each level in order. levelStart[levels] is the end of the blocks that can be 
+     * chosen. Levels are never empty except briefly within update(). */
+    private final int[] levelStart;
+    /** The retry count of the blocks in each level, in increasing order. */
+    private final int[] levelRetries;
+    /** Number of levels, i.e. of distinct retry counts among the blocks that can be chosen. */
+    private int levels;
     
     public SimpleBlockChooser(int blocks, Random random, int maxRetries) {
         this.maxRetries = maxRetries;
@@ -34,32 +54,35 @@ public class SimpleBlockChooser {
         this.random = random;
         this.completed = new boolean[blocks];
         this.retries = new int[blocks];
+        this.order = new int[blocks];
+        this.position = new int[blocks];
+        for(int i=0;i<blocks;i++) {
+            order[i] = i;
+            position[i] = i;
+        }
+        // Everything starts with no retries. One extra for a new level within update().
+        levelStart = new int[blocks + 2];
+        levelRetries = new int[blocks + 1];
+        levelStart[1] = blocks;
+        levels = blocks > 0 ? 1 : 0;
     }
     
     /** Choose a key to fetch, taking into account retries */
     public synchronized int chooseKey() {
         int max = getMaxBlockNumber();
-        int[] candidates = new int[max];
-        int count = 0;
-        int minRetryCount = Integer.MAX_VALUE;
-        for(int i=0;i<max;i++) {
-            int retry = retries[i];
-            if(retry > maxRetries && maxRetries != -1) continue;
-            if(retry > minRetryCount) continue;
-            if(!checkValid(i)) continue;
-            if(retry < minRetryCount) {
-                count = 0;
-                candidates[count++] = i;
-                minRetryCount = retry;
-            } else if(retry == minRetryCount) {
-                candidates[count++] = i;
-            } // else continue;
-        }
-        if(count == 0) {
-            return -1;
-        } else {
-            return candidates[random.nextInt(count)];
+        for(int level=0;level<levels;level++) {
+            int start = levelStart[level];
+            int end = levelStart[level+1];
+            // Partial shuffle, so we try each block at most once, in random order, and stop at 
+            // the first valid one. The order within a level doesn't matter.
+            for(int i=start;i<end;i++) {
+                swap(i, i + random.nextInt(end - i));
+                int block = order[i];
+                if(block >= max) continue;
+                if(checkValid(block)) return block;
+            }
         }
+        return -1;
     }
 
     public boolean onNonFatalFailure(int blockNo) {
@@ -76,7 +99,9 @@ public class SimpleBlockChooser {
      * fail after a single terminal failure, others after some number of failures (e.g. getter), so
      * we leave this to the caller. */
     protected synchronized int innerOnNonFatalFailure(int blockNo) {
-        return ++retries[blockNo];
+        int ret = ++retries[blockNo];
+        update(blockNo);
+        return ret;
     }
     
     /** Notify when a block has succeeded. */
@@ -85,6 +110,7 @@ public class SimpleBlockChooser {
             if(completed[blockNo]) return false;
             completed[blockNo] = true;
             completedCount++;
+            update(blockNo);
             if(completedCount < blocks) {
                 if(logMINOR) Logger.minor(this, "Completed blocks: "+completedCount+"/"+blocks);
                 return true;
@@ -102,12 +128,106 @@ public class SimpleBlockChooser {
         if(!completed[blockNo]) return;
         completed[blockNo] = false;
         completedCount--;
+        update(blockNo);
     }
     
     protected void onCompletedAll() {
         // Do nothing.
     }
 
+    /** Can be overridden to take blocks out of the running for a while, e.g. for cooldown. The
+     * subclass must call update() whenever this changes for a block. */
+    protected boolean isWaiting(int blockNo) {
+        return false;
+    }
+    
+    /** Move a block to the right place in order after its completion, retry count or waiting
+     * status has changed. Cost is proportional to the number of levels it moves across, usually 
+     * one, plus shifting the level arrays when a level is added or removed. */
+    protected synchronized final void update(int blockNo) {
+        boolean choosable = !completed[blockNo] && !isFatalRetries(retries[blockNo]) && 
+            !isWaiting(blockNo);
+        int level = getLevel(position[blockNo]);
+        int target;
+        if(choosable) {
+            int retry = retries[blockNo];
+            target = findLevel(retry);
+            if(target == levels || levelRetries[target] != retry) {
+                addLevel(target, retry);
+                if(level >= target) level++;
+            }
+        } else {
+            target = levels;
+        }
+        int oldLevel = level;
+        // Each step swaps the block with the one at the edge of the level and moves the edge.
+        for(;level < target;level++) {
+            swap(position[blockNo], levelStart[level+1]-1);
+            levelStart[level+1]--;
+        }
+        for(;level > target;level--) {
+            swap(position[blockNo], levelStart[level]);
+            levelStart[level]++;
+        }
+        if(oldLevel < levels && levelStart[oldLevel] == levelStart[oldLevel+1])
+            removeLevel(oldLevel);
+    }
+    
+    /** @return The first level whose retry count is at least retry, or levels if none. */
+    private int findLevel(int retry) {
+        int lo = 0;
+        int hi = levels;
+        while(lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if(levelRetries[mid] < retry)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+    
+    /** Insert an empty level before the given level. */
+    private void addLevel(int level, int retry) {
+        System.arraycopy(levelStart, level, levelStart, level + 1, levels + 1 - level);
+        System.arraycopy(levelRetries, level, levelRetries, level + 1, levels - level);
+        levelRetries[level] = retry;
+        levels++;
+    }
+    
+    /** Remove an empty level. */
+    private void removeLevel(int level) {
+        System.arraycopy(levelStart, level + 1, levelStart, level, levels - level);
+        System.arraycopy(levelRetries, level + 1, levelRetries, level, levels - level - 1);
+        levels--;
+    }
+    
+    /** @return The level containing the given index in order, or levels if the block can't be
+     * chosen at the moment. */
+    private int getLevel(int index) {
+        // Last level which starts at or before index; empty levels start at the same place.
+        int lo = 0;
+        int hi = levels;
+        while(lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if(levelStart[mid] <= index)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        return lo;
+    }
+    
+    private void swap(int i, int j) {
+        if(i == j) return;
+        int a = order[i];
+        int b = order[j];
+        order[i] = b;
+        order[j] = a;
+        position[b] = i;
+        position[a] = j;
+    }
+    
     /** Is the proposed block valid? Override to implement custom logic e.g. checking which 
      * requests are already running. */
     protected boolean checkValid(int chosen) {
@@ -164,8 +284,10 @@ public class SimpleBlockChooser {
 
     public void readRetries(DataInputStream dis) throws IOException {
         if(maxRetries == -1) return;
-        for(int i=0;i<blocks;i++)
+        for(int i=0;i<blocks;i++) {
             retries[i] = dis.readInt();
+            update(i);
+        }
     }
     
     static final int VERSION = 1;
@@ -185,6 +307,7 @@ public class SimpleBlockChooser {
         for(int i=0;i<completed.length;i++) {
             completed[i] = dis.readBoolean();
             if(completed[i]) completedCount++;
+            update(i);
         }
         if(dis.readInt() != maxRetries) throw new StorageFormatException("Max retries has changed");
         readRetries(dis);
@@ -205,13 +328,18 @@ public class SimpleBlockChooser {
     }
     
     public synchronized int countFetchable() {
-        int x = 0;
-        for(int i=0;i<blocks;i++) {
-            if(retries[x] >= maxRetries) continue;
-            if(!checkValid(x)) continue;
-            if(!completed[x]) x++;
+        int max = getMaxBlockNumber();
+        int count = 0;
+        for(int i=0;i<levelStart[levels];i++) {
+            int block = order[i];
+            if(block < max && checkValid(block)) count++;
         }
-        return x;
+        return count;
+    }
+    
+    /** For tests. */
+    synchronized int countLevels() {
+        return levels;
     }
     
     public synchronized boolean hasSucceededAll() {
@@ -3,29 +3,73 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.client.async;
 
-import java.util.HashMap;
-import java.util.Map;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
 
 import freenet.client.InsertContext;
-import freenet.client.InsertException;
-import freenet.client.Metadata;
-import freenet.keys.BaseClientKey;
-import freenet.keys.CHKBlock;
 import freenet.keys.FreenetURI;
+import freenet.node.NodeStats;
 import freenet.node.RequestClient;
 import freenet.node.RequestClientBuilder;
+import freenet.node.RequestStarter;
+import freenet.node.SendableRequestItem;
+import freenet.node.SendableRequestItemKey;
+import freenet.support.Fields;
+import freenet.support.LRUMap;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.api.Bucket;
+import freenet.support.io.BucketTools;
 
-public class SimpleHealingQueue extends BaseClientPutter implements HealingQueue, PutCompletionCallback {
+/**
+ * Re-inserts blocks which a splitfile fetch had trouble finding. Blocks are queued here and
+ * inserted by a single HealingInsertSender, which is registered once with the bulk insert
+ * scheduler at our (low) priority, rather than each block having its own SingleBlockInserter
+ * going through the scheduler. Blocks from higher priority downloads are inserted first, blocks
+ * which have been healed recently are ignored, and we only start inserts while there is spare
+ * bandwidth, so healing never competes with real requests.
+ */
+public class SimpleHealingQueue extends BaseClientPutter implements HealingQueue {
 	private static final long serialVersionUID = -2884613086588264043L;
 
-	final int maxRunning;
-	int counter;
+	/** Maximum number of blocks waiting to be inserted. */
+	final int maxQueued;
 	InsertContext ctx;
-	final Map<Bucket, SingleBlockInserter> runningInserters;
+	private final NodeStats nodeStats;
+	final HealingInsertSender sender;
+
+	/** Blocks waiting to be inserted, by the priority of the download they came from. */
+	private final ArrayDeque<HealingBlock>[] queued;
+	private int queuedCount;
+	private int running;
+
+	/** Hashes of blocks queued recently, and when they were queued. */
+	private final LRUMap<Long, Long> recentlyHealed;
+	/** Don't heal the same block again for this long. */
+	static final long RECENTLY_HEALED_PERIOD = HOURS.toMillis(1);
+	/** Maximum number of blocks to remember. */
+	static final int MAX_RECENTLY_HEALED = 16384;
+
+	/** Maximum number of healing inserts running at once, when the node is idle. Fewer are run
+	 * the busier the node is. */
+	static final int MAX_RUNNING = 16;
+	/** Don't start healing inserts if this fraction of our output bandwidth liability is used. */
+	static final double MAX_BANDWIDTH_USAGE = 0.7;
+	/** Don't start healing inserts if bulk packets are waiting longer than this for bandwidth. */
+	static final long MAX_BULK_DELAY = SECONDS.toMillis(1);
+	/** How often to check the node's load. */
+	static final long LOAD_RECHECK_TIME = SECONDS.toMillis(1);
+	private int maxRunningNow = MAX_RUNNING;
+	private long lastLoadCheck;
+
+	private long inserted;
+	private long failed;
+	private long duplicates;
+	private long dropped;
 
         private static volatile boolean logMINOR;
 	static {
@@ -39,7 +83,7 @@ public class SimpleHealingQueue extends BaseClientPutter implements HealingQueue
 
 	static final RequestClient REQUEST_CLIENT = new RequestClientBuilder().build();
 
-    static final ClientBaseCallback BOGUS_CALLBACK = 
+    static final ClientBaseCallback BOGUS_CALLBACK =
         new ClientBaseCallback() {
             @Override
             public void onResume(ClientContext context) {
@@ -52,110 +96,248 @@ public class SimpleHealingQueue extends BaseClientPutter implements HealingQueue
             }
     };
 
-	public SimpleHealingQueue(InsertContext context, short prio, int maxRunning) {
+	/**
+	 * @param nodeStats Used to decide how many inserts to run at once. If null, always run
+	 * MAX_RUNNING.
+	 */
+	@SuppressWarnings("unchecked")
+	public SimpleHealingQueue(InsertContext context, short prio, int maxQueued, NodeStats nodeStats) {
 		super(prio, BOGUS_CALLBACK);
 		this.ctx = context;
-		this.runningInserters = new HashMap<Bucket, SingleBlockInserter>();
-		this.maxRunning = maxRunning;
+		this.maxQueued = maxQueued;
+		this.nodeStats = nodeStats;
+		this.queued = (ArrayDeque<HealingBlock>[])new ArrayDeque<?>[RequestStarter.NUMBER_OF_PRIORITY_CLASSES];
+		for(int i=0;i<queued.length;i++)
+			queued[i] = new ArrayDeque<HealingBlock>();
+		this.recentlyHealed = new LRUMap<Long, Long>();
+		this.sender = new HealingInsertSender(this);
 	}
 
-	public boolean innerQueue(Bucket data, byte[] cryptoKey, byte cryptoAlgorithm, ClientContext context) {
-		SingleBlockInserter sbi;
-		int ctr;
-		synchronized(this) {
-			ctr = counter++;
-			if(runningInserters.size() > maxRunning) return false;
-			try {
-				sbi = new SingleBlockInserter(this, data, (short)-1,
-							FreenetURI.EMPTY_CHK_URI, ctx, realTimeFlag, this, false,
-							CHKBlock.DATA_LENGTH, ctr, false, false, data, context, false, true, 0, cryptoAlgorithm, cryptoKey);
-			} catch (Throwable e) {
-				Logger.error(this, "Caught trying to insert healing block: "+e, e);
-				return false;
-			}
-			runningInserters.put(data, sbi);
+	/** A block waiting to be inserted, or being inserted. */
+	class HealingBlock implements SendableRequestItem, SendableRequestItemKey {
+
+		final Bucket data;
+		final byte[] cryptoKey;
+		final byte cryptoAlgorithm;
+		final short prio;
+		/** Key in recentlyHealed. */
+		final long hash;
+
+		HealingBlock(Bucket data, byte[] cryptoKey, byte cryptoAlgorithm, short prio, long hash) {
+			this.data = data;
+			this.cryptoKey = cryptoKey;
+			this.cryptoAlgorithm = cryptoAlgorithm;
+			this.prio = prio;
+			this.hash = hash;
 		}
-		try {
-			sbi.schedule(context);
-			if(logMINOR)
-				Logger.minor(this, "Started healing insert "+ctr+" for "+data);
-			return true;
-		} catch (Throwable e) {
-			Logger.error(this, "Caught trying to insert healing block: "+e, e);
-			return false;
+
+		/** The scheduler chose the block but didn't insert it, e.g. because we were cancelled. */
+		@Override
+		public void dump() {
+			onDumped(this);
 		}
+
+		@Override
+		public SendableRequestItemKey getKey() {
+			return this;
+		}
+
 	}
 
 	@Override
-	public void queue(Bucket data, byte[] cryptoKey, byte cryptoAlgorithm, ClientContext context) {
-		if(!innerQueue(data, cryptoKey, cryptoAlgorithm, context))
+	public void queue(Bucket data, byte[] cryptoKey, byte cryptoAlgorithm, short prio, ClientContext context) {
+		if(add(data, cryptoKey, cryptoAlgorithm, prio))
+			sender.schedule(context);
+	}
+
+	/** Add a block to the queue, unless it has been healed recently, or the queue is full of
+	 * blocks from downloads of the same or higher priority. Frees the data if not added.
+	 * @return True if the block was added. */
+	boolean add(Bucket data, byte[] cryptoKey, byte cryptoAlgorithm, short prio) {
+		if(prio < 0) prio = 0;
+		if(prio >= queued.length) prio = (short)(queued.length-1);
+		long hash;
+		try {
+			hash = hash(data, cryptoKey, cryptoAlgorithm);
+		} catch (IOException e) {
+			Logger.error(this, "Unable to read healing block: "+e, e);
+			data.free();
+			return false;
+		}
+		HealingBlock drop = null;
+		boolean added = false;
+		synchronized(this) {
+			long now = System.currentTimeMillis();
+			Long time;
+			while((time = recentlyHealed.peekValue()) != null &&
+					(time < now - RECENTLY_HEALED_PERIOD || recentlyHealed.size() >= MAX_RECENTLY_HEALED))
+				recentlyHealed.popKey();
+			if(recentlyHealed.containsKey(hash)) {
+				duplicates++;
+			} else {
+				if(queuedCount >= maxQueued) {
+					// Drop the newest block from the lowest priority download, if it's lower than ours.
+					for(int i=queued.length-1;i>prio;i--) {
+						drop = queued[i].pollLast();
+						if(drop != null) {
+							queuedCount--;
+							recentlyHealed.removeKey(drop.hash);
+							break;
+						}
+					}
+					dropped++;
+				}
+				if(queuedCount < maxQueued) {
+					queued[prio].addLast(new HealingBlock(data, cryptoKey, cryptoAlgorithm, prio, hash));
+					queuedCount++;
+					recentlyHealed.push(hash, now);
+					added = true;
+				}
+			}
+		}
+		if(drop != null)
+			drop.data.free();
+		if(!added) {
+			if(logMINOR) Logger.minor(this, "Not healing "+data);
 			data.free();
+		}
+		return added;
 	}
 
-	@Override
-	public FreenetURI getURI() {
-		return FreenetURI.EMPTY_CHK_URI;
+	/** Identifies the block we'd insert, without encoding it: the same data with the same crypto
+	 * key gives the same CHK. */
+	private static long hash(Bucket data, byte[] cryptoKey, byte cryptoAlgorithm) throws IOException {
+		long hash = Fields.bytesToLong(BucketTools.hash(data));
+		if(cryptoKey != null)
+			hash ^= Fields.bytesToLong(cryptoKey);
+		return hash ^ cryptoAlgorithm;
 	}
 
-	@Override
-	public boolean isFinished() {
-		return false;
+	/** Called by the sender when choosing a block to insert.
+	 * @return The block from the highest priority download, or null if we shouldn't start an
+	 * insert at the moment. */
+	HealingBlock chooseBlock() {
+		if(getWakeupTime(System.currentTimeMillis()) != 0) return null;
+		synchronized(this) {
+			for(ArrayDeque<HealingBlock> blocks : queued) {
+				HealingBlock block = blocks.pollFirst();
+				if(block != null) {
+					queuedCount--;
+					running++;
+					return block;
+				}
+			}
+			return null;
+		}
 	}
 
-	@Override
-	protected void innerNotifyClients(ClientContext context) {
-		// Do nothing
+	/** @return 0 if we can start an insert now, otherwise when we might be able to. */
+	long getWakeupTime(long now) {
+		boolean checkLoad;
+		synchronized(this) {
+			if(queuedCount == 0) return Long.MAX_VALUE;
+			checkLoad = now - lastLoadCheck >= LOAD_RECHECK_TIME;
+			if(checkLoad) lastLoadCheck = now;
+		}
+		if(checkLoad) {
+			// Outside the lock as it looks at the node's running requests.
+			int max = maxRunning(bandwidthUsage());
+			synchronized(this) {
+				maxRunningNow = max;
+			}
+		}
+		synchronized(this) {
+			if(running < maxRunningNow) return 0;
+			// Wait for an insert to finish, or for the node to be less busy.
+			return maxRunningNow == 0 ? lastLoadCheck + LOAD_RECHECK_TIME : Long.MAX_VALUE;
+		}
 	}
 
-	@Override
-	public void onSuccess(ClientPutState state, ClientContext context) {
-		SingleBlockInserter sbi = (SingleBlockInserter)state;
-		Bucket data = (Bucket) sbi.getToken();
+	/** @return The fraction of the node's capacity which is being used, where anything over
+	 * MAX_BANDWIDTH_USAGE means there's no room for healing. */
+	double bandwidthUsage() {
+		if(nodeStats == null) return 0.0;
+		if(nodeStats.getBwlimitDelayTimeBulk() > MAX_BULK_DELAY) return 1.0;
+		return nodeStats.getBandwidthLiabilityUsage();
+	}
+
+	static int maxRunning(double usage) {
+		if(usage >= MAX_BANDWIDTH_USAGE) return 0;
+		return Math.max(1, (int)(MAX_RUNNING * (1.0 - usage / MAX_BANDWIDTH_USAGE)));
+	}
+
+	/** Called by the sender when an insert has finished. */
+	void onFinished(HealingBlock block, boolean success, ClientContext context) {
 		synchronized(this) {
-			runningInserters.remove(data);
+			running--;
+			if(success) {
+				inserted++;
+			} else {
+				failed++;
+				// Might be worth trying again if we fetch it again.
+				recentlyHealed.removeKey(block.hash);
+			}
 		}
-		if(logMINOR)
-			Logger.minor(this, "Successfully inserted healing block: "+sbi.getURINoEncode()+" for "+data+" ("+sbi.token+ ')');
-		data.free();
+		block.data.free();
+		// The scheduler may have stopped asking us for blocks because too many were running.
+		sender.clearWakeupTime(context);
 	}
 
-	@Override
-	public void onFailure(InsertException e, ClientPutState state, ClientContext context) {
-		SingleBlockInserter sbi = (SingleBlockInserter)state;
-		Bucket data = (Bucket) sbi.getToken();
+	/** Called when the scheduler drops a block without inserting it. Not a failure, so the block
+	 * can be queued again if we fetch it again. */
+	void onDumped(HealingBlock block) {
 		synchronized(this) {
-			runningInserters.remove(data);
+			running--;
+			recentlyHealed.removeKey(block.hash);
 		}
-		if(logMINOR)
-			Logger.minor(this, "Failed to insert healing block: "+sbi.getURINoEncode()+" : "+e+" for "+data+" ("+sbi.token+ ')', e);
-		data.free();
+		block.data.free();
 	}
 
-	@Override
-	public void onEncode(BaseClientKey usk, ClientPutState state, ClientContext context) {
-		// Ignore
+	public synchronized int getQueued() {
+		return queuedCount;
+	}
+
+	public synchronized int getRunning() {
+		return running;
+	}
+
+	public synchronized long getInserted() {
+		return inserted;
+	}
+
+	public synchronized long getFailed() {
+		return failed;
+	}
+
+	/** @return The number of blocks which weren't queued because they had been healed recently. */
+	public synchronized long getDuplicates() {
+		return duplicates;
+	}
+
+	/** @return The number of blocks which were dropped because the queue was full. */
+	public synchronized long getDropped() {
+		return dropped;
 	}
 
 	@Override
-	public void onTransition(ClientPutState oldState, ClientPutState newState, ClientContext context) {
-		// Should never happen
-		Logger.error(this, "impossible: onTransition on SimpleHealingQueue from "+oldState+" to "+newState, new Exception("debug"));
+	public FreenetURI getURI() {
+		return FreenetURI.EMPTY_CHK_URI;
 	}
 
 	@Override
-	public void onMetadata(Metadata m, ClientPutState state, ClientContext context) {
-		// Should never happen
-		Logger.error(this, "Got metadata on SimpleHealingQueue from "+state+": "+m, new Exception("debug"));
+	public boolean isFinished() {
+		return false;
 	}
 
 	@Override
-	public void onBlockSetFinished(ClientPutState state, ClientContext context) {
-		// Ignore
+	protected void innerNotifyClients(ClientContext context) {
+		// Do nothing
 	}
 
 	@Override
-	public void onFetchable(ClientPutState state) {
-		// Ignore
+	public void onTransition(ClientPutState oldState, ClientPutState newState, ClientContext context) {
+		// Should never happen
+		Logger.error(this, "impossible: onTransition on SimpleHealingQueue from "+oldState+" to "+newState, new Exception("debug"));
 	}
 
 	@Override
@@ -178,13 +360,6 @@ public class SimpleHealingQueue extends BaseClientPutter implements HealingQueue
 		return 0;
 	}
 
-	@Override
-	public void onMetadata(Bucket meta, ClientPutState state,
-			ClientContext context) {
-		Logger.error(this, "onMetadata() in SimpleHealingQueue - impossible", new Exception("error"));
-		meta.free();
-	}
-
     @Override
     public void innerOnResume(ClientContext context) {
         // Do nothing. Not persisted.
@@ -8,8 +8,6 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.io.Serializable;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
@@ -48,6 +46,7 @@ import freenet.support.compress.Compressor;
 import freenet.support.compress.DecompressorThreadManager;
 import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
 import freenet.support.io.BucketTools;
+import freenet.support.io.ChunkedPipe;
 import freenet.support.io.Closer;
 import freenet.support.io.InsufficientDiskSpaceException;
 import freenet.support.io.TempBucketFactory;
@@ -903,8 +902,9 @@ public class SingleFileFetcher extends SimpleSingleFileFetcher {
 		@Override
 		public void onSuccess(StreamGenerator streamGenerator, ClientMetadata clientMetadata, List<? extends Compressor> decompressors, ClientGetState state, ClientContext context) {
 			OutputStream output = null;
-			PipedInputStream pipeIn = new PipedInputStream();
-			PipedOutputStream pipeOut = new PipedOutputStream();
+			ChunkedPipe pipe = new ChunkedPipe();
+			InputStream pipeIn = pipe.getInputStream();
+			OutputStream pipeOut = pipe.getOutputStream();
 			Bucket data = null;
 			// FIXME not strictly correct and unnecessary - archive size already checked against ctx.max*Length inside SingleFileFetcher
 			long maxLen = Math.min(ctx.maxTempLength, ctx.maxOutputLength);
@@ -913,7 +913,6 @@ public class SingleFileFetcher extends SimpleSingleFileFetcher {
 				output = data.getOutputStream();
 				if(decompressors != null) {
 					if(logMINOR) Logger.minor(this, "decompressing...");
-					pipeOut.connect(pipeIn);
 					DecompressorThreadManager decompressorManager =  new DecompressorThreadManager(pipeIn, decompressors, maxLen);
 					pipeIn = decompressorManager.execute();
 					ClientGetWorkerThread worker = new ClientGetWorkerThread(new BufferedInputStream(pipeIn), output, null, null, null, false, null, null, null, context.linkFilterExceptionProvider);
@@ -1050,8 +1049,9 @@ public class SingleFileFetcher extends SimpleSingleFileFetcher {
 		@Override
 		public void onSuccess(StreamGenerator streamGenerator, ClientMetadata clientMetadata, List<? extends Compressor> decompressors, ClientGetState state, ClientContext context) {
 			OutputStream output = null;
-			PipedInputStream pipeIn = new PipedInputStream();
-			PipedOutputStream pipeOut = new PipedOutputStream();
+			ChunkedPipe pipe = new ChunkedPipe();
+			InputStream pipeIn = pipe.getInputStream();
+			OutputStream pipeOut = pipe.getOutputStream();
 			Bucket finalData = null;
 			// does matter only on pre-1255 keys (1255 keys have top block sizes)
 			// FIXME would save at most few tics on decompression
@@ -1063,7 +1063,6 @@ public class SingleFileFetcher extends SimpleSingleFileFetcher {
 				output = finalData.getOutputStream();
 				if(decompressors != null) {
 					if(logMINOR) Logger.minor(this, "decompressing...");
-					pipeIn.connect(pipeOut);
 					DecompressorThreadManager decompressorManager =  new DecompressorThreadManager(pipeIn, decompressors, maxLen);
 					pipeIn = decompressorManager.execute();
 					ClientGetWorkerThread worker = new ClientGetWorkerThread(new BufferedInputStream(pipeIn), output, null, null, null, false, null, null, null, context.linkFilterExceptionProvider);
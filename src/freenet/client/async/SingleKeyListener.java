@@ -7,7 +7,7 @@ import freenet.node.LowLevelGetException;
 import freenet.node.SendableGet;
 import freenet.support.Logger;
 
-public class SingleKeyListener implements KeyListener {
+public class SingleKeyListener implements IndexedKeyListener {
 	
 	private final Key key;
 	private final BaseSingleFileFetcher fetcher;
@@ -22,6 +22,16 @@ public class SingleKeyListener implements KeyListener {
 		this.persistent = persistent;
 	}
 
+	@Override
+	public Key[] listKeys() {
+		return new Key[] { key };
+	}
+
+	@Override
+	public boolean listKeysIsSlow() {
+		return false;
+	}
+
 	@Override
 	public long countKeys() {
 		if(done) return 0;
@@ -6,6 +6,8 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
 
 import freenet.client.FetchException;
 import freenet.client.FetchException.FetchExceptionMode;
@@ -22,7 +24,7 @@ import freenet.support.CountingBloomFilter;
 import freenet.support.Logger;
 import freenet.support.io.StorageFormatException;
 
-public class SplitFileFetcherKeyListener implements KeyListener {
+public class SplitFileFetcherKeyListener implements IndexedKeyListener {
     
     private static volatile boolean logMINOR;
     static {
@@ -333,6 +335,28 @@ public class SplitFileFetcherKeyListener implements KeyListener {
         // Ignore.
     }
 
+    /** Reads all the keys of the unfinished segments from disk. Keys are only listed once, so
+     * this includes keys we have already fetched, and segments which are decoding: the index
+     * must never say we don't want a key we might want later. The filters weed out the rest. */
+    @Override
+    public Key[] listKeys() {
+        List<Key> keys = new ArrayList<Key>();
+        try {
+            for(SplitFileFetcherSegmentStorage segment : storage.segments)
+                segment.getKeysUnlessFinished(keys);
+        } catch (IOException e) {
+            // Still works, just slower.
+            Logger.error(this, "Unable to read keys for "+this+" : "+e, e);
+            return null;
+        }
+        return keys.toArray(new Key[keys.size()]);
+    }
+
+    @Override
+    public boolean listKeysIsSlow() {
+        return true;
+    }
+
     @Override
     public boolean isEmpty() {
         return storage.hasFinished();
@@ -1139,6 +1139,17 @@ public class SplitFileFetcherSegmentStorage {
         }
     }
 
+    /** Add every key in the segment, fetched or not, unless the segment has finished. Unlike
+     * getUnfetchedKeys(), includes the keys of a segment which is decoding, as the decode may
+     * fail and the segment go back to fetching, and blocks we have may turn out to be corrupt. */
+    public synchronized void getKeysUnlessFinished(List<Key> keys) throws IOException {
+        if(finished)
+            return;
+        SplitFileSegmentKeys keyList = getSegmentKeys();
+        for(int i=0;i<totalBlocks();i++)
+            keys.add(keyList.getNodeKey(i, null, false));
+    }
+
     /** Pick a key to fetch. Must not update any persistent field. (Cooldowns etc are fine) */
     public int chooseRandomKey() {
         int chosen;
@@ -177,6 +177,7 @@ public class SplitFileInserter implements ClientPutState, Serializable, SplitFil
 
     @Override
     public void encodingProgress() {
+        ctx.eventProducer.produceEvent(storage.getEncodingProgress(), context);
         // We've encoded a segment. Start inserting the blocks we have immediately.
         if (ctx.getCHKOnly) {
             // We are not inserting any blocks. Wait for onHasKeys().
@@ -214,6 +214,7 @@ public class SplitFileInserterCrossSegmentStorage {
             synchronized(this) {
                 encoded = true;
             }
+            parent.addEncodedBytes((long)(dataBlocks.length + checkBlocks.length) * CHKBlock.DATA_LENGTH);
             if(logMINOR) Logger.minor(this, "Finished encoding "+this);
             storeStatus();
         } catch (IOException e) {
@@ -19,6 +19,7 @@ import freenet.keys.CHKEncodeException;
 import freenet.keys.ClientCHK;
 import freenet.keys.ClientCHKBlock;
 import freenet.node.KeysFetchingLocally;
+import freenet.node.PrioRunnable;
 import freenet.node.SendableRequestItem;
 import freenet.node.SendableRequestItemKey;
 import freenet.support.Logger;
@@ -443,25 +444,33 @@ public class SplitFileInserterSegmentStorage {
 
     private void innerEncode(MemoryLimitedChunk chunk) {
         RAFLock lock = null;
+        KeyGenerator keys = null;
         try {
             synchronized(this) {
                 if(cancelled) return;
             }
             lock = parent.lockRAF();
             if(logMINOR) Logger.minor(this, "Encoding "+this+" for "+parent);
-            byte[][] dataBlocks = readDataAndCrossCheckBlocks();
-            generateKeys(dataBlocks, 0);
+            // Generate the keys for the data blocks as we read them and while we encode, and for
+            // the check blocks while we write them.
+            byte[][] blocks = new byte[totalBlockCount][];
+            keys = new KeyGenerator(blocks);
+            readDataAndCrossCheckBlocks(blocks, keys);
+            int dataCount = dataBlockCount + crossCheckBlockCount;
+            byte[][] dataBlocks = Arrays.copyOf(blocks, dataCount);
             byte[][] checkBlocks = new byte[checkBlockCount][];
             for(int i=0;i<checkBlocks.length;i++)
-                checkBlocks[i] = new byte[CHKBlock.DATA_LENGTH];
-            if(dataBlocks == null || checkBlocks == null) return; // Failed with disk error.
+                blocks[dataCount+i] = checkBlocks[i] = new byte[CHKBlock.DATA_LENGTH];
             parent.codec.encode(dataBlocks, checkBlocks, new boolean[checkBlocks.length], CHKBlock.DATA_LENGTH);
-            for(int i=0;i<checkBlocks.length;i++)
+            for(int i=0;i<checkBlocks.length;i++) {
                 writeCheckBlock(i, checkBlocks[i]);
-            generateKeys(checkBlocks, dataBlockCount + crossCheckBlockCount);
+                keys.available(dataCount+i+1);
+            }
+            keys.waitFor();
             synchronized(this) {
                 encoded = true;
             }
+            parent.addEncodedBytes((long)blocks.length * CHKBlock.DATA_LENGTH);
             if(logMINOR) Logger.minor(this, "Encoded "+this+" for "+parent);
         } catch (IOException e) {
             parent.failOnDiskError(e);
@@ -469,30 +478,129 @@ public class SplitFileInserterSegmentStorage {
             Logger.error(this, "Failed: "+t, t);
             parent.fail(new InsertException(InsertExceptionMode.INTERNAL_ERROR, t, null));
         } finally {
+            // Don't leave the helper thread running after we return.
+            if(keys != null) keys.abort();
             if(lock != null) lock.unlock();
         }
     }
 
-    /** Generate keys for each block and record them. 
-     * @throws IOException */
-    private void generateKeys(byte[][] dataBlocks, int offset) throws IOException {
-        for(int i=0;i<dataBlocks.length;i++) {
-            setKey(i + offset, encodeBlock(dataBlocks[i]).getClientKey());
+    /** Generates and records the keys for all the blocks in the segment on the encoding thread 
+     * and one helper thread, starting as soon as the first blocks have been read or written. 
+     * Computing a CHK means hashing and encrypting the block, so this overlaps most of it with the
+     * disk I/O and the FEC encode, rather than doing it all afterwards on a single thread. The 
+     * blocks are filled in in order, each before it is made available. */
+    private class KeyGenerator implements PrioRunnable {
+
+        private final byte[][] blocks;
+        /** Blocks below this index can be encoded. */
+        private int available;
+        /** The next block to encode. */
+        private int next;
+        /** Number of blocks which have been encoded, or have failed. */
+        private int done;
+        private boolean aborted;
+        private Throwable failure;
+
+        KeyGenerator(byte[][] blocks) {
+            this.blocks = blocks;
+            if(blocks.length > 1)
+                parent.memoryLimitedJobRunner.getExecutor().execute(this);
+        }
+
+        /** The first count blocks are ready to be encoded. */
+        synchronized void available(int count) {
+            available = count;
+            notifyAll();
+        }
+
+        @Override
+        public void run() {
+            generate();
+        }
+
+        @Override
+        public int getPriority() {
+            return MemoryLimitedJobRunner.THREAD_PRIORITY;
+        }
+
+        /** Encode blocks as they become available until there are none left, or we fail. */
+        private void generate() {
+            while(true) {
+                int blockNo;
+                synchronized(this) {
+                    while(next >= available && next < blocks.length && !aborted && failure == null) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            // Ignore.
+                        }
+                    }
+                    if(next >= blocks.length || aborted || failure != null) return;
+                    blockNo = next++;
+                }
+                Throwable t = null;
+                try {
+                    setKey(blockNo, encodeBlock(blocks[blockNo]).getClientKey());
+                } catch (Throwable e) {
+                    t = e;
+                }
+                synchronized(this) {
+                    done++;
+                    if(t != null && failure == null) failure = t;
+                    notifyAll();
+                }
+            }
         }
+
+        /** Encode whatever is left on this thread, wait for the helper, and rethrow any failure. */
+        void waitFor() throws IOException {
+            available(blocks.length);
+            generate();
+            Throwable t;
+            synchronized(this) {
+                waitForRunning();
+                t = failure;
+            }
+            if(t == null) return;
+            if(t instanceof IOException) throw (IOException) t;
+            if(t instanceof RuntimeException) throw (RuntimeException) t;
+            if(t instanceof Error) throw (Error) t;
+            throw new Error(t); // Impossible, setKey only throws IOException.
+        }
+
+        /** Stop encoding, and wait for any block being encoded by the helper. */
+        synchronized void abort() {
+            aborted = true;
+            notifyAll();
+            waitForRunning();
+        }
+
+        private synchronized void waitForRunning() {
+            while(done < next) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // Ignore.
+                }
+            }
+        }
+
     }
 
-    private byte[][] readDataAndCrossCheckBlocks() throws IOException {
-        byte[][] data = new byte[dataBlockCount + crossCheckBlockCount][];
+    private void readDataAndCrossCheckBlocks(byte[][] data, KeyGenerator keys) throws IOException {
         RAFLock lock = parent.lockUnderlying();
         try {
-            for(int i=0;i<dataBlockCount;i++)
+            for(int i=0;i<dataBlockCount;i++) {
                 data[i] = readDataBlock(i);
+                keys.available(i+1);
+            }
         } finally {
             lock.unlock();
         }
-        for(int i=0;i<crossCheckBlockCount;i++)
+        for(int i=0;i<crossCheckBlockCount;i++) {
             data[i+dataBlockCount] = readCrossCheckBlock(i);
-        return data;
+            keys.available(i+dataBlockCount+1);
+        }
     }
 
     private byte[] readCrossCheckBlock(int blockNo) throws IOException {
@@ -761,6 +869,15 @@ public class SplitFileInserterSegmentStorage {
         crossSegmentBlockNumbers[segmentBlockNumber-dataBlockCount] = crossSegmentBlockNumber;
     }
 
+    /** Have all the cross-segments we take cross-check blocks from finished encoding? If so we
+     * can encode this segment, even if other cross-segments are still encoding. */
+    boolean crossSegmentsEncoded() {
+        for(SplitFileInserterCrossSegmentStorage crossSegment : crossSegmentBlockSegments) {
+            if(!crossSegment.isFinishedEncoding()) return false;
+        }
+        return true;
+    }
+
     public int countSendableKeys() {
         return blockChooser.countFetchable();
     }
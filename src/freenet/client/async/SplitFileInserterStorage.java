@@ -23,6 +23,7 @@ import freenet.client.InsertContext.CompatibilityMode;
 import freenet.client.InsertException;
 import freenet.client.Metadata.SplitfileAlgorithm;
 import freenet.client.MetadataParseException;
+import freenet.client.events.SplitfileEncodingProgressEvent;
 import freenet.client.async.SplitFileInserterSegmentStorage.BlockInsert;
 import freenet.client.async.SplitFileInserterSegmentStorage.MissingKeyException;
 import freenet.crypt.ChecksumChecker;
@@ -224,6 +225,12 @@ public class SplitFileInserterStorage {
     private final Object cooldownLock = new Object();
     private boolean noBlocksToSend;
 
+    /** When we started encoding in this session, for progress events. Not persisted. */
+    private long encodeStartTime;
+    /** Bytes read and generated by the segment and cross-segment encodes completed in this
+     * session. Not persisted. */
+    private long encodedBytes;
+
     /**
      * Create a SplitFileInserterStorage.
      * 
@@ -1116,8 +1123,10 @@ public class SplitFileInserterStorage {
         if(startSegments) {
             startSegmentEncode();
         } else {
-            // Cross-segment encode must complete before main encode.
+            // Cross-segment encode must complete before main encode, but only for the
+            // cross-segments that each segment takes blocks from.
             startCrossSegmentEncode();
+            startReadySegmentEncodes();
         }
     }
 
@@ -1139,12 +1148,24 @@ public class SplitFileInserterStorage {
 
     private void startSegmentEncode() {
         short prio = callback.getPriorityClass();
+        markEncodeStarted();
         for (SplitFileInserterSegmentStorage segment : segments)
             segment.startEncode(prio);
     }
 
+    /** Start encoding the segments whose cross-check blocks have all been encoded. Segments which
+     * are already encoding or encoded are ignored. */
+    private void startReadySegmentEncodes() {
+        short prio = callback.getPriorityClass();
+        for (SplitFileInserterSegmentStorage segment : segments) {
+            if(segment.crossSegmentsEncoded())
+                segment.startEncode(prio);
+        }
+    }
+
     private void startCrossSegmentEncode() {
         short prio = callback.getPriorityClass();
+        markEncodeStarted();
         // Start cross-segment encode.
         for (SplitFileInserterCrossSegmentStorage segment : crossSegments)
             segment.startEncode(prio);
@@ -1166,6 +1187,10 @@ public class SplitFileInserterStorage {
                 if(maybeFail()) return true;
                 if(allFinishedCrossEncoding()) {
                     onCompletedCrossSegmentEncode();
+                } else {
+                    // Encode and insert the segments we can while the rest of the
+                    // cross-segments are encoding.
+                    startReadySegmentEncodes();
                 }
                 return false;
             }
@@ -1173,6 +1198,31 @@ public class SplitFileInserterStorage {
         });
     }
 
+    private synchronized void markEncodeStarted() {
+        if(encodeStartTime == 0)
+            encodeStartTime = System.currentTimeMillis();
+    }
+
+    /** Called by a segment or cross-segment when it has finished encoding.
+     * @param bytes The size of the blocks it read and generated. */
+    synchronized void addEncodedBytes(long bytes) {
+        encodedBytes += bytes;
+    }
+
+    /** @return How many segments and cross-segments have been encoded, and how fast the encodes 
+     * run in this session have gone. */
+    public SplitfileEncodingProgressEvent getEncodingProgress() {
+        long bytes;
+        long elapsed;
+        synchronized(this) {
+            bytes = encodedBytes;
+            elapsed = encodeStartTime == 0 ? 0 : System.currentTimeMillis() - encodeStartTime;
+        }
+        return new SplitfileEncodingProgressEvent(countEncodedSegments(), segments.length,
+                crossSegments == null ? 0 : countEncodedCrossSegments(),
+                crossSegments == null ? 0 : crossSegments.length, bytes, elapsed);
+    }
+
     private boolean allFinishedCrossEncoding() {
         for (SplitFileInserterCrossSegmentStorage segment : crossSegments) {
             if (!segment.isFinishedEncoding())
@@ -1216,20 +1266,25 @@ public class SplitFileInserterStorage {
     /** Called when we have completed encoding all the cross-segments */
     private void onCompletedCrossSegmentEncode() {
         synchronized (this) {
-            if (status == Status.ENCODED_CROSS_SEGMENTS) return; // Race condition.
-            if (status != Status.STARTED) {
+            if (status == Status.NOT_STARTED) {
                 Logger.error(this, "Wrong state " + status+" for "+this, new Exception("error"));
                 return;
             }
+            // Race condition. Or the segments have already finished, see
+            // onCompletedSegmentEncode().
+            if (status != Status.STARTED) return;
             status = Status.ENCODED_CROSS_SEGMENTS;
         }
         startSegmentEncode();
     }
 
     private void onCompletedSegmentEncode() {
+        // Segments start encoding as soon as their cross-segments are done, and the jobs run in 
+        // parallel, so the last segment can finish before onCompletedCrossSegmentEncode() runs.
+        boolean crossSegmentsEncoded = crossSegments == null || allFinishedCrossEncoding();
         synchronized (this) {
             if(status == Status.ENCODED) return; // Race condition.
-            if (!(status == Status.ENCODED_CROSS_SEGMENTS || (crossSegments == null && status == Status.STARTED))) {
+            if (!(status == Status.ENCODED_CROSS_SEGMENTS || (crossSegmentsEncoded && status == Status.STARTED))) {
                 Logger.error(this, "Wrong state " + status+" for "+this, new Exception("error"));
                 return;
             }
@@ -1698,6 +1753,7 @@ public class SplitFileInserterStorage {
     public void onResume(ClientContext context) throws ResumeFailedException {
         if(crossSegments != null && status != Status.ENCODED_CROSS_SEGMENTS) {
             this.startCrossSegmentEncode();
+            this.startReadySegmentEncodes();
         } else {
             this.startSegmentEncode();
         }
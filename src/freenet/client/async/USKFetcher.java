@@ -8,14 +8,14 @@ import static java.util.concurrent.TimeUnit.MINUTES;
 
 import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.io.UnsupportedEncodingException;
 import java.lang.ref.WeakReference;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -57,6 +57,7 @@ import freenet.support.api.Bucket;
 import freenet.support.compress.Compressor;
 import freenet.support.compress.DecompressorThreadManager;
 import freenet.support.io.BucketTools;
+import freenet.support.io.ChunkedPipe;
 import freenet.support.io.Closer;
 
 /**
@@ -202,10 +203,13 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 	class DBRAttempt implements GetCompletionCallback {
 		final SimpleSingleFileFetcher fetcher;
 		final USKDateHint.Type type;
+		/** Other fetchers for the same USK look up the same hints at the same time. */
+		final USKProbeScheduler.ProbeKey probeKey;
 		DBRAttempt(ClientKey key, ClientContext context, USKDateHint.Type type) {
 			fetcher = new DBRFetcher(key, ctxDBR.maxUSKRetries, ctxDBR, parent, 
 					this, false, true, 0, context, false, realTimeFlag);
 			this.type = type;
+			probeKey = new USKProbeScheduler.ProbeKey(key, ctxDBR.maxUSKRetries, ctxDBR, realTimeFlag);
 			if(logMINOR) Logger.minor(this, "Created "+this+" with "+fetcher);
 		}
 		@Override
@@ -214,16 +218,17 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 				List<? extends Compressor> decompressors, ClientGetState state,
 				ClientContext context) {
 			OutputStream output = null;
-			PipedInputStream pipeIn = new PipedInputStream();
-			PipedOutputStream pipeOut = new PipedOutputStream();
+			ChunkedPipe pipe = new ChunkedPipe();
+			InputStream pipeIn = pipe.getInputStream();
+			OutputStream pipeOut = pipe.getOutputStream();
 			Bucket data = null;
 			long maxLen = Math.max(ctx.maxTempLength, ctx.maxOutputLength);
+			long hint = -1;
 			try {
 				data = context.getBucketFactory(false).makeBucket(maxLen);
 				output = data.getOutputStream();
 				if(decompressors != null) {
 					if(logMINOR) Logger.minor(this, "decompressing...");
-					pipeOut.connect(pipeIn);
 					DecompressorThreadManager decompressorManager =  new DecompressorThreadManager(pipeIn, decompressors, maxLen);
 					pipeIn = decompressorManager.execute();
 					ClientGetWorkerThread worker = new ClientGetWorkerThread(new BufferedInputStream(pipeIn), output, null, null, null, false, null, null, null, context.linkFilterExceptionProvider);
@@ -241,7 +246,7 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 				pipeIn = null;
 				
 				// Run directly - we are running on some thread somewhere, don't worry about it.
-				innerSuccess(data, context);
+				hint = innerSuccess(data, context);
 			} catch (Throwable t) {
 				Logger.error(this, "Caught "+t, t);
 				onFailure(new FetchException(FetchExceptionMode.INTERNAL_ERROR, t), state, context);
@@ -259,37 +264,39 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 				if(dbrsFinished)
 					onDBRsFinished(context);
 				Closer.close(data);
+				shareResult(hint, true, context);
 			}
 		}
-		private void innerSuccess(Bucket bucket, 
+		/** @return The hint edition, or -1 if the data is not a valid hint. */
+		private long innerSuccess(Bucket bucket, 
 				ClientContext context) {
 			byte[] data;
 			try {
 				data = BucketTools.toByteArray(bucket);
 			} catch (IOException e) {
 				Logger.error(this, "Unable to read hint data because of I/O error, maybe bad decompression?: "+e, e);
-				return;
+				return -1;
 			}
 			String line;
 			try {
 				line = new String(data, "UTF-8");
 			} catch (UnsupportedEncodingException e) {
 				Logger.error(this, "Impossible: "+e, e);
-				return;
+				return -1;
 			} catch (Throwable t) {
 				// Something very bad happened, most likely bogus encoding.
 				// Ignore it.
 				Logger.error(this, "Impossible throwable - maybe bogus encoding?: "+t, t);
-				return;
+				return -1;
 			}
 			String[] split = line.split("\n");
 			if(split.length < 3) {
 				Logger.error(this, "Unable to parse hint (not enough lines): \""+line+"\"");
-				return;
+				return -1;
 			}
 			if(!split[0].startsWith("HINT")) {
 				Logger.error(this, "Unable to parse hint (first line doesn't start with HINT): \""+line+"\"");
-				return;
+				return -1;
 			}
 			String value = split[1];
 			long hint;
@@ -297,10 +304,39 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 				hint = Long.parseLong(value);
 			} catch (NumberFormatException e) {
 				Logger.error(this, "Unable to parse hint \""+value+"\"", e);
-				return;
+				return -1;
+			}
+			if(hint < 0) {
+				Logger.error(this, "Negative hint \""+value+"\"");
+				return -1;
 			}
 			if(logMINOR) Logger.minor(this, "Found DBR hint edition "+hint+" for "+this.fetcher.getKey(null).getURI()+" for "+USKFetcher.this);
 			processDBRHint(hint, context, this);
+			return hint;
+		}
+		
+		/** Pass the result on to any other fetchers waiting for the same hint. */
+		private void shareResult(long hint, boolean remember, ClientContext context) {
+			List<DBRAttempt> waiting = uskManager.probes.finishDBR(probeKey, this, hint, remember, System.currentTimeMillis());
+			if(waiting == null) return;
+			for(DBRAttempt a : waiting)
+				a.onSharedResult(hint, context);
+		}
+		
+		/** Another fetcher has looked up the same hint for us.
+		 * @param hint The edition, or -1 if the lookup failed. */
+		void onSharedResult(long hint, ClientContext context) {
+			if(logMINOR) Logger.minor(this, "Shared DBR hint result "+hint+" for "+this+" for "+USKFetcher.this);
+			if(hint >= 0)
+				processDBRHint(hint, context, this);
+			boolean dbrsFinished;
+			synchronized(USKFetcher.this) {
+				if(!dbrAttempts.remove(this)) return;
+				if(logMINOR) Logger.minor(this, "Remaining DBR attempts: "+dbrAttempts);
+				dbrsFinished = dbrAttempts.isEmpty();
+			}
+			if(dbrsFinished)
+				onDBRsFinished(context);
 		}
 		
 		@Override
@@ -316,6 +352,8 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 			}
 			if(dbrsFinished)
 				onDBRsFinished(context);
+			// Only remember that it isn't there, not that we couldn't fetch it.
+			shareResult(-1, e.isDNF(), context);
 		}
 		@Override
 		public void onBlockSetFinished(ClientGetState state,
@@ -360,12 +398,31 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 				ClientContext context) {
 			// Ignore
 		}
-		public void start(ClientContext context) {
+		public void start(final ClientContext context) {
+			final Long recent = uskManager.probes.getRecentDBR(probeKey, System.currentTimeMillis());
+			if(recent != null) {
+				// Off-thread, as if we had fetched it, since we are called from schedule().
+				context.mainExecutor.execute(new Runnable() {
+					@Override
+					public void run() {
+						onSharedResult(recent, context);
+					}
+				}, "Recent DBR hint for "+USKFetcher.this);
+				return;
+			}
+			if(uskManager.probes.dbrs.join(probeKey, this, progressPollPriority)) {
+				if(logMINOR) Logger.minor(this, "Waiting for another fetcher's DBR lookup for "+this);
+				return;
+			}
 			this.fetcher.schedule(context);
 		}
 		
 		public void cancel(ClientContext context) {
+			// Hand over to the next fetcher waiting for the hint, if any, before we fail.
+			DBRAttempt next = uskManager.probes.dbrs.leave(probeKey, this);
 			this.fetcher.cancel(context);
+			if(next != null)
+				next.fetcher.schedule(context);
 		}
 	}
 	
@@ -382,13 +439,18 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 		final Lookup lookup;
 		final boolean forever;
 		private boolean everInCooldown;
+		/** Other fetchers for the same USK may probe the same slot at the same time. */
+		final USKProbeScheduler.ProbeKey probeKey;
 		public USKAttempt(Lookup l, boolean forever) {
 			this.lookup = l;
 			this.number = l.val;
 			this.succeeded = false;
 			this.dnf = false;
 			this.forever = forever;
-			this.checker = new USKChecker(this, l.key, forever ? -1 : ctx.maxUSKRetries, l.ignoreStore ? ctxNoStore : ctx, parent, realTimeFlag);
+			int maxRetries = forever ? -1 : ctx.maxUSKRetries;
+			FetchContext fctx = l.ignoreStore ? ctxNoStore : ctx;
+			this.checker = new USKChecker(this, l.key, maxRetries, fctx, parent, realTimeFlag);
+			this.probeKey = new USKProbeScheduler.ProbeKey(l.key, maxRetries, fctx, realTimeFlag);
 		}
 		@Override
 		public void onDNF(ClientContext context) {
@@ -397,6 +459,8 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 		        dnf = true;
 		    }
 			USKFetcher.this.onDNF(this, context);
+			for(USKAttempt a : finishShared())
+				a.onDNF(context);
 		}
 		@Override
 		public void onSuccess(ClientSSKBlock block, ClientContext context) {
@@ -405,6 +469,8 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 		        succeeded = true;
 		    }
 			USKFetcher.this.onSuccess(this, false, block, context);
+			for(USKAttempt a : finishShared())
+				a.onSuccess(block, context);
 		}
 		
 		@Override
@@ -414,6 +480,8 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 		    }
 			// Counts as success except it doesn't update
 			USKFetcher.this.onSuccess(this, true, null, context);
+			for(USKAttempt a : finishShared())
+				a.onFatalAuthorError(context);
 		}
 		
 		@Override
@@ -423,6 +491,8 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 		    }
 			// Not a DNF
 			USKFetcher.this.onFail(this, context);
+			for(USKAttempt a : finishShared())
+				a.onNetworkError(context);
 		}
 		
 		@Override
@@ -430,9 +500,22 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 		    synchronized(this) {
 		        checker = null;
 		    }
+			// If other fetchers are waiting for our request, one of them must send its own.
+			USKAttempt next = uskManager.probes.editions.leave(probeKey, this);
+			if(next != null)
+				next.sendRequest(context);
 			USKFetcher.this.onCancelled(this, context);
 		}
 		
+		/** @return Any attempts by other fetchers which are waiting for the result of ours. */
+		private List<USKAttempt> finishShared() {
+			List<USKAttempt> waiting = uskManager.probes.editions.finish(probeKey, this);
+			if(waiting == null) return Collections.emptyList();
+			if(logMINOR && !waiting.isEmpty())
+				Logger.minor(this, "Passing result on to "+waiting.size()+" other fetchers for "+this);
+			return waiting;
+		}
+		
 		public void cancel(ClientContext context) {
 			cancelled = true;
             USKChecker c;
@@ -452,12 +535,25 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 			if(c == null) {
 				if(logMINOR)
 					Logger.minor(this, "Checker == null in schedule() for "+this, new Exception("debug"));
+			} else if(uskManager.probes.editions.join(probeKey, this, getPriority())) {
+				if(logMINOR)
+					Logger.minor(this, "Waiting for another fetcher's probe for "+this);
 			} else {
 				assert(!c.persistent());
 				c.schedule(context);
 			}
 		}
 		
+		/** The fetcher whose probe we were waiting for has cancelled it, so send our own. */
+		private void sendRequest(ClientContext context) {
+		    USKChecker c;
+		    synchronized(this) {
+		        c = checker;
+		    }
+		    if(c != null && !cancelled)
+		        c.schedule(context);
+		}
+		
 		@Override
 		public String toString() {
 			return "USKAttempt for "+number+" for "+origUSK.getURI()+" for "+USKFetcher.this+(forever?" (forever)" : "");
@@ -491,6 +587,8 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 				everInCooldown = true;
 			}
 			USKFetcher.this.onCheckEnteredFiniteCooldown(context);
+			for(USKAttempt a : uskManager.probes.editions.followers(probeKey, this))
+				a.onEnterFiniteCooldown(context);
 		}
 		public synchronized boolean everInCooldown() {
 			return everInCooldown;
@@ -738,6 +836,8 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
                 //Find out when we should check next ('end'), in an increasing delay (unless we make progress).
                 long newSleepTime = sleepTime * 2;
 				if(newSleepTime > maxSleepTime) newSleepTime = maxSleepTime;
+				// But not much more often than it is actually updated, nor much less often.
+				newSleepTime = uskManager.probes.adjustSleepTime(origUSK.clearCopy(), newSleepTime, origSleepTime, maxSleepTime, now);
 				sleepTime = newSleepTime;
 				end = now + context.random.nextInt((int) sleepTime);
 
@@ -93,6 +93,9 @@ public class USKManager {
 	
 	final Executor executor;
 	
+	/** Shares edition probes and DBR lookups between fetchers, and tracks how often USKs are updated. */
+	final USKProbeScheduler probes;
+	
 	private ClientContext context;
 	
 	public USKManager(NodeClientCore core) {
@@ -113,6 +116,7 @@ public class USKManager {
 		temporaryBackgroundFetchersLRU = LRUMap.createSafeMap(USK.FAST_COMPARATOR);
 		temporaryBackgroundFetchersPrefetch = new WeakHashMap<USK, Long>();
 		executor = core.getExecutor();
+		probes = new USKProbeScheduler();
 	}
 
 	public void init(ClientContext context) {
@@ -445,6 +449,7 @@ public class USKManager {
 				latestSlotByClearUSK.put(clear, l);
 				if(logMINOR) Logger.minor(this, "Put "+number);
 				newSlot = true;
+				probes.onNewSlot(clear, number, System.currentTimeMillis());
 			} 
 			
 			callbacks = subscribersByClearUSK.get(clear);
@@ -475,6 +480,7 @@ public class USKManager {
 				l = Long.valueOf(number);
 				latestSlotByClearUSK.put(clear, l);
 				if(logMINOR) Logger.minor(this, "Put "+number);
+				probes.onNewSlot(clear, number, System.currentTimeMillis());
 			} else
 				return;
 			
@@ -690,6 +696,14 @@ public class USKManager {
 		return temporaryBackgroundFetchersLRU.size();
 	}
 
+	/**
+	 * @return The number of edition probes and DBR hint lookups which were not sent because another
+	 * fetcher was already sending an identical request, or had done so recently.
+	 */
+	public long getSharedUSKProbes() {
+		return probes.editions.shared() + probes.dbrs.shared() + probes.getDBRCacheHits();
+	}
+
 	public void onFinished(USKFetcher fetcher) {
 		onFinished(fetcher, false);
 	}
@@ -0,0 +1,313 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import freenet.client.FetchContext;
+import freenet.keys.ClientKey;
+import freenet.keys.USK;
+import freenet.support.LRUMap;
+
+/**
+ * Shares edition probes and date-based hint (DBR) lookups between USKFetcher's, and keeps track of
+ * how often each USK is actually updated, so that background polling can adapt to it.
+ *
+ * The same USK is often watched by several fetchers at once: a subscription, a bookmark, an FCP
+ * client, a temporary fetcher started by fetching an edition. Each of them used to send its own
+ * request for each edition and each DBR hint. Now the first fetcher to ask for a slot sends the
+ * request, and any others who ask for the same slot while it is running wait for its result.
+ * Results of DBR lookups are also kept for a few minutes, since every fetcher for a USK starts
+ * with the same DBR lookups.
+ *
+ * Transient, like USKManager, which owns it.
+ */
+class USKProbeScheduler {
+
+	/** How long to remember the result of a DBR lookup. The hints only change when the author
+	 * inserts, and the keys change daily anyway. */
+	static final long DBR_CACHE_TIME = MINUTES.toMillis(10);
+	static final int MAX_CACHED_DBRS = 1024;
+	/** Maximum number of USKs to track the update interval of. */
+	static final int MAX_TRACKED_USKS = 4096;
+	/** New editions found less than this long after the previous one are assumed to be us
+	 * catching up, rather than separate updates by the author. */
+	static final long MIN_UPDATE_INTERVAL = MINUTES.toMillis(1);
+	/** Don't poll more than this many times per expected update. */
+	static final int POLLS_PER_UPDATE = 4;
+
+	/** Edition probes, by the key of the slot. */
+	final SharedRequests<USKFetcher.USKAttempt> editions = new SharedRequests<USKFetcher.USKAttempt>();
+	/** DBR lookups, by the key of the hint. */
+	final SharedRequests<USKFetcher.DBRAttempt> dbrs = new SharedRequests<USKFetcher.DBRAttempt>();
+
+	private final LRUMap<ProbeKey, DBRResult> recentDBRs = new LRUMap<ProbeKey, DBRResult>();
+	private final LRUMap<USK, UpdateHistory> updates = LRUMap.createSafeMap(USK.FAST_COMPARATOR);
+	private long dbrCacheHits;
+
+	/** Identifies a request for a single key, such that two fetchers sending requests with the same
+	 * ProbeKey would get the same result. */
+	static final class ProbeKey {
+		final ClientKey key;
+		final int maxRetries;
+		final boolean ignoreStore;
+		final boolean localOnly;
+		final boolean realTime;
+		private final int hashCode;
+
+		ProbeKey(ClientKey key, int maxRetries, FetchContext ctx, boolean realTime) {
+			this.key = key;
+			this.maxRetries = maxRetries;
+			this.ignoreStore = ctx.ignoreStore;
+			this.localOnly = ctx.localRequestOnly;
+			this.realTime = realTime;
+			hashCode = key.hashCode() ^ maxRetries ^ (ignoreStore ? 1 << 29 : 0) ^
+				(localOnly ? 1 << 30 : 0) ^ (realTime ? 1 << 31 : 0);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof ProbeKey)) return false;
+			ProbeKey k = (ProbeKey) o;
+			return hashCode == k.hashCode && maxRetries == k.maxRetries && ignoreStore == k.ignoreStore &&
+				localOnly == k.localOnly && realTime == k.realTime && key.equals(k.key);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public String toString() {
+			return key.getURI()+":"+maxRetries+(ignoreStore ? ":ignoreStore" : "")+
+				(localOnly ? ":local" : "")+(realTime ? ":realtime" : ":bulk");
+		}
+	}
+
+	/**
+	 * Identical requests by different fetchers. The first one to join is the owner, and actually
+	 * sends its request. Others wait for the owner to pass on its result.
+	 */
+	static class SharedRequests<T> {
+
+		private final Map<Object, Group<T>> groups = new HashMap<Object, Group<T>>();
+		private long shared;
+
+		private static class Group<T> {
+			T owner;
+			short ownerPriority;
+			final List<T> followers = new ArrayList<T>(1);
+			final List<Short> followerPriorities = new ArrayList<Short>(1);
+		}
+
+		/**
+		 * Called before sending a request.
+		 * @param priority The priority class of the caller's request. We won't make a request wait
+		 * for a less urgent one.
+		 * @return True if an identical request is already running, so the caller must not send its
+		 * own; the owner will pass on the result. False if the caller must send its request.
+		 */
+		synchronized boolean join(Object key, T member, short priority) {
+			Group<T> group = groups.get(key);
+			if(group == null) {
+				group = new Group<T>();
+				group.owner = member;
+				group.ownerPriority = priority;
+				groups.put(key, group);
+				return false;
+			}
+			if(group.owner == member) return false;
+			if(group.followers.contains(member)) return true;
+			// Lower number = more urgent.
+			if(priority < group.ownerPriority) return false;
+			group.followers.add(member);
+			group.followerPriorities.add(priority);
+			shared++;
+			return true;
+		}
+
+		/**
+		 * Called when a request has finished.
+		 * @return If the caller was the owner, the members waiting for it, who should be given the
+		 * same result. Otherwise null.
+		 */
+		synchronized List<T> finish(Object key, T member) {
+			Group<T> group = groups.get(key);
+			if(group == null) return null;
+			if(group.owner != member) {
+				remove(group, member);
+				return null;
+			}
+			groups.remove(key);
+			return group.followers;
+		}
+
+		/**
+		 * Called when a request is cancelled.
+		 * @return If the caller was the owner and others are waiting for it, the next owner, which
+		 * the caller must start. Otherwise null.
+		 */
+		synchronized T leave(Object key, T member) {
+			Group<T> group = groups.get(key);
+			if(group == null) return null;
+			if(group.owner != member) {
+				remove(group, member);
+				return null;
+			}
+			if(group.followers.isEmpty()) {
+				groups.remove(key);
+				return null;
+			}
+			group.owner = group.followers.remove(0);
+			group.ownerPriority = group.followerPriorities.remove(0);
+			return group.owner;
+		}
+
+		/** @return The members waiting for the caller's request, or an empty list if the caller is
+		 * not the owner. */
+		synchronized List<T> followers(Object key, T member) {
+			Group<T> group = groups.get(key);
+			if(group == null || group.owner != member) return new ArrayList<T>(0);
+			return new ArrayList<T>(group.followers);
+		}
+
+		private void remove(Group<T> group, T member) {
+			int i = group.followers.indexOf(member);
+			if(i == -1) return;
+			group.followers.remove(i);
+			group.followerPriorities.remove(i);
+		}
+
+		/** @return The number of requests running. */
+		synchronized int running() {
+			return groups.size();
+		}
+
+		/** @return The number of requests which were not sent because an identical one was
+		 * already running. */
+		synchronized long shared() {
+			return shared;
+		}
+	}
+
+	private static class DBRResult {
+		final long hint;
+		final long time;
+		DBRResult(long hint, long time) {
+			this.hint = hint;
+			this.time = time;
+		}
+	}
+
+	/**
+	 * Called when a DBR lookup finishes.
+	 * @param hint The edition, or -1 if the lookup failed.
+	 * @param remember If true, remember the result for other fetchers for a while.
+	 * @return The DBRAttempt's waiting for this one, or null if the caller wasn't the owner.
+	 */
+	List<USKFetcher.DBRAttempt> finishDBR(ProbeKey key, USKFetcher.DBRAttempt attempt, long hint, boolean remember, long now) {
+		List<USKFetcher.DBRAttempt> followers = dbrs.finish(key, attempt);
+		if(followers != null && remember) {
+			synchronized(this) {
+				recentDBRs.push(key, new DBRResult(hint, now));
+				while(recentDBRs.size() > MAX_CACHED_DBRS)
+					recentDBRs.popKey();
+			}
+		}
+		return followers;
+	}
+
+	/** @return The result of a recent identical DBR lookup: the edition, -1 if it failed, or null
+	 * if we don't know. */
+	synchronized Long getRecentDBR(ProbeKey key, long now) {
+		DBRResult result = recentDBRs.get(key);
+		if(result == null) return null;
+		if(now - result.time > DBR_CACHE_TIME) {
+			recentDBRs.removeKey(key);
+			return null;
+		}
+		dbrCacheHits++;
+		return result.hint;
+	}
+
+	synchronized long getDBRCacheHits() {
+		return dbrCacheHits;
+	}
+
+	private static class UpdateHistory {
+		long lastEdition;
+		long lastTime;
+		/** Estimated time between updates, or -1 if we don't know yet. */
+		long interval = -1;
+		UpdateHistory(long edition, long time) {
+			lastEdition = edition;
+			lastTime = time;
+		}
+	}
+
+	/** Called by USKManager when a later slot is found for a USK. */
+	synchronized void onNewSlot(USK clear, long edition, long now) {
+		UpdateHistory history = updates.get(clear);
+		if(history == null) {
+			// The first edition we see tells us nothing about how often it is updated.
+			updates.push(clear, new UpdateHistory(edition, now));
+			while(updates.size() > MAX_TRACKED_USKS)
+				updates.popKey();
+			return;
+		}
+		if(edition <= history.lastEdition) return;
+		long elapsed = now - history.lastTime;
+		if(elapsed < MIN_UPDATE_INTERVAL) {
+			// Catching up. Count the editions found together as one update.
+			history.lastEdition = edition;
+			return;
+		}
+		long sample = elapsed / (edition - history.lastEdition);
+		if(history.interval < 0)
+			history.interval = sample;
+		else
+			history.interval = (history.interval * 3 + sample) / 4;
+		history.lastEdition = edition;
+		history.lastTime = now;
+		updates.push(clear, history);
+	}
+
+	/** @return The estimated time between updates of the USK, or -1 if we don't know. */
+	synchronized long getUpdateInterval(USK clear) {
+		UpdateHistory history = updates.get(clear);
+		return history == null ? -1 : history.interval;
+	}
+
+	/**
+	 * Adjust the time a background fetcher will wait before the next round of polling to how often
+	 * the USK is actually updated, if we know. A USK which is updated every few hours is polled at
+	 * least every half an update interval, and one which is updated weekly goes to the longest
+	 * sleep straight away rather than doubling up to it over several days. If a USK has not been
+	 * updated for longer than its usual interval, the time since the last update counts as the
+	 * interval, so a USK which goes quiet backs off to the longest sleep.
+	 * @param sleepTime The sleep time the fetcher would use otherwise.
+	 * @param minSleepTime The shortest sleep time the fetcher uses.
+	 * @param maxSleepTime The longest sleep time the fetcher uses.
+	 */
+	long adjustSleepTime(USK clear, long sleepTime, long minSleepTime, long maxSleepTime, long now) {
+		long interval;
+		long quiet;
+		synchronized(this) {
+			UpdateHistory history = updates.get(clear);
+			if(history == null || history.interval <= 0) return sleepTime;
+			interval = history.interval;
+			quiet = now - history.lastTime;
+		}
+		long atLeast = Math.min(interval / POLLS_PER_UPDATE, maxSleepTime);
+		long atMost = Math.max(minSleepTime, Math.max(interval, quiet) / 2);
+		return Math.min(maxSleepTime, Math.max(atLeast, Math.min(atMost, sleepTime)));
+	}
+
+}
@@ -5,9 +5,8 @@ package freenet.client.async;
 
 import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.net.MalformedURLException;
 import java.util.List;
 
@@ -28,6 +27,7 @@ import freenet.support.Logger;
 import freenet.support.api.Bucket;
 import freenet.support.compress.Compressor;
 import freenet.support.compress.DecompressorThreadManager;
+import freenet.support.io.ChunkedPipe;
 import freenet.support.io.Closer;
 import freenet.support.io.InsufficientDiskSpaceException;
 import freenet.support.Logger.LogLevel;
@@ -131,15 +131,16 @@ public class USKRetriever extends BaseClientGetter implements USKCallback {
 			return;
 		}
 
-		PipedInputStream pipeIn = null;
-		PipedOutputStream pipeOut = null;
+		InputStream pipeIn = null;
+		OutputStream pipeOut = null;
 		try {
 			output = finalResult.getOutputStream();
 			// Decompress
 			if(decompressors != null) {
 				if(logMINOR) Logger.minor(this, "Decompressing...");
-				pipeIn = new PipedInputStream();
-				pipeOut = new PipedOutputStream(pipeIn);
+				ChunkedPipe pipe = new ChunkedPipe();
+				pipeIn = pipe.getInputStream();
+				pipeOut = pipe.getOutputStream();
 				decompressorManager = new DecompressorThreadManager(pipeIn, decompressors, maxLen);
 				pipeIn = decompressorManager.execute();
 				ClientGetWorkerThread worker = new ClientGetWorkerThread(new BufferedInputStream(pipeIn), output, null, null, null, false, null, null, null, context.linkFilterExceptionProvider);
@@ -0,0 +1,56 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.events;
+
+/** Sent by a splitfile insert each time a segment or cross-segment has been FEC encoded. */
+public class SplitfileEncodingProgressEvent implements ClientEvent {
+
+	static final int CODE = 0x11;
+
+	public final int encodedSegments;
+	public final int totalSegments;
+	/** Zero if the splitfile doesn't use cross-segment redundancy. */
+	public final int encodedCrossSegments;
+	public final int totalCrossSegments;
+	/** Bytes read and generated by the encodes run since the insert was started or resumed. */
+	public final long encodedBytes;
+	/** Time since the insert started encoding, or was resumed. */
+	public final long elapsedMillis;
+
+	public SplitfileEncodingProgressEvent(int encodedSegments, int totalSegments,
+			int encodedCrossSegments, int totalCrossSegments, long encodedBytes, long elapsedMillis) {
+		this.encodedSegments = encodedSegments;
+		this.totalSegments = totalSegments;
+		this.encodedCrossSegments = encodedCrossSegments;
+		this.totalCrossSegments = totalCrossSegments;
+		this.encodedBytes = encodedBytes;
+		this.elapsedMillis = elapsedMillis;
+	}
+
+	/** @return Bytes encoded per second, or 0 if we don't know yet. */
+	public long getThroughput() {
+		if(elapsedMillis <= 0) return 0;
+		return encodedBytes * 1000 / elapsedMillis;
+	}
+
+	public boolean isFinished() {
+		return encodedSegments == totalSegments;
+	}
+
+	@Override
+	public String getDescription() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("Encoded ").append(encodedSegments).append('/').append(totalSegments).append(" segments");
+		if(totalCrossSegments > 0)
+			sb.append(", ").append(encodedCrossSegments).append('/').append(totalCrossSegments).append(" cross-segments");
+		sb.append(" (").append(getThroughput() / 1024).append(" KiB/s)");
+		return sb.toString();
+	}
+
+	@Override
+	public int getCode() {
+		return CODE;
+	}
+
+}
@@ -18,7 +18,7 @@ public interface ContentDataFilter {
 	 * correct type. Filters should usually be implemented as "white list",
 	 * that is, they should parse everything, and when encountering 
 	 * anything they cannot parse, should delete it, or throw a DataFilterException.
-	 * IMPORTANT Implementation note: The InputStream may be a PipedInputStream 
+	 * IMPORTANT Implementation note: The InputStream may be a ChunkedPipe 
 	 * (or conceivably even a network stream). Implementations MUST NOT ASSUME 
 	 * that input.available() == 0 => EOF!
 	 * @param input Stream to read potentially unsafe data from.
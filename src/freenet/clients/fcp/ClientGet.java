@@ -11,6 +11,7 @@ import java.net.MalformedURLException;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 
 import freenet.client.FetchContext;
@@ -48,6 +49,7 @@ import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.api.Bucket;
+import freenet.support.compress.DecompressorThreadManager.StageStats;
 import freenet.support.io.ArrayBucketFactory;
 import freenet.support.io.BucketTools;
 import freenet.support.io.FileBucket;
@@ -97,6 +99,8 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 	private GetFailedMessage getFailedMessage;
 	/** Last progress message. Not persistent, ClientGetter will update on onResume(). */
 	private transient SimpleProgressMessage progressPending;
+	/** How long decompressing the data took, for the DataFound message. Not persistent. */
+	private transient List<StageStats> decompressionStats;
 	/** Have we received a SendingToNetworkEvent? */
 	private boolean sentToNetwork;
 	/** Current compatibility mode. This is updated over time as the request progresses, and can be
@@ -377,6 +381,7 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
             completionTime = System.currentTimeMillis();
 			progressPending = null;
 			this.foundDataLength = data.size();
+			decompressionStats = state.getDecompressionStats();
 			this.succeeded = true;
 			finished = true;
 			if(returnType == ReturnType.DIRECT)
@@ -416,7 +421,7 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 		if(succeeded) {
 			// FIXME: Duplicate of AllDataMessage
 			// FIXME: CompletionTime is set on finish() : we need to give it current time here
-			msg = new DataFoundMessage(foundDataLength, foundDataMimeType, identifier, global, startupTime, completionTime != 0 ? completionTime : System.currentTimeMillis());
+			msg = new DataFoundMessage(foundDataLength, foundDataMimeType, identifier, global, startupTime, completionTime != 0 ? completionTime : System.currentTimeMillis(), decompressionStats);
 		} else {
 			msg = getFailedMessage;
 		}
@@ -575,6 +580,7 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 	@Override
 	public void receive(ClientEvent ce, ClientContext context) {
 	    if(logMINOR) Logger.minor(this, "Receiving "+ce+" on "+this);
+	    onPersistentStateChanged();
 	    final FCPMessage progress;
 		final int verbosityMask;
 		if(ce instanceof SplitfileProgressEvent) {
@@ -875,6 +881,7 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 		FreenetURI redirect = null;
 		synchronized(this) {
 			finished = false;
+			onPersistentStateChanged();
 			if(persistence == Persistence.FOREVER && getFailedMessage != null) {
 				if(getFailedMessage.redirectURI != null) {
 					redirect =
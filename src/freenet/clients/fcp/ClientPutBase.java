@@ -215,6 +215,7 @@ public abstract class ClientPutBase extends ClientRequest implements ClientPutCa
 				generatedURI = uri;
 			}
 		}
+		onPersistentStateChanged();
 		trySendGeneratedURIMessage(null, null);
 		if(client != null) {
 			RequestStatusCache cache = client.getRequestStatusCache();
@@ -324,6 +325,8 @@ public abstract class ClientPutBase extends ClientRequest implements ClientPutCa
 				//FIXME: onHashesComputed();
 			}
 		}
+		// Events are ignored once we have finished, but we may have finished while handling it.
+		onPersistentStateChanged();
 	}
 
 	protected abstract void onStopCompressing();
@@ -530,6 +533,7 @@ public abstract class ClientPutBase extends ClientRequest implements ClientPutCa
 	
 	public synchronized void setVarsRestart() {
 	    finished = false;
+	    onPersistentStateChanged();
 	    this.putFailedMessage = null;
 	    this.progressMessage = null;
 	    started = false;
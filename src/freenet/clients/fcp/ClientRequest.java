@@ -64,6 +64,9 @@ public abstract class ClientRequest implements Serializable {
 	protected long completionTime;
 
 	protected transient RequestClient lowLevelClient;
+	/** Changed whenever the request changes after it may have finished. Not persisted: it only
+	 * tells ClientLayerPersister whether it can reuse the last serialized copy. */
+	private transient volatile int persistentStateVersion;
 	private final int hashCode; // for debugging it is good to have a persistent id
 	
 	@Override
@@ -310,6 +313,24 @@ public abstract class ClientRequest implements Serializable {
 
 	public abstract boolean restart(ClientContext context, boolean disableFilterData) throws PersistenceDisabledException;
 
+	/** Must be called after changing anything that is serialized, if the request might have
+	 * finished, so that the next checkpoint writes it out again. */
+	protected void onPersistentStateChanged() {
+		persistentStateVersion++;
+	}
+
+	/**
+	 * @return -1 if the request hasn't finished, in which case it may change at any time and must
+	 * be serialized on every checkpoint. Otherwise a number that changes whenever
+	 * onPersistentStateChanged() is called. Read it before serializing the request.
+	 */
+	public int getPersistentStateVersion() {
+		synchronized(this) {
+			if(!finished) return -1;
+		}
+		return persistentStateVersion;
+	}
+
 	/**
 	 * Called after a ModifyPersistentRequest.
 	 * Sends a PersistentRequestModified message to clients if any value changed. 
@@ -348,6 +369,7 @@ public abstract class ClientRequest implements Serializable {
 			return; // quick return, nothing was changed
 		}
 		
+		onPersistentStateChanged();
 		server.core.clientContext.jobRunner.setCheckpointASAP();
 		
 		// this could become too complex with more parameters, but for now its ok
@@ -368,6 +390,7 @@ public abstract class ClientRequest implements Serializable {
 		synchronized(this) {
 			this.started = false;
 		}
+		onPersistentStateChanged();
 		if(client != null) {
 			RequestStatusCache cache = client.getRequestStatusCache();
 			if(cache != null) {
@@ -3,9 +3,12 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.clients.fcp;
 
+import java.util.List;
+
 import freenet.client.FetchResult;
 import freenet.node.Node;
 import freenet.support.SimpleFieldSet;
+import freenet.support.compress.DecompressorThreadManager.StageStats;
 
 public class DataFoundMessage extends FCPMessage {
 
@@ -14,6 +17,8 @@ public class DataFoundMessage extends FCPMessage {
 	final String mimeType;
 	final long dataLength;
 	final long startupTime, completionTime;
+	/** How long each decompressor took, or null if not known. */
+	final List<StageStats> decompressionStats;
 	
 	public DataFoundMessage(FetchResult fr, String identifier, boolean global, long startupTime, long completionTime) {
 		this.identifier = identifier;
@@ -22,15 +27,17 @@ public class DataFoundMessage extends FCPMessage {
 		this.dataLength = fr.size();
 		this.startupTime = startupTime;
 		this.completionTime = completionTime;
+		this.decompressionStats = null;
 	}
 
-	public DataFoundMessage(long foundDataLength, String foundDataMimeType, String identifier, boolean global, long startupTime, long completionTime) {
+	public DataFoundMessage(long foundDataLength, String foundDataMimeType, String identifier, boolean global, long startupTime, long completionTime, List<StageStats> decompressionStats) {
 		this.mimeType = foundDataMimeType;
 		this.identifier = identifier;
 		this.global = global;
 		this.dataLength = foundDataLength;
 		this.startupTime = startupTime;
 		this.completionTime = completionTime;
+		this.decompressionStats = decompressionStats;
 	}
 
 	@Override
@@ -42,6 +49,17 @@ public class DataFoundMessage extends FCPMessage {
 		fs.put("DataLength", dataLength);
 		fs.put("StartupTime", startupTime);
 		fs.put("CompletionTime", completionTime);
+		if(decompressionStats != null) {
+			int i = 0;
+			for(StageStats stage : decompressionStats) {
+				String prefix = "Decompression."+i+".";
+				fs.putSingle(prefix+"Compressor", stage.compressor);
+				fs.put(prefix+"BytesIn", stage.bytesIn());
+				fs.put(prefix+"BytesOut", stage.bytesOut());
+				fs.put(prefix+"Time", stage.time() / 1000000);
+				i++;
+			}
+		}
 		return fs;
 	}
 
@@ -122,6 +122,9 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 	/** Stores the fetch context this class was created with*/
 	private FetchContext fctx;
 	private boolean cancelled = false;
+	/** Copying the data into the response cache. If we are cancelled meanwhile, onSuccess()
+	 * frees the data once the copy is done. */
+	private boolean caching;
 	private final RequestClient rc;
 	
 	public FProxyFetchInProgress(FProxyFetchTracker tracker, FreenetURI key, long maxSize2, long identifier, ClientContext context, FetchContext fctx, RequestClient rc, REFILTER_POLICY refilter) {
@@ -192,11 +195,13 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 	}
 
 	/** Look up the key in the downloads queue.
-	 * @return True if it was found and we don't need to start the request. */
+	 * @return True if it was found and we don't need to start the request. The data we found is
+	 * freed if we don't use it: for the FProxy response cache this releases our hold on it. */
 	private boolean checkCache(ClientContext context) {
 		// Fproxy uses lookupInstant() with mustCopy = false. I.e. it can reuse stuff unsafely. If the user frees it it's their fault.
 		if(bogusUSK(context)) return false;
 		CacheFetchResult result = context.downloadCache == null ? null : context.downloadCache.lookupInstant(uri, !fctx.filterData, false, null);
+		if(result == null) result = checkResponseCache();
 		if(result == null) return false;
 		Bucket data = null;
 		String mimeType = null;
@@ -216,6 +221,7 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 		} else if(result.alreadyFiltered) {
 			if(refilterPolicy == REFILTER_POLICY.RE_FETCH || !fctx.filterData) {
 				// Can't use it.
+				result.asBucket().free();
 				return false;
 			} else if(fctx.filterData) {
 				if(shouldAcceptCachedFilteredData(fctx, result)) {
@@ -224,9 +230,12 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 						onSuccess(result, null);
 						return true;
 					} // else re-filter
-				} else
+				} else {
+					result.asBucket().free();
 					return false;
+				}
 			} else {
+				result.asBucket().free();
 				return false;
 			}
 		}
@@ -237,6 +246,7 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 			mimeType = fctx.overrideMIME;
 		else if(fctx.overrideMIME != null && !mimeType.equals(fctx.overrideMIME)) {
 			// Doesn't work.
+			data.free();
 			return false;
 		}
 		String fullMimeType = mimeType;
@@ -286,6 +296,18 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 		}
 	}
 
+	/** Look up the key in the cache of recent FProxy fetches. */
+	private CacheFetchResult checkResponseCache() {
+		FProxyResponseCache cache = tracker.getResponseCache();
+		if(cache == null || !FProxyResponseCache.canCache(fctx)) return null;
+		CacheFetchResult result = cache.lookupInstant(uri, !fctx.filterData, false, null);
+		if(result != null && result.size() > maxSize) {
+			result.asBucket().free();
+			return null;
+		}
+		return result;
+	}
+
 	/** If the key is a USK and a) we are requested to do an exhaustive search, or b) 
 	 * there is a later version, then we can't use the download queue as a cache.
 	 * @return True if we can't use the download queue, false if we can. */
@@ -390,6 +412,10 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 
 	@Override
 	public void onSuccess(FetchResult result, ClientGetter state) {
+		FProxyResponseCache cache = tracker.getResponseCache();
+		// state is null if the result came from a cache.
+		boolean toCache = state != null && cache != null && FProxyResponseCache.canCache(fctx) &&
+			!bogusUSK(tracker.context);
 		Bucket droppedData = null;
 		synchronized(this) {
 			if(cancelled)
@@ -398,8 +424,18 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 				this.data = result.asBucket();
 			this.mimeType = result.getMimeType();
 			this.finished = true;
+			caching = toCache;
 		}
 		wakeWaiters(true);
+		// Copy and hash the data for the cache after the waiters have it, not before.
+		if(toCache) {
+			cache.put(uri, fctx.filterData, result.getMimeType(), result.asBucket());
+			synchronized(this) {
+				caching = false;
+				if(cancelled && droppedData == null)
+					droppedData = data;
+			}
+		}
 		if(droppedData != null)
 			droppedData.free();
 	}
@@ -451,7 +487,8 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 		}
 		Bucket d;
 		synchronized(this) {
-			d = data;
+			// If we are still copying it into the cache, onSuccess() will free it.
+			d = caching ? null : data;
 			cancelled = true;
 		}
 		if(d != null) {
@@ -33,14 +33,22 @@ public class FProxyFetchTracker implements Runnable {
 	private long fetchIdentifiers;
 	private final FetchContext fctx;
 	private final RequestClient rc;
+	/** Completed fetches, so they don't have to be fetched again when the fetcher has gone. May be
+	 * null. */
+	private final FProxyResponseCache responseCache;
 	private boolean queuedJob;
 	private boolean requeue;
 
-	public FProxyFetchTracker(ClientContext context, FetchContext fctx, RequestClient rc) {
+	public FProxyFetchTracker(ClientContext context, FetchContext fctx, RequestClient rc, FProxyResponseCache responseCache) {
 		fetchers = new MultiValueTable<FreenetURI, FProxyFetchInProgress>();
 		this.context = context;
 		this.fctx = fctx;
 		this.rc = rc;
+		this.responseCache = responseCache;
+	}
+
+	public FProxyResponseCache getResponseCache() {
+		return responseCache;
 	}
 	
 	public FProxyFetchWaiter makeFetcher(FreenetURI key, long maxSize, FetchContext fctx, REFILTER_POLICY refilterPolicy) throws FetchException {
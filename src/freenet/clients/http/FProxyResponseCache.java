@@ -0,0 +1,569 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import freenet.client.ClientMetadata;
+import freenet.client.FetchContext;
+import freenet.client.async.CacheFetchResult;
+import freenet.client.async.ClientContext;
+import freenet.client.async.DownloadCache;
+import freenet.crypt.SHA256;
+import freenet.keys.FreenetURI;
+import freenet.support.HexUtil;
+import freenet.support.LRUMap;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+import freenet.support.Ticker;
+import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
+import freenet.support.io.BucketTools;
+import freenet.support.io.Closer;
+import freenet.support.io.FileBucket;
+import freenet.support.io.FileUtil;
+import freenet.support.io.NoFreeBucket;
+
+/**
+ * Cache of files FProxy has fetched, filtered or not, so that loading the same page again, or
+ * another page with the same images and style sheets, doesn't have to go back to the client
+ * layer. FProxyFetchTracker only shares fetches which are running at the same time; once a
+ * fetch has been shown and timed out, the next request for it used to start from scratch.
+ *
+ * Items are keyed by URI and whether they were filtered, but the data is stored by its hash,
+ * so a file which is linked from many sites is only stored once. Bounded by the total size of
+ * the data, least recently used first.
+ *
+ * When the physical security level is LOW, the data and the index are kept in a directory, and
+ * reloaded on startup. Otherwise we don't write what the user has been browsing to disk: the data
+ * is kept in temporary buckets, which are encrypted, and is lost on restart; anything left on
+ * disk from when it was LOW is deleted on startup.
+ */
+public class FProxyResponseCache implements DownloadCache {
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback() {
+			@Override
+			public void shouldUpdate() {
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	static final String INDEX_FILENAME = "index";
+	private static final int INDEX_MAGIC = 0x46b2c4c3;
+	private static final int INDEX_VERSION = 1;
+	/** Don't rewrite the index more often than this. */
+	static final long WRITE_INDEX_DELAY = SECONDS.toMillis(30);
+	/** Don't cache any single file bigger than this fraction of the cache. */
+	static final int MAX_ITEM_FRACTION = 8;
+
+	private final File dir;
+	private final BucketFactory bucketFactory;
+	private final Ticker ticker;
+
+	private boolean persistent;
+	private long maxSize;
+	/** Least recently used first. */
+	private final LRUMap<CacheKey, Item> items = new LRUMap<CacheKey, Item>();
+	/** By hash of the content. */
+	private final Map<String, Blob> blobs = new HashMap<String, Blob>();
+	private long totalSize;
+	private boolean writeScheduled;
+
+	private long hits;
+	private long misses;
+	private long stored;
+	private long evicted;
+
+	private static class CacheKey {
+		final FreenetURI uri;
+		final boolean filtered;
+
+		CacheKey(FreenetURI uri, boolean filtered) {
+			this.uri = uri;
+			this.filtered = filtered;
+		}
+
+		@Override
+		public int hashCode() {
+			return uri.hashCode() ^ (filtered ? 1 : 0);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof CacheKey)) return false;
+			CacheKey k = (CacheKey) o;
+			return filtered == k.filtered && uri.equals(k.uri);
+		}
+	}
+
+	private static class Item {
+		final String mimeType;
+		final Blob blob;
+
+		Item(String mimeType, Blob blob) {
+			this.mimeType = mimeType;
+			this.blob = blob;
+		}
+	}
+
+	/** Stored data, shared by all the items with the same content. */
+	private static class Blob {
+		final String hash;
+		final Bucket data;
+		final long size;
+		/** Number of items using it. It is counted in the size of the cache until this is 0. */
+		int items;
+		/** Number of buckets returned by lookups which haven't been freed yet. The data is freed
+		 * when there are no items and no readers. */
+		int readers;
+
+		Blob(String hash, Bucket data, long size) {
+			this.hash = hash;
+			this.data = data;
+			this.size = size;
+		}
+	}
+
+	/** The bucket returned to callers. Keeps the data from being freed until it is freed. */
+	private class CachedBucket extends NoFreeBucket {
+
+		private static final long serialVersionUID = 1L;
+		private final Blob blob;
+		private boolean freed;
+
+		CachedBucket(Blob blob) {
+			super(blob.data);
+			this.blob = blob;
+		}
+
+		@Override
+		public void free() {
+			synchronized(this) {
+				if(freed) return;
+				freed = true;
+			}
+			Bucket toFree;
+			synchronized(FProxyResponseCache.this) {
+				blob.readers--;
+				toFree = blob.items == 0 && blob.readers == 0 ? blob.data : null;
+			}
+			if(toFree != null) toFree.free();
+		}
+
+		@Override
+		public void setReadOnly() {
+			// Already is.
+		}
+
+		@Override
+		public Bucket createShadow() {
+			return null;
+		}
+	}
+
+	/**
+	 * @param dir The directory to keep the cache in when it is persistent.
+	 * @param bucketFactory Where to keep the data when it isn't.
+	 * @param ticker Used to write the index in the background. May be null, then call
+	 * writeIndex() to write it.
+	 * @param maxSize The maximum total size of the data.
+	 * @param persistent If true, keep the data on disk, and load what was there before.
+	 */
+	public FProxyResponseCache(File dir, BucketFactory bucketFactory, Ticker ticker, long maxSize, boolean persistent) {
+		this.dir = dir;
+		this.bucketFactory = bucketFactory;
+		this.ticker = ticker;
+		this.maxSize = maxSize;
+		this.persistent = persistent;
+		if(persistent)
+			load();
+		else
+			deleteDir(); // Left over from when the security level was LOW.
+	}
+
+	/** @return True if a fetch with these settings gives the same result as any other fetch of
+	 * the same key, so it can be cached and looked up. */
+	static boolean canCache(FetchContext fctx) {
+		return fctx.charset == null && fctx.overrideMIME == null && fctx.tagReplacer == null;
+	}
+
+	@Override
+	public CacheFetchResult lookupInstant(FreenetURI key, boolean noFilter, boolean mustCopy, Bucket preferred) {
+		Item item;
+		boolean filtered;
+		synchronized(this) {
+			CacheKey k = new CacheKey(key, true);
+			item = noFilter ? null : items.get(k);
+			if(item == null) {
+				k = new CacheKey(key, false);
+				item = items.get(k);
+			}
+			if(item == null) {
+				misses++;
+				return null;
+			}
+			items.push(k, item);
+			item.blob.readers++;
+			filtered = k.filtered;
+			hits++;
+			scheduleWriteIndex();
+		}
+		Bucket data = new CachedBucket(item.blob);
+		if(mustCopy) {
+			Bucket copy = preferred;
+			try {
+				if(copy == null) copy = bucketFactory.makeBucket(item.blob.size);
+				BucketTools.copy(data, copy);
+			} catch (IOException e) {
+				Logger.error(this, "Unable to copy cached data for "+key+" : "+e, e);
+				if(copy != null && copy != preferred) copy.free();
+				return null;
+			} finally {
+				data.free();
+			}
+			data = copy;
+		}
+		if(logMINOR) Logger.minor(this, "Found "+key+" in the cache, filtered="+filtered);
+		return new CacheFetchResult(new ClientMetadata(item.mimeType), data, filtered);
+	}
+
+	@Override
+	public CacheFetchResult lookup(FreenetURI key, boolean noFilter, ClientContext context, boolean mustCopy, Bucket preferred) {
+		return lookupInstant(key, noFilter, mustCopy, preferred);
+	}
+
+	/**
+	 * Store the result of a fetch. Copies the data.
+	 * @param filtered True if the data has been through the content filter.
+	 */
+	public void put(FreenetURI key, boolean filtered, String mimeType, Bucket data) {
+		long size = data.size();
+		boolean persistent;
+		synchronized(this) {
+			if(size > maxSize / MAX_ITEM_FRACTION) return;
+			persistent = this.persistent;
+		}
+		Blob blob;
+		try {
+			blob = store(data, persistent);
+		} catch (IOException e) {
+			Logger.error(this, "Unable to cache "+key+" : "+e, e);
+			return;
+		}
+		if(blob == null) return;
+		List<Bucket> toFree = new ArrayList<Bucket>();
+		synchronized(this) {
+			if(persistent != this.persistent) {
+				// Changed while we were copying.
+				toFree.add(blob.data);
+			} else {
+				Blob existing = blobs.get(blob.hash);
+				if(existing != null) {
+					if(existing.data != blob.data) toFree.add(blob.data);
+					blob = existing;
+				} else {
+					blobs.put(blob.hash, blob);
+					totalSize += blob.size;
+				}
+				blob.items++;
+				Item old = items.push(new CacheKey(key, filtered), new Item(mimeType, blob));
+				if(old != null) release(old.blob, toFree);
+				stored++;
+				trim(toFree);
+				scheduleWriteIndex();
+			}
+		}
+		for(Bucket b : toFree)
+			b.free();
+	}
+
+	/** Copy the data, and work out its hash. If it's already in the cache, the Blob returned
+	 * shares the existing data; otherwise it isn't in the cache yet. */
+	private Blob store(Bucket data, boolean persistent) throws IOException {
+		File tempFile = null;
+		Bucket copy = null;
+		OutputStream os = null;
+		InputStream is = null;
+		MessageDigest md = SHA256.getMessageDigest();
+		try {
+			if(persistent) {
+				// May have been wiped.
+				if(!dir.exists()) dir.mkdirs();
+				tempFile = File.createTempFile("tmp-", null, dir);
+				os = new BufferedOutputStream(new FileOutputStream(tempFile));
+			} else {
+				copy = bucketFactory.makeBucket(data.size());
+				os = copy.getOutputStream();
+			}
+			is = data.getInputStream();
+			byte[] buf = new byte[32768];
+			long size = 0;
+			int read;
+			while((read = is.read(buf)) > 0) {
+				md.update(buf, 0, read);
+				os.write(buf, 0, read);
+				size += read;
+			}
+			os.close();
+			os = null;
+			String hash = HexUtil.bytesToHex(md.digest());
+			if(!persistent) {
+				copy.setReadOnly();
+				Blob blob = new Blob(hash, copy, size);
+				copy = null;
+				return blob;
+			}
+			synchronized(this) {
+				Blob existing = blobs.get(hash);
+				if(existing != null) return existing;
+				File file = new File(dir, hash);
+				if(!FileUtil.renameTo(tempFile, file))
+					throw new IOException("Unable to rename "+tempFile+" to "+file);
+				tempFile = null;
+				return new Blob(hash, new FileBucket(file, true, false, false, true), size);
+			}
+		} finally {
+			SHA256.returnMessageDigest(md);
+			Closer.close(is);
+			Closer.close(os);
+			if(tempFile != null) tempFile.delete();
+			if(copy != null) copy.free();
+		}
+	}
+
+	/** Called when an item using the blob is removed. Call with the lock held. */
+	private void release(Blob blob, List<Bucket> toFree) {
+		if(--blob.items > 0) return;
+		blobs.remove(blob.hash);
+		totalSize -= blob.size;
+		if(blob.readers == 0) toFree.add(blob.data);
+	}
+
+	/** Evict the least recently used items until we are within the limit. Call with the lock
+	 * held. */
+	private void trim(List<Bucket> toFree) {
+		while(totalSize > maxSize) {
+			Item item = items.popValue();
+			if(item == null) break;
+			release(item.blob, toFree);
+			evicted++;
+		}
+	}
+
+	public void setMaxSize(long maxSize) {
+		List<Bucket> toFree = new ArrayList<Bucket>();
+		synchronized(this) {
+			this.maxSize = maxSize;
+			trim(toFree);
+			scheduleWriteIndex();
+		}
+		for(Bucket b : toFree)
+			b.free();
+	}
+
+	/** Change whether the cache is kept on disk, e.g. because the physical security level has
+	 * changed. Drops everything in the cache. If it was on disk, it is deleted. */
+	public void setPersistent(boolean persistent) {
+		synchronized(this) {
+			if(this.persistent == persistent) return;
+		}
+		wipe();
+		synchronized(this) {
+			this.persistent = persistent;
+		}
+		if(persistent) load();
+	}
+
+	/** Drop everything in the cache, and securely delete it if it is on disk. Called by the panic
+	 * button. */
+	public void wipe() {
+		List<Bucket> toFree = new ArrayList<Bucket>();
+		boolean wasPersistent;
+		synchronized(this) {
+			wasPersistent = persistent;
+			clear(toFree);
+		}
+		for(Bucket b : toFree)
+			b.free();
+		if(wasPersistent) deleteDir();
+	}
+
+	private void deleteDir() {
+		if(!dir.exists()) return;
+		try {
+			FileUtil.secureDeleteAll(dir);
+		} catch (IOException e) {
+			Logger.error(this, "Unable to delete "+dir+" : "+e, e);
+		}
+	}
+
+	/** Drop everything. Call with the lock held. */
+	private void clear(List<Bucket> toFree) {
+		Item item;
+		while((item = items.popValue()) != null)
+			release(item.blob, toFree);
+	}
+
+	private synchronized void scheduleWriteIndex() {
+		if(!persistent || writeScheduled || ticker == null) return;
+		writeScheduled = true;
+		ticker.queueTimedJob(new Runnable() {
+			@Override
+			public void run() {
+				synchronized(FProxyResponseCache.this) {
+					writeScheduled = false;
+				}
+				writeIndex();
+			}
+		}, "Write FProxy cache index", WRITE_INDEX_DELAY, true, true);
+	}
+
+	/** Write the list of items, least recently used first, so that it can be reloaded on
+	 * startup. */
+	void writeIndex() {
+		List<CacheKey> keys = new ArrayList<CacheKey>();
+		List<Item> values = new ArrayList<Item>();
+		synchronized(this) {
+			if(!persistent) return;
+			Enumeration<CacheKey> e = items.keys();
+			while(e.hasMoreElements()) {
+				CacheKey key = e.nextElement();
+				keys.add(key);
+				values.add(items.get(key));
+			}
+		}
+		File temp = new File(dir, INDEX_FILENAME+".tmp");
+		DataOutputStream dos = null;
+		try {
+			dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			dos.writeInt(INDEX_MAGIC);
+			dos.writeInt(INDEX_VERSION);
+			dos.writeInt(keys.size());
+			for(int i=0;i<keys.size();i++) {
+				CacheKey key = keys.get(i);
+				Item item = values.get(i);
+				dos.writeUTF(key.uri.toString(false, false));
+				dos.writeBoolean(key.filtered);
+				dos.writeUTF(item.mimeType == null ? "" : item.mimeType);
+				dos.writeUTF(item.blob.hash);
+				dos.writeLong(item.blob.size);
+			}
+			dos.close();
+			dos = null;
+			if(!FileUtil.renameTo(temp, new File(dir, INDEX_FILENAME)))
+				Logger.error(this, "Unable to write FProxy cache index to "+dir);
+		} catch (IOException e) {
+			Logger.error(this, "Unable to write FProxy cache index: "+e, e);
+		} finally {
+			Closer.close(dos);
+		}
+	}
+
+	/** Load the index, and delete any files which aren't in it. */
+	private void load() {
+		if(!dir.exists() && !dir.mkdirs()) {
+			Logger.error(this, "Unable to create FProxy cache directory "+dir);
+			return;
+		}
+		File index = new File(dir, INDEX_FILENAME);
+		List<Bucket> toFree = new ArrayList<Bucket>();
+		synchronized(this) {
+			if(index.exists()) {
+				DataInputStream dis = null;
+				try {
+					dis = new DataInputStream(new BufferedInputStream(new FileInputStream(index)));
+					if(dis.readInt() != INDEX_MAGIC || dis.readInt() != INDEX_VERSION)
+						throw new IOException("Unrecognised index");
+					int count = dis.readInt();
+					for(int i=0;i<count;i++) {
+						FreenetURI uri = new FreenetURI(dis.readUTF());
+						boolean filtered = dis.readBoolean();
+						String mimeType = dis.readUTF();
+						String hash = dis.readUTF();
+						long size = dis.readLong();
+						Blob blob = blobs.get(hash);
+						if(blob == null) {
+							File file = new File(dir, hash);
+							if(!file.getName().equals(hash) || file.length() != size) continue;
+							blob = new Blob(hash, new FileBucket(file, true, false, false, true), size);
+							blobs.put(hash, blob);
+							totalSize += size;
+						}
+						blob.items++;
+						Item old = items.push(new CacheKey(uri, filtered), new Item(mimeType.isEmpty() ? null : mimeType, blob));
+						if(old != null) release(old.blob, toFree);
+					}
+				} catch (EOFException e) {
+					Logger.error(this, "FProxy cache index is truncated");
+				} catch (IOException e) {
+					Logger.error(this, "Unable to read FProxy cache index: "+e, e);
+				} finally {
+					Closer.close(dis);
+				}
+				trim(toFree);
+			}
+			File[] files = dir.listFiles();
+			if(files != null) {
+				for(File f : files) {
+					if(f.getName().equals(INDEX_FILENAME) || blobs.containsKey(f.getName())) continue;
+					f.delete();
+				}
+			}
+			if(logMINOR) Logger.minor(this, "Loaded "+items.size()+" items, "+totalSize+" bytes from "+dir);
+		}
+		for(Bucket b : toFree)
+			b.free();
+	}
+
+	public synchronized int getItemCount() {
+		return items.size();
+	}
+
+	public synchronized long getTotalSize() {
+		return totalSize;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getStored() {
+		return stored;
+	}
+
+	public synchronized long getEvicted() {
+		return evicted;
+	}
+
+	public synchronized boolean isPersistent() {
+		return persistent;
+	}
+
+}
@@ -48,6 +48,7 @@ import freenet.keys.FreenetURI;
 import freenet.keys.USK;
 import freenet.l10n.NodeL10n;
 import freenet.node.*;
+import freenet.node.SecurityLevelListener;
 import freenet.node.SecurityLevels.NETWORK_THREAT_LEVEL;
 import freenet.node.SecurityLevels.PHYSICAL_THREAT_LEVEL;
 import freenet.pluginmanager.PluginInfoWrapper;
@@ -1093,8 +1094,20 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		random = new byte[32];
 		core.random.nextBytes(random);
 
+		// Only keep what the user has been browsing on disk if they don't mind.
+		final FProxyResponseCache responseCache = new FProxyResponseCache(node.userDir().file("fproxy-cache"),
+				core.tempBucketFactory, node.getTicker(), server.getResponseCacheSize(),
+				node.securityLevels.getPhysicalThreatLevel() == PHYSICAL_THREAT_LEVEL.LOW);
+		node.securityLevels.addPhysicalThreatLevelListener(new SecurityLevelListener<PHYSICAL_THREAT_LEVEL>() {
+			@Override
+			public void onChange(PHYSICAL_THREAT_LEVEL oldLevel, PHYSICAL_THREAT_LEVEL newLevel) {
+				responseCache.setPersistent(newLevel == PHYSICAL_THREAT_LEVEL.LOW);
+			}
+		});
+		server.setResponseCache(responseCache);
+
 		FProxyFetchTracker fetchTracker = new FProxyFetchTracker(core.clientContext, client.getFetchContext(),
-				new RequestClientBuilder().realTime().build());
+				new RequestClientBuilder().realTime().build(), responseCache);
 
 
 		FProxyToadlet fproxy = new FProxyToadlet(client, core, fetchTracker);
@@ -395,6 +395,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			} else if(request.isPartSet("panic") && (request.getPartAsStringFailsafe("panic", 128).length() > 0)) {
 				if(SimpleToadletServer.noConfirmPanic) {
 					core.node.killMasterKeysFile();
+					wipeFProxyCache();
 					core.node.panic();
 					sendPanicingPage(ctx);
 					core.node.finishPanic();
@@ -405,6 +406,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 				}
 			} else if(request.isPartSet("confirmpanic") && (request.getPartAsStringFailsafe("confirmpanic", 128).length() > 0)) {
 				core.node.killMasterKeysFile();
+				wipeFProxyCache();
 				core.node.panic();
 				sendPanicingPage(ctx);
 				core.node.finishPanic();
@@ -988,6 +990,14 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		return downloadsDir;
 	}
 
+	/** Wipe the cache of recently visited pages, as promised by the panic button. */
+	private void wipeFProxyCache() {
+		FProxyToadlet fproxy = core.getFProxy();
+		if(fproxy == null) return;
+		FProxyResponseCache cache = fproxy.fetchTracker.getResponseCache();
+		if(cache != null) cache.wipe();
+	}
+
 	private void sendPanicingPage(ToadletContext ctx) throws ToadletContextClosedException, IOException {
 		writeHTMLReply(ctx, 200, "OK", WelcomeToadlet.sendRestartingPageInner(ctx).generate());
 	}
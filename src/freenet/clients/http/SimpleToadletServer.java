@@ -110,6 +110,8 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 	private boolean enableActivelinks;
 	private boolean enableExtendedMethodHandling;
 	private boolean enableCachingForChkAndSskKeys;
+	private long responseCacheSize;
+	private FProxyResponseCache responseCache;
 	
 	// Something does not really belongs to here
 	volatile static boolean isPanicButtonToBeShown;				// move to QueueToadlet ?
@@ -665,6 +667,27 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 			}
 		});
 		enableCachingForChkAndSskKeys = fproxyConfig.getBoolean("enableCachingForChkAndSskKeys");
+		fproxyConfig.register("responseCacheSize", 64*1024*1024L, configItemOrder++, true, false, "SimpleToadletServer.responseCacheSize", "SimpleToadletServer.responseCacheSizeLong",
+				new LongCallback() {
+			@Override
+			public Long get() {
+				synchronized(SimpleToadletServer.this) {
+					return responseCacheSize;
+				}
+			}
+
+			@Override
+			public void set(Long val) throws InvalidConfigValueException {
+				if(val < 0) throw new InvalidConfigValueException(l10n("responseCacheSizeNegative"));
+				FProxyResponseCache cache;
+				synchronized(SimpleToadletServer.this) {
+					responseCacheSize = val;
+					cache = responseCache;
+				}
+				if(cache != null) cache.setMaxSize(val);
+			}
+		}, true);
+		responseCacheSize = fproxyConfig.getLong("responseCacheSize");
 		fproxyConfig.register("allowedHosts", "127.0.0.1,0:0:0:0:0:0:0:1", configItemOrder++, true, true, "SimpleToadletServer.allowedHosts", "SimpleToadletServer.allowedHostsLong",
 				new FProxyAllowedHostsCallback());
 		fproxyConfig.register("allowedHostsFullAccess", "127.0.0.1,0:0:0:0:0:0:0:1", configItemOrder++, true, true, "SimpleToadletServer.allowedFullAccess", 
@@ -1193,6 +1216,14 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 		return enableCachingForChkAndSskKeys;
 	}
 
+	synchronized long getResponseCacheSize() {
+		return responseCacheSize;
+	}
+
+	synchronized void setResponseCache(FProxyResponseCache cache) {
+		responseCache = cache;
+	}
+
 	@Override
 	public synchronized boolean allowPosts() {
 		return !(bf instanceof ArrayBucketFactory);
@@ -3,6 +3,7 @@ package freenet.clients.http;
 import static java.util.concurrent.TimeUnit.DAYS;
 import static java.util.concurrent.TimeUnit.HOURS;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.io.IOException;
@@ -16,9 +17,12 @@ import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
 
+import freenet.client.ArchiveManager;
 import freenet.client.async.ClientRequester;
+import freenet.client.async.DatastoreChecker;
 import freenet.client.HighLevelSimpleClient;
 import freenet.config.SubConfig;
+import freenet.crypt.PerThreadRandom;
 import freenet.crypt.ciphers.Rijndael;
 import freenet.io.comm.IncomingPacketFilterImpl;
 import freenet.io.xfer.BlockReceiver;
@@ -624,6 +628,11 @@ public class StatisticsToadlet extends Toadlet {
 				jvmStatsList.addChild("li", l10n("cryptoUsingBuiltin"));
 			else
 				jvmStatsList.addChild("li", l10n("cryptoUsingJCA", "provider", Rijndael.getProviderName()));
+			PerThreadRandom perThread = node.random.getPerThreadRandom();
+			if(perThread != null)
+				jvmStatsList.addChild("li", l10n("perThreadRandom", new String[] { "streams", "reseeds" },
+						new String[] { thousandPoint.format(perThread.getStreamCount()),
+						thousandPoint.format(perThread.getReseedCount()) }));
 		}
 	}
 	
@@ -825,6 +834,13 @@ public class StatisticsToadlet extends Toadlet {
 			}
 		}
 
+		DatastoreChecker checker = core.storeChecker;
+		storeSizeInfoboxContent.addChild("p", l10n("datastoreChecker",
+				new String[] { "keys", "requests", "found", "rate" },
+				new String[] { thousandPoint.format(checker.getKeysChecked()),
+						thousandPoint.format(checker.getRequestsChecked()),
+						thousandPoint.format(checker.getKeysFound()),
+						thousandPoint.format((long) checker.getKeysPerSecond()) }));
 	}
 
 	private void drawUnclaimedFIFOMessageCountsBox(HTMLNode unclaimedFIFOMessageCountsInfobox) {
@@ -1057,6 +1073,28 @@ public class StatisticsToadlet extends Toadlet {
 				activityList.addChild("li", "ARK\u00a0Fetch\u00a0Requests:\u00a0" + numARKFetchers);
 			activityList.addChild("li", "BackgroundFetcherByUSKSize:\u00a0" + node.clientCore.uskManager.getBackgroundFetcherByUSKSize());
 			activityList.addChild("li", "temporaryBackgroundFetchersLRUSize:\u00a0" + node.clientCore.uskManager.getTemporaryBackgroundFetchersLRU());
+			activityList.addChild("li", "sharedUSKProbes:\u00a0" + node.clientCore.uskManager.getSharedUSKProbes());
+			ArchiveManager archives = node.clientCore.archiveManager;
+			long archiveHits = archives.getCacheHits();
+			long archiveLookups = archiveHits + archives.getCacheMisses();
+			activityList.addChild("li", "archiveCache:\u00a0" + archives.getCachedElements() + "\u00a0files,\u00a0" +
+					SizeUtil.formatSize(archives.getCachedData()) + ",\u00a0hit\u00a0rate\u00a0" +
+					(archiveLookups == 0 ? "-" : fix3p1pct.format((double) archiveHits / archiveLookups)) +
+					",\u00a0" + NANOSECONDS.toMicros(archives.getAverageCacheHitTime()) + "\u00b5s\u00a0per\u00a0hit,\u00a0" +
+					archives.getCacheRejected() + "\u00a0rejected,\u00a0" + archives.getCacheEvicted() + "\u00a0evicted");
+			activityList.addChild("li", "archiveExtractions:\u00a0" + archives.getExtractions() + ",\u00a0" +
+					NANOSECONDS.toMillis(archives.getAverageExtractionTime()) + "ms\u00a0each");
+			FProxyToadlet fproxy = node.clientCore.getFProxy();
+			FProxyResponseCache responseCache = fproxy == null ? null : fproxy.fetchTracker.getResponseCache();
+			if(responseCache != null) {
+				long responseHits = responseCache.getHits();
+				long responseLookups = responseHits + responseCache.getMisses();
+				activityList.addChild("li", "fproxyCache:\u00a0" + responseCache.getItemCount() + "\u00a0files,\u00a0" +
+						SizeUtil.formatSize(responseCache.getTotalSize()) + (responseCache.isPersistent() ? "\u00a0on\u00a0disk" : "") +
+						",\u00a0hit\u00a0rate\u00a0" +
+						(responseLookups == 0 ? "-" : fix3p1pct.format((double) responseHits / responseLookups)) +
+						",\u00a0" + responseCache.getStored() + "\u00a0stored,\u00a0" + responseCache.getEvicted() + "\u00a0evicted");
+			}
 			activityList.addChild("li", "outputBandwidthLiabilityUsage:\u00a0" + this.fix3p1pct.format(node.nodeStats.getBandwidthLiabilityUsage()));
 		}
 		
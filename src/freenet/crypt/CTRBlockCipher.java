@@ -3,16 +3,29 @@
  * GPL compatible. */
 package freenet.crypt;
 
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+
+import freenet.crypt.ciphers.Rijndael;
+
 /**
  * Implements the Segmented Integer Counter (SIC) mode on top of a simple
  * block cipher. This mode is also known as CTR mode.
+ * 
+ * If the underlying cipher is standard AES (Rijndael with a 128-bit block) and the JCA is
+ * usable, we generate the keystream JCA_BLOCKS counter blocks at a time with a JCA AES/ECB
+ * cipher, which will usually use AES-NI. The counter handling is ours in both cases, so the
+ * output is bit-identical. Like the rest of the state, the JCA cipher belongs to this instance
+ * and is never shared between threads.
  */
 public class CTRBlockCipher
 {
 	/** Block cipher */
     private final BlockCipher     cipher;
     /** Block size in bytes. 
-     * Equal to IV.length = counter.length = counterOut.length. */
+     * Equal to IV.length = counter.length, and to counterOut.length unless we are 
+     * using the JCA, in which case counterOut holds JCA_BLOCKS blocks. */
     private final int             blockSize;
     
     /** Initialization vector, equal to the initial value of the plaintext 
@@ -23,25 +36,51 @@ public class CTRBlockCipher
     private final byte[]          counter;
     /** The ciphertext block counter. This is the result of encrypting the
      * plaintext block counter. It is XOR'ed with the plaintext to get the
-     * ciphertext. */
+     * ciphertext. If we are using the JCA, this holds JCA_BLOCKS consecutive
+     * blocks of keystream. */
     private final byte[]          counterOut;
+    /** Successive values of the counter, to be encrypted by the JCA. Null if not
+     * using the JCA. */
+    private final byte[]          counterIn;
+    /** The JCA AES/ECB cipher, or null if using the built-in cipher. */
+    private final Cipher          jcaCipher;
 
     /** Offset within the current block. */
     private int blockOffset;
     
+    /** Number of counter blocks to encrypt per call to the JCA. */
+    static final int JCA_BLOCKS = 64;
+    
     /**
      * Basic constructor.
      *
      * @param c the block cipher to be used.
      */
     public CTRBlockCipher(BlockCipher c)
+    {
+        this(c, true);
+    }
+    
+    /**
+     * @param c the block cipher to be used.
+     * @param allowJCA If false, always use our own implementation of the block
+     * cipher, even if it is AES and the JCA is available. Mainly for tests.
+     */
+    public CTRBlockCipher(BlockCipher c, boolean allowJCA)
     {
         this.cipher = c;
         this.blockSize = cipher.getBlockSize()/8;
         this.IV = new byte[blockSize];
         this.counter = new byte[blockSize];
-        this.counterOut = new byte[blockSize];
-		this.blockOffset = IV.length;
+        this.jcaCipher = (allowJCA && c instanceof Rijndael) ? ((Rijndael)c).createECBCipher() : null;
+        if(jcaCipher != null) {
+            this.counterIn = new byte[blockSize * JCA_BLOCKS];
+            this.counterOut = new byte[blockSize * JCA_BLOCKS];
+        } else {
+            this.counterIn = null;
+            this.counterOut = new byte[blockSize];
+        }
+		this.blockOffset = counterOut.length;
     }
 
 
@@ -102,9 +141,10 @@ public class CTRBlockCipher
     	// XOR the plaintext with counterOut until we run out of blockOffset,
     	// then processBlock() to get a new counterOut.
 
+		final int bufferSize = counterOut.length;
 		if (blockOffset != 0) {
 			/* handle first partially consumed block */
-			int len = Math.min(blockSize - blockOffset, length);
+			int len = Math.min(bufferSize - blockOffset, length);
 			length -= len;
 			while(len-- > 0)
 				output[offsetOut++] = (byte) (input[offsetIn++] ^ counterOut[blockOffset++]);
@@ -112,15 +152,15 @@ public class CTRBlockCipher
     		processBlock();
 		}
 		assert(blockOffset == 0);
-		while(length > blockSize) {
+		while(length > bufferSize) {
 			/* consume full blocks */
 			// note: we skip *last* full block to avoid extra processBlock()
-			length -= blockSize;
-			while (blockOffset < blockSize)
+			length -= bufferSize;
+			while (blockOffset < bufferSize)
 				output[offsetOut++] = (byte) (input[offsetIn++] ^ counterOut[blockOffset++]);
 			processBlock();
 		}
-		assert(blockOffset == 0 && length <= blockSize);
+		assert(blockOffset == 0 && length <= bufferSize);
 		if (length == 0) return;
 		while (length-- > 0) {
 			/* handle final block */
@@ -132,16 +172,34 @@ public class CTRBlockCipher
     private void processBlock()
           throws IllegalStateException
     {
+    	if(jcaCipher != null) {
+    		// Lay out the next JCA_BLOCKS counter values and encrypt them all at once.
+    		for(int i = 0; i < counterIn.length; i += blockSize) {
+    			System.arraycopy(counter, 0, counterIn, i, blockSize);
+    			incrementCounter();
+    		}
+    		try {
+    			jcaCipher.doFinal(counterIn, 0, counterIn.length, counterOut, 0);
+    		} catch (GeneralSecurityException e) {
+    			// Impossible, we always pass whole blocks and a big enough buffer.
+    			throw new IllegalStateException(e);
+    		}
+    		blockOffset = 0;
+    		return;
+    	}
     	// Our ciphers clobber the input array, so it is essential to copy
     	// the counter to counterOut and then encrypt in-place.
     	System.arraycopy(counter, 0, counterOut, 0, counter.length);
     	cipher.encipher(counterOut, counterOut);
     	
-    	// Now increment counter.
+    	incrementCounter();
+		blockOffset = 0;
+    }
+    
+    private void incrementCounter() {
         for (int i = counter.length; i-- > 0 && (++counter[i]) == (byte)0;) {
 			/* nothing here */
 		}
-		blockOffset = 0;
     }
 
 }
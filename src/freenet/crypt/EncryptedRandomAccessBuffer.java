@@ -11,7 +11,8 @@ import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.crypto.SecretKey;
 
@@ -31,20 +32,34 @@ import freenet.support.io.StorageFormatException;
 /**
  * EncryptedRandomAccessBuffer is a encrypted RandomAccessBuffer implementation using a 
  * SkippingStreamCipher. 
+ * 
+ * The cipher is a counter mode stream cipher, so the keystream for any byte depends only on its 
+ * offset. Each read or write seeks a cipher taken from a pool to the offset, without locking, so 
+ * concurrent reads and writes do not wait for each other.
  * @author unixninja92
  * Suggested EncryptedRandomAccessBufferType to use: ChaCha128
  */
 public final class EncryptedRandomAccessBuffer implements LockableRandomAccessBuffer, Serializable { 
     private static final long serialVersionUID = 1L;
-    private final ReentrantLock readLock = new ReentrantLock();
-    private final ReentrantLock writeLock = new ReentrantLock();
     private final EncryptedRandomAccessBufferType type;
     private final LockableRandomAccessBuffer underlyingBuffer;
     
-    private transient SkippingStreamCipher cipherRead;
-    private transient SkippingStreamCipher cipherWrite;
+    /** Initialised ciphers not currently in use. Encryption and decryption are the same 
+     * operation, so any of them can do either. */
+    private transient ConcurrentLinkedQueue<SkippingStreamCipher> ciphers;
     private transient ParametersWithIV cipherParams;//includes key
     
+    /** Encrypt writes this many bytes at a time. */
+    static final int WRITE_BUFFER_SIZE = 32768;
+    /** Keep at most this many free write buffers. Any more are left to the GC. */
+    static final int MAX_WRITE_BUFFERS = 16;
+    /** Buffers for encrypting writes, shared by all instances. Not thread-local, because the 
+     * underlying buffer may itself be encrypted. */
+    private static final ConcurrentLinkedQueue<byte[]> writeBuffers = 
+        new ConcurrentLinkedQueue<byte[]>();
+    /** Approximate size of writeBuffers. ConcurrentLinkedQueue.size() is O(n). */
+    static final AtomicInteger freeWriteBuffers = new AtomicInteger();
+    
     private transient SecretKey headerMacKey;
     
     private transient volatile boolean isClosed = false;
@@ -82,8 +97,7 @@ public final class EncryptedRandomAccessBuffer implements LockableRandomAccessBu
     }
     
     private void setup(MasterSecret masterKey, boolean newFile) throws IOException, GeneralSecurityException {
-        this.cipherRead = this.type.get();
-        this.cipherWrite = this.type.get();
+        this.ciphers = new ConcurrentLinkedQueue<SkippingStreamCipher>();
         
         MasterSecret masterSecret = masterKey;
         
@@ -137,8 +151,23 @@ public final class EncryptedRandomAccessBuffer implements LockableRandomAccessBu
             throw new IllegalStateException(e); // Must be a bug.
         }
         this.cipherParams = tempPram;
-    	cipherRead.init(false, cipherParams);
-    	cipherWrite.init(true, cipherParams);
+    }
+    
+    /** Get a cipher positioned at the given offset. Call returnCipher() afterwards. */
+    private SkippingStreamCipher getCipher(long fileOffset) {
+        SkippingStreamCipher cipher = ciphers.poll();
+        if(cipher == null) {
+            cipher = type.get();
+            cipher.init(true, cipherParams);
+        }
+        // Computes the counter for the block containing the offset, does not generate the 
+        // keystream in between.
+        cipher.seekTo(fileOffset);
+        return cipher;
+    }
+    
+    private void returnCipher(SkippingStreamCipher cipher) {
+        ciphers.add(cipher);
     }
 
     @Override
@@ -163,23 +192,15 @@ public final class EncryptedRandomAccessBuffer implements LockableRandomAccessBu
                     (fileOffset+length)+" on block length "+size());
         }
         
-        byte[] cipherText = new byte[length];
-        underlyingBuffer.pread(fileOffset+type.headerLen, cipherText, 0, length);
+        // Read the ciphertext straight into the caller's buffer and decrypt it in place.
+        underlyingBuffer.pread(fileOffset+type.headerLen, buf, bufOffset, length);
 
-        readLock.lock();
+        SkippingStreamCipher cipher = getCipher(fileOffset);
         try{
-            //cipherRead.seekTo(fileOffset);
-            // seekTo() does reset() and then skip(). So it always skips from 0. 
-            // This is ridiculously slow for big tempfiles.
-            // FIXME REVIEW CRYPTO: Is this safe? It should be, we're using the published skip() API...
-            long position = cipherRead.getPosition();
-            long delta = fileOffset - position;
-            cipherRead.skip(delta);
-            assert(cipherRead.getPosition() == fileOffset);
-            cipherRead.processBytes(cipherText, 0, length, buf, bufOffset);
-            assert(cipherRead.getPosition() == fileOffset+length);
+            cipher.processBytes(buf, bufOffset, length, buf, bufOffset);
+            assert(cipher.getPosition() == fileOffset+length);
         }finally{
-            readLock.unlock();
+            returnCipher(cipher);
         }
     }
 
@@ -200,24 +221,33 @@ public final class EncryptedRandomAccessBuffer implements LockableRandomAccessBu
                     (fileOffset+length)+" on block length "+size());
         }
 
-        byte[] cipherText = new byte[length];
-
-        writeLock.lock();
+        // Must not modify the caller's buffer, so encrypt a chunk at a time into our own.
+        byte[] cipherText = writeBuffers.poll();
+        if(cipherText == null)
+            cipherText = new byte[WRITE_BUFFER_SIZE];
+        else
+            freeWriteBuffers.decrementAndGet();
+        SkippingStreamCipher cipher = getCipher(fileOffset);
         try{
-            //cipherWrite.seekTo(fileOffset)
-            // seekTo() does reset() and then skip(). So it always skips from 0. 
-            // This is ridiculously slow for big tempfiles.
-            // FIXME REVIEW CRYPTO: Is this safe? It should be, we're using the published skip() API...
-            long position = cipherWrite.getPosition();
-            long delta = fileOffset - position;
-            cipherWrite.skip(delta);
-            assert(cipherWrite.getPosition() == fileOffset);
-            cipherWrite.processBytes(buf, bufOffset, length, cipherText, 0);
-            assert(cipherWrite.getPosition() == fileOffset+length);
+            while(length > 0) {
+                int chunk = Math.min(length, cipherText.length);
+                cipher.processBytes(buf, bufOffset, chunk, cipherText, 0);
+                underlyingBuffer.pwrite(fileOffset+type.headerLen, cipherText, 0, chunk);
+                fileOffset += chunk;
+                bufOffset += chunk;
+                length -= chunk;
+            }
         }finally{
-            writeLock.unlock();
+            returnCipher(cipher);
+            returnWriteBuffer(cipherText);
         }
-        underlyingBuffer.pwrite(fileOffset+type.headerLen, cipherText, 0, length);
+    }
+    
+    private static void returnWriteBuffer(byte[] buf) {
+        if(freeWriteBuffers.incrementAndGet() <= MAX_WRITE_BUFFERS)
+            writeBuffers.add(buf);
+        else
+            freeWriteBuffers.decrementAndGet();
     }
     
     @Override
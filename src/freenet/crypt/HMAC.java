@@ -6,6 +6,7 @@ package freenet.crypt;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
@@ -21,31 +22,53 @@ public enum HMAC {
 
   final String algo;
   final int digestSize;
+  /** Unkeyed Mac for each thread, so we don't go through the provider lookup on every call. */
+  private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+    @Override
+    protected Mac initialValue() {
+      return newMac();
+    }
+  };
 
   HMAC(String name, int size) {
     this.algo = name;
     this.digestSize = size;
   }
 
-  public static byte[] mac(HMAC hash, byte[] key, byte[] data) {
-    if(key.length != hash.digestSize)
-      throw new IllegalArgumentException("Wrong keysize! We're not doing key stretching "+
-                                         key.length+" expected "+hash.digestSize);
-
-    SecretKeySpec signingKey = new SecretKeySpec(key, hash.algo);
-    Mac mac;
+  private Mac newMac() {
     try {
-      mac = Mac.getInstance(hash.algo);
+      return Mac.getInstance(algo);
     } catch (NoSuchAlgorithmException e) {
       Logger.error(HMAC.class, "No such AlgorithmException", e);
       throw new Error(e);
     }
+  }
+
+  private Mac newMac(SecretKeySpec signingKey) {
+    Mac mac = newMac();
+    init(mac, signingKey);
+    return mac;
+  }
+
+  private static void init(Mac mac, SecretKeySpec signingKey) {
     try {
       mac.init(signingKey);
     } catch (InvalidKeyException e) {
       Logger.error(HMAC.class, "Impossible InvalidKeyException", e);
       throw new Error(e);
     }
+  }
+
+  private void checkKeySize(byte[] key) {
+    if(key.length != digestSize)
+      throw new IllegalArgumentException("Wrong keysize! We're not doing key stretching "+
+                                         key.length+" expected "+digestSize);
+  }
+
+  public static byte[] mac(HMAC hash, byte[] key, byte[] data) {
+    hash.checkKeySize(key);
+    Mac mac = hash.macs.get();
+    init(mac, new SecretKeySpec(key, hash.algo));
     return mac.doFinal(data);
   }
 
@@ -60,4 +83,81 @@ public enum HMAC {
   public static boolean verifyWithSHA256(byte[] K, byte[] text, byte[] mac) {
     return verify(HMAC.SHA2_256, K, text, mac);
   }
-}	
+
+  /**
+   * An HMAC with a fixed key, e.g. a session key. Keeps a few Macs already initialised with the
+   * key, so macs on the packet path need neither a provider lookup nor a key schedule. The pool
+   * belongs to this object, so it goes away with the key, rather than leaving a Mac behind in
+   * every thread that used it. Safe to share between threads.
+   */
+  public static final class Keyed {
+    /** Enough for the threads that handle one peer's packets at the same time. */
+    static final int POOL_SIZE = 4;
+    private final HMAC hash;
+    private final SecretKeySpec signingKey;
+    /** Idle Macs, or null. Any thread can take one or put one back. */
+    private final AtomicReferenceArray<Mac> pool = new AtomicReferenceArray<Mac>(POOL_SIZE);
+
+    public Keyed(HMAC hash, byte[] key) {
+      hash.checkKeySize(key);
+      this.hash = hash;
+      this.signingKey = new SecretKeySpec(key, hash.algo);
+    }
+
+    public byte[] mac(byte[] data) {
+      return mac(data, 0, data.length);
+    }
+
+    public byte[] mac(byte[] data, int offset, int length) {
+      Mac mac = take();
+      mac.update(data, offset, length);
+      byte[] result = mac.doFinal();
+      giveBack(mac);
+      return result;
+    }
+
+    private Mac take() {
+      for(int i = 0; i < POOL_SIZE; i++) {
+        Mac mac = pool.getAndSet(i, null);
+        if(mac != null) return mac;
+      }
+      return hash.newMac(signingKey);
+    }
+
+    /** Keep the Mac if there is room, otherwise let it be garbage collected. */
+    private void giveBack(Mac mac) {
+      for(int i = 0; i < POOL_SIZE; i++) {
+        if(pool.compareAndSet(i, null, mac)) return;
+      }
+    }
+
+    /** Only for testing */
+    int pooled() {
+      int count = 0;
+      for(int i = 0; i < POOL_SIZE; i++) {
+        if(pool.get(i) != null) count++;
+      }
+      return count;
+    }
+
+    public boolean verify(byte[] data, byte[] mac) {
+      return MessageDigest.isEqual(mac, mac(data));
+    }
+
+    /**
+     * Verify a possibly truncated MAC, without copying the data.
+     * @param macLength The number of bytes of the MAC to compare. Must be at most the digest
+     * size.
+     */
+    public boolean verify(byte[] data, int offset, int length, byte[] mac, int macOffset,
+        int macLength) {
+      if(macLength > hash.digestSize) throw new IllegalArgumentException();
+      byte[] computed = mac(data, offset, length);
+      // Constant time, like MessageDigest.isEqual().
+      int diff = 0;
+      for(int i = 0; i < macLength; i++)
+        diff |= computed[i] ^ mac[macOffset + i];
+      return diff == 0;
+    }
+  }
+}
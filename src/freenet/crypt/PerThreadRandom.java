@@ -0,0 +1,151 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import freenet.crypt.ciphers.Rijndael;
+import freenet.support.Logger;
+
+/**
+ * Per-thread random streams seeded from a shared RandomSource (normally Yarrow). Each thread
+ * gets its own AES-256-CTR keystream generator, keyed from the shared source, so ordinary
+ * randomness (routing tie-breaks, padding, random selection, probes) does not contend on the
+ * shared source's monitor. Each stream is reseeded from the shared source after RESEED_BYTES
+ * of output or RESEED_INTERVAL, whichever comes first, so a compromise of one stream's state
+ * only exposes a bounded amount of output.
+ *
+ * The streams are cryptographically strong, but the shared source should still be used
+ * directly for key material, so that the entropy accounting in Yarrow applies to it.
+ * @see RandomSource#threadLocal()
+ */
+public final class PerThreadRandom {
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerClass(PerThreadRandom.class);
+	}
+
+	/** Reseed a stream after it has produced this many bytes. */
+	static final long RESEED_BYTES = 1024 * 1024;
+	/** Reseed a stream after this long, however little it has been used. */
+	static final long RESEED_INTERVAL = TimeUnit.MINUTES.toNanos(10);
+	/** Bytes of keystream generated at a time. */
+	private static final int BUFFER_SIZE = 512;
+	private static final int KEY_LENGTH = 32;
+	private static final int IV_LENGTH = 16;
+
+	private final RandomSource seedSource;
+	private final long reseedBytes;
+	private final long reseedInterval;
+	private final ThreadLocal<Stream> streams = new ThreadLocal<Stream>() {
+		@Override
+		protected Stream initialValue() {
+			streamsCreated.incrementAndGet();
+			return new Stream();
+		}
+	};
+	private final AtomicLong streamsCreated = new AtomicLong();
+	private final AtomicLong reseeds = new AtomicLong();
+
+	public PerThreadRandom(RandomSource seedSource) {
+		this(seedSource, RESEED_BYTES, RESEED_INTERVAL);
+	}
+
+	PerThreadRandom(RandomSource seedSource, long reseedBytes, long reseedInterval) {
+		if(seedSource == null) throw new NullPointerException();
+		this.seedSource = seedSource;
+		this.reseedBytes = reseedBytes;
+		this.reseedInterval = reseedInterval;
+	}
+
+	/** @return The stream for the calling thread. Must not be handed to other threads. */
+	public Random get() {
+		return streams.get();
+	}
+
+	/** @return The number of per-thread streams created so far. */
+	public long getStreamCount() {
+		return streamsCreated.get();
+	}
+
+	/** @return The number of times any stream has been (re)seeded from the shared source,
+	 * including the initial seeding. */
+	public long getReseedCount() {
+		return reseeds.get();
+	}
+
+	/** An AES-CTR keystream. Confined to one thread, so no locking. */
+	private final class Stream extends Random {
+		private static final long serialVersionUID = 1L;
+		private final byte[] buffer = new byte[BUFFER_SIZE];
+		private int bufferPtr = BUFFER_SIZE;
+		private CTRBlockCipher ctr;
+		private long bytesSinceReseed;
+		private long reseedAt;
+
+		Stream() {
+			super(0);
+		}
+
+		private void reseed() {
+			byte[] seed = new byte[KEY_LENGTH + IV_LENGTH];
+			// Only touches the shared source's monitor once per reseed.
+			seedSource.nextBytes(seed);
+			Rijndael aes;
+			try {
+				aes = new Rijndael(256, 128);
+			} catch (UnsupportedCipherException e) {
+				throw new Error(e); // Impossible
+			}
+			aes.initialize(Arrays.copyOf(seed, KEY_LENGTH));
+			ctr = new CTRBlockCipher(aes);
+			ctr.init(seed, KEY_LENGTH, IV_LENGTH);
+			Arrays.fill(seed, (byte)0);
+			bytesSinceReseed = 0;
+			reseedAt = System.nanoTime() + reseedInterval;
+			long count = reseeds.incrementAndGet();
+			if(logMINOR) Logger.minor(this, "Reseeded stream for "+Thread.currentThread()+" ("+count+" reseeds total)");
+		}
+
+		private void refill() {
+			if(ctr == null || bytesSinceReseed >= reseedBytes || System.nanoTime() - reseedAt >= 0)
+				reseed();
+			Arrays.fill(buffer, (byte)0);
+			ctr.processBytes(buffer, 0, buffer.length, buffer, 0);
+			bytesSinceReseed += buffer.length;
+			bufferPtr = 0;
+		}
+
+		@Override
+		protected int next(int bits) {
+			if(bufferPtr + 4 > buffer.length) refill();
+			int val = ((buffer[bufferPtr] & 0xff) << 24) | ((buffer[bufferPtr+1] & 0xff) << 16) |
+				((buffer[bufferPtr+2] & 0xff) << 8) | (buffer[bufferPtr+3] & 0xff);
+			bufferPtr += 4;
+			return val >>> (32 - bits);
+		}
+
+		@Override
+		public void nextBytes(byte[] bytes) {
+			int offset = 0;
+			while(offset < bytes.length) {
+				if(bufferPtr == buffer.length) refill();
+				int count = Math.min(bytes.length - offset, buffer.length - bufferPtr);
+				System.arraycopy(buffer, bufferPtr, bytes, offset, count);
+				bufferPtr += count;
+				offset += count;
+			}
+		}
+
+		@Override
+		public void setSeed(long seed) {
+			// Ignore: we are seeded from the shared source. Called by Random's constructor.
+		}
+	}
+
+}
@@ -80,6 +80,25 @@ public abstract class RandomSource extends Random {
      * do so when this method is called
      */
     public abstract void close();
+
+    /**
+     * Get a fast random stream for the calling thread, seeded from this source. Use this
+     * for frequent, non-key randomness (padding, random selection etc) to avoid contending on
+     * this source's lock. The returned object must not be shared with other threads. Key
+     * material should still come from the RandomSource itself.
+     * @return By default, this source.
+     */
+    public Random threadLocal() {
+    	return this;
+    }
+
+    /**
+     * @return The per-thread streams behind threadLocal(), for statistics, or null if this
+     * source just returns itself.
+     */
+    public PerThreadRandom getPerThreadRandom() {
+    	return null;
+    }
     
     @Override
     protected synchronized int next(int bits) {
@@ -36,6 +36,7 @@ package freenet.crypt;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.ref.SoftReference;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.Provider;
@@ -56,6 +57,10 @@ public class SHA256 {
 	/** Size (in bytes) of this hash */
 	private static final int HASH_SIZE = 32;
 	private static final Queue<SoftReference<MessageDigest>> digests = new ConcurrentLinkedQueue<>();
+	/** One spare digest per thread, checked before the shared pool. Most callers get a digest,
+	 * use it and return it on the same thread, so this avoids both the pool's CAS traffic and
+	 * the SoftReference allocation. */
+	private static final ThreadLocal<MessageDigest> threadDigest = new ThreadLocal<>();
 
 	/**
 	 * It won't reset the Message Digest for you!
@@ -85,6 +90,11 @@ public class SHA256 {
 	 * Either succeed or stop the node.
 	 */
 	public static MessageDigest getMessageDigest() {
+		MessageDigest cached = threadDigest.get();
+		if(cached != null) {
+			threadDigest.set(null);
+			return cached;
+		}
 		try {
 			SoftReference<MessageDigest> item = null;
 			while (((item = digests.poll()) != null)) {
@@ -115,7 +125,10 @@ public class SHA256 {
 		if(!(algo.equals("SHA-256") || algo.equals("SHA256")))
 			throw new IllegalArgumentException("Should be SHA-256 but is " + algo);
 		md256.reset();
-		digests.add(new SoftReference<>(md256));
+		if(threadDigest.get() == null)
+			threadDigest.set(md256);
+		else
+			digests.add(new SoftReference<>(md256));
 	}
 
 	public static byte[] digest(byte[] data) {
@@ -128,6 +141,23 @@ public class SHA256 {
 		}
 	}
 
+	/**
+	 * Hash part of a buffer into another buffer, without allocating.
+	 * @param out Must have at least getDigestLength() bytes from outOffset.
+	 */
+	public static void digest(byte[] data, int offset, int length, byte[] out, int outOffset) {
+		MessageDigest md = null;
+		try {
+			md = getMessageDigest();
+			md.update(data, offset, length);
+			md.digest(out, outOffset, HASH_SIZE);
+		} catch (DigestException e) {
+			throw new IllegalArgumentException(e);
+		} finally {
+			returnMessageDigest(md);
+		}
+	}
+
 	public static int getDigestLength() {
 		return HASH_SIZE;
 	}
@@ -24,6 +24,7 @@ import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Random;
 
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
@@ -73,6 +74,8 @@ public class Yarrow extends RandomSource implements PersistentRandomSource {
 	private static final boolean DEBUG = false;
 	private static final int Pg = 10;
 	private final SecureRandom sr;
+	/** Fast per-thread streams seeded from us, for threadLocal(). */
+	private final transient PerThreadRandom perThreadRandom = new PerThreadRandom(this);
 	public final File seedfile; //A file to which seed data should be dumped periodically
 
 	public Yarrow() {
@@ -806,4 +809,14 @@ public class Yarrow extends RandomSource implements PersistentRandomSource {
 			slow_pool.update(bytes, 0, bytes.length);
 		fast_select = !fast_select;
 	}
+
+	@Override
+	public Random threadLocal() {
+		return perThreadRandom.get();
+	}
+
+	@Override
+	public PerThreadRandom getPerThreadRandom() {
+		return perThreadRandom;
+	}
 }
@@ -24,7 +24,13 @@ import freenet.support.Logger;
  * algorithm
  */
 public class Rijndael implements BlockCipher {
-	private Object sessionKey;
+	/** The expanded key. Never modified once created, and Rijndael_Algorithm keeps no other
+	 * state, so encipher() and decipher() do not need to lock: a single instance (e.g. a
+	 * session key shared by every packet to a peer) can be used by many threads at once. */
+	private volatile Object sessionKey;
+	/** The raw key, kept only for 128-bit blocks, where we are standard AES and can hand the
+	 * key to the JCA. */
+	private volatile SecretKeySpec jcaKey;
 	private final int keysize, blocksize;
 
 	public static final Provider AesCtrProvider = getAesCtrProvider();
@@ -158,21 +164,44 @@ public class Rijndael implements BlockCipher {
 			byte[] nkey=new byte[keysize>>3];
 			System.arraycopy(key, 0, nkey, 0, nkey.length);
 			sessionKey=Rijndael_Algorithm.makeKey(nkey, blocksize/8);
+			if(blocksize == 128)
+				jcaKey = new SecretKeySpec(nkey, "AES");
 		} catch (InvalidKeyException e) {
 			e.printStackTrace();
 			Logger.error(this,"Invalid key");
 		}
 	}
 
+	/**
+	 * Create a JCA AES/ECB cipher with this key, for encrypting many blocks at once (e.g. a
+	 * run of CTR counters). The output is bit-identical to encipher(), but the JCA provider
+	 * will usually use AES-NI. The returned Cipher is stateful and not thread-safe, so each
+	 * caller must create its own.
+	 * @return null if we are not standard AES (block size is not 128 bits), the key has not
+	 * been initialized, or the JCA is not usable.
+	 */
+	public Cipher createECBCipher() {
+		SecretKeySpec key = jcaKey;
+		if(key == null || AesCtrProvider == null) return null;
+		try {
+			Cipher c = Cipher.getInstance("AES/ECB/NOPADDING", AesCtrProvider);
+			c.init(Cipher.ENCRYPT_MODE, key);
+			return c;
+		} catch (GeneralSecurityException e) {
+			Logger.error(this, "JCA AES/ECB not available from "+AesCtrProvider+": "+e, e);
+			return null;
+		}
+	}
+
 	@Override
-	public synchronized final void encipher(byte[] block, byte[] result) {
+	public final void encipher(byte[] block, byte[] result) {
 		if(block.length != blocksize/8)
 			throw new IllegalArgumentException();
 		Rijndael_Algorithm.blockEncrypt(block, result, 0, sessionKey, blocksize/8);
 	}
 
 	@Override
-	public synchronized final void decipher(byte[] block, byte[] result) {
+	public final void decipher(byte[] block, byte[] result) {
 		if(block.length != blocksize/8)
 			throw new IllegalArgumentException();
 		Rijndael_Algorithm.blockDecrypt(block, result, 0, sessionKey, blocksize/8);
@@ -18,10 +18,18 @@
  */
 package freenet.io.xfer;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 
+/**
+ * Per-peer congestion window. Called from the packet sender and from ack processing for every
+ * packet, so it does not take a lock: the window size and the slow start flag are packed into a
+ * single long and updated with compare-and-set, so a window update and the corresponding slow
+ * start transition are always applied together.
+ */
 public class PacketThrottle {
 
 	private static volatile boolean logMINOR;
@@ -42,34 +50,54 @@ public class PacketThrottle {
 	protected static final long MIN_DELAY = 1;
 	public static final String VERSION = "$Id: PacketThrottle.java,v 1.3 2005/08/25 17:28:19 amphibian Exp $";
 	public static final long DEFAULT_DELAY = 200;
-	private long _roundTripTime = 500, _totalPackets, _droppedPackets;
-	/** The size of the window, in packets.
+	private volatile long _roundTripTime = 500;
+	private final AtomicLong _totalPackets = new AtomicLong();
+	private final AtomicLong _droppedPackets = new AtomicLong();
+	/** The size of the window, in packets, as float bits in the low 32 bits, plus the slow start
+	 * flag in SLOW_START_FLAG.
 	 * Window size must not drop below 1.0. Partly this is because we need to be able to send one packet, so it is a logical lower bound.
 	 * But mostly it is because of the non-slow-start division by _windowSize! */
-	private float _windowSize = 2;
+	private final AtomicLong _window = new AtomicLong(pack(2, true));
+	private static final long SLOW_START_FLAG = 1L << 32;
 	private final int PACKET_SIZE;
-	private boolean slowStart = true;
 	
 	public PacketThrottle(int packetSize) {
 		PACKET_SIZE = packetSize;
 	}
 
-	public synchronized void setRoundTripTime(long rtt) {
+	private static long pack(float windowSize, boolean slowStart) {
+		long packed = Float.floatToIntBits(windowSize) & 0xFFFFFFFFL;
+		return slowStart ? (packed | SLOW_START_FLAG) : packed;
+	}
+
+	private static float windowSize(long packed) {
+		return Float.intBitsToFloat((int) packed);
+	}
+
+	private static boolean slowStart(long packed) {
+		return (packed & SLOW_START_FLAG) != 0;
+	}
+
+	public void setRoundTripTime(long rtt) {
 		_roundTripTime = Math.max(rtt, 10);
 		if(logMINOR) Logger.minor(this, "Set round trip time to "+rtt+" on "+this);
 	}
 
-    public synchronized void notifyOfPacketsLost(int numPackets) {
+    public void notifyOfPacketsLost(int numPackets) {
         if (numPackets <= 0) {
             throw new IllegalArgumentException("Reported loss is zero or negative");
         }
-        _droppedPackets += numPackets;
-        _totalPackets += numPackets;
-        _windowSize *= Math.pow(PACKET_DROP_DECREASE_MULTIPLE, numPackets);
-        if (_windowSize < 1.0F) {
-            _windowSize = 1.0F;
+        _droppedPackets.addAndGet(numPackets);
+        _totalPackets.addAndGet(numPackets);
+        double multiple = Math.pow(PACKET_DROP_DECREASE_MULTIPLE, numPackets);
+        while(true) {
+            long packed = _window.get();
+            float windowSize = (float) (windowSize(packed) * multiple);
+            if (windowSize < 1.0F) {
+                windowSize = 1.0F;
+            }
+            if(_window.compareAndSet(packed, pack(windowSize, false))) break;
         }
-        slowStart = false;
         if (logMINOR) {
             Logger.minor(this, "notifyOfPacketsLost(): " + this);
         }
@@ -82,61 +110,69 @@ public class PacketThrottle {
      * does not get bigger than this. This works even for new packet format, and solves some of the 
      * problems that RFC 2861 does.
      */
-    public synchronized void notifyOfPacketAcknowledged(double maxWindowSize) {
-        _totalPackets++;
+    public void notifyOfPacketAcknowledged(double maxWindowSize) {
+        _totalPackets.incrementAndGet();
 		// If we didn't use the whole window, shrink the window a bit.
 		// This is similar but not identical to RFC2861
 		// See [freenet-dev] Major weakness in our current link-level congestion control
-        int windowSize = (int)getWindowSize();
-
+        long packed;
+        do {
+            packed = _window.get();
+        } while(!_window.compareAndSet(packed, acknowledged(packed, maxWindowSize)));
+    	if(logMINOR)
+    		Logger.minor(this, "notifyOfPacketAcked(): "+this);
+    }
+    
+    /** @return The packed window after one more packet has been acknowledged. */
+    private static long acknowledged(long packed, double maxWindowSize) {
+        float windowSize = windowSize(packed);
+        boolean slowStart = slowStart(packed);
     	if(slowStart) {
-    		if(logMINOR) Logger.minor(this, "Still in slow start");
-    		_windowSize += _windowSize / SLOW_START_DIVISOR;
+    		windowSize += windowSize / SLOW_START_DIVISOR;
     		// Avoid craziness if there is lag in detecting packet loss.
-    		if(_windowSize > maxWindowSize) slowStart = false;
+    		if(windowSize > maxWindowSize) slowStart = false;
     		// Window size must not drop below 1.0. Partly this is because we need to be able to send one packet, so it is a logical lower bound.
     		// But mostly it is because of the non-slow-start division by _windowSize!
-    		if(_windowSize < 1.0F) _windowSize = 1.0F;
+    		if(windowSize < 1.0F) windowSize = 1.0F;
     	} else {
-    		_windowSize += (PACKET_TRANSMIT_INCREMENT / _windowSize);
+    		windowSize += (PACKET_TRANSMIT_INCREMENT / windowSize);
     	}
     	// Ensure that we the window size does not grow dramatically larger than the largest window
     	// that has actually been in flight at one time.
-    	if(_windowSize > maxWindowSize)
-    		_windowSize = (float) maxWindowSize;
-    	if(_windowSize > (windowSize + 1))
-    		notifyAll();
-    	if(logMINOR)
-    		Logger.minor(this, "notifyOfPacketAcked(): "+this);
+    	if(windowSize > maxWindowSize)
+    		windowSize = (float) maxWindowSize;
+    	return pack(windowSize, slowStart);
     }
     
     /** Only used for diagnostics. We actually maintain a real window size. So we don't
      * need lots of sanity checking here. */
-	public synchronized long getDelay() {
+	public long getDelay() {
 		// return (long) (_roundTripTime / _simulatedWindowSize);
-		return Math.max(MIN_DELAY, (long) (_roundTripTime / _windowSize));
+		return Math.max(MIN_DELAY, (long) (_roundTripTime / windowSize(_window.get())));
 	}
 
 	@Override
-	public synchronized String toString() {
+	public String toString() {
+		long total = _totalPackets.get();
+		long dropped = _droppedPackets.get();
 		return Double.toString(getBandwidth()) + " k/sec, (w: "
-				+ _windowSize + ", r:" + _roundTripTime + ", d:"
-				+ (((float) _droppedPackets / (float) _totalPackets)) + ") total="+_totalPackets+" : "+super.toString();
+				+ windowSize(_window.get()) + ", r:" + _roundTripTime + ", d:"
+				+ (((float) dropped / (float) total)) + ") total="+total+" : "+super.toString();
 	}
 
-	public synchronized long getRoundTripTime() {
+	public long getRoundTripTime() {
 		return _roundTripTime;
 	}
 
-	public synchronized double getWindowSize() {
-		return Math.max(1.0, _windowSize);
+	public double getWindowSize() {
+		return Math.max(1.0, windowSize(_window.get()));
 	}
 
 	/**
 	 * returns the number of bytes-per-second in the transmition link (?).
 	 * FIXME: Will not return more than 1M/s due to MIN_DELAY in getDelay().
 	 */
-	public synchronized double getBandwidth() {
+	public double getBandwidth() {
 		//PACKET_SIZE=1024 [bytes?]
 		//1000 ms/sec
 		return ((PACKET_SIZE * 1000.0 / getDelay()));
@@ -296,7 +296,7 @@ public class ClientCHKBlock implements ClientKeyBlock {
 			throw new Error(e);
 		}
 		aes.initialize(cryptoKey);
-        CTRBlockCipher cipher = new CTRBlockCipher(aes);
+        CTRBlockCipher cipher = new CTRBlockCipher(aes, false);
         cipher.init(hash, 0, 16);
         byte[] plaintext = new byte[data.length];
         cipher.processBytes(data, 0, data.length, plaintext, 0);
@@ -558,7 +558,7 @@ public class ClientCHKBlock implements ClientKeyBlock {
 			throw new Error(e);
 		}
         aes.initialize(encKey);
-        CTRBlockCipher ctr = new CTRBlockCipher(aes);
+        CTRBlockCipher ctr = new CTRBlockCipher(aes, false);
         // CTR mode IV is only 16 bytes.
         // That's still plenty though. It will still be unique.
         ctr.init(hash, 0, 16);
@@ -0,0 +1,266 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import freenet.crypt.ECDHLightContext;
+import freenet.support.ByteArrayWrapper;
+import freenet.support.Executor;
+import freenet.support.Logger;
+import freenet.support.io.NativeThread;
+
+/**
+ * Precomputed (signed) ECDH contexts for JFK. Handshakes take a context round-robin from the
+ * current set without locking, and never wait for key generation: new contexts are generated
+ * on the executor, in parallel up to the number of cores, and swapped in when ready.
+ *
+ * The pool is sized by the recent handshake rate, between minSize and MAX_SIZE, so that during
+ * mass reconnects each exponential is reused by fewer handshakes. Each context is replaced once
+ * it is minSize generation intervals old, as before. Contexts are indexed by their public key in
+ * network format, so JFK(3) can find the context it used for JFK(2) without a scan; retired
+ * contexts stay findable for a while so that handshakes in flight still complete. get() only
+ * takes the lock when a context is due to expire or the target size has grown.
+ */
+class ECDHContextPool {
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerClass(ECDHContextPool.class);
+	}
+
+	/** Creates and signs a new context. Called from the executor, must be thread-safe. */
+	interface ContextFactory {
+		ECDHLightContext create();
+	}
+
+	/** Never keep more than this many contexts in rotation. */
+	static final int MAX_SIZE = 256;
+
+	private final Executor executor;
+	private final ContextFactory factory;
+	private final int minSize;
+	private final long generationInterval;
+	private final long maxAge;
+	private final long retiredLifetime;
+	private final int maxParallel;
+
+	/** Contexts in rotation, oldest first. Copy on write, under the lock. */
+	private volatile ECDHLightContext[] contexts = new ECDHLightContext[0];
+	private final AtomicLong nextContext = new AtomicLong();
+	/** Contexts in rotation plus recently retired ones, by public key in network format. */
+	private final ConcurrentHashMap<ByteArrayWrapper, ECDHLightContext> byPublicKey =
+		new ConcurrentHashMap<ByteArrayWrapper, ECDHLightContext>();
+	/** Retired contexts, oldest first, with the time they were retired. Protected by this. */
+	private final ArrayDeque<ECDHLightContext> retired = new ArrayDeque<ECDHLightContext>();
+	private final ArrayDeque<Long> retiredTimes = new ArrayDeque<Long>();
+	/** Contexts being generated right now. Protected by this. */
+	private int generating;
+	/** Generator jobs running. Protected by this. */
+	private int jobs;
+	/** No refill is due before this time unless the target size grows past checkedTarget, so
+	 * get() need not take the lock. Set under the lock; 0 means check on the next get(). */
+	private volatile long nextRefill;
+	private volatile int checkedTarget;
+
+	private final AtomicInteger handshakesThisInterval = new AtomicInteger();
+	private final AtomicLong intervalStart;
+	/** Handshakes per generation interval, decaying by half for each interval. */
+	private volatile int recentHandshakes;
+	private final AtomicLong generated = new AtomicLong();
+
+	/**
+	 * @param minSize The minimum number of contexts in rotation.
+	 * @param generationInterval Each context is replaced after minSize times this long.
+	 */
+	ECDHContextPool(Executor executor, ContextFactory factory, int minSize, long generationInterval) {
+		this.executor = executor;
+		this.factory = factory;
+		this.minSize = minSize;
+		this.generationInterval = generationInterval;
+		this.maxAge = generationInterval * minSize;
+		this.retiredLifetime = generationInterval * 4;
+		this.maxParallel = Math.max(1, Runtime.getRuntime().availableProcessors());
+		this.intervalStart = new AtomicLong(System.currentTimeMillis());
+	}
+
+	/** Generate the initial contexts, in parallel, and wait for them. */
+	void fill() {
+		long now = System.currentTimeMillis();
+		startGenerating(now);
+		// Help out on-thread rather than waiting.
+		while(contexts.length < minSize) {
+			if(!reserve(now)) {
+				synchronized(this) {
+					if(contexts.length >= minSize) break;
+					try {
+						wait(100);
+					} catch (InterruptedException e) {
+						// Ignore.
+					}
+				}
+				continue;
+			}
+			generateOne(now);
+		}
+	}
+
+	/**
+	 * Get a context for a handshake. Does not block.
+	 * @return A context, or null if none have been generated yet.
+	 */
+	ECDHLightContext get(long now) {
+		handshakesThisInterval.incrementAndGet();
+		maybeEndInterval(now);
+		startGenerating(now);
+		ECDHLightContext[] c = contexts;
+		if(c.length == 0) return null;
+		ECDHLightContext ctx = c[(int) ((nextContext.getAndIncrement() & Long.MAX_VALUE) % c.length)];
+		if(logMINOR) Logger.minor(this, "Serving "+ctx.hashCode()+" of "+c.length);
+		return ctx;
+	}
+
+	/**
+	 * Find a context, in rotation or recently retired, by its public key.
+	 * @param publicKey The public key in network format, as sent in JFK(2).
+	 */
+	ECDHLightContext findByPublicKey(byte[] publicKey) {
+		return byPublicKey.get(new ByteArrayWrapper(publicKey));
+	}
+
+	/** @return The number of contexts in rotation. */
+	int size() {
+		return contexts.length;
+	}
+
+	/** @return The number of contexts we are aiming to keep in rotation. */
+	int targetSize() {
+		int rate = Math.max(recentHandshakes, handshakesThisInterval.get());
+		return Math.max(minSize, Math.min(MAX_SIZE, rate));
+	}
+
+	/** @return The number of contexts generated since startup. */
+	long generatedCount() {
+		return generated.get();
+	}
+
+	private void maybeEndInterval(long now) {
+		long start = intervalStart.get();
+		if(now - start < generationInterval) return;
+		if(!intervalStart.compareAndSet(start, now)) return;
+		int count = handshakesThisInterval.getAndSet(0);
+		recentHandshakes = Math.max(count, recentHandshakes / 2);
+	}
+
+	/** @return The number of contexts we need but aren't already generating. Caller must hold
+	 * the lock. */
+	private int shortfall(long now) {
+		ECDHLightContext[] c = contexts;
+		int need = Math.max(0, targetSize() - c.length);
+		for(ECDHLightContext ctx : c) {
+			if(ctx.lifetime + maxAge < now) need++;
+		}
+		return need - generating;
+	}
+
+	/** Reserve one context to generate, if we need one. */
+	private synchronized boolean reserve(long now) {
+		if(shortfall(now) <= 0) return false;
+		generating++;
+		return true;
+	}
+
+	private void startGenerating(long now) {
+		if(now < nextRefill && targetSize() <= checkedTarget) return;
+		int toStart;
+		synchronized(this) {
+			int need = shortfall(now);
+			toStart = need <= 0 ? 0 : Math.min(need, maxParallel - jobs);
+			// Anything we need now is covered by the jobs, or a job will reset this when it ends.
+			checkedTarget = targetSize();
+			nextRefill = nextExpiry(now);
+			if(toStart <= 0) return;
+			jobs += toStart;
+		}
+		for(int i=0;i<toStart;i++) {
+			executor.execute(new PrioRunnable() {
+				@Override
+				public void run() {
+					try {
+						while(reserve(System.currentTimeMillis()))
+							generateOne(System.currentTimeMillis());
+					} finally {
+						synchronized(ECDHContextPool.this) {
+							jobs--;
+							nextRefill = 0;
+						}
+					}
+				}
+
+				@Override
+				public int getPriority() {
+					return NativeThread.LOW_PRIORITY;
+				}
+			}, "ECDH exponential signing");
+		}
+	}
+
+	/** @return When the next context in rotation which hasn't expired yet will expire. Caller
+	 * must hold the lock. */
+	private long nextExpiry(long now) {
+		long next = Long.MAX_VALUE;
+		for(ECDHLightContext ctx : contexts) {
+			long expiry = ctx.lifetime + maxAge + 1;
+			if(expiry > now && expiry < next) next = expiry;
+		}
+		return next;
+	}
+
+	/** Generate a context we have already reserved, and put it into rotation. */
+	private void generateOne(long now) {
+		ECDHLightContext ctx = null;
+		try {
+			ctx = factory.create();
+		} finally {
+			synchronized(this) {
+				generating--;
+				if(ctx != null) add(ctx, now);
+				else nextRefill = 0;
+				notifyAll();
+			}
+		}
+	}
+
+	/** Add a context, retiring the oldest if we are at the target size. Caller must hold the
+	 * lock. */
+	private void add(ECDHLightContext ctx, long now) {
+		List<ECDHLightContext> list = new ArrayList<ECDHLightContext>(Arrays.asList(contexts));
+		int target = targetSize();
+		while(list.size() >= target)
+			retire(list.remove(0), now);
+		list.add(ctx);
+		byPublicKey.put(new ByteArrayWrapper(ctx.getPublicKeyNetworkFormat()), ctx);
+		contexts = list.toArray(new ECDHLightContext[list.size()]);
+		generated.incrementAndGet();
+		while(!retired.isEmpty() && retiredTimes.peekFirst() + retiredLifetime < now) {
+			ECDHLightContext old = retired.removeFirst();
+			retiredTimes.removeFirst();
+			byPublicKey.remove(new ByteArrayWrapper(old.getPublicKeyNetworkFormat()));
+		}
+		if(logMINOR) Logger.minor(this, "Added context, now "+contexts.length+" of target "+target+
+				", "+retired.size()+" retired");
+	}
+
+	private void retire(ECDHLightContext ctx, long now) {
+		retired.addLast(ctx);
+		retiredTimes.addLast(now);
+	}
+
+}
@@ -10,7 +10,6 @@ import java.security.MessageDigest;
 import java.security.interfaces.ECPublicKey;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedList;
 
 import freenet.crypt.BlockCipher;
 import freenet.crypt.ECDH;
@@ -91,18 +90,13 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 		JFK_PREFIX_RESPONDER = R;
 	}
 
-	/* How often shall we generate a new exponential and add it to the FIFO? */
+	/* How often shall we generate a new exponential and add it to the pool? */
 	public final static int DH_GENERATION_INTERVAL = 30000; // 30sec
-	/* How big is the FIFO? */
+	/* The minimum size of the pool. It grows with the handshake rate. */
 	public final static int DH_CONTEXT_BUFFER_SIZE = 20;
-	/*
-	* The FIFO itself
-	* Get a lock on dhContextFIFO before touching it!
-	*/
-	private final LinkedList<ECDHLightContext> ecdhContextFIFO = new LinkedList<ECDHLightContext>();
-	private ECDHLightContext ecdhContextToBePrunned;
+	/* The precomputed contexts. */
+	private final ECDHContextPool ecdhContexts;
 	private static final ECDH.Curves ecdhCurveToUse = ECDH.Curves.P256;
-	private long jfkECDHLastGenerationTimestamp = 0;
 
 	private static final int HASH_LENGTH = SHA256.getDigestLength();
 	/** The size of the key used to authenticate the hmac */
@@ -133,6 +127,12 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 		this.crypto = crypt;
 		this.sock = sock;
 		authenticatorCache = new HashMap<ByteArrayWrapper, byte[]>();
+		ecdhContexts = new ECDHContextPool(node.executor, new ECDHContextPool.ContextFactory() {
+			@Override
+			public ECDHLightContext create() {
+				return _genECDHLightContext();
+			}
+		}, DH_CONTEXT_BUFFER_SIZE, DH_GENERATION_INTERVAL);
 	}
 
 	/**
@@ -142,10 +142,8 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 	public void start() {
 		// Run it directly so that the transient key is set.
 		maybeResetTransientKey();
-		// Fill the DH FIFO on-thread
-		for(int i=0;i<DH_CONTEXT_BUFFER_SIZE;i++) {
-			_fillJFKECDHFIFO();
-		}
+		// Fill the DH pool before we start, using all cores.
+		ecdhContexts.fill();
 		this.authHandlingThread.start(node.executor, "FNP incoming auth packet handler thread");
 	}
 
@@ -1157,8 +1155,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 		byte[] computedExponential;
 
             ECPublicKey initiatorKey = ECDH.getPublicKey(initiatorExponential, ecdhCurveToUse);
-            ECPublicKey responderKey = ECDH.getPublicKey(responderExponential, ecdhCurveToUse);
-            ECDHLightContext ctx = findECDHContextByPubKey(responderKey);
+            ECDHLightContext ctx = findECDHContextByPubKey(responderExponential);
             if (ctx == null) {
                 Logger.error(this, "WTF? the HMAC verified but we don't know about that exponential! SHOULDN'T HAPPEN! - JFK3 - "+pn);
                 // Possible this is a replay or severely delayed? We don't keep
@@ -1933,7 +1930,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 		int maxPacketSize = sock.getMaxPacketSize();
 		int paddingLength;
 		if(prePaddingLength < maxPacketSize) {
-			paddingLength = node.fastWeakRandom.nextInt(Math.min(100, maxPacketSize - prePaddingLength));
+			paddingLength = node.random.threadLocal().nextInt(Math.min(100, maxPacketSize - prePaddingLength));
 		} else {
 			paddingLength = 0; // Avoid oversize packets if at all possible, the MTU is an estimate and may be wrong, and fragmented packets are often dropped by firewalls.
 			// Tell the devs, this shouldn't happen.
@@ -1951,7 +1948,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 		pcfb.blockEncipher(output, 0, output.length);
 		System.arraycopy(output, 0, data, hash.length+iv.length+2, output.length);
 
-		Util.randomBytes(node.fastWeakRandom, data, hash.length+iv.length+2+output.length, paddingLength);
+		Util.randomBytes(node.random.threadLocal(), data, hash.length+iv.length+2+output.length, paddingLength);
 		try {
 			sendPacket(data, replyTo, pn);
 			node.nodeStats.reportAuthBytes(data.length + sock.getHeadersLength(replyTo));
@@ -2064,67 +2061,17 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
         return ctx;
     }
 
-    private void _fillJFKECDHFIFOOffThread() {
-        // do it off-thread
-        node.executor.execute(new PrioRunnable() {
-            @Override
-            public void run() {
-                _fillJFKECDHFIFO();
-            }
-            @Override
-            public int getPriority() {
-                return NativeThread.MIN_PRIORITY;
-            }
-        }, "ECDH exponential signing");
-    }
-    
-	private void _fillJFKECDHFIFO() {
-        synchronized (ecdhContextFIFO) {
-            int size = ecdhContextFIFO.size();
-            if((size > 0) && (size + 1 > DH_CONTEXT_BUFFER_SIZE)) {
-                ECDHLightContext result = null;
-                long oldestSeen = Long.MAX_VALUE;
-
-                for (ECDHLightContext tmp: ecdhContextFIFO) {
-                    if(tmp.lifetime < oldestSeen) {
-                        oldestSeen = tmp.lifetime;
-                        result = tmp;
-                    }
-                }
-                ecdhContextFIFO.remove(ecdhContextToBePrunned = result);
-            }
-
-            ecdhContextFIFO.addLast(_genECDHLightContext());
-        }
-    }
-	
     /**
-     * Change the ECDH key on a regular basis but at most once every 30sec
+     * Get a precomputed context for a handshake. Never generates one on-thread.
      *
      * @return {@link ECDHLightContext}
-     * @throws NoContextsException 
+     * @throws NoContextsException If the pool is still empty.
      */
     private ECDHLightContext getECDHLightContext() throws NoContextsException {
-        final long now = System.currentTimeMillis();
-        ECDHLightContext result = null;
-
-        synchronized (ecdhContextFIFO) {
-            result = ecdhContextFIFO.pollFirst();
-            
-            // Shall we replace one element of the queue ?
-            if((jfkECDHLastGenerationTimestamp + DH_GENERATION_INTERVAL) < now) {
-                jfkECDHLastGenerationTimestamp = now;
-                _fillJFKECDHFIFOOffThread();
-            }
-            
-            // Don't generate on-thread as it might block.
-            if(result == null)
-                throw new NoContextsException();
-
-            ecdhContextFIFO.addLast(result);
-        }
-
-        if(logMINOR) Logger.minor(this, "getECDHLightContext() is serving "+result.hashCode());
+        ECDHLightContext result = ecdhContexts.get(System.currentTimeMillis());
+        // Don't generate on-thread as it might block.
+        if(result == null)
+            throw new NoContextsException();
         return result;
     }
     
@@ -2137,27 +2084,15 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
     	}
     }
 
-	 /**
-     * Used in processJFK[3|4]
-     * That's O^(n) ... but we have only a few elements and
-     * we call it only once a round-trip has been done
-     *
-     * @param exponential
-     * @return the corresponding ECDHLightContext with the right exponent
-     */
-    private ECDHLightContext findECDHContextByPubKey(ECPublicKey exponential) {
-        synchronized (ecdhContextFIFO) {
-            for (ECDHLightContext result : ecdhContextFIFO) {
-                if(exponential.equals(result.getPublicKey())) {
-                    return result;
-                }
-            }
-
-            if((ecdhContextToBePrunned != null) && ((ecdhContextToBePrunned.getPublicKey()).equals(exponential)))
-                return ecdhContextToBePrunned;
-        }
-        return null;
-    }
+	/**
+	 * Used in processJFK3: find the context we sent in JFK(2), in rotation or recently retired.
+	 *
+	 * @param exponential Our exponential, in network format.
+	 * @return the corresponding ECDHLightContext with the right exponent
+	 */
+	private ECDHLightContext findECDHContextByPubKey(byte[] exponential) {
+		return ecdhContexts.findByPublicKey(exponential);
+	}
 
 	/*
 	 * Prepare DH parameters of message2 for them to be signed (useful in message3 to check the sig)
@@ -10,6 +10,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+import freenet.crypt.HMAC;
 import freenet.io.comm.ByteCounter;
 import freenet.io.comm.DMT;
 import freenet.io.comm.Message;
@@ -86,6 +87,8 @@ public class FailureTable {
 	static final long OFFER_EXPIRY_TIME = MINUTES.toMillis(10);
 	/** HMAC key for the offer authenticator */
 	final byte[] offerAuthenticatorKey;
+	/** HMAC keyed with offerAuthenticatorKey, used for every offer sent and checked */
+	final HMAC.Keyed offerAuthenticator;
 	/** Clean up old data every 10 minutes to save memory and improve privacy */
 	static final long CLEANUP_PERIOD = MINUTES.toMillis(10);
 
@@ -95,6 +98,7 @@ public class FailureTable {
 		this.node = node;
 		offerAuthenticatorKey = new byte[32];
 		node.random.nextBytes(offerAuthenticatorKey);
+		offerAuthenticator = new HMAC.Keyed(HMAC.SHA2_256, offerAuthenticatorKey);
 		offerExecutor = new SerialExecutor(NativeThread.HIGH_PRIORITY);
 		node.ticker.queueTimedJob(new FailureTableCleaner(), CLEANUP_PERIOD);
 	}
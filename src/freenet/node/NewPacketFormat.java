@@ -3,7 +3,6 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.node;
 
-import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -13,7 +12,6 @@ import java.util.List;
 import java.util.Map;
 
 import freenet.crypt.BlockCipher;
-import freenet.crypt.HMAC;
 import freenet.crypt.PCFBMode;
 import freenet.io.comm.DMT;
 import freenet.io.comm.Message;
@@ -395,10 +393,7 @@ public class NewPacketFormat implements PacketFormat {
 
 		ivCipher.encipher(IV, IV);
 
-		byte[] payload = Arrays.copyOfRange(buf, offset + HMAC_LENGTH, offset + length);
-		byte[] hash = Arrays.copyOfRange(buf, offset, offset + HMAC_LENGTH);
-		byte[] localHash = Arrays.copyOf(HMAC.macWithSHA256(sessionKey.hmacKey, payload), HMAC_LENGTH);
-		if (!MessageDigest.isEqual(hash, localHash)) {
+		if (!sessionKey.hmac.verify(buf, offset + HMAC_LENGTH, length - HMAC_LENGTH, buf, offset, HMAC_LENGTH)) {
 			if (logMINOR) {
 				Logger.minor(this, "Failed to validate the HMAC using TrackerID="+sessionKey.trackerID);
 			}
@@ -406,6 +401,7 @@ public class NewPacketFormat implements PacketFormat {
 			return null;
 		}
 
+		byte[] payload = Arrays.copyOfRange(buf, offset + HMAC_LENGTH, offset + length);
 		PCFBMode payloadCipher = PCFBMode.create(sessionKey.incommingCipher, IV);
 		payloadCipher.blockDecipher(payload, 0, payload.length);
 
@@ -510,10 +506,7 @@ public class NewPacketFormat implements PacketFormat {
 		payloadCipher.blockEncipher(data, HMAC_LENGTH, paddedLen - HMAC_LENGTH);
 
 		//Add hash
-		byte[] text = new byte[paddedLen - HMAC_LENGTH];
-		System.arraycopy(data, HMAC_LENGTH, text, 0, text.length);
-
-		byte[] hash = HMAC.macWithSHA256(sessionKey.hmacKey, text);
+		byte[] hash = sessionKey.hmac.mac(data, HMAC_LENGTH, paddedLen - HMAC_LENGTH);
 
 		System.arraycopy(hash, 0, data, 0, HMAC_LENGTH);
 
@@ -132,6 +132,7 @@ import freenet.support.api.IntCallback;
 import freenet.support.api.LongCallback;
 import freenet.support.api.ShortCallback;
 import freenet.support.api.StringCallback;
+import freenet.support.compress.ParallelBzip2Decompressor;
 import freenet.support.io.ArrayBucketFactory;
 import freenet.support.io.Closer;
 import freenet.support.io.FileUtil;
@@ -653,6 +654,7 @@ public class Node implements TimeSkewDetectorCallback {
 	private long amountOfDataToCheckCompressionRatio;
 	private int minimumCompressionPercentage;
 	private int maxTimeForSingleCompressor;
+	private volatile boolean parallelCompressorTrial;
 	boolean inputLimitDefault;
 	final boolean enableARKs;
 	final boolean enablePerNodeFailureTables;
@@ -1651,6 +1653,34 @@ public class Node implements TimeSkewDetectorCallback {
 
 		maxTimeForSingleCompressor = nodeConfig.getInt("maxTimeForSingleCompressor");
 
+		nodeConfig.register("parallelCompressorTrial", false, sortOrder++, true, false,
+				"Node.parallelCompressorTrial", "Node.parallelCompressorTrialLong", new BooleanCallback() {
+			@Override
+			public Boolean get() {
+				return parallelCompressorTrial;
+			}
+			@Override
+			public void set(Boolean val) {
+				parallelCompressorTrial = val;
+			}
+		});
+
+		parallelCompressorTrial = nodeConfig.getBoolean("parallelCompressorTrial");
+
+		nodeConfig.register("parallelBzip2Decompression", true, sortOrder++, true, false,
+				"Node.parallelBzip2Decompression", "Node.parallelBzip2DecompressionLong", new BooleanCallback() {
+			@Override
+			public Boolean get() {
+				return ParallelBzip2Decompressor.isEnabled();
+			}
+			@Override
+			public void set(Boolean val) {
+				ParallelBzip2Decompressor.setEnabled(val);
+			}
+		});
+
+		ParallelBzip2Decompressor.setEnabled(nodeConfig.getBoolean("parallelBzip2Decompression"));
+
 		nodeConfig.register("throttleLocalTraffic", false, sortOrder++, true, false, "Node.throttleLocalTraffic", "Node.throttleLocalTrafficLong", new BooleanCallback() {
 
 			@Override
@@ -486,7 +486,7 @@ public class NodeClientCore implements Persistable {
 						false, Node.FORK_ON_CACHEABLE_DEFAULT, false,
 						Compressor.DEFAULT_COMPRESSORDESCRIPTOR, 0, 0,
 						InsertContext.CompatibilityMode.COMPAT_DEFAULT),
-				RequestStarter.PREFETCH_PRIORITY_CLASS, 512 /* FIXME make configurable */);
+				RequestStarter.PREFETCH_PRIORITY_CLASS, 512 /* FIXME make configurable */, node.nodeStats);
 
 		PooledFileRandomAccessBufferFactory raff =
 				new PooledFileRandomAccessBufferFactory(persistentFilenameGenerator,
@@ -570,6 +570,21 @@ public class NodeClientCore implements Persistable {
 					    }
 
 				    }, true);
+		nodeConfig.register("tableDrivenFEC", false, sortOrder++, true, false,
+				    "NodeClientCore.tableDrivenFEC",
+				    "NodeClientCore.tableDrivenFECLong", new BooleanCallback() {
+
+					@Override
+					public Boolean get() {
+						return FECCodec.getUseTableCodec();
+					}
+
+					@Override
+					public void set(Boolean val) {
+						FECCodec.setUseTableCodec(val);
+					}
+				});
+		FECCodec.setUseTableCodec(nodeConfig.getBoolean("tableDrivenFEC"));
 		memoryLimitedJobRunner =
 				new MemoryLimitedJobRunner(
 						nodeConfig.getLong("memoryLimitedJobMemoryLimit"),
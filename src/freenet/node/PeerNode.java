@@ -37,7 +37,6 @@ import freenet.crypt.DSAPublicKey;
 import freenet.crypt.ECDSA;
 import freenet.crypt.ECDSA.Curves;
 import freenet.crypt.Global;
-import freenet.crypt.HMAC;
 import freenet.crypt.KeyAgreementSchemeContext;
 import freenet.crypt.SHA256;
 import freenet.crypt.UnsupportedCipherException;
@@ -77,7 +76,6 @@ import freenet.support.Logger.LogLevel;
 import freenet.support.SimpleFieldSet;
 import freenet.support.TimeUtil;
 import freenet.support.WeakHashSet;
-import freenet.support.math.MersenneTwister;
 import freenet.support.math.RunningAverage;
 import freenet.support.math.SimpleRunningAverage;
 import freenet.support.math.TimeDecayingRunningAverage;
@@ -408,7 +406,6 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 	}
 
 	private PacketFormat packetFormat;
-	MersenneTwister paddingGen;
 	
 	protected SimpleFieldSet fullFieldSet;
 
@@ -713,10 +710,6 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		bytesInAtStartup = fs.getLong("totalInput", 0);
 		bytesOutAtStartup = fs.getLong("totalOutput", 0);
 
-		byte buffer[] = new byte[16];
-		node.random.nextBytes(buffer);
-		paddingGen = new MersenneTwister(buffer);
-		
 		if(fromLocal) {
 			SimpleFieldSet f = fs.subset("full");
 			if(fullFieldSet == null && f != null)
@@ -3760,7 +3753,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 	public void offer(Key key) {
 		byte[] keyBytes = key.getFullKey();
 		// FIXME maybe the authenticator should be shorter than 32 bytes to save memory?
-		byte[] authenticator = HMAC.macWithSHA256(node.failureTable.offerAuthenticatorKey, keyBytes);
+		byte[] authenticator = node.failureTable.offerAuthenticator.mac(keyBytes);
 		Message msg = DMT.createFNPOfferKey(key, authenticator);
 		try {
 			sendAsync(msg, null, node.nodeStats.sendOffersCtr);
@@ -5429,7 +5422,8 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 	// FIXME move this to PacketFormat eventually.
 	@Override
 	public Random paddingGen() {
-		return paddingGen;
+		// Called from the packet sender for every packet; don't contend on the node's RNG.
+		return node.random.threadLocal();
 	}
 
 	public synchronized boolean matchesPeerAndPort(Peer peer) {
@@ -4,6 +4,7 @@
 package freenet.node;
 
 import freenet.crypt.BlockCipher;
+import freenet.crypt.HMAC;
 
 /**
  * Class representing a single session key.
@@ -26,6 +27,8 @@ public class SessionKey {
 	public final BlockCipher ivCipher;
 	public final byte[] ivNonce;
 	public final byte[] hmacKey;
+	/** HMAC keyed with hmacKey, reused for every packet. */
+	public final HMAC.Keyed hmac;
 	
 	final long trackerID;
 	
@@ -42,6 +45,7 @@ public class SessionKey {
 		this.ivCipher = ivCipher;
 		this.ivNonce = ivNonce;
 		this.hmacKey = hmacKey;
+		this.hmac = hmacKey == null ? null : new HMAC.Keyed(HMAC.SHA2_256, hmacKey);
 		this.packetContext = context;
 		this.trackerID = trackerID;
 	}
@@ -142,5 +142,12 @@ public class MemoryLimitedJobRunner {
         return runningThreads;
     }
 
+    /** For jobs which want to run part of their work on another thread, e.g. to overlap CPU work
+     * with disk I/O. Such threads don't count towards maxThreads, so a job must use at most one,
+     * and must wait for it to finish before returning. */
+    public Executor getExecutor() {
+        return executor;
+    }
+
 }
 
@@ -1,8 +1,12 @@
 package freenet.support;
 
 import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Random;
 
 import org.tanukisoftware.wrapper.WrapperManager;
 
@@ -13,15 +17,15 @@ import freenet.client.async.RequestSelectionTreeNode;
 /**
  * An array which supports very fast remove-and-return-a-random-element.
  * 
- * This is *NOT* persistent. The request selection structures are reconstructed on restart. However
- * it used to be, and probably has a lot of cruft and inefficiency as a result. 
+ * This is *NOT* persistent. The request selection structures are reconstructed on restart.
  * 
  * LOCKING: There is a single lock for the entire tree, the ClientRequestSelector. This must be 
  * taken before calling any methods on RGA or SRGA. See the javadocs there for deeper explanation.
  * 
- * FIXME Simplify and improve performance. A lot of this is O(n), and this should probably be fixed. 
- * Memory usage was an issue but probably isn't now given that the individual items are now quite 
- * large (entire splitfiles or at least entire segments).
+ * Adding, removing and finding an item are O(1), using an index of where each item is. Items 
+ * which we found were waiting (in cooldown, or excluded) are moved to the end of the array, and
+ * we only choose from the rest, so we don't check them over and over again. They are moved back
+ * when any item's wakeup time is cleared, or when the earliest of them is due to wake up.
  */
 public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 	private static volatile boolean logMINOR;
@@ -30,27 +34,30 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 		Logger.registerClass(RandomGrabArray.class);
 	}
 	
-	private static class Block {
-		RandomGrabArrayItem[] reqs;
-	}
-	
-	/** Array of items. Non-null's followed by null's. 
-	 * We used to have a Set so we could check whether something is in the set quickly.
-	 * We got rid of this because for persistent requests it is vastly faster to just loop the
-	 * loop and check ==, and for non-persistent requests it doesn't matter much. */
-	private Block[] blocks;
+	/** Array of items. Non-null's followed by null's. */
+	private RandomGrabArrayItem[] reqs;
 	/** Index of first null item. */
 	private int index;
+	/** Items before this index may be sendable. Items from here to index were waiting when we 
+	 * last looked at them, and will be until at least coolingUntil unless a wakeup time is 
+	 * cleared. */
+	private int ready;
+	private long coolingUntil = Long.MAX_VALUE;
+	/** Where each item is in reqs. */
+	private final Map<RandomGrabArrayItem, Integer> positions = 
+		new IdentityHashMap<RandomGrabArrayItem, Integer>();
 	private final static int MIN_SIZE = 32;
-	private final static int BLOCK_SIZE = 1024;
+	/** Items that are excluded by the RandomGrabArrayItemExclusionList rather than by their own
+	 * cooldown may not clear our wakeup time when they become available, so check them again 
+	 * after this long. */
+	static final long EXCLUDED_RECHECK_TIME = SECONDS.toMillis(1);
 	private final int hashCode;
 	private RemoveRandomParent parent;
 	protected ClientRequestSelector root;
 	private long wakeupTime;
 
 	public RandomGrabArray(RemoveRandomParent parent, ClientRequestSelector root) {
-		this.blocks = new Block[] { new Block() };
-		blocks[0].reqs = new RandomGrabArrayItem[MIN_SIZE];
+		this.reqs = new RandomGrabArrayItem[MIN_SIZE];
 		index = 0;
 		this.hashCode = super.hashCode();
 		this.parent = parent;
@@ -72,55 +79,21 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 			if(context != null) {
 			    clearWakeupTime(context);
 			}
-			int x = 0;
-			if(blocks.length == 1 && index < BLOCK_SIZE) {
-				for(int i=0;i<index;i++) {
-					if(blocks[0].reqs[i] == req) {
-						return;
-					}
-				}
-				if(index >= blocks[0].reqs.length) {
-					blocks[0].reqs = Arrays.copyOf(blocks[0].reqs, Math.min(BLOCK_SIZE, blocks[0].reqs.length*2));
-				}
-				blocks[0].reqs[index++] = req;
-				if(logMINOR) Logger.minor(this, "Added "+req+" before index "+index);
+			if(positions.containsKey(req)) {
+				if(logMINOR) Logger.minor(this, "Already contains "+req+" : "+this+" size now "+index);
 				return;
 			}
-			int targetBlock = index / BLOCK_SIZE;
-			for(int i=0;i<blocks.length;i++) {
-				Block block = blocks[i];
-				if(i != (blocks.length - 1) && block.reqs.length != BLOCK_SIZE) {
-					Logger.error(this, "Block "+i+" of "+blocks.length+" is wrong size: "+block.reqs.length+" should be "+BLOCK_SIZE);
-				}
-				for(int j=0;j<block.reqs.length;j++) {
-					if(x >= index) break;
-					if(block.reqs[j] == req) {
-						if(logMINOR) Logger.minor(this, "Already contains "+req+" : "+this+" size now "+index);
-						return;
-					}
-					if(block.reqs[j] == null) {
-						Logger.error(this, "reqs["+i+"."+j+"] = null on "+this);
-					}
-					x++;
-				}
-			}
-			if(blocks.length <= targetBlock) {
-				if(logMINOR)
-					Logger.minor(this, "Adding blocks on "+this);
-				Block[] newBlocks = Arrays.copyOf(blocks, targetBlock+1);
-				for(int i=blocks.length;i<newBlocks.length;i++) {
-					newBlocks[i] = new Block();
-					newBlocks[i].reqs = new RandomGrabArrayItem[BLOCK_SIZE];
-				}
-				blocks = newBlocks;
-			}
-			Block target = blocks[targetBlock];
-			target.reqs[index++ % BLOCK_SIZE] = req;
+			if(index >= reqs.length)
+				reqs = Arrays.copyOf(reqs, reqs.length*2);
+			// Put it at the end of the sendable items, and the first waiting item at the end.
+			if(ready < index) move(ready, index);
+			set(ready++, req);
+			index++;
 			if(logMINOR) Logger.minor(this, "Added: "+req+" to "+this+" size now "+index);
 		}
 	}
 	
-	/** Must be less than BLOCK_SIZE */
+	/** Must be less than MIN_SIZE */
 	static final int MAX_EXCLUDED = 10;
 	
 	@Override
@@ -131,15 +104,18 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 				if(logMINOR) Logger.minor(this, "All null on "+this);
 				return null;
 			}
-			if(index < MAX_EXCLUDED) {
-				return removeRandomExhaustiveSearch(excluding, context, now);
+			if(ready < index && now >= coolingUntil) {
+				if(logMINOR) Logger.minor(this, "Waiting items may be ready on "+this);
+				resetWaiting();
 			}
-			RandomGrabArrayItem ret = removeRandomLimited(excluding, context, now);
-			if(ret != null)
-				return new RemoveRandomReturn(ret);
-			if(index == 0) {
-				if(logMINOR) Logger.minor(this, "All null on "+this);
-				return null;
+			if(ready >= MAX_EXCLUDED) {
+				RandomGrabArrayItem ret = removeRandomLimited(excluding, context, now);
+				if(ret != null)
+					return new RemoveRandomReturn(ret);
+				if(index == 0) {
+					if(logMINOR) Logger.minor(this, "All null on "+this);
+					return null;
+				}
 			}
 			return removeRandomExhaustiveSearch(excluding, context, now);
 		}
@@ -149,200 +125,125 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 			RandomGrabArrayItemExclusionList excluding,
 			ClientContext context, long now) {
 		int excluded = 0;
-		while(true) {
-			int i = context.fastWeakRandom.nextInt(index);
-			int blockNo = i / BLOCK_SIZE;
-			RandomGrabArrayItem ret, oret;
-			ret = blocks[blockNo].reqs[i % BLOCK_SIZE];
-			if(ret == null) {
-				Logger.error(this, "reqs["+i+"] = null");
-				remove(blockNo, i);
-				continue;
-			}
-			if(ret.getWakeupTime(context, now) > 0) {
-				excluded++;
-				if(excluded > MAX_EXCLUDED) {
-					return null;
-				}
-				continue;
-			}
-			oret = ret;
+		while(ready > 0) {
+			int i = context.random.threadLocal().nextInt(ready);
+			RandomGrabArrayItem ret = reqs[i];
 			long itemWakeTime = ret.getWakeupTime(context, now);
 			if(itemWakeTime == -1) {
 				if(logMINOR) Logger.minor(this, "Not returning because cancelled: "+ret);
-				ret = null;
-				// Will be removed in the do{} loop
-				// Tell it that it's been removed first.
-				oret.setParentGrabArray(null);
-			}
-			if(itemWakeTime == 0)
-				itemWakeTime = excluding.exclude(ret, context, now);
-			if(ret != null && itemWakeTime > 0) {
-				excluded++;
-				if(excluded > MAX_EXCLUDED) {
-					return null;
+				removeAt(i);
+				ret.setParentGrabArray(null);
+			} else {
+				if(itemWakeTime > 0) {
+					setWaiting(i, itemWakeTime);
+				} else {
+					itemWakeTime = excluding.exclude(ret, context, now);
+					if(itemWakeTime <= 0) {
+						if(logMINOR) Logger.minor(this, "Returning (cannot remove): "+ret+" of "+index);
+						return ret;
+					}
+					setWaiting(i, Math.min(itemWakeTime, now + EXCLUDED_RECHECK_TIME));
 				}
-				continue;
-			}
-			if(ret != null) {
-				if(logMINOR) Logger.minor(this, "Returning (cannot remove): "+ret+" of "+index);
-				return ret;
 			}
-			// Remove an element.
-			do {
-				remove(blockNo, i);
-				oret = blocks[blockNo].reqs[i % BLOCK_SIZE];
-				// Check for nulls, but don't check for cancelled, since we'd have to activate.
-			} while (index > i && oret == null);
-			int newBlockCount;
-			// Shrink array
-			if(blocks.length == 1 && index < blocks[0].reqs.length / 4 && blocks[0].reqs.length > MIN_SIZE) {
-				// Shrink array
-				blocks[0].reqs = Arrays.copyOf(blocks[0].reqs, Math.max(index * 2, MIN_SIZE));
-			} else if(blocks.length > 1 &&
-					(newBlockCount = (((index + (BLOCK_SIZE/2)) / BLOCK_SIZE) + 1)) < 
-					blocks.length) {
-				if(logMINOR)
-					Logger.minor(this, "Shrinking blocks on "+this);
-				blocks = Arrays.copyOf(blocks, newBlockCount);
+			excluded++;
+			if(excluded > MAX_EXCLUDED) {
+				return null;
 			}
-			return ret;
 		}
+		return null;
 	}
 
+	/** Check every item that might be sendable, and choose one at random. Items that are 
+	 * waiting are moved to the end and won't be checked again until they might be ready. */
 	private RemoveRandomReturn removeRandomExhaustiveSearch(
 			RandomGrabArrayItemExclusionList excluding,
 			ClientContext context, long now) {
 		if(logMINOR)
-			Logger.minor(this, "Doing exhaustive search and compaction on "+this);
-		long wakeupTime = Long.MAX_VALUE;
-		RandomGrabArrayItem ret = null;
-		int random = -1;
-		while(true) {
-			RandomGrabArrayItem[] reqsReading = blocks[0].reqs;
-			RandomGrabArrayItem[] reqsWriting = blocks[0].reqs;
-			int blockNumReading = 0;
-			int blockNumWriting = 0;
-			int offset = -1;
-			int writeOffset = -1;
-			int exclude = 0;
-			int valid = 0;
-			int validIndex = -1;
-			int target = 0;
-			RandomGrabArrayItem chosenItem = null;
-			RandomGrabArrayItem validItem = null;
-			for(int i=0;i<index;i++) {
-				offset++;
-				// Compact the array.
-				RandomGrabArrayItem item;
-				if(offset == BLOCK_SIZE) {
-					offset = 0;
-					blockNumReading++;
-					reqsReading = blocks[blockNumReading].reqs;
-				}
-				item = reqsReading[offset];
-				if(item == null) {
-					if(logMINOR) Logger.minor(this, "Found null item at offset "+offset+" i="+i+" block = "+blockNumReading+" on "+this);
-					continue;
+			Logger.minor(this, "Doing exhaustive search on "+this);
+		Random random = context.random.threadLocal();
+		RandomGrabArrayItem chosenItem = null;
+		int valid = 0;
+		int i = 0;
+		while(i < ready) {
+			RandomGrabArrayItem item = reqs[i];
+			long itemWakeTime = item.getWakeupTime(context, now);
+			if (itemWakeTime > 0) {
+				// The item is in cooldown, will be wanted later.
+				setWaiting(i, itemWakeTime);
+			} else if (itemWakeTime == -1) {
+				// The item is no longer needed and should be removed.
+				if(logMINOR) {
+					Logger.minor(this, "Removing "+item+" on "+this);
 				}
-				boolean excludeItem = false;
-				long itemWakeTime = item.getWakeupTime(context, now);
-				if (itemWakeTime > 0) {
-					// The item is in cooldown, will be wanted later.
-					excludeItem = true;
-					if (itemWakeTime < wakeupTime) {
-						wakeupTime = itemWakeTime;
-					}
-				} else if (itemWakeTime == -1) {
-					// The item is no longer needed and should be removed.
-					if(logMINOR) {
-						Logger.minor(this, "Removing "+item+" on "+this);
-					}
-					// We are doing compaction here. We don't need to swap with the end; we write valid ones to the target location.
-					reqsReading[offset] = null;
-					item.setParentGrabArray(null);
-					continue;
-				} else {
-					long excludeTime = excluding.exclude(item, context, now);
-					if (excludeTime > 0) {
-						excludeItem = true;
-						if(excludeTime < wakeupTime) {
-							wakeupTime = excludeTime;
-						}
-					}
-				}
-				writeOffset++;
-				if(writeOffset == BLOCK_SIZE) {
-					writeOffset = 0;
-					blockNumWriting++;
-					reqsWriting = blocks[blockNumWriting].reqs;
-				}
-				if(i != target) {
-					reqsReading[offset] = null;
-					reqsWriting[writeOffset] = item;
-				} // else the request can happily stay where it is
-				target++;
-				if(excludeItem) {
-					exclude++;
+				removeAt(i);
+				item.setParentGrabArray(null);
+			} else {
+				long excludeTime = excluding.exclude(item, context, now);
+				if (excludeTime > 0) {
+					setWaiting(i, Math.min(excludeTime, now + EXCLUDED_RECHECK_TIME));
 				} else {
-					if(valid == random) { // Picked on previous round
-						chosenItem = item;
-					}
-					if(validIndex == -1) {
-						// Take the first valid item
-						validIndex = target-1;
-						validItem = item;
-					}
+					// Choose uniformly from the valid items in a single pass.
 					valid++;
+					if(random.nextInt(valid) == 0)
+						chosenItem = item;
+					i++;
 				}
 			}
-			if(index != target) {
-				index = target;
-			}
-			// We reach this point if 1) the random number we picked last round is invalid because an item became cancelled or excluded
-			// or 2) we are on the first round anyway.
-			if(chosenItem != null) {
-				ret = chosenItem;
-				if(logMINOR) Logger.minor(this, "Chosen random item "+ret+" out of "+valid+" total "+index);
-				return new RemoveRandomReturn(ret);
-			}
-			if(valid == 0 && exclude == 0) {
-				if(logMINOR) Logger.minor(this, "No valid or excluded items total "+index);
-				return null; // Caller should remove the whole RGA
-			} else if(valid == 0) {
-				if(logMINOR) Logger.minor(this, "No valid items, "+exclude+" excluded items total "+index);
-				setWakeupTime(wakeupTime, context);
-				return new RemoveRandomReturn(wakeupTime);
-			} else if(valid == 1) {
-				ret = validItem;
-				if(logMINOR) Logger.minor(this, "No valid or excluded items apart from "+ret+" total "+index);
-				return new RemoveRandomReturn(ret);
-			} else {
-				random = context.fastWeakRandom.nextInt(valid);
-				if(logMINOR) Logger.minor(this, "Looping to choose valid item "+random+" of "+valid+" (excluded "+exclude+")");
-				// Loop
-			}
 		}
+		if(chosenItem != null) {
+			if(logMINOR) Logger.minor(this, "Chosen random item "+chosenItem+" out of "+valid+" total "+index);
+			return new RemoveRandomReturn(chosenItem);
+		}
+		if(index == 0) {
+			if(logMINOR) Logger.minor(this, "No valid or excluded items total "+index);
+			return null; // Caller should remove the whole RGA
+		}
+		if(logMINOR) Logger.minor(this, "No valid items, "+index+" waiting items");
+		setWakeupTime(coolingUntil, context);
+		return new RemoveRandomReturn(coolingUntil);
+	}
+	
+	private void set(int i, RandomGrabArrayItem item) {
+		reqs[i] = item;
+		positions.put(item, i);
+	}
+	
+	private void move(int from, int to) {
+		set(to, reqs[from]);
 	}
 
-	/**
-	 * blockNo is assumed to be already active. The last block is assumed not 
-	 * to be.
-	 */
-	private void remove(int blockNo, int i) {
+	/** Remove the item at i, keeping the sendable items before the waiting items. */
+	private void removeAt(int i) {
+		positions.remove(reqs[i]);
+		if(i < ready) {
+			// Fill the gap from the last sendable item, leaving the gap in the waiting items.
+			ready--;
+			if(i != ready) move(ready, i);
+			i = ready;
+		}
 		index--;
-		int endBlock = index / BLOCK_SIZE;
-		if(blocks.length == 1 || blockNo == endBlock) {
-			RandomGrabArrayItem[] items = blocks[blockNo].reqs;
-			int idx = index % BLOCK_SIZE;
-			items[i % BLOCK_SIZE] = items[idx];
-			items[idx] = null;
-		} else {
-			RandomGrabArrayItem[] toItems = blocks[blockNo].reqs;
-			RandomGrabArrayItem[] endItems = blocks[endBlock].reqs;
-			toItems[i % BLOCK_SIZE] = endItems[index % BLOCK_SIZE];
-			endItems[index % BLOCK_SIZE] = null;
+		if(i != index) move(index, i);
+		reqs[index] = null;
+		if(reqs.length > MIN_SIZE && index < reqs.length / 4)
+			reqs = Arrays.copyOf(reqs, Math.max(index * 2, MIN_SIZE));
+	}
+	
+	/** Move a sendable item to the waiting items. */
+	private void setWaiting(int i, long wakeupTime) {
+		if(ready == index) coolingUntil = Long.MAX_VALUE;
+		ready--;
+		if(i != ready) {
+			RandomGrabArrayItem item = reqs[i];
+			move(ready, i);
+			set(ready, item);
 		}
+		if(wakeupTime < coolingUntil) coolingUntil = wakeupTime;
+	}
+	
+	/** Any of the waiting items may be sendable now. */
+	private void resetWaiting() {
+		ready = index;
+		coolingUntil = Long.MAX_VALUE;
 	}
 
 	public void remove(RandomGrabArrayItem it, ClientContext context) {
@@ -352,43 +253,12 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 		boolean matched = false;
 		boolean empty = false;
 		synchronized(root) {
-			if(blocks.length == 1) {
-				Block block = blocks[0];
-				for(int i=0;i<index;i++) {
-					if(block.reqs[i] == it) {
-						block.reqs[i] = block.reqs[--index];
-						block.reqs[index] = null;
-						matched = true;
-						break;
-					}
-				}
-				if(index == 0) empty = true;
-			} else {
-				int x = 0;
-				for(int i=0;i<blocks.length;i++) {
-					Block block = blocks[i];
-					for(int j=0;j<block.reqs.length;j++) {
-						if(x >= index) break;
-						x++;
-						if(block.reqs[j] == it) {
-							int pullFrom = --index;
-							int idx = pullFrom % BLOCK_SIZE;
-							int endBlock = pullFrom / BLOCK_SIZE;
-							if(i == endBlock) {
-								block.reqs[j] = block.reqs[idx];
-								block.reqs[idx] = null;
-							} else {
-								Block fromBlock = blocks[endBlock];
-								block.reqs[j] = fromBlock.reqs[idx];
-								fromBlock.reqs[idx] = null;
-							}
-							matched = true;
-							break;
-						}
-					}
-				}
-				if(index == 0) empty = true;
+			Integer i = positions.get(it);
+			if(i != null) {
+				removeAt(i);
+				matched = true;
 			}
+			if(index == 0) empty = true;
 		}
 		// Caller will typically clear it before calling for synchronization reasons.
 		RandomGrabArray oldArray = it.getParentGrabArray();
@@ -413,28 +283,8 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 	
 	public boolean contains(RandomGrabArrayItem item) {
 		synchronized(root) {
-			if(blocks.length == 1) {
-				Block block = blocks[0];
-				for(int i=0;i<index;i++) {
-					if(block.reqs[i] == item) {
-						return true;
-					}
-				}
-			} else {
-				int x = 0;
-				for(int i=0;i<blocks.length;i++) {
-					Block block = blocks[i];
-					for(int j=0;j<block.reqs.length;j++) {
-						if(x >= index) break;
-						x++;
-						if(block.reqs[i] == item) {
-							return true;
-						}
-					}
-				}
-			}
+			return positions.containsKey(item);
 		}
-		return false;
 	}
 	
 	public int size() {
@@ -445,27 +295,27 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 
 	public RandomGrabArrayItem get(int idx) {
 	    synchronized(root) {
-	        int blockNo = idx / BLOCK_SIZE;
-	        RandomGrabArrayItem item = blocks[blockNo].reqs[idx % BLOCK_SIZE];
-	        return item;
+	        return reqs[idx];
 	    }
 	}
 	
-	// REDFLAG this method does not move cooldown items.
-	// At present it is only called on startup so this is okay.
 	public void moveElementsTo(RandomGrabArray existingGrabber,
 			boolean canCommit) {
 		WrapperManager.signalStarting((int) MINUTES.toMillis(5));
-		for(Block block: blocks) {
-			for(int j=0;j<block.reqs.length;j++) {
-				RandomGrabArrayItem item = block.reqs[j];
-				if(item == null) continue;
-				item.setParentGrabArray(null);
-				existingGrabber.add(item, null);
-				block.reqs[j] = null;
-			}
-			System.out.println("Moved block in RGA "+this);
+		RandomGrabArrayItem[] items;
+		synchronized(root) {
+			items = Arrays.copyOf(reqs, index);
+			Arrays.fill(reqs, null);
+			positions.clear();
+			index = 0;
+			ready = 0;
+			coolingUntil = Long.MAX_VALUE;
+		}
+		for(RandomGrabArrayItem item : items) {
+			item.setParentGrabArray(null);
+			existingGrabber.add(item, null);
 		}
+		System.out.println("Moved "+items.length+" items in RGA "+this);
 	}
 
 	@Override
@@ -513,6 +363,8 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
     public boolean reduceWakeupTime(long wakeupTime, ClientContext context) {
         if(logMINOR) Logger.minor(this, "reduceCooldownTime("+(wakeupTime-System.currentTimeMillis())+") on "+this);
         synchronized(root) {
+            // A waiting item may be ready sooner than we thought.
+            if(wakeupTime < coolingUntil) coolingUntil = wakeupTime;
             if(this.wakeupTime > wakeupTime) {
                 this.wakeupTime = wakeupTime;
                 if(parent != null) parent.reduceWakeupTime(wakeupTime, context);
@@ -527,7 +379,8 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
         if(logMINOR) Logger.minor(this, "clearCooldownTime() on "+this);
         synchronized(root) {
             wakeupTime = 0;
-            if(parent != null) parent.clearWakeupTime(context);
+            resetWaiting();
+            if(parent != null) parent.childWakeupTimeCleared(this, context);
         }
     }
 	
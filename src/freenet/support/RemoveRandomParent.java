@@ -10,4 +10,9 @@ public interface RemoveRandomParent extends RequestSelectionTreeNode {
 	 */
 	public void maybeRemove(RemoveRandom r, ClientContext context);
 
+	/** Called by a child when its wakeup time is cleared, i.e. it may have something to send 
+	 * now. Clears our wakeup time and recurses up the tree, like clearWakeupTime(), but also 
+	 * tells us which child to look at again. */
+	public void childWakeupTimeCleared(RemoveRandom child, ClientContext context);
+
 }
@@ -1,6 +1,8 @@
 package freenet.support;
 
 import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
 
 import freenet.client.async.ClientContext;
 import freenet.client.async.ClientRequestSelector;
@@ -13,10 +15,10 @@ import freenet.client.async.RequestSelectionTreeNode;
  * LOCKING: There is a single lock for the entire tree, the ClientRequestSelector. This must be 
  * taken before calling any methods on RGA or SRGA. See the javadocs there for deeper explanation.
  * 
- * A lot of this is over-complicated and over-expensive because of db4o. A lot of it is O(n).
- * This is all kept in RAM now so we can change it at will, plus there is only one object 
- * queued per splitfile now, so memory pressure is much less of an issue. 
- * FIXME Simplify and improve performance!
+ * There can be a very large number of children, e.g. one per download on the global queue, so
+ * adding, finding and removing a child are O(1): we keep an index of where each client and 
+ * each grabber is, and remove by moving the last element into the gap, since the order doesn't
+ * matter.
  */
 public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> implements RemoveRandom, RemoveRandomParent, RequestSelectionTreeNode {
 	private static volatile boolean logMINOR;
@@ -27,35 +29,54 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 
 	private RemoveRandomWithObject<T>[] grabArrays;
 	private T[] grabClients;
+	/** Number of valid entries in grabArrays and grabClients. */
+	private int size;
+	/** Children before this index may have something to send. Children from here to size didn't
+	 * when we last looked at them, and won't until at least coolingUntil unless a wakeup time is
+	 * cleared. */
+	private int ready;
+	private long coolingUntil = Long.MAX_VALUE;
+	/** Where each client is in grabClients. */
+	private final Map<T, Integer> clientIndex = new IdentityHashMap<T, Integer>();
+	/** Where each grabber is in grabArrays. */
+	private final Map<RemoveRandomWithObject<T>, Integer> grabberIndex = 
+		new IdentityHashMap<RemoveRandomWithObject<T>, Integer>();
+	private final static int MIN_SIZE = 4;
 	private RemoveRandomParent parent;
 	protected final ClientRequestSelector root;
 	private long wakeupTime;
 
 	public SectoredRandomGrabArray(RemoveRandomParent parent, ClientRequestSelector root) {
-		grabClients = newClientArray(0);
-		grabArrays = newGrabberArray(0);
+		grabClients = newClientArray(MIN_SIZE);
+		grabArrays = newGrabberArray(MIN_SIZE);
 		this.parent = parent;
 		this.root = root;
 	}
 
 	protected void addElement(T client, C rga) {
 	    synchronized(root) {
-		final int len = grabArrays.length;
-
-		grabArrays = Arrays.copyOf(grabArrays, len+1);
-		grabArrays[len] = rga;
-		
-		grabClients = Arrays.copyOf(grabClients, len+1);
-		grabClients[len] = client;
+		if(size == grabArrays.length) {
+			grabArrays = Arrays.copyOf(grabArrays, size*2);
+			grabClients = Arrays.copyOf(grabClients, size*2);
+		}
+		// Put it at the end of the ready children, and the first waiting child at the end.
+		if(ready < size) move(ready, size);
+		grabArrays[ready] = rga;
+		grabClients[ready] = client;
+		if(clientIndex.containsKey(client))
+			Logger.error(this, "Adding "+client+" twice to "+this, new Exception("error"));
+		else
+			clientIndex.put(client, ready);
+		grabberIndex.put(rga, ready);
+		ready++;
+		size++;
 	    }
 	}
 
 	protected int haveClient(T client) {
 	    synchronized(root) {
-		for(int i=0;i<grabClients.length;i++) {
-			if(grabClients[i] == client) return i;
-		}
-		return -1;
+		Integer x = clientIndex.get(client);
+		return x == null ? -1 : x;
 	    }
 	}
 
@@ -94,12 +115,16 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 	@Override
 	public RemoveRandomReturn removeRandom(RandomGrabArrayItemExclusionList excluding, ClientContext context, long now) {
 	    synchronized(root) {
+		if(ready < size && now >= coolingUntil) {
+			if(logMINOR) Logger.minor(this, "Waiting grab arrays may be ready on "+this);
+			resetWaiting();
+		}
 		while(true) {
-			if(grabArrays.length == 0) return null;
-			if(grabArrays.length == 1) {
+			if(size == 0) return null;
+			if(size == 1) {
 				return removeRandomOneOnly(excluding, context, now);
 			}
-			if(grabArrays.length == 2) {
+			if(size == 2) {
 				RemoveRandomReturn ret = removeRandomTwoOnly(excluding, context, now);
 				if(ret == null) continue; // Go around loop again, it has reduced to 1 or 0.
 				return ret;
@@ -113,47 +138,24 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 	    }
 	}
 
+	/** Try every child that might have something to send, in random order. Children that 
+	 * don't are moved to the end and won't be tried again until they might have. */
 	private RemoveRandomReturn removeRandomExhaustive(
 			RandomGrabArrayItemExclusionList excluding,
 			ClientContext context, long now) {
 	    synchronized(root) {
-		long wakeupTime = Long.MAX_VALUE;
-		if(grabArrays.length == 0) return null;
-		int x = context.fastWeakRandom.nextInt(grabArrays.length);
-		for(int i=0;i<grabArrays.length;i++) {
-			x++;
-			if(x >= grabArrays.length) x = 0;
+		while(ready > 0) {
+			int x = context.fastWeakRandom.nextInt(ready);
 			RemoveRandomWithObject<T> rga = grabArrays[x];
-			long excludeTime = rga.getWakeupTime(context, now);
-			if(excludeTime > 0) {
-				if(wakeupTime > excludeTime) wakeupTime = excludeTime;
-				continue;
-			}
 			if(logMINOR)
-				Logger.minor(this, "Picked "+x+" of "+grabArrays.length+" : "+rga+" on "+this);
-			
-			RandomGrabArrayItem item = null;
-			RemoveRandomReturn val = rga.removeRandom(excluding, context, now);
-			if(val != null) {
-				if(val.item != null)
-					item = val.item;
-				else {
-					if(wakeupTime > val.wakeupTime) wakeupTime = val.wakeupTime;
-				}
-			}
-			if(logMINOR)
-				Logger.minor(this, "RGA has picked "+x+"/"+grabArrays.length+": "+item+
-						" rga.isEmpty="+rga.isEmpty());
-			if(item != null) {
+				Logger.minor(this, "Picked "+x+" of "+ready+" : "+rga+" on "+this);
+			RandomGrabArrayItem item = tryGrabber(rga, excluding, context, now);
+			if(item != null)
 				return new RemoveRandomReturn(item);
-			} else if(rga.isEmpty()) {
-				if(logMINOR)
-					Logger.minor(this, "Removing grab array "+x+" : "+rga+" (is empty)");
-				removeElement(x);
-			}
 		}
-		reduceWakeupTime(wakeupTime, context);
-		return new RemoveRandomReturn(wakeupTime);
+		if(size == 0) return null;
+		setWakeupTime(coolingUntil, context);
+		return new RemoveRandomReturn(coolingUntil);
 	    }
 	}
 
@@ -164,58 +166,49 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 		/** Count of arrays that have items but didn't return anything because of exclusions */
 		final int MAX_EXCLUDED = 10;
 		int excluded = 0;
-		while(true) {
-			if(grabArrays.length == 0) return null;
-			int x = context.fastWeakRandom.nextInt(grabArrays.length);
+		while(ready > 0) {
+			int x = context.fastWeakRandom.nextInt(ready);
 			RemoveRandomWithObject<T> rga = grabArrays[x];
-			if(rga == null) {
-				// We handle this in the other cases so we should handle it here.
-				Logger.error(this, "Slot "+x+" is null for client "+grabClients[x]);
-				excluded++;
-				if(excluded > MAX_EXCLUDED) {
-					Logger.normal(this, "Too many sub-arrays are entirely excluded on "+this+" length = "+grabArrays.length, new Exception("error"));
-					return null;
-				}
-				continue;
-			}
-			long excludeTime = rga.getWakeupTime(context, now);
-			if(excludeTime > 0) {
+			if(logMINOR)
+				Logger.minor(this, "Picked "+x+" of "+ready+" : "+rga+" on "+this);
+			RandomGrabArrayItem item = tryGrabber(rga, excluding, context, now);
+			if(item != null) return item;
+			// If it is empty it has been removed, and we don't count the exclusion.
+			if(!rga.isEmpty()) {
 				excluded++;
 				if(excluded > MAX_EXCLUDED) {
-					Logger.normal(this, "Too many sub-arrays are entirely excluded on "+this+" length = "+grabArrays.length, new Exception("error"));
+					Logger.normal(this, "Too many sub-arrays are entirely excluded on "+this+" length = "+size, new Exception("error"));
 					return null;
 				}
-				continue;
 			}
-			if(logMINOR)
-				Logger.minor(this, "Picked "+x+" of "+grabArrays.length+" : "+rga+" on "+this);
-			
-			RandomGrabArrayItem item = null;
+		}
+		return null;
+	    }
+	}
+	
+	/** Ask a child that might have something to send for an item. If it doesn't have one, it is
+	 * either removed (if empty) or moved to the waiting children. */
+	private RandomGrabArrayItem tryGrabber(RemoveRandomWithObject<T> rga,
+			RandomGrabArrayItemExclusionList excluding, ClientContext context, long now) {
+		long wakeupTime = rga.getWakeupTime(context, now);
+		if(wakeupTime <= 0) {
 			RemoveRandomReturn val = rga.removeRandom(excluding, context, now);
-			if(val != null && val.item != null) item = val.item;
+			if(val != null && val.item != null) return val.item;
 			if(logMINOR)
-				Logger.minor(this, "RGA has picked "+x+"/"+grabArrays.length+": "+item+
-						" rga.isEmpty="+rga.isEmpty());
-			// If it is not empty but returns null we exclude it, and count the exclusion.
-			// If it is empty we remove it, and don't count the exclusion.
-			if(item != null) {
-				return item;
-			} else {
-				if(rga.isEmpty()) {
-					if(logMINOR)
-						Logger.minor(this, "Removing grab array "+x+" : "+rga+" (is empty)");
-					removeElement(x);
-				} else {
-					excluded++;
-					if(excluded > MAX_EXCLUDED) {
-						Logger.normal(this, "Too many sub-arrays are entirely excluded on "+this+" length = "+grabArrays.length, new Exception("error"));
-						return null;
-					}
-				}
-				continue;
+				Logger.minor(this, "RGA has nothing to send: "+rga+" rga.isEmpty="+rga.isEmpty());
+			if(rga.isEmpty()) {
+				if(logMINOR)
+					Logger.minor(this, "Removing grab array "+rga+" (is empty)");
+				removeGrabber(rga);
+				return null;
 			}
+			wakeupTime = val == null ? 0 : val.wakeupTime;
+			// Shouldn't happen, but don't busy-loop on it.
+			if(wakeupTime <= now) wakeupTime = now + RandomGrabArray.EXCLUDED_RECHECK_TIME;
 		}
-	    }
+		Integer x = grabberIndex.get(rga);
+		if(x != null && x < ready) setWaiting(x, wakeupTime);
+		return null;
 	}
 
 	private RemoveRandomReturn removeRandomTwoOnly(
@@ -231,13 +224,11 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 			Logger.error(this, "rga = null on "+this);
 			if(grabArrays[1-x] == null) {
 				Logger.error(this, "other rga is also null on "+this);
-				grabArrays = newGrabberArray(0);
-				grabClients = newClientArray(0);
+				clear();
 				return null;
 			} else {
 				Logger.error(this, "grabArrays["+(1-x)+"] is valid but ["+x+"] is null, correcting...");
-				grabArrays = asGrabberArray(grabArrays[1-x]);
-				grabClients = asClientArray(grabClients[1-x]);
+				removeElement(x);
 				return null;
 			}
 		}
@@ -268,8 +259,7 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 			rga = grabArrays[x];
 			if(rga == null) {
 				Logger.error(this, "Other RGA is null later on on "+this);
-				grabArrays = asGrabberArray(grabArrays[1-x]);
-				grabClients = asClientArray(grabClients[1-x]);
+				removeElement(x);
                 reduceWakeupTime(wakeupTime, context);
 				return new RemoveRandomReturn(wakeupTime);
 			}
@@ -289,17 +279,15 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 			}
 			if(firstRGA != null && firstRGA.isEmpty() && rga != null && rga.isEmpty()) {
 				if(logMINOR) Logger.minor(this, "Removing both on "+this+" : "+firstRGA+" and "+rga+" are empty");
-				grabArrays = newGrabberArray(0);
-				grabClients = newClientArray(0);
+				clear();
 			} else if(firstRGA != null && firstRGA.isEmpty()) {
 				if(logMINOR) Logger.minor(this, "Removing first: "+firstRGA+" is empty on "+this);
-				grabArrays = asGrabberArray(grabArrays[x]); // don't use RGA, it may be nulled out
-				grabClients = asClientArray(grabClients[x]);
+				removeGrabber(firstRGA);
 			}
 			if(logMINOR)
 				Logger.minor(this, "Returning (two items only) "+item+" for "+rga);
 			if(item == null) {
-				if(grabArrays.length == 0)
+				if(size == 0)
 					return null; // Remove this as well
                 reduceWakeupTime(wakeupTime, context);
 				return new RemoveRandomReturn(wakeupTime);
@@ -322,8 +310,7 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 		if(rga == null) {
 			Logger.error(this, "Only one entry and that is null");
 			// We are sure
-			grabArrays = newGrabberArray(0);
-			grabClients = newClientArray(0);
+			clear();
 			return null;
 		}
 		RemoveRandomReturn val = rga.removeRandom(excluding, context, now);
@@ -338,13 +325,12 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 		if(rga.isEmpty()) {
 			if(logMINOR)
 				Logger.minor(this, "Removing only grab array (0) : "+rga);
-			grabArrays = newGrabberArray(0);
-			grabClients = newClientArray(0);
+			clear();
 		}
 		if(logMINOR)
 			Logger.minor(this, "Returning (one item only) "+item+" for "+rga);
 		if(item == null) {
-			if(grabArrays.length == 0) {
+			if(size == 0) {
 				if(logMINOR) Logger.minor(this, "Arrays are empty on "+this);
 				return null; // Remove this as well
 			}
@@ -354,62 +340,119 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 	    }
 	}
 
+	/** Remove an element by moving another element into its place, keeping the ready children 
+	 * before the waiting children. */
 	private void removeElement(int x) {
 	    synchronized(root) {
-		final int grabArraysLength = grabArrays.length;
-		int newLen = grabArraysLength > 1 ? grabArraysLength-1 : 0;
-		RemoveRandomWithObject<T>[] newArray = newGrabberArray(newLen);
-		if(x > 0)
-			System.arraycopy(grabArrays, 0, newArray, 0, x);
-		if(x < grabArraysLength-1)
-			System.arraycopy(grabArrays, x+1, newArray, x, grabArraysLength - (x+1));
-		grabArrays = newArray;
-		
-		T[] newClients = newClientArray(newLen);
-		if(x > 0)
-			System.arraycopy(grabClients, 0, newClients, 0, x);
-		if(x < grabArraysLength-1)
-			System.arraycopy(grabClients, x+1, newClients, x, grabArraysLength - (x+1));
-		grabClients = newClients;
+		RemoveRandomWithObject<T> rga = grabArrays[x];
+		T client = grabClients[x];
+		Integer idx = clientIndex.get(client);
+		if(idx != null && idx == x) clientIndex.remove(client);
+		idx = grabberIndex.get(rga);
+		if(idx != null && idx == x) grabberIndex.remove(rga);
+		if(x < ready) {
+			// Fill the gap from the last ready child, leaving the gap in the waiting children.
+			ready--;
+			if(x != ready) move(ready, x);
+			x = ready;
+		}
+		int last = --size;
+		if(x != last) move(last, x);
+		grabArrays[last] = null;
+		grabClients[last] = null;
+		if(grabArrays.length > MIN_SIZE && size < grabArrays.length / 4) {
+			int newLength = Math.max(MIN_SIZE, size * 2);
+			grabArrays = Arrays.copyOf(grabArrays, newLength);
+			grabClients = Arrays.copyOf(grabClients, newLength);
+		}
+	    }
+	}
+	
+	/** Move an element, updating the indexes. Does not clear the old slot. */
+	private void move(int from, int to) {
+		RemoveRandomWithObject<T> rga = grabArrays[from];
+		T client = grabClients[from];
+		grabArrays[to] = rga;
+		grabClients[to] = client;
+		Integer idx = clientIndex.get(client);
+		if(idx != null && idx == from) clientIndex.put(client, to);
+		idx = grabberIndex.get(rga);
+		if(idx != null && idx == from) grabberIndex.put(rga, to);
+	}
+	
+	private void swap(int a, int b) {
+		RemoveRandomWithObject<T> rga = grabArrays[a];
+		T client = grabClients[a];
+		Integer clientIdx = clientIndex.get(client);
+		move(b, a);
+		grabArrays[b] = rga;
+		grabClients[b] = client;
+		if(clientIdx != null && clientIdx == a) clientIndex.put(client, b);
+		grabberIndex.put(rga, b);
+	}
+	
+	/** Move a ready child to the waiting children. */
+	private void setWaiting(int x, long wakeupTime) {
+		if(ready == size) coolingUntil = Long.MAX_VALUE;
+		ready--;
+		if(x != ready) swap(x, ready);
+		if(wakeupTime < coolingUntil) coolingUntil = wakeupTime;
+	}
+	
+	/** Move a waiting child to the ready children. */
+	private void setReady(int x) {
+		if(x != ready) swap(x, ready);
+		ready++;
+	}
+	
+	/** Any of the waiting children may have something to send now. */
+	private void resetWaiting() {
+		ready = size;
+		coolingUntil = Long.MAX_VALUE;
+	}
+
+	private boolean removeGrabber(RemoveRandom r) {
+	    synchronized(root) {
+		Integer x = grabberIndex.get(r);
+		if(x == null || grabArrays[x] != r) return false;
+		removeElement(x);
+		return true;
+	    }
+	}
+	
+	private void clear() {
+	    synchronized(root) {
+		grabArrays = newGrabberArray(MIN_SIZE);
+		grabClients = newClientArray(MIN_SIZE);
+		clientIndex.clear();
+		grabberIndex.clear();
+		size = 0;
+		ready = 0;
+		coolingUntil = Long.MAX_VALUE;
 	    }
 	}
 
 	public boolean isEmpty() {
 	    synchronized(root) {
-		return grabArrays.length == 0;
+		return size == 0;
 	    }
 	}
 	
 	public int size() {
 	    synchronized(root) {
-		return grabArrays.length;
+		return size;
 	    }
 	}
 	
 	@Override
 	public void maybeRemove(RemoveRandom r, ClientContext context) {
-		int count = 0;
+		boolean removed;
 		int finalSize;
 		synchronized(root) {
-			while(true) {
-				int found = -1;
-				for(int i=0;i<grabArrays.length;i++) {
-					if(grabArrays[i] == r) {
-						found = i;
-						break;
-					}
-				}
-				if(found != -1) {
-					count++;
-					if(count > 1) Logger.error(this, "Found "+r+" many times in "+this, new Exception("error"));
-					removeElement(found);
-				} else {
-					break;
-				}
-			}
-			finalSize = grabArrays.length;
+			removed = removeGrabber(r);
+			finalSize = size;
 		}
-		if(count == 0) {
+		if(!removed) {
 			// This is not unusual, it was e.g. removed because of being empty.
 			// And it has already been removeFrom()'ed.
 			if(logMINOR) Logger.minor(this, "Not in parent: "+r+" for "+this, new Exception("error"));
@@ -446,6 +489,8 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
         if(logMINOR) Logger.minor(this, "reduceCooldownTime("+(wakeupTime-System.currentTimeMillis())+") on "+this);
         boolean reachedRoot = false;
         synchronized(root) {
+            // A waiting child may have something to send sooner than we thought.
+            if(wakeupTime < coolingUntil) coolingUntil = wakeupTime;
             if(this.wakeupTime > wakeupTime) {
                 this.wakeupTime = wakeupTime;
                 if(parent != null) parent.reduceWakeupTime(wakeupTime, context);
@@ -462,14 +507,28 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
         if(logMINOR) Logger.minor(this, "clearCooldownTime() on "+this);
         synchronized(root) {
             wakeupTime = 0;
-            if(parent != null) parent.clearWakeupTime(context);
+            if(parent != null) parent.childWakeupTimeCleared(this, context);
         }
     }
-
-    private T[] asClientArray(T client) {
-        T[] clients = newClientArray(1);
-        clients[0] = client;
-        return clients;
+    
+    @Override
+    public void childWakeupTimeCleared(RemoveRandom child, ClientContext context) {
+        synchronized(root) {
+            Integer x = grabberIndex.get(child);
+            if(x != null && x >= ready) setReady(x);
+            clearWakeupTime(context);
+        }
+    }
+    
+    /** Set the wakeup time after checking all the children that might have been ready. If it is 
+     * reduced, parents will be updated, as in RandomGrabArray. */
+    private void setWakeupTime(long wakeupTime, ClientContext context) {
+        synchronized(root) {
+            if(this.wakeupTime > wakeupTime)
+                reduceWakeupTime(wakeupTime, context);
+            else
+                this.wakeupTime = wakeupTime;
+        }
     }
 
     @SuppressWarnings("unchecked")
@@ -477,12 +536,6 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
         return (T[])new Object[length];
     }
 
-    private RemoveRandomWithObject<T>[] asGrabberArray(RemoveRandomWithObject<T> grabber) {
-        RemoveRandomWithObject<T>[] grabbers = newGrabberArray(1);
-        grabbers[0] = grabber;
-        return grabbers;
-    }
-
     @SuppressWarnings("unchecked")
     private RemoveRandomWithObject<T>[] newGrabberArray(int length) {
         return (RemoveRandomWithObject<T>[])new RemoveRandomWithObject<?>[length];
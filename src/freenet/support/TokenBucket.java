@@ -1,5 +1,7 @@
 package freenet.support;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 import freenet.support.Logger.LogLevel;
 
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
@@ -8,6 +10,13 @@ import static java.util.concurrent.TimeUnit.NANOSECONDS;
 /**
  * Token bucket. Can be used for e.g. bandwidth limiting.
  * Tokens are added once per tick.
+ *
+ * The non-blocking methods (instantGrab, partialInstantGrab, forceGrab, getCount etc) do not
+ * take a lock: the balance and the time of the last tick are kept in atomics, and a thread
+ * which wants to add tokens must first claim the elapsed ticks by moving timeLastTick forward
+ * with a compare-and-set. Only the thread which wins that race credits the tokens, so each tick
+ * is counted exactly once however many threads are sending packets. The blocking grab and the
+ * rate changes still synchronize, because they need to wait() / notifyAll().
  */
 @Deprecated public class TokenBucket {
 
@@ -15,10 +24,12 @@ import static java.util.concurrent.TimeUnit.NANOSECONDS;
 	static {
 		LoggerHook.registerClass(TokenBucket.class);
 	}
-	protected long current;
-	protected long max;
-	protected long timeLastTick;
-	protected long nanosPerTick;
+	/** The current balance. May be negative after forceGrab() or a blocking grab. */
+	private final AtomicLong current;
+	/** The time of the last tick we have accounted for, in nanoseconds. */
+	private final AtomicLong timeLastTick;
+	private volatile long max;
+	private volatile long nanosPerTick;
 	
 	/**
 	 * Create a token bucket.
@@ -27,14 +38,14 @@ import static java.util.concurrent.TimeUnit.NANOSECONDS;
 	 */
 	public TokenBucket(long max, long nanosPerTick, long initialValue) {
 		this.max = max;
-		this.current = initialValue;
-		if(current > max) {
-			Logger.error(this, "initial value ("+current+") > max ("+max+") in "+this, new Exception("error"));
-			current = max;
+		if(initialValue > max) {
+			Logger.error(this, "initial value ("+initialValue+") > max ("+max+") in "+this, new Exception("error"));
+			initialValue = max;
 		}
+		this.current = new AtomicLong(initialValue);
 		this.nanosPerTick = nanosPerTick;
 		long now = System.currentTimeMillis();
-		this.timeLastTick = NANOSECONDS.convert(now, MILLISECONDS);
+		this.timeLastTick = new AtomicLong(NANOSECONDS.convert(now, MILLISECONDS));
 		if(nanosPerTick <= 0) throw new IllegalArgumentException();
 		if(max <= 0) throw new IllegalArgumentException();
 	}
@@ -44,18 +55,17 @@ import static java.util.concurrent.TimeUnit.NANOSECONDS;
 	 * @param tokens The number of tokens to grab.
 	 * @return True if we could acquire the tokens.
 	 */
-	public synchronized boolean instantGrab(long tokens) {
+	public boolean instantGrab(long tokens) {
 		if(tokens < 0) throw new IllegalArgumentException("Can't grab negative tokens: "+tokens);
 		if(logMINOR)
 			Logger.minor(this, "instant grab: "+tokens+" current="+current+" max="+max);
 		addTokens();
 		if(logMINOR)
 			Logger.minor(this, "instant grab: "+tokens+" current="+current+" max="+max);
-		if(current >= tokens) {
-			current -= tokens;
-			return true;
-		} else {
-			return false;
+		while(true) {
+			long c = current.get();
+			if(c < tokens) return false;
+			if(current.compareAndSet(c, c - tokens)) return true;
 		}
 	}
 	
@@ -64,20 +74,21 @@ import static java.util.concurrent.TimeUnit.NANOSECONDS;
 	 * @param tokens The number of tokens to grab.
 	 * @return The number of tokens grabbed.
 	 */
-	public synchronized long partialInstantGrab(long tokens) {
+	public long partialInstantGrab(long tokens) {
 		if(tokens < 0) throw new IllegalArgumentException("Can't grab negative tokens: "+tokens);
 		if(logMINOR)
 			Logger.minor(this, "instant grab: "+tokens+" current="+current+" max="+max);
 		addTokens();
 		if(logMINOR)
 			Logger.minor(this, "instant grab: "+tokens+" current="+current+" max="+max);
-		if(current >= tokens) {
-			current -= tokens;
-			return tokens;
-		} else {
-			tokens = current;
-			current = 0;
-			return tokens;
+		while(true) {
+			long c = current.get();
+			if(c >= tokens) {
+				if(current.compareAndSet(c, c - tokens)) return tokens;
+			} else {
+				if(c <= 0) return 0;
+				if(current.compareAndSet(c, 0)) return c;
+			}
 		}
 	}
 	
@@ -85,24 +96,24 @@ import static java.util.concurrent.TimeUnit.NANOSECONDS;
 	 * Remove tokens, without blocking, even if it causes the balance to go negative.
 	 * @param tokens The number of tokens to remove.
 	 */
-	public synchronized void forceGrab(long tokens) {
+	public void forceGrab(long tokens) {
 		if(tokens < 0) throw new IllegalArgumentException("Can't grab negative tokens: "+tokens);
 		if(logMINOR) Logger.minor(this, "forceGrab("+tokens+")");
 		addTokens();
-		current -= tokens;
-		if(logMINOR) Logger.minor(this, "Removed tokens, balance now "+current);
+		long balance = current.addAndGet(-tokens);
+		if(logMINOR) Logger.minor(this, "Removed tokens, balance now "+balance);
 	}
 	
-	public synchronized long count() {
-		return current;
+	public long count() {
+		return current.get();
 	}
 	
 	/**
 	 * Get the current number of available tokens.
 	 */
-	public synchronized long getCount() {
+	public long getCount() {
 		addTokens();
-		return current;
+		return current.get();
 	}
 
 	protected long offset() {
@@ -132,16 +143,16 @@ import static java.util.concurrent.TimeUnit.NANOSECONDS;
 		addTokens();
 		if(logMINOR) Logger.minor(this, "current="+current);
 		
-		current -= tokens;
+		long balance = current.addAndGet(-tokens);
 		
-		if(current >= 0) {
-			if(logMINOR) Logger.minor(this, "Got tokens instantly, current="+current);
+		if(balance >= 0) {
+			if(logMINOR) Logger.minor(this, "Got tokens instantly, current="+balance);
 			return;
 		} else {
-			if(logMINOR) Logger.minor(this, "Blocking grab removed tokens, current="+current+" - will have to wait because negative...");
+			if(logMINOR) Logger.minor(this, "Blocking grab removed tokens, current="+balance+" - will have to wait because negative...");
 		}
 		
-		long minDelayNS = nanosPerTick * (-current);
+		long minDelayNS = nanosPerTick * (-balance);
 		long minDelayMS = MILLISECONDS.convert(minDelayNS + MILLISECONDS.toNanos(1) - 1, NANOSECONDS);
 		long now = System.currentTimeMillis();
 		long wakeAt = now + minDelayMS;
@@ -162,10 +173,13 @@ import static java.util.concurrent.TimeUnit.NANOSECONDS;
 		if(logMINOR) Logger.minor(this, "Blocking grab finished: current="+current);
 	}
 
-	public synchronized void recycle(long tokens) {
+	public void recycle(long tokens) {
 		if(tokens < 0) throw new IllegalArgumentException("Can't recycle negative tokens: "+tokens);
-		current += tokens;
-		if(current > max) current = max;
+		while(true) {
+			long c = current.get();
+			long n = Math.min(c + tokens, max);
+			if(current.compareAndSet(c, n)) return;
+		}
 	}
 	
 	/**
@@ -176,8 +190,9 @@ import static java.util.concurrent.TimeUnit.NANOSECONDS;
 		if(nanosPerTick <= 0) throw new IllegalArgumentException();
 		// Synchronize up first, using the old nanosPerTick.
 		addTokens();
+		boolean faster = nanosPerTick < this.nanosPerTick;
 		this.nanosPerTick = nanosPerTick;
-		if(nanosPerTick < this.nanosPerTick)
+		if(faster)
 			notifyAll();
 	}
 
@@ -196,37 +211,66 @@ import static java.util.concurrent.TimeUnit.NANOSECONDS;
 			notifyAll();
 		this.nanosPerTick = nanosPerTick;
 		this.max = newMax;
-		if(current > max) current = max;
+		clip();
 	}
 	
-	public synchronized void addTokens() {
+	public void addTokens() {
 		addTokensNoClip();
-		if(current > max) current = max;
+		clip();
 		if(logMINOR)
 			Logger.minor(this, "addTokens: Clipped, current="+current);
 	}
+
+	/** Clip the balance to the maximum bucket size. */
+	private void clip() {
+		while(true) {
+			long c = current.get();
+			long m = max;
+			if(c <= m) return;
+			if(current.compareAndSet(c, m)) return;
+		}
+	}
 	
 	/**
 	 * Update the number of tokens according to elapsed time.
 	 */
-	public synchronized void addTokensNoClip() {
-		long add = tokensToAdd();
-		current += add;
-		timeLastTick += add * nanosPerTick;
-		if(logMINOR)
-			Logger.minor(this, "addTokensNoClip: Added "+add+" tokens, current="+current);
-		// Deliberately do not clip to size at this point; caller must do this, but it is usually beneficial for the caller to do so.
+	public void addTokensNoClip() {
+		long nowNS = NANOSECONDS.convert(System.currentTimeMillis(), MILLISECONDS);
+		while(true) {
+			long last = timeLastTick.get();
+			long npt = nanosPerTick;
+			long add = tokensToAdd(last, nowNS, npt);
+			if(add < 0) {
+				// Clock skew. Reset the tick without adding anything.
+				if(timeLastTick.compareAndSet(last, nowNS)) {
+					reportClockSkew(last, nowNS);
+					return;
+				}
+				continue;
+			}
+			if(add == 0) return;
+			// Claim the ticks; whoever wins credits the tokens, everyone else re-reads.
+			if(timeLastTick.compareAndSet(last, last + add * npt)) {
+				long balance = current.addAndGet(add);
+				if(logMINOR)
+					Logger.minor(this, "addTokensNoClip: Added "+add+" tokens, current="+balance);
+				// Deliberately do not clip to size at this point; caller must do this, but it is usually beneficial for the caller to do so.
+				return;
+			}
+		}
 	}
 	
-	synchronized long tokensToAdd() {
+	long tokensToAdd() {
 		long nowNS = NANOSECONDS.convert(System.currentTimeMillis(), MILLISECONDS);
-		if(timeLastTick > nowNS) {
-			System.err.println("CLOCK SKEW DETECTED! CLOCK WENT BACKWARDS BY AT LEAST "+TimeUtil.formatTime(MILLISECONDS.convert(timeLastTick - nowNS, NANOSECONDS), 2, true));
-			System.err.println("FREENET WILL BREAK SEVERELY IF THIS KEEPS HAPPENING!");
-			Logger.error(this, "CLOCK SKEW DETECTED! CLOCK WENT BACKWARDS BY AT LEAST "+TimeUtil.formatTime(MILLISECONDS.convert(timeLastTick - nowNS, NANOSECONDS), 2, true));
-			timeLastTick = nowNS;
-			return 0;
-		}
+		return Math.max(0, tokensToAdd(timeLastTick.get(), nowNS, nanosPerTick));
+	}
+
+	/**
+	 * @return The number of whole ticks between timeLastTick and nowNS, or -1 if the clock went
+	 * backwards.
+	 */
+	private static long tokensToAdd(long timeLastTick, long nowNS, long nanosPerTick) {
+		if(timeLastTick > nowNS) return -1;
 		long nextTick = timeLastTick + nanosPerTick;
 		if(nextTick > nowNS) {
 			return 0;
@@ -237,7 +281,14 @@ import static java.util.concurrent.TimeUnit.NANOSECONDS;
 		return (nowNS - nextTick) / nanosPerTick;
 	}
 	
-	public synchronized long getNanosPerTick() {
+	private void reportClockSkew(long timeLastTick, long nowNS) {
+		String skew = TimeUtil.formatTime(MILLISECONDS.convert(timeLastTick - nowNS, NANOSECONDS), 2, true);
+		System.err.println("CLOCK SKEW DETECTED! CLOCK WENT BACKWARDS BY AT LEAST "+skew);
+		System.err.println("FREENET WILL BREAK SEVERELY IF THIS KEEPS HAPPENING!");
+		Logger.error(this, "CLOCK SKEW DETECTED! CLOCK WENT BACKWARDS BY AT LEAST "+skew);
+	}
+
+	public long getNanosPerTick() {
 		return nanosPerTick;
 	}
 }
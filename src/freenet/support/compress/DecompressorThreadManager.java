@@ -9,19 +9,22 @@ import freenet.support.LogThresholdCallback;
 import freenet.support.TimeUtil;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.ArrayDeque;
 import java.util.Queue;
 
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+import freenet.support.io.ChunkedPipe;
 import freenet.support.io.Closer;
+import freenet.support.io.CountedInputStream;
+import freenet.support.io.CountedOutputStream;
 
 /** Creates and manages decompressor threads. This class is 
  * given all decompressors which should be applied to an
@@ -33,8 +36,9 @@ import freenet.support.io.Closer;
 public class DecompressorThreadManager {
 
 	final Queue<DecompressorThread> threads;
-	PipedInputStream input;
-	PipedOutputStream output = new PipedOutputStream();
+	InputStream input;
+	/** One for each decompressor, in the order they are applied. */
+	private final List<StageStats> stats;
 	final long maxLen;
 	private boolean finished = false;
 	private Throwable error = null;
@@ -53,8 +57,9 @@ public class DecompressorThreadManager {
 	 * @param inputStream The stream that will be decompressed, if compressed
 	 * @param maxLen The maximum number of bytes to extract
 	 */
-	public DecompressorThreadManager(PipedInputStream inputStream, List<? extends Compressor> decompressors, long maxLen) throws IOException {
+	public DecompressorThreadManager(InputStream inputStream, List<? extends Compressor> decompressors, long maxLen) throws IOException {
 		threads = new ArrayDeque<DecompressorThread>(decompressors.size());
+		stats = new ArrayList<StageStats>(decompressors.size());
 		this.maxLen = maxLen;
 		if(inputStream == null) {
 			IOException e = new IOException("Input stream may not be null");
@@ -65,10 +70,11 @@ public class DecompressorThreadManager {
 		while(!decompressors.isEmpty()) {
 			Compressor compressor = decompressors.remove(decompressors.size()-1);
 			if(logMINOR) Logger.minor(this, "Decompressing with "+compressor);
-			DecompressorThread thread = new DecompressorThread(compressor, this, input, output, maxLen);
+			ChunkedPipe pipe = new ChunkedPipe();
+			DecompressorThread thread = new DecompressorThread(compressor, this, input, pipe.getOutputStream(), maxLen);
 			threads.add(thread);
-			input = new PipedInputStream(output);
-			output = new PipedOutputStream();
+			stats.add(thread.stats);
+			input = pipe.getInputStream();
 		}
 	}
 
@@ -76,7 +82,7 @@ public class DecompressorThreadManager {
 	 * chaining the output of the previous to the next.
 	 * @return An InputStream from which uncompressed data may be read from
 	 */
-	public synchronized PipedInputStream execute() throws Throwable {
+	public synchronized InputStream execute() throws Throwable {
 		if(error != null) throw error;
 		if(threads.isEmpty()) {
 			onFinish();
@@ -93,12 +99,9 @@ public class DecompressorThreadManager {
 				if(logMINOR) Logger.minor(this, "Started decompressor thread "+t);
 				count++;
 			}
-			output.close();
 		} catch(Throwable t) {
 			onFailure(t);
 			throw t;
-		} finally {
-			Closer.close(output);
 		}
 		return input;
 		
@@ -139,6 +142,89 @@ public class DecompressorThreadManager {
 		if(error != null) throw error;
 	}
 
+	/** @return How long each decompressor took, and how much data went through it. Updated as
+	 * decompression proceeds, so this can be used for a request in progress. */
+	public List<StageStats> getStats() {
+		return Collections.unmodifiableList(stats);
+	}
+
+	/** Throughput of a single decompressor, for working out where the time goes on a fetch. */
+	public static class StageStats {
+		public final String compressor;
+		private volatile long bytesIn;
+		private volatile long bytesOut;
+		private volatile long startTime;
+		private volatile long time;
+
+		StageStats(String compressor) {
+			this.compressor = compressor;
+		}
+
+		/** Compressed bytes read so far. Only updated when the stage finishes. */
+		public long bytesIn() {
+			return bytesIn;
+		}
+
+		/** Decompressed bytes written. Only updated when the stage finishes. */
+		public long bytesOut() {
+			return bytesOut;
+		}
+
+		/** Time from starting to finishing, in nanoseconds, including time spent waiting for
+		 * input and for the next stage to accept output. */
+		public long time() {
+			long start = startTime;
+			if(time == 0 && start != 0) return System.nanoTime() - start;
+			return time;
+		}
+
+		/** Decompressed bytes per second, 0 until finished. */
+		public long bytesPerSecond() {
+			if(time == 0) return 0;
+			return (long) (bytesOut * 1e9 / time);
+		}
+
+		@Override
+		public String toString() {
+			return compressor+": "+bytesIn+" -> "+bytesOut+" bytes in "+time()/1000000+"ms ("+
+				bytesPerSecond()/1024+"KB/sec)";
+		}
+	}
+
+	/** LZMA is slow and needs a lot of input per output byte for a large window, so read ahead
+	 * of it, so that the fetch isn't held up waiting for it. */
+	static final int READ_AHEAD_CHUNKS = 64;
+
+	/** Copy the input to a large pipe on a separate thread. Errors are passed on to the reader,
+	 * and if the reader gives up, so does the copier, closing the input. */
+	private static InputStream readAhead(final InputStream input, String name) {
+		ChunkedPipe pipe = new ChunkedPipe(ChunkedPipe.DEFAULT_CHUNK_SIZE, READ_AHEAD_CHUNKS);
+		final ChunkedPipe.Output output = pipe.getOutputStream();
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				byte[] buf = new byte[ChunkedPipe.DEFAULT_CHUNK_SIZE];
+				try {
+					int read;
+					while((read = input.read(buf)) != -1)
+						output.write(buf, 0, read);
+					output.close();
+				} catch (IOException e) {
+					output.abort(e);
+				} catch (Throwable t) {
+					// E.g. OutOfMemoryError. The reader must not wait forever for more data.
+					Logger.error(this, "Read-ahead failed: "+t, t);
+					output.abort(new IOException("Read-ahead failed: "+t, t));
+				} finally {
+					Closer.close(input);
+				}
+			}
+		}, name);
+		t.setDaemon(true);
+		t.start();
+		return pipe.getInputStream();
+	}
+
 	/** Returns an exception which was thrown during decompression
 	 * @return Returns an exception which was caught during the decompression
 	 */
@@ -159,19 +245,25 @@ public class DecompressorThreadManager {
 		private InputStream input;
 		/**The stream decompressed data will be written*/
 		private OutputStream output;
+		/**The pipe to the next stage, so we can pass on a failure*/
+		private final ChunkedPipe.Output pipe;
 		/**A upper limit to how much data may be decompressed. This is passed to the decompressor*/
 		final long maxLen;
 		/**The manager which created the thread*/
 		final DecompressorThreadManager manager;
 		/**Whether or not this thread should signal the manager that decompression has finished*/
 		boolean isLast = false;
+		final StageStats stats;
 
-		public DecompressorThread(Compressor compressor, DecompressorThreadManager manager, InputStream input, PipedOutputStream output, long maxLen) {
+		public DecompressorThread(Compressor compressor, DecompressorThreadManager manager, InputStream input, ChunkedPipe.Output output, long maxLen) {
 			this.compressor = compressor;
-			this.input = new BufferedInputStream(input);
-			this.output = new BufferedOutputStream(output);
+			// The pipe buffers whole chunks, so only the caller's stream needs buffering.
+			this.input = input instanceof ChunkedPipe.Input ? input : new BufferedInputStream(input);
+			this.output = output;
+			this.pipe = output;
 			this.maxLen = maxLen;
 			this.manager = manager;
+			this.stats = new StageStats(compressor.toString());
 		}
 
 		/**Begins the decompression */
@@ -180,7 +272,19 @@ public class DecompressorThreadManager {
 			if(logMINOR) Logger.minor(this, "Decompressing...");
 			try {
 				if(manager.getError() == null) {
-					compressor.decompress(input, output, maxLen, maxLen * 4);
+					stats.startTime = System.nanoTime();
+					if(isLZMA())
+						input = readAhead(input, "Decompressor read-ahead");
+					CountedInputStream cis = new CountedInputStream(input);
+					CountedOutputStream cos = new CountedOutputStream(output);
+					if(isBzip2() && ParallelBzip2Decompressor.shouldUse())
+						new ParallelBzip2Decompressor().decompress(cis, cos, maxLen, maxLen * 4);
+					else
+						compressor.decompress(cis, cos, maxLen, maxLen * 4);
+					stats.bytesIn = cis.count();
+					stats.bytesOut = cos.written();
+					stats.time = Math.max(1, System.nanoTime() - stats.startTime);
+					if(logMINOR) Logger.minor(this, "Decompressed "+stats);
 					input.close();
 					output.close();
 					// Avoid relatively expensive repeated close on normal completion
@@ -191,12 +295,23 @@ public class DecompressorThreadManager {
 				if(logMINOR) Logger.minor(this, "Finished decompressing...");
 			} catch (Exception e) {
 				manager.onFailure(e);
+				// Tell the next stage rather than letting it see a truncated stream.
+				pipe.abort(e);
 			} finally {
 				Closer.close(input);
 				Closer.close(output);
 			}
 		}
 
+		private boolean isBzip2() {
+			return compressor == COMPRESSOR_TYPE.BZIP2 || compressor instanceof Bzip2Compressor;
+		}
+
+		private boolean isLZMA() {
+			return compressor == COMPRESSOR_TYPE.LZMA || compressor == COMPRESSOR_TYPE.LZMA_NEW ||
+				compressor instanceof NewLZMACompressor || compressor instanceof OldLZMACompressor;
+		}
+
 		/** Should be called before executing the thread when there 
 		 * are no further decompressors pending*/
 		public void setLast() {
@@ -0,0 +1,552 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+* Public License, version 2 (or at your option any later version). See
+* http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+
+import freenet.support.Logger;
+import freenet.support.io.NativeThread;
+
+/**
+** Decompresses a BZip2 stream (without the "BZ" header, see {@link Bzip2Compressor}) on several
+** threads. A bzip2 stream is a series of independently compressed blocks of up to 900KB, each
+** starting with a 48-bit magic number, but not byte aligned. We find the block boundaries by
+** looking for the magic number, wrap each block up as a stream of its own, decompress a few
+** blocks at once, and write them out in order.
+**
+** The magic number can also occur by chance inside a block. Then neither half will decode, so
+** we join them and try again, until the joined block is bigger than a real block can be. The
+** CRC of the whole stream is checked against the block CRCs, as the serial decoder does.
+**
+** A block decompresses to at most 900KB before the initial run-length encoding is undone, but
+** up to about 45MB after it. We only buffer up to MAX_BUFFERED_OUTPUT of each block; a block
+** which decompresses to more than that is decoded again by the calling thread, straight to the
+** output.
+**
+** Every block in flight takes a permit from a budget shared by all decompressions, so several
+** downloads finishing at once can't fill the heap. When the budget is used up, we decode the
+** next block on the calling thread, like the serial decoder.
+*/
+public class ParallelBzip2Decompressor {
+
+	private static final long BLOCK_MAGIC = 0x314159265359L;
+	private static final long END_MAGIC = 0x177245385090L;
+	private static final long MAGIC_MASK = (1L << 48) - 1;
+	/** A compressed block is at most 900KB plus 1% plus 600 bytes, so anything bigger than this
+	 * is corrupt. */
+	static final int MAX_BLOCK_BYTES = 1000*1000;
+	/** Decoders buffer at most this much output for a block. */
+	static final int MAX_BUFFERED_OUTPUT = 4*1024*1024;
+	/** Don't use more threads than this, even on a big machine: we are usually limited by what
+	 * comes after us (the content filter and the disk). */
+	private static final int MAX_THREADS = 8;
+	/** The memory one block in flight can use: the compressed block, and MAX_BUFFERED_OUTPUT of
+	 * output, copied once. */
+	static final int BLOCK_MEMORY = 10*1024*1024;
+	/** Blocks in flight across the node: at most an eighth of the heap. */
+	private static final Semaphore sharedBudget = new Semaphore(
+			(int) Math.max(1, Runtime.getRuntime().maxMemory() / 8 / BLOCK_MEMORY));
+
+	private static ThreadPoolExecutor sharedExecutor;
+	private static volatile boolean enabled = true;
+
+	private final Executor executor;
+	private final int maxInFlight;
+	private final Semaphore budget;
+	/** For tests: split at these bit offsets too, as if there was a false block magic number. */
+	long[] falseBoundaries;
+
+	/** Use the shared thread pool, and keep every thread busy, within the node-wide budget. */
+	public ParallelBzip2Decompressor() {
+		this(getSharedExecutor(), threads() + 1, sharedBudget);
+	}
+
+	/**
+	 * @param executor Runs the block decoders.
+	 * @param maxInFlight The maximum number of blocks to decode at once. Each one uses up to
+	 * BLOCK_MEMORY.
+	 */
+	public ParallelBzip2Decompressor(Executor executor, int maxInFlight) {
+		this(executor, maxInFlight, new Semaphore(maxInFlight));
+	}
+
+	/** @param budget A permit is needed for each block in flight. */
+	ParallelBzip2Decompressor(Executor executor, int maxInFlight, Semaphore budget) {
+		if(maxInFlight < 1) throw new IllegalArgumentException();
+		this.executor = executor;
+		this.maxInFlight = maxInFlight;
+		this.budget = budget;
+	}
+
+	/** @return The number of threads to decode blocks on. Not worth using this class if 1. */
+	public static int threads() {
+		return Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors());
+	}
+
+	/** @return True if bzip2 data should be decompressed with this class rather than serially:
+	 * it is enabled, and there is more than one core. */
+	public static boolean shouldUse() {
+		return enabled && threads() > 1;
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	public static void setEnabled(boolean enabled) {
+		ParallelBzip2Decompressor.enabled = enabled;
+	}
+
+	private static synchronized Executor getSharedExecutor() {
+		if(sharedExecutor == null) {
+			int threads = threads();
+			sharedExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					return new NativeThread(r, "BZip2 block decoder", NativeThread.NORM_PRIORITY, true);
+				}
+			});
+			sharedExecutor.allowCoreThreadTimeOut(true);
+		}
+		return sharedExecutor;
+	}
+
+	/** Same contract as Bzip2Compressor.decompress(). */
+	public long decompress(InputStream is, OutputStream os, long maxLength, long maxCheckSizeBytes)
+	throws IOException, CompressionOutputSizeException {
+		Splitter splitter = new Splitter(is, falseBoundaries);
+		ArrayDeque<Segment> pending = new ArrayDeque<Segment>();
+		LimitedOutput out = new LimitedOutput(os, maxLength, maxCheckSizeBytes);
+		int combinedCRC = 0;
+		Segment segment = null;
+		try {
+			while(true) {
+				while(pending.size() < maxInFlight && budget.tryAcquire()) {
+					Segment next = splitter.next();
+					if(next == null) {
+						budget.release();
+						break;
+					}
+					next.permit = budget;
+					next.start(executor, out.limit);
+					pending.add(next);
+				}
+				if(!pending.isEmpty()) {
+					segment = pending.removeFirst();
+				} else {
+					// Finished, or the budget is used up, in which case decode on this thread.
+					segment = splitter.next();
+					if(segment == null) break;
+					segment.run(out.limit);
+				}
+				byte[] data = segment.get();
+				while(data == null && !segment.large) {
+					// Probably a false block boundary. Join it with the next and try again.
+					Segment next = pending.isEmpty() ? splitter.next() : pending.removeFirst();
+					if(next == null) throw segment.failure;
+					next.cancel();
+					if(segment.data.length + next.data.length > MAX_BLOCK_BYTES)
+						throw segment.failure; // Corrupt, not a false boundary.
+					Logger.normal(this, "Joining bzip2 blocks at bit "+next.startBit+" after "+segment.failure);
+					Segment joined = segment.join(next);
+					segment.cancel();
+					segment = joined;
+					try {
+						data = segment.decode(out.limit);
+					} catch (IOException e) {
+						segment.failure = e;
+					}
+				}
+				combinedCRC = ((combinedCRC << 1) | (combinedCRC >>> 31)) ^ segment.crc;
+				if(data != null)
+					out.write(data, 0, data.length);
+				else
+					segment.decodeTo(out);
+				segment.cancel();
+				segment = null;
+			}
+		} finally {
+			if(segment != null)
+				segment.cancel();
+			for(Segment s : pending)
+				s.cancel();
+		}
+		if(combinedCRC != splitter.streamCRC)
+			throw new IOException("BZip2 stream CRC error");
+		if(out.tooBig) throw new CompressionOutputSizeException(out.written);
+		return out.written;
+	}
+
+	/** Writes the output, and enforces the limits on its size. */
+	private static class LimitedOutput {
+		final OutputStream os;
+		final long maxLength;
+		final long maxCheckSizeBytes;
+		/** We throw if we get more than this. */
+		final long limit;
+		long written;
+		boolean tooBig;
+
+		LimitedOutput(OutputStream os, long maxLength, long maxCheckSizeBytes) {
+			this.os = os;
+			this.maxLength = maxLength;
+			this.maxCheckSizeBytes = maxCheckSizeBytes;
+			this.limit = maxLength + Math.max(0, maxCheckSizeBytes);
+		}
+
+		void write(byte[] buf, int offset, int length) throws IOException, CompressionOutputSizeException {
+			if(!tooBig && written + length > maxLength) {
+				if(maxCheckSizeBytes <= 0) throw new CompressionOutputSizeException();
+				tooBig = true;
+			}
+			if(!tooBig) os.write(buf, offset, length);
+			written += length;
+			if(tooBig && written > limit) throw new CompressionOutputSizeException();
+		}
+	}
+
+	/** One block, or more than one if we split it wrongly, as a range of bits in the stream. */
+	private static class Segment {
+		/** Contains the bits, starting at the byte containing startBit. */
+		final byte[] data;
+		final long startBit;
+		final long endBit;
+		final int crc;
+		final char level;
+		FutureTask<byte[]> task;
+		/** The budget we took a permit from, if any. Released by cancel(). */
+		Semaphore permit;
+		IOException failure;
+		/** Set if decode() gave up because the block decompresses to more than
+		 * MAX_BUFFERED_OUTPUT. */
+		boolean large;
+
+		Segment(byte[] data, long startBit, long endBit, int crc, char level) {
+			this.data = data;
+			this.startBit = startBit;
+			this.endBit = endBit;
+			this.crc = crc;
+			this.level = level;
+		}
+
+		void start(Executor executor, long limit) {
+			task = makeTask(limit);
+			executor.execute(task);
+		}
+
+		/** Decode on the calling thread. */
+		void run(long limit) {
+			task = makeTask(limit);
+			task.run();
+		}
+
+		private FutureTask<byte[]> makeTask(final long limit) {
+			return new FutureTask<byte[]>(new Callable<byte[]>() {
+				@Override
+				public byte[] call() throws IOException {
+					return decode(limit);
+				}
+			});
+		}
+
+		/** @return The data, or null if the block can't be decoded, or is large. */
+		byte[] get() throws IOException {
+			try {
+				return task.get();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				failure = cause instanceof IOException ? (IOException) cause :
+					new IOException("Failed to decode bzip2 block: "+cause, cause);
+				return null;
+			}
+		}
+
+		/** Stop decoding if we haven't yet, and give back the permit. Called when we are done
+		 * with the segment, so does nothing if called again. */
+		void cancel() {
+			if(task != null) task.cancel(false);
+			if(permit != null) {
+				permit.release();
+				permit = null;
+			}
+		}
+
+		/** @return The segment from the start of this one to the end of the next one. */
+		Segment join(Segment next) {
+			long baseByte = startBit >>> 3;
+			int keep = (int) ((next.startBit >>> 3) - baseByte);
+			byte[] joined = Arrays.copyOf(data, keep + next.data.length);
+			System.arraycopy(next.data, 0, joined, keep, next.data.length);
+			return new Segment(joined, startBit, next.endBit, crc, level);
+		}
+
+		/** Decode as a complete bzip2 stream containing just this block.
+		 * @param limit Stop after this many bytes of output.
+		 * @return The data, or null if it is more than MAX_BUFFERED_OUTPUT, and then large is
+		 * set. */
+		byte[] decode(long limit) throws IOException {
+			BZip2CompressorInputStream bz2is = open();
+			ByteArrayOutputStream baos = new ByteArrayOutputStream(1024*1024);
+			byte[] buf = new byte[32768];
+			try {
+				int read;
+				while(baos.size() <= limit && (read = bz2is.read(buf)) != -1) {
+					if(baos.size() + read > MAX_BUFFERED_OUTPUT) {
+						large = true;
+						return null;
+					}
+					baos.write(buf, 0, read);
+				}
+			} catch (RuntimeException e) {
+				// The library doesn't always throw IOException on corrupt data.
+				throw new IOException("Corrupt bzip2 block: "+e, e);
+			} finally {
+				bz2is.close();
+			}
+			return baos.toByteArray();
+		}
+
+		/** Decode straight to the output, for a large block. */
+		void decodeTo(LimitedOutput out) throws IOException, CompressionOutputSizeException {
+			BZip2CompressorInputStream bz2is = open();
+			byte[] buf = new byte[32768];
+			try {
+				int read;
+				while((read = bz2is.read(buf)) != -1)
+					out.write(buf, 0, read);
+			} catch (RuntimeException e) {
+				throw new IOException("Corrupt bzip2 block: "+e, e);
+			} finally {
+				bz2is.close();
+			}
+		}
+
+		private BZip2CompressorInputStream open() throws IOException {
+			try {
+				return new BZip2CompressorInputStream(new ByteArrayInputStream(toStream()));
+			} catch (RuntimeException e) {
+				throw new IOException("Corrupt bzip2 block: "+e, e);
+			}
+		}
+
+		private byte[] toStream() {
+			long bits = endBit - startBit;
+			BitWriter writer = new BitWriter((int)(bits >>> 3) + 16);
+			writer.write(8, 'B');
+			writer.write(8, 'Z');
+			writer.write(8, 'h');
+			writer.write(8, level);
+			int shift = (int) (startBit & 7);
+			int bytes = (int) (bits >>> 3);
+			for(int i=0;i<bytes;i++)
+				writer.write(8, byteAt(i, shift));
+			int rest = (int) (bits & 7);
+			if(rest > 0)
+				writer.write(rest, byteAt(bytes, shift) >>> (8 - rest));
+			writer.write(48, END_MAGIC);
+			// Combined CRC of a single block stream is the block CRC.
+			writer.write(32, crc & 0xFFFFFFFFL);
+			return writer.finish();
+		}
+
+		/** @return The i'th byte of the segment, i.e. 8 bits starting from startBit + i * 8. */
+		private int byteAt(int i, int shift) {
+			int b = (data[i] << shift) & 0xFF;
+			if(shift != 0 && i + 1 < data.length)
+				b |= (data[i + 1] & 0xFF) >>> (8 - shift);
+			return b;
+		}
+	}
+
+	private static class BitWriter {
+		private byte[] buf;
+		private int length;
+		private long acc;
+		private int accBits;
+
+		BitWriter(int size) {
+			buf = new byte[size];
+		}
+
+		/** Write the bottom n bits of value, most significant first. n <= 56. */
+		void write(int n, long value) {
+			acc = (acc << n) | (value & ((1L << n) - 1));
+			accBits += n;
+			while(accBits >= 8) {
+				if(length == buf.length) buf = Arrays.copyOf(buf, buf.length * 2);
+				buf[length++] = (byte) (acc >>> (accBits - 8));
+				accBits -= 8;
+			}
+		}
+
+		byte[] finish() {
+			if(accBits > 0) write(8 - accBits, 0);
+			return Arrays.copyOf(buf, length);
+		}
+	}
+
+	/** Reads the compressed stream and cuts it up at each block magic number. Not thread-safe,
+	 * only used by the thread calling decompress(). */
+	private static class Splitter {
+		private final InputStream is;
+		private final byte[] readBuf = new byte[32768];
+		private int readOffset;
+		private int readLength;
+		/** The bytes from bufBase onwards. */
+		private byte[] buf = new byte[1024*1024];
+		private int bufLength;
+		private long bufBase;
+		/** Number of bytes read. */
+		private long position;
+		/** The last 8 bytes read. */
+		private long bits;
+		private char level;
+		/** Start of the current block, or -1. */
+		private long blockStart = -1;
+		/** Start of the end of stream marker, or -1. */
+		private long endStart = -1;
+		private boolean finished;
+		int streamCRC;
+		private final long[] falseBoundaries;
+		private int nextFalseBoundary;
+
+		Splitter(InputStream is, long[] falseBoundaries) {
+			this.is = is;
+			this.falseBoundaries = falseBoundaries == null ? new long[0] : falseBoundaries;
+		}
+
+		/** @return The next block, or null at the end of the stream. */
+		Segment next() throws IOException {
+			if(finished) return null;
+			if(position == 0) readHeader();
+			while(true) {
+				int b = read();
+				if(b == -1) throw new EOFException("Truncated bzip2 stream");
+				append(b);
+				if(endStart >= 0) {
+					if(position * 8 >= endStart + 80) {
+						streamCRC = (int) readBits(endStart + 48, 32);
+						finished = true;
+						return null;
+					}
+					continue;
+				}
+				if(nextFalseBoundary < falseBoundaries.length &&
+						falseBoundaries[nextFalseBoundary] + 48 <= position * 8) {
+					Segment segment = boundary(falseBoundaries[nextFalseBoundary++], BLOCK_MAGIC);
+					if(segment != null) return segment;
+					continue;
+				}
+				// Look for a magic number ending in this byte, earliest first.
+				for(int shift=7;shift>=0;shift--) {
+					long magic = (bits >>> shift) & MAGIC_MASK;
+					if(magic != BLOCK_MAGIC && magic != END_MAGIC) continue;
+					long start = position * 8 - shift - 48;
+					if(start < 16) continue;
+					Segment segment = boundary(start, magic);
+					if(segment != null) return segment;
+					break;
+				}
+				if(bufLength > MAX_BLOCK_BYTES)
+					throw new IOException("Corrupt bzip2 stream: block too big");
+			}
+		}
+
+		/** Found a magic number.
+		 * @return The block which it ends, if any. */
+		private Segment boundary(long start, long magic) throws IOException {
+			if(blockStart < 0 && start != 16)
+				throw new IOException("Not a bzip2 stream: no block at start");
+			Segment segment = null;
+			if(blockStart >= 0)
+				segment = makeSegment(blockStart, start);
+			if(magic == BLOCK_MAGIC) {
+				blockStart = start;
+			} else {
+				blockStart = -1;
+				endStart = start;
+			}
+			discardBefore(start >>> 3);
+			return segment;
+		}
+
+		private void readHeader() throws IOException {
+			int h = read();
+			int l = read();
+			if(h != 'h' || l < '1' || l > '9')
+				throw new IOException("Not a bzip2 stream: bad header");
+			level = (char) l;
+			append(h);
+			append(l);
+		}
+
+		private int read() throws IOException {
+			if(readOffset == readLength) {
+				readLength = is.read(readBuf);
+				readOffset = 0;
+				if(readLength <= 0) {
+					readLength = 0;
+					return -1;
+				}
+			}
+			return readBuf[readOffset++] & 0xFF;
+		}
+
+		private void append(int b) {
+			if(bufLength == buf.length) buf = Arrays.copyOf(buf, buf.length * 2);
+			buf[bufLength++] = (byte) b;
+			bits = (bits << 8) | b;
+			position++;
+		}
+
+		private Segment makeSegment(long startBit, long endBit) {
+			int from = (int) ((startBit >>> 3) - bufBase);
+			int to = (int) (((endBit + 7) >>> 3) - bufBase);
+			byte[] data = Arrays.copyOfRange(buf, from, to);
+			int crc = (int) readBits(startBit + 48, 32);
+			return new Segment(data, startBit, endBit, crc, level);
+		}
+
+		private void discardBefore(long byteOffset) {
+			int drop = (int) (byteOffset - bufBase);
+			if(drop <= 0) return;
+			System.arraycopy(buf, drop, buf, 0, bufLength - drop);
+			bufLength -= drop;
+			bufBase += drop;
+		}
+
+		private long readBits(long bitOffset, int n) {
+			long value = 0;
+			for(int i=0;i<n;i++) {
+				long bit = bitOffset + i;
+				int b = buf[(int) ((bit >>> 3) - bufBase)];
+				value = (value << 1) | ((b >>> (7 - (bit & 7))) & 1);
+			}
+			return value;
+		}
+	}
+
+}
@@ -0,0 +1,401 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.compress;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import freenet.crypt.HashResult;
+import freenet.crypt.MultiHashInputStream;
+import freenet.support.Logger;
+import freenet.support.api.BucketFactory;
+import freenet.support.api.RandomAccessBucket;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+import freenet.support.io.Closer;
+
+/**
+ * Try several compressors at once, keeping whichever produces the fewest blocks, as
+ * InsertCompressor does one at a time. The data is read (and hashed) only once, on the calling
+ * thread, and handed out in chunks to each compressor running on the executor. A compressor is
+ * abandoned as soon as its output is too big to beat the best result so far, and once one result
+ * fits in minSize, or the trial has taken longer than maxTimeForSingleCompressor, the rest are
+ * stopped.
+ *
+ * On a tie in the number of blocks the earlier compressor in the list wins, as it would when
+ * trying them in order. Single use.
+ */
+public class ParallelCompressorTrial {
+
+    private static volatile boolean logMINOR;
+    static {
+        Logger.registerClass(ParallelCompressorTrial.class);
+    }
+
+    /** The data is read and handed to the compressors in chunks of this size. */
+    static final int CHUNK_SIZE = 32768;
+    /** Chunks queued for each compressor before the reader waits for it. */
+    static final int MAX_QUEUED_CHUNKS = 16;
+    /** How often blocked threads check whether they should give up. */
+    private static final long POLL_INTERVAL = 100;
+    /** Marks the end of the data. */
+    private static final byte[] EOF = new byte[0];
+
+    public static class Result {
+        /** The best compressor, or null if none of them saved any blocks. */
+        public final COMPRESSOR_TYPE codec;
+        /** The compressed data, or null if codec is null. Must be freed by the caller. */
+        public final RandomAccessBucket data;
+        /** Hashes of the original data, or null if none were asked for. */
+        public final HashResult[] hashes;
+
+        Result(COMPRESSOR_TYPE codec, RandomAccessBucket data, HashResult[] hashes) {
+            this.codec = codec;
+            this.data = data;
+            this.hashes = hashes;
+        }
+    }
+
+    private final COMPRESSOR_TYPE[] comps;
+    private final int blockSize;
+    private final long minSize;
+    private final BucketFactory bf;
+    private final long amountOfDataToCheckCompressionRatio;
+    private final int minimumCompressionPercentage;
+    private final long maxTimeForSingleCompressor;
+    private final Executor executor;
+
+    private long startTime;
+    /** The best result so far. Protected by this. */
+    private Candidate best;
+    /** Compressors which have not stopped yet. Protected by this. */
+    private int running;
+    /** Bucket error in any of the compressors. Protected by this. */
+    private IOException failure;
+    /** Number of blocks a result must beat. Only changed under the lock. */
+    private volatile long bestNumberOfBlocks;
+    /** Index of the best compressor, or -1 if none. Only changed under the lock. */
+    private volatile int bestIndex = -1;
+    /** Set when no compressor still running is needed. */
+    private volatile boolean aborted;
+
+    /**
+     * @param comps The compressors to try, fastest and weakest first.
+     * @param blockSize Results are compared by the number of blocks of this size.
+     * @param minSize If a result fits in this many bytes, stop there.
+     * @param bf Creates the buckets for the compressed data.
+     * @param executor Runs the compressors. Must be able to run all of them at once.
+     */
+    public ParallelCompressorTrial(COMPRESSOR_TYPE[] comps, int blockSize, long minSize,
+            BucketFactory bf, long amountOfDataToCheckCompressionRatio,
+            int minimumCompressionPercentage, long maxTimeForSingleCompressor, Executor executor) {
+        this.comps = comps;
+        this.blockSize = blockSize;
+        this.minSize = minSize;
+        this.bf = bf;
+        this.amountOfDataToCheckCompressionRatio = amountOfDataToCheckCompressionRatio;
+        this.minimumCompressionPercentage = minimumCompressionPercentage;
+        this.maxTimeForSingleCompressor = maxTimeForSingleCompressor;
+        this.executor = executor;
+    }
+
+    /**
+     * Compress the data with all the compressors, blocking until they have all stopped.
+     * @param generateHashes Hashes of the original data to compute while reading it, or 0.
+     * @throws IOException If reading the data or writing any of the results failed.
+     */
+    public Result run(RandomAccessBucket origData, long generateHashes) throws IOException {
+        long origSize = origData.size();
+        Candidate[] candidates = new Candidate[comps.length];
+        synchronized(this) {
+            if(startTime != 0) throw new IllegalStateException("Already run");
+            startTime = System.currentTimeMillis();
+            bestNumberOfBlocks = origSize / blockSize;
+            running = comps.length;
+        }
+        for(int i=0;i<comps.length;i++) {
+            candidates[i] = new Candidate(i, comps[i], origSize);
+            executor.execute(candidates[i]);
+        }
+        InputStream is = null;
+        MultiHashInputStream hasher = null;
+        HashResult[] hashes = null;
+        boolean completed = false;
+        try {
+            is = origData.getInputStream();
+            if(generateHashes != 0) {
+                if(logMINOR) Logger.minor(this, "Generating hashes: "+generateHashes);
+                is = hasher = new MultiHashInputStream(is, generateHashes);
+            }
+            while(true) {
+                byte[] chunk = readChunk(is);
+                if(chunk == null) break;
+                boolean wanted = false;
+                for(Candidate c : candidates)
+                    if(c.offer(chunk)) wanted = true;
+                if(!wanted) {
+                    if(logMINOR) Logger.minor(this, "All compressors stopped before the end of the data");
+                    // Still need the hashes.
+                    if(hasher != null) hasher.skip(Long.MAX_VALUE);
+                    break;
+                }
+            }
+            for(Candidate c : candidates)
+                c.offer(EOF);
+            if(hasher != null) hashes = hasher.getResults();
+            completed = true;
+        } finally {
+            Closer.close(is);
+            if(!completed) {
+                aborted = true;
+                waitForCandidates();
+                synchronized(this) {
+                    if(best != null) best.result.free();
+                }
+            }
+        }
+        waitForCandidates();
+        synchronized(this) {
+            if(failure != null) {
+                if(best != null) best.result.free();
+                throw failure;
+            }
+            if(logMINOR)
+                Logger.minor(this, "Best compressor "+(best == null ? "none" : best.comp)+" took "+
+                        (System.currentTimeMillis() - startTime)+"ms");
+            if(best == null) return new Result(null, null, hashes);
+            return new Result(best.comp, best.result, hashes);
+        }
+    }
+
+    /** @return The next chunk of the data, or null at the end. */
+    private static byte[] readChunk(InputStream is) throws IOException {
+        byte[] buf = new byte[CHUNK_SIZE];
+        int length = 0;
+        while(length < buf.length) {
+            int x = is.read(buf, length, buf.length - length);
+            if(x < 0) break;
+            length += x;
+        }
+        if(length == 0) return null;
+        if(length < buf.length) {
+            byte[] chunk = new byte[length];
+            System.arraycopy(buf, 0, chunk, 0, length);
+            return chunk;
+        }
+        return buf;
+    }
+
+    private synchronized void waitForCandidates() {
+        boolean interrupted = false;
+        while(running > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // The compressors are using our buckets, so we must wait for them.
+                interrupted = true;
+                aborted = true;
+            }
+        }
+        if(interrupted) Thread.currentThread().interrupt();
+    }
+
+    /** @return True if a result of this many bytes could still beat the best so far. */
+    private boolean canStillWin(Candidate c, long size) {
+        if(size <= minSize) return true;
+        long blocks = size / blockSize;
+        long limit = bestNumberOfBlocks;
+        return blocks < limit || (blocks == limit && c.index < bestIndex);
+    }
+
+    /** @return True if the candidate is the best so far and its result must be kept. */
+    private synchronized boolean onFinished(Candidate c) throws IOException {
+        long size = c.result.size();
+        long blocks = size / blockSize;
+        boolean better;
+        if(size <= minSize) {
+            if(logMINOR) Logger.minor(this, c.comp+" fits in "+minSize+", stopping the others");
+            better = true;
+            aborted = true;
+        } else {
+            better = blocks < bestNumberOfBlocks ||
+                (blocks == bestNumberOfBlocks && best != null && c.index < best.index);
+        }
+        if(logMINOR) Logger.minor(this, c.comp+" produced "+size+" bytes ("+blocks+" blocks)"+
+                (better ? ", best so far" : ""));
+        if(better) {
+            if(best != null) best.result.free();
+            best = c;
+            bestNumberOfBlocks = blocks;
+            bestIndex = c.index;
+        }
+        if(!aborted && System.currentTimeMillis() - startTime > maxTimeForSingleCompressor) {
+            if(logMINOR) Logger.minor(this, "Compression is taking too long, stopping the others");
+            aborted = true;
+        }
+        return better;
+    }
+
+    private synchronized void onFailure(IOException e) {
+        if(failure == null) failure = e;
+        aborted = true;
+    }
+
+    private synchronized void onStopped() {
+        running--;
+        notifyAll();
+    }
+
+    /** One compressor, reading the chunks queued for it. */
+    private class Candidate implements Runnable {
+
+        final int index;
+        final COMPRESSOR_TYPE comp;
+        final long origSize;
+        final ArrayBlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(MAX_QUEUED_CHUNKS);
+        /** Set once the compressor has stopped, for whatever reason. */
+        volatile boolean stopped;
+        RandomAccessBucket result;
+
+        Candidate(int index, COMPRESSOR_TYPE comp, long origSize) {
+            this.index = index;
+            this.comp = comp;
+            this.origSize = origSize;
+        }
+
+        @Override
+        public void run() {
+            OutputStream os = null;
+            boolean keep = false;
+            try {
+                result = bf.makeBucket(-1);
+                os = new LimitedOutputStream(this, result.getOutputStream());
+                comp.compress(new ChunkInputStream(this), os, origSize, origSize,
+                        amountOfDataToCheckCompressionRatio, minimumCompressionPercentage);
+                os.close();
+                os = null;
+                keep = onFinished(this);
+            } catch (CompressionOutputSizeException e) {
+                if(logMINOR) Logger.minor(this, "Abandoned "+comp+": "+e);
+            } catch (CompressionRatioException e) {
+                if(logMINOR) Logger.minor(this, "Abandoned "+comp+": "+e);
+            } catch (RuntimeException e) {
+                // ArithmeticException has been seen in bzip2 codec.
+                Logger.error(this, "Compression failed with codec "+comp+" : "+e, e);
+            } catch (IOException e) {
+                onFailure(e);
+            } finally {
+                stopped = true;
+                queue.clear();
+                Closer.close(os);
+                if(!keep && result != null) result.free();
+                onStopped();
+            }
+        }
+
+        /**
+         * Queue a chunk, waiting for space if necessary.
+         * @return False if the compressor has stopped and doesn't need any more data.
+         */
+        boolean offer(byte[] chunk) throws IOException {
+            while(!stopped) {
+                if(aborted) return false;
+                try {
+                    if(queue.offer(chunk, POLL_INTERVAL, TimeUnit.MILLISECONDS)) return true;
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            return false;
+        }
+
+        byte[] take() throws IOException {
+            while(true) {
+                if(aborted) throw new CompressionOutputSizeException();
+                try {
+                    byte[] chunk = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                    if(chunk != null) return chunk;
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+    }
+
+    /** Reads the chunks queued for a compressor. */
+    private static class ChunkInputStream extends InputStream {
+
+        private final Candidate c;
+        private byte[] chunk;
+        private int offset;
+        private boolean eof;
+
+        ChunkInputStream(Candidate c) {
+            this.c = c;
+        }
+
+        /** @return False at the end of the data. */
+        private boolean fill() throws IOException {
+            while(chunk == null || offset == chunk.length) {
+                if(eof) return false;
+                chunk = c.take();
+                offset = 0;
+                if(chunk == EOF) eof = true;
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if(!fill()) return -1;
+            return chunk[offset++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len) throws IOException {
+            if(len == 0) return 0;
+            if(!fill()) return -1;
+            int x = Math.min(len, chunk.length - offset);
+            System.arraycopy(chunk, offset, buf, off, x);
+            offset += x;
+            return x;
+        }
+    }
+
+    /** Stops a compressor as soon as its output can't beat the best result so far. */
+    private class LimitedOutputStream extends FilterOutputStream {
+
+        private final Candidate c;
+        private long written;
+
+        LimitedOutputStream(Candidate c, OutputStream os) {
+            super(os);
+            this.c = c;
+        }
+
+        private void check(int length) throws CompressionOutputSizeException {
+            written += length;
+            if(aborted || !canStillWin(c, written))
+                throw new CompressionOutputSizeException(written);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            check(1);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] buf, int off, int len) throws IOException {
+            check(len);
+            out.write(buf, off, len);
+        }
+    }
+
+}
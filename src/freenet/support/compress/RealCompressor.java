@@ -3,10 +3,12 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.support.compress;
 
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
 
 import freenet.client.InsertException;
@@ -18,6 +20,12 @@ import freenet.support.io.NativeThread;
 
 public class RealCompressor {
     private final ExecutorService executorService;
+    /** Runs the individual compressors of a ParallelCompressorTrial. Separate from executorService
+     * because the trial itself runs on executorService, which may have only one thread. */
+    private final ExecutorService trialExecutorService;
+    /** Threads on trialExecutorService not reserved by a trial. A trial must be able to run all
+     * its compressors at once, so it reserves them all up front or doesn't run. */
+    private final Semaphore trialThreads;
     private ClientContext context;
 
     private static volatile boolean logMINOR;
@@ -26,14 +34,38 @@ public class RealCompressor {
     }
 
     public RealCompressor() {
-        this.executorService = Executors.newFixedThreadPool(getMaxRunningCompressionThreads(),
+        int maxThreads = getMaxRunningCompressionThreads();
+        this.executorService = Executors.newFixedThreadPool(maxThreads,
                                                             new CompressorThreadFactory());
+        this.trialExecutorService = Executors.newFixedThreadPool(maxThreads,
+                                                                 new CompressorThreadFactory());
+        this.trialThreads = new Semaphore(maxThreads);
     }
 
     public void setClientContext(ClientContext context) {
         this.context = context;
     }
 
+    /** @return The executor to run the compressors of a ParallelCompressorTrial on. Only valid
+     * after reserveTrialThreads() has returned true. */
+    public Executor getTrialExecutor() {
+        return trialExecutorService;
+    }
+
+    /** Reserve a thread for each of the compressors of a ParallelCompressorTrial. Doesn't wait:
+     * if there aren't enough free, the caller should try the compressors one at a time instead.
+     * @return True if reserved, in which case the caller must call releaseTrialThreads(). */
+    public boolean reserveTrialThreads(int count) {
+        boolean reserved = trialThreads.tryAcquire(count);
+        if(logMINOR)
+            Logger.minor(this, (reserved ? "Reserved " : "Could not reserve ")+count+" trial threads");
+        return reserved;
+    }
+
+    public void releaseTrialThreads(int count) {
+        trialThreads.release(count);
+    }
+
     public void enqueueNewJob(final CompressJob j) {
         if(logMINOR)
             Logger.minor(this, "Enqueueing compression job: "+j);
@@ -107,6 +139,7 @@ public class RealCompressor {
     public void shutdown() {
         // TODO: should we wait here?
         this.executorService.shutdown();
+        this.trialExecutorService.shutdown();
     }
 
     public static class CompressorThreadFactory implements ThreadFactory {
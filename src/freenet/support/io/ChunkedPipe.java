@@ -0,0 +1,299 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+
+/**
+ * A pipe between two threads, to replace PipedInputStream/PipedOutputStream. Those have a 1KB
+ * buffer by default, lock on every call and poll with wait(1000), which limits the throughput of
+ * decompressing and filtering a download to a few MB/sec.
+ *
+ * The writer fills a chunk, and hands the whole chunk to the reader, blocking if there are
+ * already too many chunks in flight. The reader hands back each chunk once it has read it, to be
+ * reused. Chunks are never copied within the pipe, and the lock is only taken when a chunk
+ * changes hands, so single byte reads and writes are cheap. Each side has to be used by one
+ * thread at a time.
+ *
+ * Errors go both ways: If the reader closes its end, the writer gets an IOException. If the writer
+ * calls abort(), the reader gets an IOException with the same cause, rather than a truncated
+ * stream.
+ */
+public class ChunkedPipe {
+
+	public static final int DEFAULT_CHUNK_SIZE = 32768;
+	public static final int DEFAULT_MAX_CHUNKS = 8;
+
+	private final int chunkSize;
+	private final int maxChunks;
+	/** Chunks written but not yet read. */
+	private final ArrayDeque<Chunk> full;
+	/** Chunks which have been read and can be reused. */
+	private final ArrayDeque<byte[]> free;
+	/** Number of chunks allocated so far. */
+	private int allocated;
+	private boolean writerClosed;
+	private boolean readerClosed;
+	/** If the writer failed, why. */
+	private Throwable writerError;
+	private final Input input;
+	private final Output output;
+
+	private static class Chunk {
+		final byte[] buf;
+		final int length;
+		Chunk(byte[] buf, int length) {
+			this.buf = buf;
+			this.length = length;
+		}
+	}
+
+	public ChunkedPipe() {
+		this(DEFAULT_CHUNK_SIZE, DEFAULT_MAX_CHUNKS);
+	}
+
+	/**
+	 * @param chunkSize The size of each chunk in bytes.
+	 * @param maxChunks The maximum number of chunks in flight, i.e. at most chunkSize * maxChunks
+	 * bytes will be buffered.
+	 */
+	public ChunkedPipe(int chunkSize, int maxChunks) {
+		if(chunkSize <= 0 || maxChunks < 2) throw new IllegalArgumentException();
+		this.chunkSize = chunkSize;
+		this.maxChunks = maxChunks;
+		full = new ArrayDeque<Chunk>(maxChunks);
+		free = new ArrayDeque<byte[]>(maxChunks);
+		input = new Input();
+		output = new Output();
+	}
+
+	public Input getInputStream() {
+		return input;
+	}
+
+	public Output getOutputStream() {
+		return output;
+	}
+
+	/** Get an empty chunk for the writer, waiting if there are too many in flight. */
+	private synchronized byte[] takeFree() throws IOException {
+		while(true) {
+			if(readerClosed) throw new IOException("Pipe closed by reader");
+			if(writerClosed) throw new IOException("Pipe closed");
+			if(!free.isEmpty()) return free.removeFirst();
+			if(allocated < maxChunks) {
+				allocated++;
+				return new byte[chunkSize];
+			}
+			waitInterruptibly();
+		}
+	}
+
+	private synchronized void putFull(byte[] buf, int length) throws IOException {
+		if(readerClosed) throw new IOException("Pipe closed by reader");
+		full.addLast(new Chunk(buf, length));
+		notifyAll();
+	}
+
+	/** Get the next chunk for the reader, waiting for the writer if necessary.
+	 * @return Null at the end of the stream. */
+	private synchronized Chunk takeFull() throws IOException {
+		while(true) {
+			if(readerClosed) throw new IOException("Pipe closed");
+			if(!full.isEmpty()) return full.removeFirst();
+			if(writerClosed) {
+				if(writerError != null) throw new IOException("Writer failed: "+writerError, writerError);
+				return null;
+			}
+			waitInterruptibly();
+		}
+	}
+
+	private synchronized void putFree(byte[] buf) {
+		free.addLast(buf);
+		notifyAll();
+	}
+
+	private synchronized int availableInQueue() {
+		int total = 0;
+		for(Chunk chunk : full)
+			total += chunk.length;
+		return total;
+	}
+
+	private void waitInterruptibly() throws InterruptedIOException {
+		try {
+			wait();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+	}
+
+	private synchronized void closeWriter(Throwable error) {
+		if(writerClosed) return;
+		writerClosed = true;
+		writerError = error;
+		notifyAll();
+	}
+
+	private synchronized void closeReader() {
+		readerClosed = true;
+		full.clear();
+		free.clear();
+		notifyAll();
+	}
+
+	/** The reading end. */
+	public class Input extends InputStream {
+
+		private Chunk current;
+		private int offset;
+		private boolean eof;
+
+		/** @return False at the end of the stream. */
+		private boolean ensureData() throws IOException {
+			if(current != null && offset < current.length) return true;
+			if(eof) return false;
+			if(current != null) {
+				putFree(current.buf);
+				current = null;
+			}
+			Chunk chunk = takeFull();
+			if(chunk == null) {
+				eof = true;
+				return false;
+			}
+			current = chunk;
+			offset = 0;
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if(!ensureData()) return -1;
+			return current.buf[offset++] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] buf, int off, int len) throws IOException {
+			if(len == 0) return 0;
+			if(!ensureData()) return -1;
+			int read = 0;
+			// Don't block once we have something to return.
+			while(len > 0) {
+				int copy = Math.min(len, current.length - offset);
+				System.arraycopy(current.buf, offset, buf, off, copy);
+				offset += copy;
+				off += copy;
+				len -= copy;
+				read += copy;
+				if(len == 0 || !hasQueuedChunk() || !ensureData()) break;
+			}
+			return read;
+		}
+
+		private boolean hasQueuedChunk() {
+			synchronized(ChunkedPipe.this) {
+				return !full.isEmpty();
+			}
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = 0;
+			while(n > 0 && ensureData()) {
+				int skip = (int) Math.min(n, current.length - offset);
+				offset += skip;
+				n -= skip;
+				skipped += skip;
+			}
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			int available = current == null ? 0 : current.length - offset;
+			return available + availableInQueue();
+		}
+
+		/** Closing the reading end makes any further writes fail. */
+		@Override
+		public void close() {
+			current = null;
+			closeReader();
+		}
+
+	}
+
+	/** The writing end. */
+	public class Output extends OutputStream {
+
+		private byte[] buf;
+		private int offset;
+		private boolean closed;
+
+		@Override
+		public void write(int b) throws IOException {
+			if(buf == null) buf = takeFree();
+			buf[offset++] = (byte) b;
+			if(offset == buf.length) handOver();
+		}
+
+		@Override
+		public void write(byte[] data, int off, int len) throws IOException {
+			while(len > 0) {
+				if(buf == null) buf = takeFree();
+				int copy = Math.min(len, buf.length - offset);
+				System.arraycopy(data, off, buf, offset, copy);
+				offset += copy;
+				off += copy;
+				len -= copy;
+				if(offset == buf.length) handOver();
+			}
+		}
+
+		private void handOver() throws IOException {
+			byte[] b = buf;
+			int length = offset;
+			buf = null;
+			offset = 0;
+			putFull(b, length);
+		}
+
+		/** Hand over the current chunk, even if it isn't full. */
+		@Override
+		public void flush() throws IOException {
+			if(closed) throw new IOException("Pipe closed");
+			if(buf != null && offset > 0) handOver();
+		}
+
+		/** Hand over any data written so far, and signal the end of the stream. */
+		@Override
+		public void close() throws IOException {
+			if(closed) return;
+			try {
+				if(buf != null && offset > 0) handOver();
+			} finally {
+				closed = true;
+				buf = null;
+				closeWriter(null);
+			}
+		}
+
+		/** Signal that the writer has failed. The reader will get an IOException once it has
+		 * read everything handed over so far, rather than a truncated stream. */
+		public void abort(Throwable t) {
+			if(closed) return;
+			closed = true;
+			buf = null;
+			closeWriter(t == null ? new IOException("Aborted") : t);
+		}
+
+	}
+
+}
@@ -0,0 +1,206 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import freenet.client.async.ClientContext;
+import freenet.support.api.LockableRandomAccessBuffer;
+import freenet.support.api.RandomAccessBucket;
+
+/**
+ * A bucket that stores data in memory outside the Java heap, in chunks from a DirectChunkPool.
+ * Used by TempBucketFactory instead of ArrayBucket, so in-RAM temp data does not add to GC load.
+ * Like ArrayBucket, opening an OutputStream discards the previous contents, and InputStreams 
+ * opened before free() can still be read: the memory is released when the last one is closed.
+ */
+class DirectBucket implements RandomAccessBucket {
+
+    private final DirectChunks chunks;
+    private long size;
+    private boolean readOnly;
+    private boolean freed;
+    /** If true, toRandomAccessBuffer() has been called, and the chunks now belong to the 
+     * DirectRandomAccessBuffer. */
+    private boolean handedOver;
+    /** Number of InputStreams open. */
+    private int openStreams;
+
+    DirectBucket(DirectChunkPool pool) {
+        chunks = new DirectChunks(pool);
+    }
+
+    @Override
+    public synchronized OutputStream getOutputStream() throws IOException {
+        if(readOnly) throw new IOException("Read only");
+        if(freed) throw new IOException("Already freed");
+        size = 0;
+        return new DirectBucketOutputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStreamUnbuffered() throws IOException {
+        return getOutputStream();
+    }
+
+    @Override
+    public synchronized InputStream getInputStream() throws IOException {
+        if(freed) throw new IOException("Already freed");
+        openStreams++;
+        return new DirectBucketInputStream();
+    }
+
+    @Override
+    public InputStream getInputStreamUnbuffered() throws IOException {
+        return getInputStream();
+    }
+
+    private class DirectBucketOutputStream extends OutputStream {
+
+        private boolean closed;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buf, int offset, int length) throws IOException {
+            synchronized(DirectBucket.this) {
+                if(closed) throw new IOException("Closed");
+                if(readOnly) throw new IOException("Read only");
+                if(freed) throw new IOException("Already freed");
+                chunks.ensureCapacity(size + length);
+                chunks.write(size, buf, offset, length);
+                size += length;
+            }
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+    }
+
+    private class DirectBucketInputStream extends InputStream {
+
+        private long position;
+        private boolean closed;
+
+        @Override
+        public int read() throws IOException {
+            byte[] buf = new byte[1];
+            if(read(buf, 0, 1) < 0) return -1;
+            return buf[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buf, int offset, int length) throws IOException {
+            synchronized(DirectBucket.this) {
+                if(closed) throw new IOException("Closed");
+                if(position >= size) return -1;
+                length = (int) Math.min(length, size - position);
+                chunks.read(position, buf, offset, length);
+                position += length;
+                return length;
+            }
+        }
+
+        @Override
+        public long skip(long n) {
+            synchronized(DirectBucket.this) {
+                n = Math.max(0, Math.min(n, size - position));
+                position += n;
+                return n;
+            }
+        }
+
+        @Override
+        public int available() {
+            synchronized(DirectBucket.this) {
+                return (int) Math.min(Integer.MAX_VALUE, Math.max(0, size - position));
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized(DirectBucket.this) {
+                if(closed) return;
+                closed = true;
+                openStreams--;
+                if(!(freed && openStreams == 0 && !handedOver)) return;
+            }
+            chunks.free();
+        }
+
+    }
+
+    /** Write the first length bytes to a stream, straight from off-heap memory to the file if 
+     * possible. See DirectChunks.copyTo(). */
+    synchronized void copyTo(OutputStream os, long length) throws IOException {
+        if(freed) throw new IOException("Already freed");
+        chunks.copyTo(os, Math.min(length, size));
+    }
+
+    @Override
+    public synchronized long size() {
+        return size;
+    }
+
+    @Override
+    public String getName() {
+        return "DirectBucket";
+    }
+
+    @Override
+    public synchronized boolean isReadOnly() {
+        return readOnly;
+    }
+
+    @Override
+    public synchronized void setReadOnly() {
+        readOnly = true;
+    }
+
+    @Override
+    public void free() {
+        synchronized(this) {
+            if(freed) return;
+            freed = true;
+            if(handedOver || openStreams > 0) return;
+        }
+        chunks.free();
+    }
+
+    @Override
+    public RandomAccessBucket createShadow() {
+        return null;
+    }
+
+    @Override
+    public void onResume(ClientContext context) {
+        // Do nothing.
+    }
+
+    @Override
+    public void storeTo(DataOutputStream dos) {
+        // Should not be used for persistent requests.
+        throw new UnsupportedOperationException();
+    }
+
+    /** The bucket becomes read-only and the returned buffer owns the memory: freeing the bucket
+     * does nothing, freeing the buffer frees both. */
+    @Override
+    public synchronized LockableRandomAccessBuffer toRandomAccessBuffer() throws IOException {
+        if(freed) throw new IOException("Already freed");
+        readOnly = true;
+        handedOver = true;
+        return new DirectRandomAccessBuffer(chunks, size, true);
+    }
+
+}
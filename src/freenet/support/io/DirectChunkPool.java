@@ -0,0 +1,108 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed size chunks of memory outside the Java heap, for in-RAM temporary storage. Freed chunks
+ * are zeroed and kept for reuse, up to a limit, so a busy node does not keep allocating direct
+ * buffers (which are only released on a full GC). Idle chunks count towards the overall limit
+ * along with those in use: we only keep a freed chunk if the total stays within it. Does not 
+ * lock.
+ */
+class DirectChunkPool {
+
+    static final int CHUNK_SIZE = 4096;
+    private static final ByteBuffer ZEROS = ByteBuffer.allocateDirect(CHUNK_SIZE);
+
+    private final ConcurrentLinkedQueue<ByteBuffer> idle = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private volatile int maxIdle;
+    /** The maximum number of chunks in use and idle together, beyond which freed chunks are
+     * dropped. Not enforced on allocate(): the caller decides what can be kept in RAM. */
+    private volatile long maxChunks;
+    private final AtomicLong inUse = new AtomicLong();
+    private final AtomicLong created = new AtomicLong();
+
+    /** @param maxIdle The maximum number of free chunks to keep for reuse. */
+    DirectChunkPool(int maxIdle) {
+        this(maxIdle, Long.MAX_VALUE);
+    }
+
+    /** @param maxIdle The maximum number of free chunks to keep for reuse.
+     * @param maxChunks The maximum number of chunks to hold, in use and free. */
+    DirectChunkPool(int maxIdle, long maxChunks) {
+        this.maxIdle = maxIdle;
+        this.maxChunks = maxChunks;
+    }
+
+    /** @return The memory taken by this many bytes of data, i.e. rounded up to whole chunks. */
+    static long roundUp(long size) {
+        return (size + CHUNK_SIZE - 1) / CHUNK_SIZE * CHUNK_SIZE;
+    }
+
+    /** @return A zeroed chunk, position 0, limit CHUNK_SIZE.
+     * @throws OutOfDirectMemoryException If the JVM's direct memory limit has been reached. */
+    ByteBuffer allocate() throws IOException {
+        ByteBuffer chunk = idle.poll();
+        if(chunk != null) {
+            idleCount.decrementAndGet();
+        } else {
+            try {
+                chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+            } catch (OutOfMemoryError e) {
+                // Direct memory is limited separately from the heap.
+                throw new OutOfDirectMemoryException();
+            }
+            created.incrementAndGet();
+        }
+        inUse.incrementAndGet();
+        return chunk;
+    }
+
+    void release(ByteBuffer chunk) {
+        long used = inUse.decrementAndGet();
+        int idleNow = idleCount.incrementAndGet();
+        if(idleNow > maxIdle || used + idleNow > maxChunks) {
+            idleCount.decrementAndGet();
+            return; // Let the GC have it.
+        }
+        // Don't leave old data lying around, and callers expect zeros.
+        chunk.clear();
+        chunk.put(ZEROS.duplicate());
+        chunk.clear();
+        idle.add(chunk);
+    }
+
+    /** Change the limits, dropping free chunks until we are within them. */
+    void setLimits(int maxIdle, long maxChunks) {
+        this.maxIdle = maxIdle;
+        this.maxChunks = maxChunks;
+        while(idleCount.get() > maxIdle || inUse.get() + idleCount.get() > maxChunks) {
+            if(idle.poll() == null) break;
+            idleCount.decrementAndGet();
+        }
+    }
+
+    /** @return The number of chunks holding data. */
+    long chunksInUse() {
+        return inUse.get();
+    }
+
+    /** @return The number of free chunks kept for reuse. */
+    int idleChunks() {
+        return idleCount.get();
+    }
+
+    /** @return The number of chunks ever allocated from the JVM. */
+    long chunksCreated() {
+        return created.get();
+    }
+
+}
@@ -0,0 +1,131 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Storage for DirectBucket and DirectRandomAccessBuffer: a growable list of chunks from a
+ * DirectChunkPool. Once freed, the chunks may be reused by somebody else, so every access checks
+ * and fails.
+ */
+class DirectChunks {
+
+    private static final int CHUNK_SIZE = DirectChunkPool.CHUNK_SIZE;
+
+    private final DirectChunkPool pool;
+    private ByteBuffer[] chunks;
+    private int chunkCount;
+    private boolean freed;
+
+    DirectChunks(DirectChunkPool pool) {
+        this.pool = pool;
+        this.chunks = new ByteBuffer[1];
+    }
+
+    /** Make sure we can store at least this many bytes. New space is zeroed. */
+    synchronized void ensureCapacity(long capacity) throws IOException {
+        if(freed) throw new IOException("Already freed");
+        if(capacity > Integer.MAX_VALUE) throw new IOException("Too big");
+        int needed = (int) ((capacity + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        if(needed > chunks.length)
+            chunks = Arrays.copyOf(chunks, Math.max(needed, chunks.length * 2));
+        while(chunkCount < needed) {
+            // Don't count it until we have it: allocate() can fail.
+            chunks[chunkCount] = pool.allocate();
+            chunkCount++;
+        }
+    }
+
+    synchronized void read(long position, byte[] buf, int offset, int length) throws IOException {
+        if(freed) throw new IOException("Already freed");
+        while(length > 0) {
+            ByteBuffer chunk = chunks[(int) (position / CHUNK_SIZE)].duplicate();
+            chunk.position((int) (position % CHUNK_SIZE));
+            int count = Math.min(length, chunk.remaining());
+            chunk.get(buf, offset, count);
+            position += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /** Caller must have called ensureCapacity() first. */
+    synchronized void write(long position, byte[] buf, int offset, int length) throws IOException {
+        if(freed) throw new IOException("Already freed");
+        while(length > 0) {
+            ByteBuffer chunk = chunks[(int) (position / CHUNK_SIZE)].duplicate();
+            chunk.position((int) (position % CHUNK_SIZE));
+            int count = Math.min(length, chunk.remaining());
+            chunk.put(buf, offset, count);
+            position += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /** Write the first length bytes to a stream. Goes straight from the chunks to the file if 
+     * the stream is a FileOutputStream, which the caller must not be writing to concurrently. */
+    synchronized void copyTo(OutputStream os, long length) throws IOException {
+        if(freed) throw new IOException("Already freed");
+        if(os instanceof FileOutputStream) {
+            FileChannel channel = ((FileOutputStream) os).getChannel();
+            for(int i=0;length > 0;i++) {
+                ByteBuffer chunk = slice(i, length);
+                while(chunk.hasRemaining())
+                    channel.write(chunk);
+                length -= chunk.limit();
+            }
+        } else {
+            byte[] buf = new byte[CHUNK_SIZE];
+            for(int i=0;length > 0;i++) {
+                ByteBuffer chunk = slice(i, length);
+                int count = chunk.remaining();
+                chunk.get(buf, 0, count);
+                os.write(buf, 0, count);
+                length -= count;
+            }
+        }
+    }
+
+    /** Write the first length bytes to a file, straight from the chunks. */
+    synchronized void copyTo(PooledFileRandomAccessBuffer raf, long length) throws IOException {
+        if(freed) throw new IOException("Already freed");
+        long position = 0;
+        for(int i=0;position < length;i++) {
+            ByteBuffer chunk = slice(i, length - position);
+            int count = chunk.remaining();
+            raf.pwrite(position, chunk);
+            position += count;
+        }
+    }
+
+    private ByteBuffer slice(int i, long remaining) {
+        ByteBuffer chunk = chunks[i].duplicate();
+        chunk.clear();
+        chunk.limit((int) Math.min(CHUNK_SIZE, remaining));
+        return chunk;
+    }
+
+    /** Return the chunks to the pool. Further access will fail. */
+    synchronized void free() {
+        if(freed) return;
+        freed = true;
+        for(int i=0;i<chunkCount;i++) {
+            pool.release(chunks[i]);
+            chunks[i] = null;
+        }
+        chunkCount = 0;
+    }
+
+    synchronized boolean isFreed() {
+        return freed;
+    }
+
+}
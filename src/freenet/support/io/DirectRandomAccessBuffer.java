@@ -0,0 +1,133 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import freenet.client.async.ClientContext;
+import freenet.support.api.LockableRandomAccessBuffer;
+
+/**
+ * A fixed size RandomAccessBuffer in memory outside the Java heap, in chunks from a 
+ * DirectChunkPool. Used by TempBucketFactory instead of ByteArrayRandomAccessBuffer.
+ */
+class DirectRandomAccessBuffer implements LockableRandomAccessBuffer {
+
+    private final DirectChunks chunks;
+    private final long size;
+    private final boolean readOnly;
+    private volatile boolean closed;
+
+    /** Zeroed buffer. */
+    DirectRandomAccessBuffer(DirectChunkPool pool, long size) throws IOException {
+        this.chunks = new DirectChunks(pool);
+        this.size = size;
+        this.readOnly = false;
+        allocate(size);
+    }
+
+    DirectRandomAccessBuffer(DirectChunkPool pool, byte[] initialContents, int offset, int size, 
+            boolean readOnly) throws IOException {
+        this.chunks = new DirectChunks(pool);
+        this.size = size;
+        this.readOnly = readOnly;
+        allocate(size);
+        chunks.write(0, initialContents, offset, size);
+    }
+
+    /** Allocate all the chunks up front, or none of them. */
+    private void allocate(long size) throws IOException {
+        try {
+            chunks.ensureCapacity(size);
+        } catch (IOException e) {
+            chunks.free();
+            throw e;
+        }
+    }
+
+    /** Take over the chunks of a DirectBucket. */
+    DirectRandomAccessBuffer(DirectChunks chunks, long size, boolean readOnly) {
+        this.chunks = chunks;
+        this.size = size;
+        this.readOnly = readOnly;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public void pread(long fileOffset, byte[] buf, int bufOffset, int length) throws IOException {
+        if(closed) throw new IOException("Closed");
+        if(fileOffset < 0) throw new IllegalArgumentException("Cannot read before zero");
+        if(fileOffset + length > size) throw new IOException("Cannot read after end: trying to read from "+fileOffset+" to "+(fileOffset+length)+" on block length "+size);
+        chunks.read(fileOffset, buf, bufOffset, length);
+    }
+
+    @Override
+    public void pwrite(long fileOffset, byte[] buf, int bufOffset, int length) throws IOException {
+        if(closed) throw new IOException("Closed");
+        if(fileOffset < 0) throw new IllegalArgumentException("Cannot write before zero");
+        if(fileOffset + length > size) throw new IOException("Cannot write after end: trying to write from "+fileOffset+" to "+(fileOffset+length)+" on block length "+size);
+        if(readOnly) throw new IOException("Read-only");
+        chunks.write(fileOffset, buf, bufOffset, length);
+    }
+
+    boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /** Copy the contents to a disk buffer of at least the same size. Chunks are written to the 
+     * file directly if it is a PooledFileRandomAccessBuffer. */
+    void copyTo(LockableRandomAccessBuffer target) throws IOException {
+        if(target instanceof PooledFileRandomAccessBuffer) {
+            chunks.copyTo((PooledFileRandomAccessBuffer) target, size);
+        } else {
+            byte[] buf = new byte[DirectChunkPool.CHUNK_SIZE];
+            for(long pos = 0; pos < size; pos += buf.length) {
+                int count = (int) Math.min(buf.length, size - pos);
+                chunks.read(pos, buf, 0, count);
+                target.pwrite(pos, buf, 0, count);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    @Override
+    public void free() {
+        closed = true;
+        chunks.free();
+    }
+
+    @Override
+    public RAFLock lockOpen() {
+        return new RAFLock() {
+
+            @Override
+            protected void innerUnlock() {
+                // Do nothing. Always open.
+            }
+
+        };
+    }
+
+    @Override
+    public void onResume(ClientContext context) {
+        // Do nothing.
+    }
+
+    @Override
+    public void storeTo(DataOutputStream dos) {
+        throw new UnsupportedOperationException();
+    }
+
+    // Default hashCode() and equals() are correct for this type.
+
+}
@@ -0,0 +1,13 @@
+package freenet.support.io;
+
+import java.io.IOException;
+
+/** Thrown by DirectChunkPool when the JVM has no direct memory left. TempBucketFactory moves
+ * the bucket to disk rather than failing the write. */
+class OutOfDirectMemoryException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    OutOfDirectMemoryException() {
+        super("Out of direct memory for temporary storage");
+    }
+}
@@ -2,11 +2,15 @@ package freenet.support.io;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.RandomAccessFile;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.Random;
@@ -17,6 +21,8 @@ import freenet.support.WrapperKeepalive;
 import freenet.support.api.LockableRandomAccessBuffer;
 
 /** Random access files with a limited number of open files, using a pool.
+ * Reads and writes use positional I/O on a FileChannel, so several threads can read and write
+ * the same file at once; the pool only decides which files are open.
  * LOCKING OPTIMISATION: Contention on DEFAULT_FDTRACKER likely here. It's not clear how to avoid that, FIXME.
  * However, this is doing disk I/O (even if cached, system calls), so maybe it's not a big deal ...
  *
@@ -58,13 +64,16 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
     private transient FDTracker fds;
 
     public final File file;
-    private final boolean readOnly;
+    private volatile boolean readOnly;
     /** >0 means locked. We will wait until we get the lock if necessary, this is always accurate.
      * LOCKING: Synchronized on fds. */
     private int lockLevel;
-    /** The actual RAF. Non-null only if open. LOCKING: Synchronized on (this).
-     * LOCKING: Always take (this) last, i.e. after fds. */
+    /** The actual RAF. Non-null only if open. LOCKING: Synchronized on fds. Reads and writes go
+     * through channel and do not lock. */
     private transient RandomAccessFile raf;
+    /** The channel for raf. Non-null only if open. Written under fds, read without locking while
+     * we hold a lock, because it may be replaced if a thread is interrupted mid-I/O. */
+    private transient volatile FileChannel channel;
     private final long length;
     private boolean closed;
     /** -1 = not persistent-temp. Otherwise the ID. We need the ID so we can move files if the
@@ -111,9 +120,10 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
             this.length = currentLength;
             lock.unlock();
         } catch (IOException e) {
-            synchronized(this) {
+            synchronized(fds) {
                 raf.close();
                 raf = null;
+                channel = null;
             }
             throw e;
         }
@@ -133,9 +143,10 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
             raf.write(initialContents, offset, size);
             lock.unlock();
         } catch (IOException e) {
-            synchronized(this) {
+            synchronized(fds) {
                 raf.close();
                 raf = null;
+                channel = null;
             }
             throw e;
         }
@@ -166,35 +177,87 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
     public void pread(long fileOffset, byte[] buf, int bufOffset, int length) throws IOException {
         if(fileOffset < 0) throw new IllegalArgumentException();
         RAFLock lock = lockOpen();
+        boolean interrupted = false;
         try {
-            // FIXME Use NIO! This is absurd!
-            synchronized(this) {
-                raf.seek(fileOffset);
-                raf.readFully(buf, bufOffset, length);
+            while(true) {
+                FileChannel c = channel;
+                try {
+                    ByteBuffer bb = ByteBuffer.wrap(buf, bufOffset, length);
+                    long pos = fileOffset;
+                    while(bb.hasRemaining()) {
+                        int read = c.read(bb, pos);
+                        if(read < 0) throw new EOFException();
+                        pos += read;
+                    }
+                    return;
+                } catch (ClosedChannelException e) {
+                    interrupted |= Thread.interrupted();
+                    reopen(c);
+                }
             }
         } finally {
             lock.unlock();
+            if(interrupted) Thread.currentThread().interrupt();
         }
     }
 
     @Override
     public void pwrite(long fileOffset, byte[] buf, int bufOffset, int length) throws IOException {
+        pwrite(fileOffset, ByteBuffer.wrap(buf, bufOffset, length));
+    }
+
+    /** Write the remaining bytes of a buffer, which may be direct, at the given offset. */
+    void pwrite(long fileOffset, ByteBuffer data) throws IOException {
         if(fileOffset < 0) throw new IllegalArgumentException();
         if(readOnly) throw new IOException("Read only");
         RAFLock lock = lockOpen();
+        boolean interrupted = false;
         try {
-            if(fileOffset + length > this.length)
+            if(fileOffset + data.remaining() > this.length)
                 throw new IOException("Length limit exceeded");
-            // FIXME Use NIO (which has proper pwrite, with concurrency)! This is absurd!
-            synchronized(this) {
-                raf.seek(fileOffset);
-                raf.write(buf, bufOffset, length);
+            int start = data.position();
+            while(true) {
+                FileChannel c = channel;
+                try {
+                    long pos = fileOffset;
+                    while(data.hasRemaining())
+                        pos += c.write(data, pos);
+                    return;
+                } catch (ClosedChannelException e) {
+                    interrupted |= Thread.interrupted();
+                    reopen(c);
+                    data.position(start);
+                }
             }
         } finally {
             lock.unlock();
+            if(interrupted) Thread.currentThread().interrupt();
         }
     }
 
+    /** Interrupting a thread during channel I/O closes the channel, for every thread using it. 
+     * Replace it with a new one, keeping the same fd slot, so that the caller and anyone else 
+     * using the old channel can retry. Caller must hold a lock, so we are open.
+     * @param broken The channel which was found to be closed. */
+    private void reopen(FileChannel broken) throws IOException {
+        synchronized(fds) {
+            if(channel != broken) return; // Already replaced.
+            if(logMINOR) Logger.minor(this, "Reopening after interrupted I/O: "+this);
+            try {
+                raf.close();
+            } catch (IOException e) {
+                // Ignore, already closed.
+            }
+            raf = new RandomAccessFile(file, readOnly ? "r" : "rw");
+            channel = raf.getChannel();
+        }
+    }
+
+    /** Called after filling in a new temp file, before anyone else can see it. */
+    void setReadOnly() {
+        readOnly = true;
+    }
+
     @Override
     public void close() {
         if(logMINOR) Logger.minor(this, "Closing "+this, new Exception("debug"));
@@ -232,6 +295,7 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
                     return lock;
                 } else if(fds.totalOpenFDs < fds.maxOpenFDs) {
                     raf = new RandomAccessFile(file, (readOnly && !forceWrite) ? "r" : "rw");
+                    channel = raf.getChannel();
                     lockLevel++;
                     fds.totalOpenFDs++;
                     return lock;
@@ -274,6 +338,7 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
                 Logger.error(this, "Error closing "+this+" : "+e, e);
             }
             raf = null;
+            channel = null;
             fds.totalOpenFDs--;
         }
     }
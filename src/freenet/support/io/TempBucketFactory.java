@@ -19,6 +19,8 @@ import java.util.ListIterator;
 import java.util.Queue;
 import java.util.Random;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import freenet.client.async.ClientContext;
 import freenet.crypt.EncryptedRandomAccessBucket;
@@ -41,11 +43,11 @@ import freenet.support.api.RandomAccessBucket;
  * Temporary Bucket Factory
  * 
  * Buckets created by this factory can be either:
- *	- ArrayBuckets
+ *	- DirectBuckets (in RAM, outside the Java heap, in recycled chunks)
  * OR
  *	- FileBuckets
  * 
- * ArrayBuckets are used if and only if:
+ * DirectBuckets are used if and only if:
  *	1) there is enough room remaining on the pool (@see maxRamUsed and @see bytesInUse)
  *	2) the initial size is smaller than (@maxRAMBucketSize)
  * 
@@ -54,6 +56,10 @@ import freenet.support.api.RandomAccessBucket;
  * Currently they are two factors considered for a migration:
  *	- if they are long-lived or not (@see RAMBUCKET_MAX_AGE)
  *	- if their size is over RAMBUCKET_CONVERSION_FACTOR*maxRAMBucketSize
+ * 
+ * RAM usage is accounted without locking, in whole chunks, since that is what a DirectBucket
+ * holds. If the JVM runs out of direct memory, buckets and RAFs go to disk instead. On migration,
+ * chunks are written to the file directly where possible, without copying through the heap.
  */
 public class TempBucketFactory implements BucketFactory, LockableRandomAccessBufferFactory {
 	public final static long defaultIncrement = 4096;
@@ -63,15 +69,20 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	private final PooledFileRandomAccessBufferFactory underlyingDiskRAFFactory;
 	private final DiskSpaceCheckingRandomAccessBufferFactory diskRAFFactory;
 	private volatile long minDiskSpace;
-	private long bytesInUse = 0;
+	private final AtomicLong bytesInUse = new AtomicLong();
+	/** Off-heap storage for RAM buckets and RAFs. */
+	private final DirectChunkPool chunkPool;
 	private final Executor executor;
 	private volatile boolean reallyEncrypt;
 	private final MasterSecret secret;
 	
 	/** How big can the defaultSize be for us to consider using RAMBuckets? */
-	private long maxRAMBucketSize;
+	private volatile long maxRAMBucketSize;
 	/** How much memory do we dedicate to the RAMBucketPool? (in bytes) */
-	private long maxRamUsed;
+	private volatile long maxRamUsed;
+	/** Keep up to this fraction of maxRamUsed in free chunks for reuse, as long as the chunks in
+	 * use and free together fit in maxRamUsed. */
+	static final int IDLE_CHUNKS_DIVISOR = 4;
 
 	/** How old is a long-lived RAMBucket? */
 	private final static long RAMBUCKET_MAX_AGE = MINUTES.toMillis(5);
@@ -169,12 +180,12 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 					// DO NOT INCREMENT THE osIndex HERE!
 					os = tempFB.getOutputStreamUnbuffered();
 					if(size > 0)
-						BucketTools.copyTo(toMigrate, os, size);
+						((DirectBucket) toMigrate).copyTo(os, size);
 				} else {
 					if(size > 0) {
 						OutputStream temp = tempFB.getOutputStreamUnbuffered();
 						try {
-						BucketTools.copyTo(toMigrate, temp, size);
+						((DirectBucket) toMigrate).copyTo(temp, size);
 						} finally {
 						temp.close();
 						}
@@ -198,12 +209,12 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 			// We can free it on-thread as it's a rambucket
 			toMigrate.free();
 			// Might have changed already so we can't rely on currentSize!
-			_hasFreed(size);
+			_hasFreed(DirectChunkPool.roundUp(size));
 			return true;
 		}
 		
 		public synchronized final boolean isRAMBucket() {
-			return (currentBucket instanceof ArrayBucket);
+			return (currentBucket instanceof DirectBucket);
 		}
 		
 		@Override
@@ -245,8 +256,12 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 					if(futureSize >= Math.min(Integer.MAX_VALUE, maxRAMBucketSize * RAMBUCKET_CONVERSION_FACTOR)) {
 						isOversized = true;
 						shouldMigrate = true;
-					} else if ((futureSize - currentSize) + bytesInUse >= maxRamUsed)
-						shouldMigrate = true;
+					} else {
+						// We are charged for whole chunks.
+						long extra = DirectChunkPool.roundUp(futureSize) - DirectChunkPool.roundUp(currentSize);
+						if(extra > 0 && extra + bytesInUse.get() > maxRamUsed)
+							shouldMigrate = true;
+					}
 					
 					if(shouldMigrate) {
 						if(logMINOR) {
@@ -268,16 +283,28 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 				}
 			}
 			
+			/** The JVM has run out of direct memory, so move to disk, where the write can be 
+			 * retried. Nothing was written, as DirectBucket allocates before writing. */
+			private void onOutOfDirectMemory(OutOfDirectMemoryException e) throws IOException {
+				Logger.normal(this, "Out of direct memory, moving "+TempBucket.this+" to disk");
+				if(!migrateToDisk()) throw e;
+			}
+			
 			@Override
 			public final void write(int b) throws IOException {
 				synchronized(TempBucket.this) {
                     if(hasBeenFreed) throw new IOException("Already freed");
 					long futureSize = currentSize + 1;
 					_maybeMigrateRamBucket(futureSize);
-					os.write(b);
-					currentSize = futureSize;
+					try {
+						os.write(b);
+					} catch (OutOfDirectMemoryException e) {
+						onOutOfDirectMemory(e);
+						os.write(b);
+					}
 					if(isRAMBucket()) // We need to re-check because it might have changed!
-						_hasTaken(1);
+						_hasTaken(DirectChunkPool.roundUp(futureSize) - DirectChunkPool.roundUp(currentSize));
+					currentSize = futureSize;
 				}
 			}
 			
@@ -287,10 +314,15 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 				    if(hasBeenFreed) throw new IOException("Already freed");
 					long futureSize = currentSize + len;
 					_maybeMigrateRamBucket(futureSize);
-					os.write(b, off, len);
-					currentSize = futureSize;
+					try {
+						os.write(b, off, len);
+					} catch (OutOfDirectMemoryException e) {
+						onOutOfDirectMemory(e);
+						os.write(b, off, len);
+					}
 					if(isRAMBucket()) // We need to re-check because it might have changed!
-						_hasTaken(len);
+						_hasTaken(DirectChunkPool.roundUp(futureSize) - DirectChunkPool.roundUp(currentSize));
+					currentSize = futureSize;
 				}
 			}
 			
@@ -454,7 +486,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 		        if(isRAMBucket()) {
 		            // If it's in memory we must free before removing from the queue.
 		            currentBucket.free();
-		            _hasFreed(currentSize);
+		            _hasFreed(DirectChunkPool.roundUp(currentSize));
 		            synchronized(ramBucketQueue) {
 		                ramBucketQueue.remove(getReference());
 		            }
@@ -541,6 +573,12 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	
 	// Storage accounting disabled by default.
 	public TempBucketFactory(Executor executor, FilenameGenerator filenameGenerator, long maxBucketSizeKeptInRam, long maxRamUsed, Random weakPRNG, boolean reallyEncrypt, long minDiskSpace, MasterSecret masterSecret) {
+		this(executor, filenameGenerator, maxBucketSizeKeptInRam, maxRamUsed, weakPRNG, reallyEncrypt, minDiskSpace, masterSecret,
+				new DirectChunkPool(idleChunks(maxRamUsed), maxRamUsed / DirectChunkPool.CHUNK_SIZE));
+	}
+	
+	/** Only for testing */
+	TempBucketFactory(Executor executor, FilenameGenerator filenameGenerator, long maxBucketSizeKeptInRam, long maxRamUsed, Random weakPRNG, boolean reallyEncrypt, long minDiskSpace, MasterSecret masterSecret, DirectChunkPool chunkPool) {
 		this.filenameGenerator = filenameGenerator;
 		this.maxRamUsed = maxRamUsed;
 		this.maxRAMBucketSize = maxBucketSizeKeptInRam;
@@ -552,6 +590,11 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 		this.diskRAFFactory = new DiskSpaceCheckingRandomAccessBufferFactory(underlyingDiskRAFFactory, 
 		        filenameGenerator.getDir(), minDiskSpace - maxRamUsed);
 		this.secret = masterSecret;
+		this.chunkPool = chunkPool;
+	}
+	
+	private static int idleChunks(long maxRamUsed) {
+		return (int) Math.min(Integer.MAX_VALUE, maxRamUsed / IDLE_CHUNKS_DIVISOR / DirectChunkPool.CHUNK_SIZE);
 	}
 	
 	@Override
@@ -563,32 +606,53 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 		return makeBucket(size, factor, defaultIncrement);
 	}
 	
-	private synchronized void _hasTaken(long size) {
-		bytesInUse += size;
+	private void _hasTaken(long size) {
+		bytesInUse.addAndGet(size);
 	}
 	
-	private synchronized void _hasFreed(long size) {
-		bytesInUse -= size;
+	private void _hasFreed(long size) {
+		bytesInUse.addAndGet(-size);
 	}
 	
-	public synchronized long getRamUsed() {
-		return bytesInUse;
+	/** Reserve space for a RAM buffer of known size.
+	 * @return False if it would take us over the limit. */
+	private boolean tryReserve(long size) {
+		while(true) {
+			long used = bytesInUse.get();
+			if(used >= maxRamUsed || used + size > maxRamUsed) return false;
+			if(bytesInUse.compareAndSet(used, used + size)) return true;
+		}
+	}
+	
+	private void maybeStartCleaner() {
+		if(bytesInUse.get() >= maxRamUsed * MAX_USAGE_HIGH && runningCleaner.compareAndSet(false, true))
+			executor.execute(cleaner);
+	}
+	
+	public long getRamUsed() {
+		return bytesInUse.get();
 	}
 	
 	public synchronized void setMaxRamUsed(long size) {
 		maxRamUsed = size;
+		chunkPool.setLimits(idleChunks(size), size / DirectChunkPool.CHUNK_SIZE);
 	}
 	
-	public synchronized long getMaxRamUsed() {
+	public long getMaxRamUsed() {
 		return maxRamUsed;
 	}
 	
+	/** Only for testing and stats */
+	DirectChunkPool getChunkPool() {
+		return chunkPool;
+	}
+	
 	public synchronized void setMaxRAMBucketSize(long size) {
 		maxRAMBucketSize = size;
 		diskRAFFactory.setMinDiskSpace(minDiskSpace - maxRamUsed);
 	}
 	
-	public synchronized long getMaxRAMBucketSize() {
+	public long getMaxRAMBucketSize() {
 		return maxRAMBucketSize;
 	}
 	
@@ -627,18 +691,14 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 		boolean useRAMBucket = false;
 		long now = System.currentTimeMillis();
 		
-		synchronized(this) {
-			if((size > 0) && (size <= maxRAMBucketSize) && (bytesInUse < maxRamUsed) && (bytesInUse + size <= maxRamUsed)) {
-				useRAMBucket = true;
-			}
-			if(bytesInUse >= maxRamUsed * MAX_USAGE_HIGH && !runningCleaner) {
-				runningCleaner = true;
-				executor.execute(cleaner);
-			}
+		long used = bytesInUse.get();
+		if((size > 0) && (size <= maxRAMBucketSize) && (used < maxRamUsed) && (used + DirectChunkPool.roundUp(size) <= maxRamUsed)) {
+			useRAMBucket = true;
 		}
+		maybeStartCleaner();
 		
 		// Do we want a RAMBucket or a FileBucket?
-		realBucket = (useRAMBucket ? new ArrayBucket() : _makeFileBucket());
+		realBucket = (useRAMBucket ? new DirectBucket(chunkPool) : _makeFileBucket());
 		
 		TempBucket toReturn = new TempBucket(now, realBucket);
 		if(useRAMBucket) { // No need to consider them for migration if they can't be migrated
@@ -655,7 +715,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 		return toReturn;
 }
 	
-	boolean runningCleaner = false;
+	final AtomicBoolean runningCleaner = new AtomicBoolean();
 	
 	private final Runnable cleaner = new Runnable() {
 
@@ -686,9 +746,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 				saidSo = false;
 				while(true) {
 					// Now migrate buckets until usage is below the lower threshold.
-					synchronized(TempBucketFactory.this) {
-						if(bytesInUse <= maxRamUsed * MAX_USAGE_LOW) return;
-					}
+					if(bytesInUse.get() <= maxRamUsed * MAX_USAGE_LOW) return;
 					try {
                         if(!cleanBucketQueue(System.currentTimeMillis(), true)) return;
                     } catch (InsufficientDiskSpaceException e) {
@@ -705,9 +763,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
                     }
 				}
 			} finally {
-				synchronized(TempBucketFactory.this) {
-					runningCleaner = false;
-				}
+				runningCleaner.set(false);
 			}
 		}
 		
@@ -802,7 +858,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	    private final Throwable tracer;
 	    
 	    TempRandomAccessBuffer(int size, long time) throws IOException {
-	        super(new ByteArrayRandomAccessBuffer(size), size);
+	        super(new DirectRandomAccessBuffer(chunkPool, size), size);
 	        creationTime = time;
 	        hasMigrated = false;
 	        original = null;
@@ -813,7 +869,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	    }
 
         public TempRandomAccessBuffer(byte[] initialContents, int offset, int size, long time, boolean readOnly) throws IOException {
-            super(new ByteArrayRandomAccessBuffer(initialContents, offset, size, readOnly), size);
+            super(new DirectRandomAccessBuffer(chunkPool, initialContents, offset, size, readOnly), size);
             creationTime = time;
             hasMigrated = false;
             original = null;
@@ -836,9 +892,22 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 
         @Override
         protected LockableRandomAccessBuffer innerMigrate(LockableRandomAccessBuffer underlying) throws IOException {
-            ByteArrayRandomAccessBuffer b = (ByteArrayRandomAccessBuffer)underlying;
-            byte[] buf = b.getBuffer();
-            return diskRAFFactory.makeRAF(buf, 0, (int)size, b.isReadOnly());
+            DirectRandomAccessBuffer b = (DirectRandomAccessBuffer)underlying;
+            LockableRandomAccessBuffer raf = diskRAFFactory.makeRAF(size);
+            try {
+                b.copyTo(raf);
+            } catch (IOException e) {
+                raf.close();
+                raf.free();
+                throw e;
+            }
+            if(b.isReadOnly()) {
+                if(raf instanceof PooledFileRandomAccessBuffer)
+                    ((PooledFileRandomAccessBuffer) raf).setReadOnly();
+                else
+                    raf = new ReadOnlyRandomAccessBuffer(raf);
+            }
+            return raf;
         }
 
         @Override
@@ -858,7 +927,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
                 if(hasFreedRAM) return;
                 hasFreedRAM = true;
             }
-            _hasFreed(size);
+            _hasFreed(DirectChunkPool.roundUp(size));
             synchronized(ramBucketQueue) {
                 ramBucketQueue.remove(getReference());
             }
@@ -926,16 +995,16 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	    
 	    TempRandomAccessBuffer raf = null;
 	    
-	    synchronized(this) {
-	        if((size > 0) && (size <= maxRAMBucketSize) && (bytesInUse < maxRamUsed) && (bytesInUse + size <= maxRamUsed)) {
+	    if((size > 0) && (size <= maxRAMBucketSize) && tryReserve(DirectChunkPool.roundUp(size))) {
+	        try {
 	            raf = new TempRandomAccessBuffer((int)size, now);
-	            bytesInUse += size;
-	        }
-	        if(bytesInUse >= maxRamUsed * MAX_USAGE_HIGH && !runningCleaner) {
-	            runningCleaner = true;
-	            executor.execute(cleaner);
+	        } catch (OutOfDirectMemoryException e) {
+	            Logger.normal(this, "Out of direct memory, creating a "+size+" byte RAF on disk");
+	        } finally {
+	            if(raf == null) _hasFreed(DirectChunkPool.roundUp(size));
 	        }
 	    }
+	    maybeStartCleaner();
 	    
 	    if(raf != null) {
             synchronized(ramBucketQueue) {
@@ -974,16 +1043,16 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
         
         TempRandomAccessBuffer raf = null;
         
-        synchronized(this) {
-            if((size > 0) && (size <= maxRAMBucketSize) && (bytesInUse < maxRamUsed) && (bytesInUse + size <= maxRamUsed)) {
+        if((size > 0) && (size <= maxRAMBucketSize) && tryReserve(DirectChunkPool.roundUp(size))) {
+            try {
                 raf = new TempRandomAccessBuffer(initialContents, offset, size, now, readOnly);
-                bytesInUse += size;
-            }
-            if(bytesInUse >= maxRamUsed * MAX_USAGE_HIGH && !runningCleaner) {
-                runningCleaner = true;
-                executor.execute(cleaner);
+            } catch (OutOfDirectMemoryException e) {
+                Logger.normal(this, "Out of direct memory, creating a "+size+" byte RAF on disk");
+            } finally {
+                if(raf == null) _hasFreed(DirectChunkPool.roundUp(size));
             }
         }
+        maybeStartCleaner();
         
         if(raf != null) {
             synchronized(ramBucketQueue) {
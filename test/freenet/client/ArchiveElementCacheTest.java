@@ -0,0 +1,136 @@
+package freenet.client;
+
+import java.net.MalformedURLException;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import freenet.keys.FreenetURI;
+import freenet.support.api.Bucket;
+
+public class ArchiveElementCacheTest extends TestCase {
+
+	private static class MyItem extends ArchiveStoreItem {
+
+		final long size;
+
+		MyItem(String name, long size) throws MalformedURLException {
+			super(new ArchiveKey(new FreenetURI("KSK@archive"), name), null);
+			this.size = size;
+		}
+
+		@Override
+		Bucket getDataOrThrow() {
+			return null;
+		}
+
+		@Override
+		long spaceUsed() {
+			return size;
+		}
+
+		@Override
+		Bucket getReaderBucket() {
+			return null;
+		}
+
+	}
+
+	private static ArchiveKey key(String name) throws MalformedURLException {
+		return new ArchiveKey(new FreenetURI("KSK@archive"), name);
+	}
+
+	public void testGetPutRemove() throws MalformedURLException {
+		ArchiveElementCache cache = new ArchiveElementCache(1000, 100);
+		MyItem a = new MyItem("a", 10);
+		assertNull(cache.get(key("a")));
+		assertTrue(cache.put(a).isEmpty());
+		assertSame(a, cache.get(key("a")));
+		assertEquals(10, cache.weight());
+		// Replacing returns the old one.
+		MyItem a2 = new MyItem("a", 20);
+		List<ArchiveStoreItem> dropped = cache.put(a2);
+		assertEquals(1, dropped.size());
+		assertSame(a, dropped.get(0));
+		assertEquals(20, cache.weight());
+		// Only removes the same item.
+		assertFalse(cache.remove(a));
+		assertTrue(cache.remove(a2));
+		assertNull(cache.get(key("a")));
+		assertEquals(0, cache.weight());
+		assertEquals(0, cache.size());
+		assertEquals(1, cache.getHits());
+		assertEquals(2, cache.getMisses());
+	}
+
+	/** Everything dropped is returned exactly once, and the limits are kept. */
+	public void testLimits() throws MalformedURLException {
+		ArchiveElementCache cache = new ArchiveElementCache(10000, 50);
+		int dropped = 0;
+		for(int i=0;i<1000;i++) {
+			dropped += cache.put(new MyItem("file"+i, i % 500)).size();
+			assertTrue(cache.weight() <= 10000);
+			assertTrue(cache.size() <= 50);
+			if(i % 10 == 0) cache.get(key("file"+(i/2)));
+		}
+		assertEquals(1000, dropped + cache.size());
+	}
+
+	/** A file too big for the main area is dropped once it leaves the window. */
+	public void testTooBig() throws MalformedURLException {
+		ArchiveElementCache cache = new ArchiveElementCache(1000, 100);
+		MyItem big = new MyItem("big", 900);
+		// Doesn't even fit in the window.
+		List<ArchiveStoreItem> dropped = cache.put(big);
+		assertEquals(1, dropped.size());
+		assertSame(big, dropped.get(0));
+		assertEquals(0, cache.weight());
+	}
+
+	/** Files which are still popular survive a scan through lots of files which are only asked
+	 * for once. */
+	public void testScanResistant() throws MalformedURLException {
+		ArchiveElementCache cache = new ArchiveElementCache(100*1000, 1000);
+		for(int i=0;i<50;i++)
+			cache.put(new MyItem("popular"+i, 1000));
+		for(int j=0;j<5;j++)
+			for(int i=0;i<50;i++)
+				assertNotNull(cache.get(key("popular"+i)));
+		for(int i=0;i<10000;i++) {
+			ArchiveKey key = key("scan"+i);
+			assertNull(cache.get(key));
+			cache.put(new MyItem("scan"+i, 1000));
+			if(i % 10 == 0)
+				assertNotNull(cache.get(key("popular"+(i/10)%50)));
+		}
+		int found = 0;
+		for(int i=0;i<50;i++)
+			if(cache.get(key("popular"+i)) != null) found++;
+		assertEquals(50, found);
+		// The scan churned through the rest of the main area.
+		assertTrue(cache.getEvicted() > 0);
+		// The scan still got the window.
+		assertNotNull(cache.get(key("scan9999")));
+	}
+
+	/** Files which are asked for repeatedly displace ones which were popular long ago. */
+	public void testAdapts() throws MalformedURLException {
+		ArchiveElementCache cache = new ArchiveElementCache(100*1000, 1000);
+		for(int i=0;i<80;i++) {
+			cache.put(new MyItem("old"+i, 1000));
+			cache.get(key("old"+i));
+		}
+		for(int round=0;round<20;round++) {
+			for(int i=0;i<80;i++) {
+				ArchiveKey key = key("new"+i);
+				if(cache.get(key) == null)
+					cache.put(new MyItem("new"+i, 1000));
+			}
+		}
+		int found = 0;
+		for(int i=0;i<80;i++)
+			if(cache.get(key("new"+i)) != null) found++;
+		assertEquals(80, found);
+	}
+
+}
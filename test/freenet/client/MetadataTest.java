@@ -0,0 +1,135 @@
+package freenet.client;
+
+import java.net.MalformedURLException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import freenet.client.Metadata.DocumentType;
+import freenet.client.Metadata.SimpleManifestComposer;
+import freenet.keys.FreenetURI;
+
+public class MetadataTest extends TestCase {
+
+	private static final String CHK = "CHK@DTCDUmnkKFlrJi9UlDDVqXlktsIXvAJ~ZTseyx5cAZs,PmA2rLgWZKVyMXxSn-ZihSskPYDTY19uhrMwqDV-~Sk,AAICAAI/";
+
+	@Override
+	protected void setUp() {
+		ManifestIndex.clearCache();
+	}
+
+	private static Metadata redirect(String name) throws MalformedURLException {
+		return new Metadata(DocumentType.SIMPLE_REDIRECT, null, null, new FreenetURI(CHK+name), new ClientMetadata("text/html"));
+	}
+
+	/** A site with lots of files, a subdirectory, and a default document. */
+	private static byte[] makeSite(int files) throws Exception {
+		SimpleManifestComposer site = new SimpleManifestComposer();
+		for(int i=0;i<files;i++)
+			site.addItem("file"+i+".html", redirect("file"+i+".html"));
+		SimpleManifestComposer dir = new SimpleManifestComposer();
+		for(int i=0;i<10;i++)
+			dir.addItem("img"+i+".png", redirect("img"+i+".png"));
+		site.addItem("images", dir.getMetadata());
+		site.addItem("", redirect("index.html"));
+		site.addItem("été.html", redirect("summer.html"));
+		return site.getMetadata().writeToByteArray();
+	}
+
+	public void testLazyManifest() throws Exception {
+		Metadata m = Metadata.construct(makeSite(1000));
+		assertTrue(m.isSimpleManifest());
+		assertEquals(1003, m.countDocuments());
+		assertEquals(new FreenetURI(CHK+"file500.html"), m.getDocument("file500.html").getSingleTarget());
+		assertEquals(new FreenetURI(CHK+"index.html"), m.getDefaultDocument().getSingleTarget());
+		assertEquals(new FreenetURI(CHK+"summer.html"), m.getDocument("été.html").getSingleTarget());
+		assertNull(m.getDocument("file1000.html"));
+		Metadata dir = m.getDocument("images");
+		assertTrue(dir.isSimpleManifest());
+		assertEquals(10, dir.countDocuments());
+		assertEquals(new FreenetURI(CHK+"img3.png"), dir.getDocument("img3.png").getSingleTarget());
+		// Same object each time.
+		assertSame(dir, m.getDocument("images"));
+		assertEquals(1002, m.getDocuments().size());
+	}
+
+	public void testGrabDocument() throws Exception {
+		Metadata m = Metadata.construct(makeSite(100));
+		Metadata file = m.getDocument("file1.html");
+		assertSame(file, m.grabDocument("file1.html"));
+		assertNull(m.getDocument("file1.html"));
+		assertEquals(102, m.countDocuments());
+		assertNotNull(m.grabDefaultDocument());
+		assertEquals(101, m.countDocuments());
+	}
+
+	public void testRewrite() throws Exception {
+		byte[] data = makeSite(100);
+		Metadata m = Metadata.construct(data);
+		m.getDocument("file1.html");
+		Metadata copy = Metadata.construct(m.writeToByteArray());
+		assertEquals(103, copy.countDocuments());
+		assertEquals(new FreenetURI(CHK+"file99.html"), copy.getDocument("file99.html").getSingleTarget());
+		assertEquals(10, copy.getDocument("images").countDocuments());
+	}
+
+	/** Clones don't share the parsed entries, which the fetcher may change. */
+	public void testClone() throws Exception {
+		Metadata m = Metadata.construct(makeSite(10));
+		Metadata clone = (Metadata) m.clone();
+		assertNotSame(m.getDocument("file1.html"), clone.getDocument("file1.html"));
+		assertEquals(13, clone.countDocuments());
+	}
+
+	public void testCache() throws Exception {
+		byte[] data = makeSite(100);
+		long misses = ManifestIndex.getCacheMisses();
+		long hits = ManifestIndex.getCacheHits();
+		Metadata.construct(data);
+		Metadata m = Metadata.construct(Arrays.copyOf(data, data.length));
+		assertEquals(misses + 1, ManifestIndex.getCacheMisses());
+		assertEquals(hits + 1, ManifestIndex.getCacheHits());
+		// Separate Metadata's though.
+		assertNotSame(Metadata.construct(data).getDocument("file1.html"), m.getDocument("file1.html"));
+	}
+
+	/** A broken entry only breaks fetching that entry. */
+	public void testInvalidEntry() throws Exception {
+		byte[] data = makeSite(10);
+		byte[] name = "file3.html".getBytes("UTF-8");
+		int pos = indexOf(data, name);
+		// Skip the name and the entry length, and corrupt the magic.
+		data[pos + name.length + 2] ^= 1;
+		Metadata m = Metadata.construct(data);
+		assertNotNull(m.getDocument("file4.html"));
+		try {
+			m.getDocument("file3.html");
+			fail();
+		} catch (MetadataParseException e) {
+			// Expected.
+		}
+	}
+
+	public void testTruncated() throws Exception {
+		byte[] data = makeSite(10);
+		for(int length : new int[] { data.length - 1, data.length / 2, 20 }) {
+			try {
+				Metadata.construct(Arrays.copyOf(data, length));
+				fail();
+			} catch (MetadataParseException e) {
+				// Expected.
+			}
+		}
+	}
+
+	private static int indexOf(byte[] data, byte[] find) {
+		outer:
+		for(int i=0;i<=data.length-find.length;i++) {
+			for(int j=0;j<find.length;j++)
+				if(data[i+j] != find[j]) continue outer;
+			return i;
+		}
+		return -1;
+	}
+
+}
@@ -14,7 +14,7 @@ public class OnionFECCodecTest extends TestCase {
     private static final int BLOCK_SIZE = 4096;
     private static final int MAX_SEGMENT_SIZE = 255;
     
-    private final OnionFECCodec codec = new OnionFECCodec();
+    protected final OnionFECCodec codec = createCodec();
     private byte[][] originalDataBlocks;
     private byte[][] dataBlocks;
     private byte[][] originalCheckBlocks;
@@ -22,6 +22,10 @@ public class OnionFECCodecTest extends TestCase {
     private boolean[] checkBlocksPresent;
     private boolean[] dataBlocksPresent;
     
+    protected OnionFECCodec createCodec() {
+        return new OnionFECCodec();
+    }
+    
     public void testDecodeRandomSubset() {
         Random r = new Random(19412106);
         int iterations = TestProperty.EXTENSIVE ? 100 : 10;
@@ -107,6 +111,87 @@ public class OnionFECCodecTest extends TestCase {
         }
     }
     
+    /** Striped encode and decode must give exactly the same result as a single stripe. */
+    public void testStripedMatchesSingleStripe() {
+        Random r = new Random(21612106);
+        // Full size blocks, and lengths that don't divide evenly into stripes.
+        int[] lengths = new int[] { 32768, 32767, 5001, 4097, 7 };
+        for(int length : lengths) {
+            for(int stripes : new int[] { 2, 3, 8, 16 }) {
+                innerStriped(64, 64, length, stripes, r);
+                innerStriped(100, 28, length, stripes, r);
+            }
+        }
+    }
+
+    public void testStripeCounts() {
+        assertEquals(1, OnionFECCodec.stripes(1));
+        assertEquals(1, OnionFECCodec.stripes(OnionFECCodec.MIN_STRIPE_LENGTH * 2 - 1));
+        assertTrue(OnionFECCodec.stripes(32768) <= OnionFECCodec.MAX_STRIPES);
+        assertTrue(OnionFECCodec.MAX_STRIPES >= 1);
+        // Decode stripes fit in the memory we account for, but always at least one.
+        for(int k = 1; k < 256; k++) {
+            for(int n = k + 1; n <= 256; n++) {
+                int stripes = codec.maxDecodeStripes(k, n);
+                assertTrue(stripes >= 1);
+                assertTrue(stripes == 1 || 
+                        stripes * k * k * 2 <= codec.maxMemoryOverheadDecode(k, n - k));
+            }
+        }
+    }
+
+    private void innerStriped(int data, int check, int length, int stripes, Random r) {
+        byte[][] original = new byte[data][];
+        for(int i=0;i<data;i++) {
+            original[i] = new byte[length];
+            r.nextBytes(original[i]);
+        }
+        byte[][] check1 = new byte[check][length];
+        byte[][] check2 = new byte[check][length];
+        codec.encode(copy(original), check1, new boolean[check], length, 1);
+        codec.encode(copy(original), check2, new boolean[check], length, stripes);
+        assertEquals(check1, check2);
+        // Drop as many blocks as we can, favouring data blocks.
+        byte[][] dataBlocks = copy(original);
+        boolean[] dataPresent = new boolean[data];
+        boolean[] checkPresent = new boolean[check];
+        Arrays.fill(checkPresent, true);
+        for(int i=0;i<data;i++) {
+            if(i < check) {
+                Arrays.fill(dataBlocks[i], (byte)0);
+            } else {
+                dataPresent[i] = true;
+            }
+        }
+        codec.decode(dataBlocks, copy(check2), dataPresent, checkPresent, length, stripes);
+        assertEquals(original, dataBlocks);
+    }
+
+    public void testBenchmark() {
+        if(!TestProperty.BENCHMARK) return;
+        Random r = new Random(21622106);
+        int length = 32768;
+        for(int stripes = 1; stripes <= OnionFECCodec.MAX_STRIPES; stripes *= 2) {
+            byte[][] original = new byte[128][];
+            for(int i=0;i<original.length;i++) {
+                original[i] = new byte[length];
+                r.nextBytes(original[i]);
+            }
+            byte[][] check = new byte[128][length];
+            long t1 = System.nanoTime();
+            codec.encode(original, check, new boolean[128], length, stripes);
+            long t2 = System.nanoTime();
+            byte[][] dataBlocks = new byte[128][length];
+            boolean[] checkPresent = new boolean[128];
+            Arrays.fill(checkPresent, true);
+            codec.decode(dataBlocks, check, new boolean[128], checkPresent, length, stripes);
+            long t3 = System.nanoTime();
+            assertEquals(original, dataBlocks);
+            System.out.println("128/256 segment, "+stripes+" stripes: encode "+(t2-t1)/1000000+
+                    "ms, decode "+(t3-t2)/1000000+"ms");
+        }
+    }
+
     protected void inner(int data, int check, Random r) {
         setup(data, check, r);
         // Now delete a random selection of blocks
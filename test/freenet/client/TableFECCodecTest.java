@@ -0,0 +1,145 @@
+package freenet.client;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import freenet.support.TestProperty;
+
+/** Runs all the OnionFECCodec tests against TableFECCodec, and checks that the two produce the 
+ * same check blocks. */
+public class TableFECCodecTest extends OnionFECCodecTest {
+
+    private static final int BLOCK_SIZE = 4096;
+
+    @Override
+    protected OnionFECCodec createCodec() {
+        return new TableFECCodec();
+    }
+
+    public void testGaloisField() {
+        for(int a=0;a<256;a++) {
+            assertEquals(0, TableFECCodec.mul(a, 0));
+            assertEquals(a, TableFECCodec.mul(a, 1));
+            for(int b=0;b<256;b++) {
+                assertEquals(TableFECCodec.mul(a, b), TableFECCodec.mul(b, a));
+                assertEquals(slowMul(a, b), TableFECCodec.mul(a, b));
+            }
+        }
+    }
+
+    /** Carry-less multiply modulo x^8 + x^4 + x^3 + x^2 + 1. */
+    private static int slowMul(int a, int b) {
+        int result = 0;
+        while(b != 0) {
+            if((b & 1) != 0) result ^= a;
+            a <<= 1;
+            if((a & 0x100) != 0) a ^= 0x11D;
+            b >>= 1;
+        }
+        return result;
+    }
+
+    public void testEncodeMatrixSystematic() {
+        byte[] matrix = TableFECCodec.getEncodeMatrix(10, 20);
+        for(int row=0;row<10;row++)
+            for(int col=0;col<10;col++)
+                assertEquals(row == col ? 1 : 0, matrix[row*10 + col]);
+        assertSame(matrix, TableFECCodec.getEncodeMatrix(10, 20));
+    }
+
+    public void testInvert() {
+        for(int k : new int[] { 1, 2, 7, 64 }) {
+            byte[] matrix = TableFECCodec.getEncodeMatrix(k, 2*k);
+            // Any k rows of the encode matrix are invertible.
+            byte[] rows = Arrays.copyOfRange(matrix, k*k, 2*k*k);
+            if(k > 1) System.arraycopy(matrix, 0, rows, 0, k); // Mix in a data row.
+            byte[] inverse = rows.clone();
+            TableFECCodec.invert(inverse, k);
+            for(int i=0;i<k;i++) {
+                for(int j=0;j<k;j++) {
+                    int sum = 0;
+                    for(int x=0;x<k;x++)
+                        sum ^= TableFECCodec.mul(rows[i*k + x] & 0xFF, inverse[x*k + j] & 0xFF);
+                    assertEquals(i == j ? 1 : 0, sum);
+                }
+            }
+        }
+        try {
+            TableFECCodec.invert(new byte[4], 2);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected, singular.
+        }
+    }
+
+    /** Must produce exactly the same check blocks as the Onion codec, so either can decode. */
+    public void testCompatibleWithOnion() {
+        Random r = new Random(21642106);
+        OnionFECCodec onion = new OnionFECCodec();
+        int[][] sizes = new int[][] { { 1, 2 }, { 2, 3 }, { 3, 253 }, { 128, 128 }, { 100, 101 }, 
+                { 200, 56 }, { 255, 1 } };
+        for(int[] size : sizes) {
+            int data = size[0];
+            int check = size[1];
+            byte[][] dataBlocks = new byte[data][BLOCK_SIZE];
+            for(byte[] block : dataBlocks) r.nextBytes(block);
+            byte[][] onionCheck = new byte[check][BLOCK_SIZE];
+            byte[][] tableCheck = new byte[check][BLOCK_SIZE];
+            onion.encode(dataBlocks, onionCheck, new boolean[check], BLOCK_SIZE);
+            codec.encode(dataBlocks, tableCheck, new boolean[check], BLOCK_SIZE);
+            for(int i=0;i<check;i++)
+                assertTrue("k="+data+" n="+(data+check)+" block "+i, 
+                        Arrays.equals(onionCheck[i], tableCheck[i]));
+            // Decode the table codec's blocks with the Onion codec.
+            byte[][] decoded = new byte[data][BLOCK_SIZE];
+            boolean[] dataPresent = new boolean[data];
+            boolean[] checkPresent = new boolean[check];
+            int have = 0;
+            for(int i=0;i<check && have < data;i++, have++)
+                checkPresent[i] = true;
+            for(int i=0;have < data;i++, have++) {
+                dataPresent[i] = true;
+                decoded[i] = dataBlocks[i].clone();
+            }
+            onion.decode(decoded, tableCheck, dataPresent, checkPresent, BLOCK_SIZE);
+            for(int i=0;i<data;i++)
+                assertTrue(Arrays.equals(dataBlocks[i], decoded[i]));
+        }
+    }
+
+    /** Encode and decode throughput, both codecs, k/n from 1/2 to 128/256. */
+    public void testCompareBenchmark() {
+        if(!TestProperty.BENCHMARK) return;
+        Random r = new Random(21652106);
+        int length = 32768;
+        OnionFECCodec[] codecs = new OnionFECCodec[] { new OnionFECCodec(), new TableFECCodec() };
+        for(int k = 1; k <= 128; k *= 2) {
+            byte[][] dataBlocks = new byte[k][length];
+            for(byte[] block : dataBlocks) r.nextBytes(block);
+            StringBuilder sb = new StringBuilder();
+            sb.append("k=").append(k).append(" n=").append(2*k);
+            for(OnionFECCodec c : codecs) {
+                // Warm up, then time.
+                long encodeTime = 0, decodeTime = 0;
+                for(int iteration = 0; iteration < 3; iteration++) {
+                    byte[][] check = new byte[k][length];
+                    long t1 = System.nanoTime();
+                    c.encode(dataBlocks, check, new boolean[k], length);
+                    long t2 = System.nanoTime();
+                    byte[][] decoded = new byte[k][length];
+                    boolean[] checkPresent = new boolean[k];
+                    Arrays.fill(checkPresent, true);
+                    c.decode(decoded, check, new boolean[k], checkPresent, length);
+                    long t3 = System.nanoTime();
+                    encodeTime = t2 - t1;
+                    decodeTime = t3 - t2;
+                }
+                long bytes = (long)k * length;
+                sb.append(", ").append(c.getClass().getSimpleName()).append(": encode ")
+                    .append(bytes * 1000 / Math.max(1, encodeTime)).append("MB/s decode ")
+                    .append(bytes * 1000 / Math.max(1, decodeTime)).append("MB/s");
+            }
+            System.out.println(sb);
+        }
+    }
+}
@@ -3,6 +3,8 @@ package freenet.client.async;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.IdentityHashMap;
+import java.util.Map;
 import java.util.Random;
 
 import junit.framework.TestCase;
@@ -39,6 +41,14 @@ import freenet.support.CheatingTicker;
 import freenet.support.DummyJobRunner;
 import freenet.support.MemoryLimitedJobRunner;
 import freenet.support.PooledExecutor;
+import freenet.support.RandomGrabArray;
+import freenet.support.RandomGrabArrayItem;
+import freenet.support.RandomGrabArrayItemExclusionList;
+import freenet.support.RemoveRandom;
+import freenet.support.RemoveRandom.RemoveRandomReturn;
+import freenet.support.RemoveRandomParent;
+import freenet.support.SectoredRandomGrabArraySimple;
+import freenet.support.TestProperty;
 import freenet.support.Ticker;
 import freenet.support.WaitableExecutor;
 import freenet.support.api.BucketFactory;
@@ -373,6 +383,293 @@ public class ClientRequestSelectorTest extends TestCase {
         assertEquals(storage.getStatus(), Status.SUCCEEDED);
     }
 
-
+    /** A request in the selection tree with a wakeup time we can set. */
+    static class MyItem implements RandomGrabArrayItem {
+        
+        private long wakeupTime;
+        private RandomGrabArray parent;
+        
+        @Override
+        public synchronized long getWakeupTime(ClientContext context, long now) {
+            return wakeupTime;
+        }
+        
+        synchronized void setWakeupTime(long wakeupTime) {
+            this.wakeupTime = wakeupTime;
+        }
+        
+        @Override
+        public boolean knowsParentGrabArray() {
+            return true;
+        }
+        
+        @Override
+        public synchronized void setParentGrabArray(RandomGrabArray parent) {
+            this.parent = parent;
+        }
+        
+        @Override
+        public synchronized RandomGrabArray getParentGrabArray() {
+            return parent;
+        }
+        
+        @Override
+        public boolean reduceWakeupTime(long wakeupTime, ClientContext context) {
+            RandomGrabArray parent = getParentGrabArray();
+            return parent != null && parent.reduceWakeupTime(wakeupTime, context);
+        }
+        
+        @Override
+        public void clearWakeupTime(ClientContext context) {
+            RandomGrabArray parent = getParentGrabArray();
+            if(parent != null) parent.clearWakeupTime(context);
+        }
+        
+    }
+    
+    static class NullParent implements RemoveRandomParent {
+        
+        @Override
+        public void maybeRemove(RemoveRandom r, ClientContext context) {
+            // Ignore.
+        }
+        
+        @Override
+        public RequestSelectionTreeNode getParentGrabArray() {
+            return null;
+        }
+        
+        @Override
+        public long getWakeupTime(ClientContext context, long now) {
+            return 0;
+        }
+        
+        @Override
+        public boolean reduceWakeupTime(long wakeupTime, ClientContext context) {
+            return false;
+        }
+        
+        @Override
+        public void clearWakeupTime(ClientContext context) {
+            // Ignore.
+        }
+        
+        @Override
+        public void childWakeupTimeCleared(RemoveRandom child, ClientContext context) {
+            // Ignore.
+        }
+        
+    }
+    
+    static final RandomGrabArrayItemExclusionList NOT_EXCLUDED = new RandomGrabArrayItemExclusionList() {
+        
+        @Override
+        public long exclude(RandomGrabArrayItem item, ClientContext context, long now) {
+            return 0;
+        }
+        
+    };
+    
+    private ClientContext makeContext(long seed) {
+        return new ClientContext(0, null, executor, null, null, null, null, null, null, 
+                new DummyRandomSource(seed), new Random(seed), ticker, null, null, null, null, 
+                null, null, null, null, null, null, null, null, null, null, null);
+    }
+    
+    private SectoredRandomGrabArraySimple<Object, Object> makeTree(ClientRequestSelector root) {
+        return new SectoredRandomGrabArraySimple<Object, Object>(null, new NullParent(), root);
+    }
+    
+    private RandomGrabArrayItem choose(SectoredRandomGrabArraySimple<Object, Object> tree, 
+            ClientRequestSelector root, ClientContext context, long now) {
+        synchronized(root) {
+            RemoveRandomReturn ret = tree.removeRandom(NOT_EXCLUDED, context, now);
+            return ret == null ? null : ret.item;
+        }
+    }
+    
+    public void testAddRemoveManyRequests() {
+        ClientRequestSelector root = new ClientRequestSelector(false, false, false, null);
+        ClientContext context = makeContext(1);
+        SectoredRandomGrabArraySimple<Object, Object> tree = makeTree(root);
+        final int GROUPS = 1000;
+        Object[] groups = new Object[GROUPS];
+        MyItem[][] items = new MyItem[GROUPS][];
+        for(int i=0;i<GROUPS;i++) {
+            groups[i] = new Object();
+            items[i] = new MyItem[1 + i % 5];
+            for(int j=0;j<items[i].length;j++) {
+                items[i][j] = new MyItem();
+                tree.add(groups[i], items[i][j], context);
+                // Adding twice does nothing.
+                tree.add(groups[i], items[i][j], context);
+            }
+        }
+        assertEquals(GROUPS, tree.size());
+        for(int i=0;i<GROUPS;i++) {
+            RandomGrabArray rga = tree.getGrabber(groups[i]);
+            assertEquals(items[i].length, rga.size());
+            for(MyItem item : items[i])
+                assertTrue(rga.contains(item));
+        }
+        // Remove every other group, one item at a time.
+        for(int i=0;i<GROUPS;i+=2) {
+            for(MyItem item : items[i]) {
+                RandomGrabArray rga = item.getParentGrabArray();
+                synchronized(root) {
+                    rga.remove(item, context);
+                }
+                assertFalse(rga.contains(item));
+                assertNull(item.getParentGrabArray());
+            }
+            assertNull(tree.getGrabber(groups[i]));
+        }
+        assertEquals(GROUPS / 2, tree.size());
+        long now = System.currentTimeMillis();
+        for(int i=0;i<10000;i++) {
+            MyItem item = (MyItem) choose(tree, root, context, now);
+            assertNotNull(item);
+            RandomGrabArray rga = item.getParentGrabArray();
+            assertNotNull(rga);
+            assertTrue(rga.contains(item));
+        }
+    }
+    
+    /** Each group has an equal chance, however many requests it has. */
+    public void testFairness() {
+        ClientRequestSelector root = new ClientRequestSelector(false, false, false, null);
+        ClientContext context = makeContext(2);
+        SectoredRandomGrabArraySimple<Object, Object> tree = makeTree(root);
+        final int[] SIZES = new int[] { 1, 10, 100, 1000 };
+        final int CHOOSE = 40000;
+        Map<RandomGrabArrayItem, Integer> groupOf = 
+            new IdentityHashMap<RandomGrabArrayItem, Integer>();
+        for(int i=0;i<SIZES.length;i++) {
+            Object group = new Object();
+            for(int j=0;j<SIZES[i];j++) {
+                MyItem item = new MyItem();
+                // Some of them are in cooldown.
+                if(j % 3 == 1) item.setWakeupTime(Long.MAX_VALUE);
+                groupOf.put(item, i);
+                tree.add(group, item, context);
+            }
+        }
+        int[] counts = new int[SIZES.length];
+        long now = System.currentTimeMillis();
+        for(int i=0;i<CHOOSE;i++) {
+            MyItem item = (MyItem) choose(tree, root, context, now);
+            assertEquals(0, item.getWakeupTime(context, now));
+            counts[groupOf.get(item)]++;
+        }
+        for(int count : counts) {
+            int expected = CHOOSE / SIZES.length;
+            assertTrue("Chose group "+count+" times, expected "+expected, 
+                    Math.abs(count - expected) < expected / 10);
+        }
+    }
+    
+    public void testCooldown() {
+        ClientRequestSelector root = new ClientRequestSelector(false, false, false, null);
+        ClientContext context = makeContext(3);
+        SectoredRandomGrabArraySimple<Object, Object> tree = makeTree(root);
+        long now = System.currentTimeMillis();
+        MyItem[] items = new MyItem[100];
+        for(int i=0;i<items.length;i++) {
+            items[i] = new MyItem();
+            items[i].setWakeupTime(now + 1000 + i);
+            tree.add(new Object(), items[i], context);
+        }
+        items[50].setWakeupTime(0);
+        for(int i=0;i<100;i++)
+            assertSame(items[50], choose(tree, root, context, now));
+        items[50].setWakeupTime(now + 2000);
+        RemoveRandomReturn ret;
+        synchronized(root) {
+            ret = tree.removeRandom(NOT_EXCLUDED, context, now);
+        }
+        assertNull(ret.item);
+        assertEquals(now + 1000, ret.wakeupTime);
+        assertEquals(now + 1000, tree.getWakeupTime(context, now));
+        // Nothing changes until it wakes up.
+        assertNull(choose(tree, root, context, now + 1));
+        // A request becomes sendable early.
+        items[70].setWakeupTime(0);
+        items[70].clearWakeupTime(context);
+        assertEquals(0, tree.getWakeupTime(context, now));
+        assertSame(items[70], choose(tree, root, context, now + 1));
+        // Or when the wakeup time is reached, without being told.
+        items[70].setWakeupTime(now + 2000);
+        items[0].setWakeupTime(0);
+        items[1].setWakeupTime(0);
+        for(int i=0;i<100;i++) {
+            RandomGrabArrayItem item = choose(tree, root, context, now + 1001);
+            assertTrue(item == items[0] || item == items[1]);
+        }
+    }
+    
+    /** A waiting request whose wakeup time is brought forward is chosen when it wakes up. */
+    public void testReduceWakeupTime() {
+        ClientRequestSelector root = new ClientRequestSelector(false, false, false, null);
+        ClientContext context = makeContext(4);
+        SectoredRandomGrabArraySimple<Object, Object> tree = makeTree(root);
+        long now = System.currentTimeMillis();
+        MyItem[][] items = new MyItem[3][3];
+        for(int i=0;i<items.length;i++) {
+            Object group = new Object();
+            for(int j=0;j<items[i].length;j++) {
+                items[i][j] = new MyItem();
+                items[i][j].setWakeupTime(now + 1000);
+                tree.add(group, items[i][j], context);
+            }
+        }
+        assertNull(choose(tree, root, context, now));
+        assertEquals(now + 1000, tree.getWakeupTime(context, now));
+        items[1][2].setWakeupTime(now + 10);
+        assertTrue(items[1][2].reduceWakeupTime(now + 10, context));
+        assertEquals(now + 10, tree.getWakeupTime(context, now));
+        assertNull(choose(tree, root, context, now + 9));
+        items[1][2].setWakeupTime(0);
+        assertSame(items[1][2], choose(tree, root, context, now + 11));
+    }
+    
+    public void testBenchmarkLargeQueue() {
+        if(!TestProperty.BENCHMARK) return;
+        ClientRequestSelector root = new ClientRequestSelector(false, false, false, null);
+        ClientContext context = makeContext(4);
+        SectoredRandomGrabArraySimple<Object, Object> tree = makeTree(root);
+        final int REQUESTS = 100000;
+        final int CHOOSE = 100000;
+        long now = System.currentTimeMillis();
+        Random random = new Random(4);
+        MyItem[] items = new MyItem[REQUESTS];
+        long t1 = System.nanoTime();
+        for(int i=0;i<REQUESTS;i++) {
+            items[i] = new MyItem();
+            // Most of them are waiting for their blocks to finish.
+            if(random.nextInt(10) != 0) items[i].setWakeupTime(Long.MAX_VALUE);
+            tree.add(new Object(), items[i], context);
+        }
+        long t2 = System.nanoTime();
+        for(int i=0;i<CHOOSE;i++) {
+            MyItem item = (MyItem) choose(tree, root, context, now);
+            if(random.nextInt(100) == 0) {
+                // A request finishes, another becomes sendable.
+                item.setWakeupTime(Long.MAX_VALUE);
+                MyItem other = items[random.nextInt(REQUESTS)];
+                other.setWakeupTime(0);
+                other.clearWakeupTime(context);
+            }
+        }
+        long t3 = System.nanoTime();
+        for(MyItem item : items) {
+            synchronized(root) {
+                item.getParentGrabArray().remove(item, context);
+            }
+        }
+        long t4 = System.nanoTime();
+        assertTrue(tree.isEmpty());
+        System.out.println("Queued "+REQUESTS+" requests in "+(t2-t1)/1000000+"ms, chose "+CHOOSE+
+                " in "+(t3-t2)/1000000+"ms, removed all in "+(t4-t3)/1000000+"ms");
+    }
     
 }
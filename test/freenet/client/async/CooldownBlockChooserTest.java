@@ -0,0 +1,68 @@
+package freenet.client.async;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class CooldownBlockChooserTest extends TestCase {
+
+    public void testCooldown() throws InterruptedException {
+        CooldownBlockChooser chooser = new CooldownBlockChooser(3, new Random(1), 10, 2, 200);
+        assertEquals(0, chooser.overallCooldownTime());
+        // Every second failure puts the block into cooldown.
+        for(int i=0;i<3;i++) {
+            assertFalse(chooser.onNonFatalFailure(i));
+            assertEquals(0, chooser.getCooldownTime(i));
+        }
+        long start = System.currentTimeMillis();
+        for(int i=0;i<2;i++) {
+            assertFalse(chooser.onNonFatalFailure(i));
+            assertTrue(chooser.getCooldownTime(i) >= start + 200);
+        }
+        for(int i=0;i<100;i++)
+            assertEquals(2, chooser.chooseKey());
+        chooser.onNonFatalFailure(2);
+        assertEquals(-1, chooser.chooseKey());
+        long wakeUp = chooser.overallCooldownTime();
+        assertEquals(chooser.getCooldownTime(0), wakeUp);
+        assertTrue(wakeUp >= start + 200);
+        // Still in cooldown.
+        assertEquals(-1, chooser.chooseKey());
+        Thread.sleep(wakeUp - System.currentTimeMillis() + 10);
+        // Wakes up in the order they went in.
+        int chosen = chooser.chooseKey();
+        assertTrue(chosen == 0 || chosen == 1);
+        assertEquals(0, chooser.overallCooldownTime());
+        assertEquals(0, chooser.getCooldownTime(chosen));
+    }
+
+    public void testUnSuccess() {
+        CooldownBlockChooser chooser = new CooldownBlockChooser(2, new Random(2), 10, 1, 60*1000);
+        chooser.onSuccess(0);
+        chooser.onNonFatalFailure(1);
+        assertEquals(-1, chooser.chooseKey());
+        assertTrue(chooser.overallCooldownTime() > System.currentTimeMillis());
+        // E.g. the data was corrupted on disk.
+        chooser.onUnSuccess(0);
+        chooser.onUnSuccess(1);
+        assertFalse(chooser.hasSucceeded(0));
+        assertEquals(0, chooser.overallCooldownTime());
+        assertEquals(0, chooser.getCooldownTime(1));
+        int[] counts = new int[2];
+        for(int i=0;i<100;i++)
+            counts[chooser.chooseKey()]++;
+        assertEquals(100, counts[0]);
+        chooser.onNonFatalFailure(0);
+        assertEquals(1, chooser.chooseKey());
+    }
+
+    public void testNothingToFetch() {
+        CooldownBlockChooser chooser = new CooldownBlockChooser(1, new Random(3), 0, 1, 60*1000);
+        assertTrue(chooser.onNonFatalFailure(0));
+        assertEquals(-1, chooser.chooseKey());
+        assertEquals(Long.MAX_VALUE, chooser.overallCooldownTime());
+        chooser.clearCooldown();
+        assertEquals(0, chooser.overallCooldownTime());
+    }
+
+}
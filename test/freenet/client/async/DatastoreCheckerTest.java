@@ -0,0 +1,197 @@
+package freenet.client.async;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import freenet.client.async.DatastoreChecker.QueueItem;
+import freenet.keys.ClientKey;
+import freenet.keys.ClientKeyBlock;
+import freenet.keys.Key;
+import freenet.keys.KeyBlock;
+import freenet.keys.NodeCHK;
+import freenet.node.RequestStarter;
+import freenet.support.PooledExecutor;
+import junit.framework.TestCase;
+
+public class DatastoreCheckerTest extends TestCase {
+
+    private final Random random = new Random(1);
+
+    private Key[] makeKeys(int count) {
+        Key[] keys = new Key[count];
+        for(int i=0;i<count;i++) {
+            byte[] routingKey = new byte[32];
+            random.nextBytes(routingKey);
+            keys[i] = new NodeCHK(routingKey, Key.ALGO_AES_CTR_256_SHA256);
+        }
+        return keys;
+    }
+
+    private static DatastoreChecker makeChecker() {
+        // Not started, so nothing is taken from the queue behind our back.
+        return new DatastoreChecker(null, false, new PooledExecutor(), "Datastore checker");
+    }
+
+    public void testBatchPriorityOrder() {
+        DatastoreChecker checker = makeChecker();
+        Key[] low = makeKeys(10);
+        Key[] high = makeKeys(20);
+        Key[] higher = makeKeys(30);
+        checker.queueRequest(low, null, null, RequestStarter.PREFETCH_PRIORITY_CLASS);
+        checker.queueRequest(high, null, null, RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS);
+        checker.queueRequest(higher, null, null, RequestStarter.INTERACTIVE_PRIORITY_CLASS);
+        List<QueueItem> items = new ArrayList<QueueItem>();
+        assertEquals(60, checker.takeBatch(items));
+        assertEquals(3, items.size());
+        assertTrue(Arrays.equals(higher, items.get(0).keys));
+        assertTrue(Arrays.equals(high, items.get(1).keys));
+        assertTrue(Arrays.equals(low, items.get(2).keys));
+        items.clear();
+        assertEquals(0, checker.takeBatch(items));
+        assertTrue(items.isEmpty());
+    }
+
+    public void testBatchSize() {
+        DatastoreChecker checker = makeChecker();
+        final int PER_REQUEST = 100;
+        int requests = DatastoreChecker.BATCH_KEYS / PER_REQUEST * 3;
+        for(int i=0;i<requests;i++)
+            checker.queueRequest(makeKeys(PER_REQUEST), null, null,
+                    RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS);
+        int taken = 0;
+        while(true) {
+            List<QueueItem> items = new ArrayList<QueueItem>();
+            int keys = checker.takeBatch(items);
+            if(items.isEmpty()) break;
+            assertEquals(items.size() * PER_REQUEST, keys);
+            // Enough to spread across the workers, but not much more.
+            if(taken + items.size() < requests)
+                assertTrue(keys >= DatastoreChecker.BATCH_KEYS);
+            assertTrue(keys < DatastoreChecker.BATCH_KEYS + PER_REQUEST);
+            taken += items.size();
+        }
+        assertEquals(requests, taken);
+        // A single request bigger than a batch is still taken.
+        checker.queueRequest(makeKeys(DatastoreChecker.BATCH_KEYS * 2), null, null,
+                RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS);
+        checker.queueRequest(makeKeys(1), null, null, RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS);
+        List<QueueItem> items = new ArrayList<QueueItem>();
+        assertEquals(DatastoreChecker.BATCH_KEYS * 2, checker.takeBatch(items));
+        assertEquals(1, items.size());
+    }
+
+    /** Returns a block for some of the keys, and records how many lookups run at once. */
+    private static class MyBlockSet implements BlockSet {
+
+        private final Map<Key, KeyBlock> blocks = new HashMap<Key, KeyBlock>();
+        private final Map<Key, Integer> lookups = new HashMap<Key, Integer>();
+        private int running;
+        private int maxRunning;
+
+        @Override
+        public KeyBlock get(Key key) {
+            synchronized(this) {
+                Integer count = lookups.get(key);
+                lookups.put(key, count == null ? 1 : count + 1);
+                running++;
+                if(running > maxRunning) maxRunning = running;
+            }
+            try {
+                // Like a disk seek.
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                // Ignore.
+            }
+            synchronized(this) {
+                running--;
+                return blocks.get(key);
+            }
+        }
+
+        @Override
+        public synchronized void add(KeyBlock block) {
+            blocks.put(block.getKey(), block);
+        }
+
+        @Override
+        public synchronized Set<Key> keys() {
+            return blocks.keySet();
+        }
+
+        @Override
+        public ClientKeyBlock get(ClientKey key) {
+            throw new UnsupportedOperationException();
+        }
+
+    }
+
+    private static KeyBlock makeBlock(final Key key) {
+        return new KeyBlock() {
+
+            @Override
+            public Key getKey() {
+                return key;
+            }
+
+            @Override
+            public byte[] getRawHeaders() {
+                return null;
+            }
+
+            @Override
+            public byte[] getRawData() {
+                return null;
+            }
+
+            @Override
+            public byte[] getPubkeyBytes() {
+                return null;
+            }
+
+            @Override
+            public byte[] getRoutingKey() {
+                return key.getRoutingKey();
+            }
+
+            @Override
+            public byte[] getFullKey() {
+                return key.getFullKey();
+            }
+
+        };
+    }
+
+    public void testCheckBatch() {
+        DatastoreChecker checker = makeChecker();
+        MyBlockSet blockSet = new MyBlockSet();
+        List<Key> allKeys = new ArrayList<Key>();
+        for(int i=0;i<8;i++) {
+            Key[] keys = makeKeys(DatastoreChecker.BATCH_KEYS / 8);
+            for(int j=0;j<keys.length;j+=3)
+                blockSet.add(makeBlock(keys[j]));
+            for(Key key : keys)
+                allKeys.add(key);
+            checker.queueRequest(keys, null, blockSet, RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS);
+        }
+        List<QueueItem> items = new ArrayList<QueueItem>();
+        int totalKeys = checker.takeBatch(items);
+        assertEquals(allKeys.size(), totalKeys);
+        DatastoreChecker.CheckBatch batch = checker.new CheckBatch(items, totalKeys);
+        batch.check();
+        for(int i=0;i<totalKeys;i++) {
+            Key key = allKeys.get(i);
+            assertEquals(1, (int)blockSet.lookups.get(key));
+            if(blockSet.blocks.containsKey(key))
+                assertSame(key, batch.results[i].getKey());
+            else
+                assertNull(batch.results[i]);
+        }
+        assertTrue(blockSet.maxRunning <= DatastoreChecker.MAX_WORKERS);
+    }
+
+}
@@ -0,0 +1,223 @@
+package freenet.client.async;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import freenet.crypt.DummyRandomSource;
+import freenet.keys.Key;
+import freenet.keys.KeyBlock;
+import freenet.keys.NodeCHK;
+import freenet.node.SendableGet;
+import freenet.support.TestProperty;
+
+public class KeyListenerTrackerTest extends TestCase {
+
+    private Random random;
+
+    @Override
+    protected void setUp() {
+        random = new Random(1234);
+    }
+
+    /** Like a splitfile: a fixed set of keys, some of which get found. */
+    class MyListener implements IndexedKeyListener {
+
+        final Set<Key> keys;
+        final boolean canList;
+        int asked;
+        int found;
+
+        MyListener(int count, boolean canList) {
+            keys = new HashSet<Key>();
+            for(int i=0;i<count;i++)
+                keys.add(randomKey());
+            this.canList = canList;
+        }
+
+        @Override
+        public synchronized Key[] listKeys() {
+            if(!canList) return null;
+            return keys.toArray(new Key[keys.size()]);
+        }
+
+        @Override
+        public boolean listKeysIsSlow() {
+            return false;
+        }
+
+        @Override
+        public synchronized boolean probablyWantKey(Key key, byte[] saltedKey) {
+            asked++;
+            return keys.contains(key);
+        }
+
+        @Override
+        public synchronized short definitelyWantKey(Key key, byte[] saltedKey, ClientContext context) {
+            return keys.contains(key) ? (short)1 : -1;
+        }
+
+        @Override
+        public SendableGet[] getRequestsForKey(Key key, byte[] saltedKey, ClientContext context) {
+            return null;
+        }
+
+        @Override
+        public synchronized boolean handleBlock(Key key, byte[] saltedKey, KeyBlock found, ClientContext context) {
+            if(!keys.remove(key)) return false;
+            this.found++;
+            return true;
+        }
+
+        @Override
+        public boolean persistent() {
+            return false;
+        }
+
+        @Override
+        public short getPriorityClass() {
+            return 1;
+        }
+
+        @Override
+        public synchronized long countKeys() {
+            return keys.size();
+        }
+
+        @Override
+        public HasKeyListener getHasKeyListener() {
+            return null;
+        }
+
+        @Override
+        public void onRemove() {
+            // Ignore.
+        }
+
+        @Override
+        public synchronized boolean isEmpty() {
+            return keys.isEmpty();
+        }
+
+        @Override
+        public boolean isSSK() {
+            return false;
+        }
+
+    }
+
+    private Key randomKey() {
+        byte[] routingKey = new byte[32];
+        random.nextBytes(routingKey);
+        return new NodeCHK(routingKey, Key.ALGO_AES_PCFB_256_SHA256);
+    }
+
+    private KeyListenerTracker makeTracker() {
+        return new KeyListenerTracker(false, false, false, new DummyRandomSource(5678), null, null, false);
+    }
+
+    private static Key anyKey(MyListener listener) {
+        synchronized(listener) {
+            return listener.keys.iterator().next();
+        }
+    }
+
+    public void testFindsKeys() {
+        KeyListenerTracker tracker = makeTracker();
+        List<MyListener> listeners = new ArrayList<MyListener>();
+        for(int i=0;i<100;i++) {
+            MyListener listener = new MyListener(50, i % 10 != 0);
+            listeners.add(listener);
+            tracker.addPendingKeys(listener);
+        }
+        assertEquals(10, tracker.countUnindexedListeners());
+        assertEquals(90*50, tracker.countIndexedKeys());
+        for(MyListener listener : listeners) {
+            Key key = anyKey(listener);
+            assertTrue(tracker.anyProbablyWantKey(key, null));
+            assertTrue(tracker.tripPendingKey(key, null, null));
+            assertEquals(1, listener.found);
+            assertFalse(tracker.tripPendingKey(key, null, null));
+        }
+        for(int i=0;i<1000;i++)
+            assertFalse(tracker.anyProbablyWantKey(randomKey(), null));
+    }
+
+    /** Indexed listeners are only asked about their own keys. */
+    public void testOnlyAsksIndexedListenersAboutTheirKeys() {
+        KeyListenerTracker tracker = makeTracker();
+        MyListener indexed = new MyListener(100, true);
+        MyListener unindexed = new MyListener(100, false);
+        tracker.addPendingKeys(indexed);
+        tracker.addPendingKeys(unindexed);
+        for(int i=0;i<1000;i++)
+            tracker.anyProbablyWantKey(randomKey(), null);
+        assertEquals(0, indexed.asked);
+        assertEquals(1000, unindexed.asked);
+        tracker.anyProbablyWantKey(anyKey(indexed), null);
+        assertEquals(1, indexed.asked);
+    }
+
+    /** Removing listeners, including enough to rebuild the index, leaves the rest findable. */
+    public void testAddRemove() {
+        KeyListenerTracker tracker = makeTracker();
+        List<MyListener> listeners = new ArrayList<MyListener>();
+        for(int round=0;round<20;round++) {
+            for(int i=0;i<50;i++) {
+                MyListener listener = new MyListener(1 + random.nextInt(100), true);
+                listeners.add(listener);
+                tracker.addPendingKeys(listener);
+                // Registering twice is harmless.
+                tracker.addPendingKeys(listener);
+            }
+            for(int i=0;i<40;i++) {
+                MyListener listener = listeners.remove(random.nextInt(listeners.size()));
+                assertTrue(tracker.removePendingKeys(listener));
+                assertFalse(tracker.removePendingKeys(listener));
+                assertFalse(tracker.anyProbablyWantKey(anyKey(listener), null));
+            }
+        }
+        long keys = 0;
+        for(MyListener listener : listeners) {
+            keys += listener.keys.size();
+            for(Key key : listener.keys)
+                assertTrue(tracker.anyProbablyWantKey(key, null));
+        }
+        assertEquals(keys, tracker.countIndexedKeys());
+        assertEquals(keys, tracker.countWaitingKeys());
+    }
+
+    /** A listener whose last key is found is removed. */
+    public void testRemoveWhenEmpty() {
+        KeyListenerTracker tracker = makeTracker();
+        MyListener listener = new MyListener(1, true);
+        tracker.addPendingKeys(listener);
+        assertTrue(tracker.tripPendingKey(anyKey(listener), null, null));
+        assertEquals(0, tracker.countIndexedKeys());
+        assertFalse(tracker.removePendingKeys(listener));
+    }
+
+    public void testBenchmark() {
+        if(!TestProperty.BENCHMARK) return;
+        KeyListenerTracker tracker = makeTracker();
+        // 1000 splitfiles of 1000 blocks each.
+        for(int i=0;i<1000;i++)
+            tracker.addPendingKeys(new MyListener(1000, true));
+        Key[] keys = new Key[100000];
+        for(int i=0;i<keys.length;i++)
+            keys[i] = randomKey();
+        for(int j=0;j<3;j++) {
+            long start = System.nanoTime();
+            for(Key key : keys)
+                tracker.anyProbablyWantKey(key, null);
+            long end = System.nanoTime();
+            System.out.println(keys.length+" lookups against "+tracker.countIndexedKeys()+" keys: "+
+                    (end-start)/1000000+"ms");
+        }
+    }
+
+}
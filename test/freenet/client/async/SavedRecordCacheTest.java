@@ -0,0 +1,193 @@
+package freenet.client.async;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+import freenet.support.api.BucketFactory;
+import freenet.support.api.RandomAccessBucket;
+import freenet.support.io.ArrayBucket;
+import junit.framework.TestCase;
+
+public class SavedRecordCacheTest extends TestCase {
+
+    /** Stands in for a ClientRequest. The record includes the number of times it has been
+     * written, so we can tell a copied record from a new one. */
+    static class Item {
+        final String name;
+        int version;
+        int writes;
+        boolean fail;
+
+        Item(String name, int version) {
+            this.name = name;
+            this.version = version;
+        }
+    }
+
+    static class ItemWriter implements SavedRecordCache.RecordWriter<Item> {
+
+        int writes;
+
+        @Override
+        public boolean writeRecord(OutputStream os, Item item) throws IOException {
+            writes++;
+            item.writes++;
+            DataOutputStream dos = new DataOutputStream(os);
+            dos.writeUTF(item.name);
+            dos.writeInt(item.writes);
+            // Something bigger than a block of an ObjectOutputStream.
+            dos.write(new byte[3000]);
+            dos.flush();
+            return !item.fail;
+        }
+
+    }
+
+    /** Counts the buckets which haven't been freed. */
+    static class CountingBucketFactory implements BucketFactory {
+
+        int live;
+
+        @Override
+        public RandomAccessBucket makeBucket(long size) throws IOException {
+            live++;
+            return new ArrayBucket() {
+
+                private static final long serialVersionUID = 1L;
+                private boolean freed;
+
+                @Override
+                public void free() {
+                    if(!freed) live--;
+                    freed = true;
+                    super.free();
+                }
+
+            };
+        }
+
+    }
+
+    private ItemWriter writer;
+    private CountingBucketFactory bf;
+    private SavedRecordCache<Item> cache;
+
+    @Override
+    protected void setUp() {
+        writer = new ItemWriter();
+        bf = new CountingBucketFactory();
+        cache = new SavedRecordCache<Item>(writer, bf);
+    }
+
+    /** Write a checkpoint the way ClientLayerPersister does, and read it back.
+     * @return The number of writes recorded for each item. */
+    private int[] checkpoint(boolean full, Item... items) throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(baos);
+        cache.startCheckpoint(full);
+        oos.writeInt(items.length);
+        for(Item item : items)
+            cache.write(oos, item, item.version);
+        cache.finishCheckpoint();
+        oos.writeObject("end");
+        oos.close();
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray()));
+        assertEquals(items.length, ois.readInt());
+        int[] writes = new int[items.length];
+        DataInputStream dis = new DataInputStream(ois);
+        for(int i=0;i<items.length;i++) {
+            assertEquals(items[i].name, dis.readUTF());
+            writes[i] = dis.readInt();
+            byte[] padding = new byte[3000];
+            dis.readFully(padding);
+            for(byte b : padding)
+                assertEquals(0, b);
+        }
+        assertEquals("end", ois.readObject());
+        return writes;
+    }
+
+    public void testReuseFinished() throws Exception {
+        Item finished = new Item("finished", 0);
+        Item running = new Item("running", -1);
+        assertEquals(2, checkpoint(false, finished, running).length);
+        assertEquals(2, writer.writes);
+        // Only the running request is serialized again, and the copy reads back the same.
+        int[] writes = checkpoint(false, finished, running);
+        assertEquals(1, writes[0]);
+        assertEquals(2, writes[1]);
+        assertEquals(3, writer.writes);
+        assertEquals(1, cache.reused());
+        assertEquals(1, bf.live);
+    }
+
+    public void testChangedVersion() throws Exception {
+        Item item = new Item("item", 0);
+        checkpoint(false, item);
+        // E.g. modifyRequest() or restart() on a finished request.
+        item.version++;
+        assertEquals(2, checkpoint(false, item)[0]);
+        assertEquals(0, cache.reused());
+        assertEquals(2, checkpoint(false, item)[0]);
+        assertEquals(1, cache.reused());
+        // Restarted, so running again.
+        item.version = -1;
+        assertEquals(3, checkpoint(false, item)[0]);
+        assertEquals(0, bf.live);
+        item.version = 5;
+        assertEquals(4, checkpoint(false, item)[0]);
+    }
+
+    public void testFullSaveInterval() throws Exception {
+        Item item = new Item("item", 0);
+        int fullSaves = 0;
+        for(int i=1;i<=SavedRecordCache.FULL_SAVE_INTERVAL*3;i++) {
+            int before = writer.writes;
+            checkpoint(false, item);
+            if(writer.writes != before) {
+                fullSaves++;
+                assertTrue(i == 1 || i % SavedRecordCache.FULL_SAVE_INTERVAL == 0);
+            }
+        }
+        // The first one had nothing to reuse.
+        assertEquals(4, fullSaves);
+        // And on shutdown.
+        assertEquals(5, checkpoint(true, item)[0]);
+        assertEquals(1, bf.live);
+    }
+
+    public void testRemoved() throws Exception {
+        Item a = new Item("a", 0);
+        Item b = new Item("b", 0);
+        checkpoint(false, a, b);
+        assertEquals(2, bf.live);
+        checkpoint(false, b);
+        assertEquals(1, bf.live);
+        // Written again if it comes back.
+        assertEquals(2, checkpoint(false, a, b)[0]);
+        cache.clear();
+        assertEquals(0, bf.live);
+        int[] writes = checkpoint(false, a, b);
+        assertEquals(3, writes[0]);
+        assertEquals(2, writes[1]);
+    }
+
+    public void testFailedNotKept() throws Exception {
+        Item item = new Item("item", 0);
+        item.fail = true;
+        // Written to a bucket, thrown away, and written again directly.
+        assertEquals(2, checkpoint(false, item)[0]);
+        assertEquals(0, bf.live);
+        assertEquals(4, checkpoint(false, item)[0]);
+        item.fail = false;
+        assertEquals(5, checkpoint(false, item)[0]);
+        assertEquals(5, checkpoint(false, item)[0]);
+    }
+
+}
@@ -0,0 +1,235 @@
+package freenet.client.async;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import freenet.support.TestProperty;
+import freenet.support.io.StorageFormatException;
+import junit.framework.TestCase;
+
+public class SimpleBlockChooserTest extends TestCase {
+
+    public void testChoosesFewestRetries() {
+        Random random = new Random(1);
+        SimpleBlockChooser chooser = new SimpleBlockChooser(20, random, 5);
+        // Blocks 0-9 have been tried once, 10-14 twice.
+        for(int i=0;i<15;i++)
+            chooser.onNonFatalFailure(i);
+        for(int i=10;i<15;i++)
+            chooser.onNonFatalFailure(i);
+        int[] counts = new int[20];
+        for(int i=0;i<5000;i++)
+            counts[chooser.chooseKey()]++;
+        for(int i=0;i<15;i++)
+            assertEquals(0, counts[i]);
+        // Uniform over the rest.
+        for(int i=15;i<20;i++)
+            assertTrue(counts[i] > 800 && counts[i] < 1200);
+        for(int i=15;i<20;i++)
+            chooser.onSuccess(i);
+        for(int i=0;i<100;i++)
+            assertTrue(chooser.chooseKey() < 10);
+    }
+
+    public void testMaxRetries() {
+        SimpleBlockChooser chooser = new SimpleBlockChooser(10, new Random(2), 2);
+        for(int i=0;i<10;i++) {
+            if(i == 3) continue;
+            assertFalse(chooser.onNonFatalFailure(i));
+            assertFalse(chooser.onNonFatalFailure(i));
+            assertTrue(chooser.onNonFatalFailure(i));
+        }
+        assertEquals(9, chooser.countFailedBlocks());
+        assertEquals(1, chooser.countFetchable());
+        for(int i=0;i<100;i++)
+            assertEquals(3, chooser.chooseKey());
+        chooser.onSuccess(3);
+        assertEquals(-1, chooser.chooseKey());
+        assertEquals(0, chooser.countFetchable());
+        // Unlimited retries.
+        chooser = new SimpleBlockChooser(1, new Random(2), -1);
+        for(int i=0;i<1000;i++)
+            assertFalse(chooser.onNonFatalFailure(0));
+        assertEquals(1000, chooser.getRetries(0));
+        assertEquals(0, chooser.chooseKey());
+    }
+
+    /** With unlimited retries, a block which keeps failing must not make the chooser grow. */
+    public void testUnlimitedRetriesBounded() {
+        SimpleBlockChooser chooser = new SimpleBlockChooser(4, new Random(5), -1);
+        for(int i=0;i<100000;i++)
+            chooser.onNonFatalFailure(0);
+        for(int i=0;i<50000;i++)
+            chooser.onNonFatalFailure(1);
+        chooser.onNonFatalFailure(2);
+        assertEquals(4, chooser.countLevels());
+        for(int i=0;i<100;i++)
+            assertEquals(3, chooser.chooseKey());
+        chooser.onSuccess(3);
+        assertEquals(3, chooser.countLevels());
+        for(int i=0;i<100;i++)
+            assertEquals(2, chooser.chooseKey());
+        chooser.onSuccess(2);
+        for(int i=0;i<100;i++)
+            assertEquals(1, chooser.chooseKey());
+        // Catches up with block 0, so they share a level.
+        for(int i=0;i<50000;i++)
+            chooser.onNonFatalFailure(1);
+        assertEquals(1, chooser.countLevels());
+        assertEquals(2, chooser.countFetchable());
+        chooser.onSuccess(0);
+        chooser.onSuccess(1);
+        assertEquals(0, chooser.countLevels());
+        assertEquals(-1, chooser.chooseKey());
+    }
+
+    /** Falls back to blocks with more retries if those with fewer aren't valid. */
+    public void testCheckValid() {
+        final boolean[] running = new boolean[10];
+        SimpleBlockChooser chooser = new SimpleBlockChooser(10, new Random(3), -1) {
+            @Override
+            protected boolean checkValid(int chosen) {
+                return super.checkValid(chosen) && !running[chosen];
+            }
+            @Override
+            protected int getMaxBlockNumber() {
+                return 8;
+            }
+        };
+        for(int i=0;i<5;i++)
+            running[i] = true;
+        for(int i=5;i<10;i++)
+            chooser.onNonFatalFailure(i);
+        for(int i=0;i<100;i++) {
+            int chosen = chooser.chooseKey();
+            assertTrue(chosen >= 5 && chosen < 8);
+        }
+        assertEquals(3, chooser.countFetchable());
+        running[2] = false;
+        for(int i=0;i<100;i++)
+            assertEquals(2, chooser.chooseKey());
+        for(int i=0;i<10;i++)
+            running[i] = true;
+        assertEquals(-1, chooser.chooseKey());
+    }
+
+    public void testUnSuccess() {
+        SimpleBlockChooser chooser = new SimpleBlockChooser(4, new Random(4), 10);
+        for(int i=0;i<4;i++)
+            assertTrue(chooser.onSuccess(i));
+        assertFalse(chooser.onSuccess(0));
+        assertTrue(chooser.hasSucceededAll());
+        assertEquals(-1, chooser.chooseKey());
+        chooser.onUnSuccess(2);
+        assertEquals(3, chooser.successCount());
+        assertEquals(2, chooser.chooseKey());
+        chooser.replaceSuccesses(new boolean[] { false, true, true, true });
+        assertEquals(0, chooser.chooseKey());
+        assertFalse(chooser.hasSucceeded(0));
+    }
+
+    public void testPersistence() throws IOException, StorageFormatException {
+        SimpleBlockChooser chooser = new SimpleBlockChooser(10, new Random(5), 3);
+        for(int i=0;i<10;i++)
+            chooser.onNonFatalFailure(i);
+        chooser.onNonFatalFailure(4);
+        chooser.onSuccess(7);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        chooser.write(new DataOutputStream(baos));
+        SimpleBlockChooser copy = new SimpleBlockChooser(10, new Random(6), 3);
+        copy.read(new DataInputStream(new ByteArrayInputStream(baos.toByteArray())));
+        assertEquals(1, copy.successCount());
+        assertTrue(copy.hasSucceeded(7));
+        assertEquals(2, copy.getRetries(4));
+        for(int i=0;i<100;i++) {
+            int chosen = copy.chooseKey();
+            assertTrue(chosen != 4 && chosen != 7);
+        }
+    }
+
+    /** The old chooser, which looked at every block every time, for comparison. */
+    private static class ScanningBlockChooser {
+
+        private final boolean[] completed;
+        private final int[] retries;
+        private final int maxRetries;
+        private final Random random;
+
+        ScanningBlockChooser(int blocks, Random random, int maxRetries) {
+            completed = new boolean[blocks];
+            retries = new int[blocks];
+            this.maxRetries = maxRetries;
+            this.random = random;
+        }
+
+        synchronized int chooseKey() {
+            int[] candidates = new int[completed.length];
+            int count = 0;
+            int minRetryCount = Integer.MAX_VALUE;
+            for(int i=0;i<completed.length;i++) {
+                int retry = retries[i];
+                if(retry > maxRetries && maxRetries != -1) continue;
+                if(retry > minRetryCount) continue;
+                if(completed[i]) continue;
+                if(retry < minRetryCount) {
+                    count = 0;
+                    candidates[count++] = i;
+                    minRetryCount = retry;
+                } else if(retry == minRetryCount) {
+                    candidates[count++] = i;
+                }
+            }
+            if(count == 0) return -1;
+            return candidates[random.nextInt(count)];
+        }
+
+        synchronized void onNonFatalFailure(int blockNo) {
+            retries[blockNo]++;
+        }
+
+        synchronized void onSuccess(int blockNo) {
+            completed[blockNo] = true;
+        }
+
+    }
+
+    /** Fetch a segment, where a third of the attempts fail. */
+    public void testBenchmark() {
+        if(!TestProperty.BENCHMARK) return;
+        final int blocks = 256;
+        final int segments = 20000;
+        for(int run=0;run<3;run++) {
+            Random random = new Random(run);
+            long t1 = System.nanoTime();
+            for(int i=0;i<segments;i++) {
+                ScanningBlockChooser chooser = new ScanningBlockChooser(blocks, random, 3);
+                int chosen;
+                while((chosen = chooser.chooseKey()) != -1) {
+                    if(random.nextInt(3) == 0)
+                        chooser.onNonFatalFailure(chosen);
+                    else
+                        chooser.onSuccess(chosen);
+                }
+            }
+            long t2 = System.nanoTime();
+            for(int i=0;i<segments;i++) {
+                SimpleBlockChooser chooser = new SimpleBlockChooser(blocks, random, 3);
+                int chosen;
+                while((chosen = chooser.chooseKey()) != -1) {
+                    if(random.nextInt(3) == 0)
+                        chooser.onNonFatalFailure(chosen);
+                    else
+                        chooser.onSuccess(chosen);
+                }
+            }
+            long t3 = System.nanoTime();
+            System.out.println(segments+" segments of "+blocks+" blocks: scanning "+
+                    (t2-t1)/1000000+"ms, levels "+(t3-t2)/1000000+"ms");
+        }
+    }
+
+}
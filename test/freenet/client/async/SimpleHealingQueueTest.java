@@ -0,0 +1,166 @@
+package freenet.client.async;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import freenet.client.InsertContext;
+import freenet.client.async.SimpleHealingQueue.HealingBlock;
+import freenet.client.events.SimpleEventProducer;
+import freenet.crypt.DummyRandomSource;
+import freenet.keys.CHKBlock;
+import freenet.node.Node;
+import freenet.node.RequestStarter;
+import freenet.support.RandomGrabArray;
+import freenet.support.RemoveRandom.RemoveRandomReturn;
+import freenet.support.api.Bucket;
+import freenet.support.compress.Compressor;
+import freenet.support.io.ArrayBucket;
+import junit.framework.TestCase;
+
+public class SimpleHealingQueueTest extends TestCase {
+
+    private static SimpleHealingQueue makeQueue(int maxQueued) {
+        InsertContext ctx = new InsertContext(
+                0, 2, 0, 0, new SimpleEventProducer(),
+                false, Node.FORK_ON_CACHEABLE_DEFAULT, false,
+                Compressor.DEFAULT_COMPRESSORDESCRIPTOR, 0, 0,
+                InsertContext.CompatibilityMode.COMPAT_DEFAULT);
+        return new SimpleHealingQueue(ctx, RequestStarter.PREFETCH_PRIORITY_CLASS, maxQueued, null);
+    }
+
+    private static Bucket block(int seed) {
+        byte[] buf = new byte[CHKBlock.DATA_LENGTH];
+        Arrays.fill(buf, (byte) seed);
+        return new ArrayBucket(buf);
+    }
+
+    private static final byte[] CRYPTO_KEY = new byte[32];
+
+    public void testDuplicates() {
+        SimpleHealingQueue queue = makeQueue(100);
+        assertTrue(queue.add(block(1), CRYPTO_KEY, (byte)2, (short)3));
+        assertFalse(queue.add(block(1), CRYPTO_KEY, (byte)2, (short)3));
+        // Different key, different CHK.
+        byte[] otherKey = new byte[32];
+        otherKey[0] = 1;
+        assertTrue(queue.add(block(1), otherKey, (byte)2, (short)3));
+        assertEquals(2, queue.getQueued());
+        assertEquals(1, queue.getDuplicates());
+        // Still a duplicate once it's been inserted.
+        queue.onFinished(queue.chooseBlock(), true, null);
+        assertFalse(queue.add(block(1), CRYPTO_KEY, (byte)2, (short)3));
+        // But not if the insert failed.
+        queue.onFinished(queue.chooseBlock(), false, null);
+        assertTrue(queue.add(block(1), otherKey, (byte)2, (short)3));
+        assertEquals(1, queue.getInserted());
+        assertEquals(1, queue.getFailed());
+    }
+
+    /** A block the scheduler drops frees its slot and its data, and isn't counted as failed. */
+    public void testDump() throws IOException {
+        SimpleHealingQueue queue = makeQueue(100);
+        Bucket data = block(1);
+        assertTrue(queue.add(data, CRYPTO_KEY, (byte)2, (short)3));
+        HealingBlock block = queue.chooseBlock();
+        assertEquals(1, queue.getRunning());
+        block.dump();
+        assertEquals(0, queue.getRunning());
+        assertEquals(0, queue.getFailed());
+        try {
+            data.getInputStream();
+            fail();
+        } catch (IOException e) {
+            // Freed.
+        }
+        // Can be queued again.
+        assertTrue(queue.add(block(1), CRYPTO_KEY, (byte)2, (short)3));
+    }
+
+    /** Blocks from higher priority downloads go first, and displace lower priority ones. */
+    public void testPriority() {
+        SimpleHealingQueue queue = makeQueue(3);
+        assertTrue(queue.add(block(1), CRYPTO_KEY, (byte)2, (short)4));
+        assertTrue(queue.add(block(2), CRYPTO_KEY, (byte)2, (short)4));
+        assertTrue(queue.add(block(3), CRYPTO_KEY, (byte)2, (short)2));
+        assertFalse(queue.add(block(4), CRYPTO_KEY, (byte)2, (short)4));
+        assertTrue(queue.add(block(5), CRYPTO_KEY, (byte)2, (short)1));
+        assertEquals(3, queue.getQueued());
+        assertEquals(2, queue.getDropped());
+        short[] order = new short[3];
+        for(int i=0;i<3;i++)
+            order[i] = queue.chooseBlock().prio;
+        assertTrue(Arrays.equals(new short[] { 1, 2, 4 }, order));
+        assertNull(queue.chooseBlock());
+        // Block 2 was dropped so can be queued again.
+        assertTrue(queue.add(block(2), CRYPTO_KEY, (byte)2, (short)4));
+    }
+
+    public void testMaxRunning() {
+        SimpleHealingQueue queue = makeQueue(100);
+        for(int i=0;i<SimpleHealingQueue.MAX_RUNNING+1;i++)
+            assertTrue(queue.add(block(i), CRYPTO_KEY, (byte)2, (short)4));
+        HealingBlock first = null;
+        for(int i=0;i<SimpleHealingQueue.MAX_RUNNING;i++) {
+            HealingBlock block = queue.chooseBlock();
+            assertNotNull(block);
+            if(first == null) first = block;
+        }
+        assertNull(queue.chooseBlock());
+        assertEquals(Long.MAX_VALUE, queue.getWakeupTime(System.currentTimeMillis()));
+        queue.onFinished(first, true, null);
+        assertNotNull(queue.chooseBlock());
+        assertEquals(Long.MAX_VALUE, queue.getWakeupTime(System.currentTimeMillis()));
+    }
+
+    /** Once MAX_RUNNING inserts are running, the scheduler stops asking for blocks until one of
+     * them finishes. */
+    public void testWakeupAfterFinished() {
+        SimpleHealingQueue queue = makeQueue(100);
+        ClientRequestSelector root = new ClientRequestSelector(false, false, false, null);
+        ClientContext context = new ClientContext(0, null, null, null, null, null, null, null, null,
+                new DummyRandomSource(1), new Random(1), null, null, null, null, null, null, null,
+                null, null, null, null, null, null, null, null, null);
+        RandomGrabArray rga = new RandomGrabArray(new ClientRequestSelectorTest.NullParent(), root);
+        for(int i=0;i<SimpleHealingQueue.MAX_RUNNING+2;i++)
+            assertTrue(queue.add(block(i), CRYPTO_KEY, (byte)2, (short)4));
+        rga.add(queue.sender, context);
+        long now = System.currentTimeMillis();
+        HealingBlock first = null;
+        for(int i=0;i<SimpleHealingQueue.MAX_RUNNING;i++) {
+            assertSame(queue.sender, rga.removeRandom(ClientRequestSelectorTest.NOT_EXCLUDED, context, now).item);
+            HealingBlock block = queue.chooseBlock();
+            assertNotNull(block);
+            if(first == null) first = block;
+        }
+        RemoveRandomReturn ret = rga.removeRandom(ClientRequestSelectorTest.NOT_EXCLUDED, context, now);
+        assertNull(ret.item);
+        assertEquals(Long.MAX_VALUE, ret.wakeupTime);
+        // Still waiting, nothing has changed.
+        assertNull(rga.removeRandom(ClientRequestSelectorTest.NOT_EXCLUDED, context, now).item);
+        queue.onFinished(first, true, context);
+        assertEquals(0, rga.getWakeupTime(context, now));
+        assertSame(queue.sender, rga.removeRandom(ClientRequestSelectorTest.NOT_EXCLUDED, context, now).item);
+        assertNotNull(queue.chooseBlock());
+    }
+
+    public void testLoad() {
+        assertEquals(SimpleHealingQueue.MAX_RUNNING, SimpleHealingQueue.maxRunning(0.0));
+        assertEquals(SimpleHealingQueue.MAX_RUNNING / 2, SimpleHealingQueue.maxRunning(SimpleHealingQueue.MAX_BANDWIDTH_USAGE / 2));
+        assertEquals(1, SimpleHealingQueue.maxRunning(SimpleHealingQueue.MAX_BANDWIDTH_USAGE * 0.99));
+        assertEquals(0, SimpleHealingQueue.maxRunning(SimpleHealingQueue.MAX_BANDWIDTH_USAGE));
+        assertEquals(0, SimpleHealingQueue.maxRunning(1.0));
+        SimpleHealingQueue queue = new SimpleHealingQueue(makeQueue(1).ctx, RequestStarter.PREFETCH_PRIORITY_CLASS, 100, null) {
+            @Override
+            double bandwidthUsage() {
+                return 1.0;
+            }
+        };
+        assertTrue(queue.add(block(1), CRYPTO_KEY, (byte)2, (short)4));
+        long now = System.currentTimeMillis();
+        assertNull(queue.chooseBlock());
+        long wakeup = queue.getWakeupTime(now);
+        assertTrue(wakeup > now && wakeup <= now + SimpleHealingQueue.LOAD_RECHECK_TIME + 1000);
+    }
+
+}
@@ -737,6 +737,38 @@ public class SplitFileFetcherStorageTest extends TestCase {
     
     // FIXME LATER Test cross-segment.
 
+    /** The key listener must list every key we might still want, including keys we already have
+     * (the block may be corrupt) and the keys of a segment which is decoding. */
+    public void testListKeys() throws CHKEncodeException, IOException, FetchException, MetadataParseException, MetadataUnresolvedException {
+        TestSplitfile test = TestSplitfile.constructSingleSegment(BLOCK_SIZE*2, 1, null, false);
+        StorageCallback cb = test.createStorageCallback();
+        SplitFileFetcherStorage storage = test.createStorage(cb);
+        SplitFileFetcherSegmentStorage segment = storage.segments[0];
+        int total = test.dataBlocks.length+test.checkBlocks.length;
+        assertEquals(total, storage.keyListener.listKeys().length);
+        segment.onNonFatalFailure(test.dataBlocks.length);
+        assertTrue(segment.onGotKey(test.dataKeys[0].getNodeCHK(), test.encodeDataBlock(0)));
+        cb.markDownloadedBlock(0);
+        List<Key> keys = Arrays.asList(storage.keyListener.listKeys());
+        assertEquals(total, keys.size());
+        for(int i=0;i<total;i++)
+            assertTrue(keys.contains(test.getCHK(i)));
+        assertTrue(segment.onGotKey(test.dataKeys[1].getNodeCHK(), test.encodeDataBlock(1)));
+        cb.markDownloadedBlock(1);
+        assertTrue(segment.hasStartedDecode());
+        Key[] decoding = storage.keyListener.listKeys();
+        assertTrue(decoding.length == total || segment.isFinished());
+        waitForDecode(segment);
+        cb.waitForFinished();
+        cb.checkFailed();
+        storage.finishedFetcher();
+        waitForFinished(segment);
+        assertEquals(0, storage.keyListener.listKeys().length);
+        cb.waitForFree(storage);
+        test.free();
+    }
+
+
     public void testMultiSegment() throws CHKEncodeException, IOException, MetadataUnresolvedException, MetadataParseException, FetchException {
         // We have to be consistent with the format, but we can in fact play with the segment sizes 
         // to some degree.
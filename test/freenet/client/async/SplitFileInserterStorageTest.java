@@ -8,6 +8,7 @@ import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
 
 import junit.framework.TestCase;
@@ -27,6 +28,7 @@ import freenet.client.async.SplitFileInserterSegmentStorage.BlockInsert;
 import freenet.client.async.SplitFileInserterSegmentStorage.MissingKeyException;
 import freenet.client.async.SplitFileInserterStorage.Status;
 import freenet.client.events.SimpleEventProducer;
+import freenet.client.events.SplitfileEncodingProgressEvent;
 import freenet.crypt.CRCChecksumChecker;
 import freenet.crypt.ChecksumChecker;
 import freenet.crypt.ChecksumFailedException;
@@ -300,6 +302,48 @@ public class SplitFileInserterStorageTest extends TestCase {
         assertTrue(storage.getStatus() == Status.ENCODED);
     }
 
+    public void testEncodingProgress() throws IOException, InsertException, MissingKeyException {
+        Random r = new Random(12125);
+        long size = CHKBlock.DATA_LENGTH*128*21;
+        LockableRandomAccessBuffer data = generateData(r, size);
+        HashResult[] hashes = getHashes(data);
+        MyCallback cb = new MyCallback();
+        KeysFetchingLocally keys = new MyKeysFetchingLocally();
+        SplitFileInserterStorage storage = new SplitFileInserterStorage(data, size, cb, null,
+                new ClientMetadata(), false, null, smallRAFFactory, true, baseContext.clone(),
+                cryptoAlgorithm, cryptoKey, null, hashes, smallBucketFactory, checker,
+                r, memoryLimitedJobRunner, jobRunner, ticker, keys, false, 0, 0, 0, 0);
+        assertNotNull(storage.crossSegments);
+        SplitfileEncodingProgressEvent progress = storage.getEncodingProgress();
+        assertEquals(0, progress.encodedSegments);
+        assertEquals(storage.segments.length, progress.totalSegments);
+        assertEquals(0, progress.encodedCrossSegments);
+        assertEquals(storage.crossSegments.length, progress.totalCrossSegments);
+        assertEquals(0, progress.getThroughput());
+        storage.start();
+        cb.waitForFinishedEncode();
+        cb.waitForHasKeys();
+        executor.waitForIdle();
+        // Keys are generated while reading and writing the blocks.
+        long bytes = 0;
+        for(SplitFileInserterSegmentStorage segment : storage.segments) {
+            for(int i=0;i<segment.totalBlockCount;i++)
+                segment.readKey(i);
+            bytes += segment.totalBlockCount;
+        }
+        for(SplitFileInserterCrossSegmentStorage segment : storage.crossSegments)
+            bytes += segment.totalBlocks;
+        bytes *= CHKBlock.DATA_LENGTH;
+        progress = storage.getEncodingProgress();
+        assertTrue(progress.isFinished());
+        assertEquals(storage.crossSegments.length, progress.encodedCrossSegments);
+        assertEquals(bytes, progress.encodedBytes);
+        assertTrue(progress.elapsedMillis > 0);
+        assertTrue(progress.getThroughput() > 0);
+        storage.encodeMetadata();
+        assertTrue(storage.getStatus() == Status.ENCODED);
+    }
+
     public void testSmallSplitfileCompletion() throws IOException, InsertException, MissingKeyException {
         Random r = new Random(12121);
         long size = 65536; // Exact multiple, so no last block
@@ -960,6 +1004,126 @@ public class SplitFileInserterStorageTest extends TestCase {
         resumed.getRAF().free();
     }
     
+    /** A segment starts encoding as soon as the cross-segments it takes blocks from have encoded,
+     * without waiting for the rest. */
+    public void testEncodeSegmentBeforeAllCrossSegments() throws InsertException, IOException, MissingKeyException, StorageFormatException, ChecksumFailedException, ResumeFailedException, MetadataUnresolvedException {
+        long size = CHKBlock.DATA_LENGTH*128*21;
+        Random r = new Random(12131);
+        LockableRandomAccessBuffer data = generateData(r, size);
+        HashResult[] hashes = getHashes(data);
+        MyCallback cb = new MyCallback();
+        MyKeysFetchingLocally keys = new MyKeysFetchingLocally();
+        MemoryLimitedJobRunner memoryLimitedJobRunner = new MemoryLimitedJobRunner(9*1024*1024L, 1, executor, NativeThread.JAVA_PRIORITY_RANGE);
+        SplitFileInserterStorage storage = new SplitFileInserterStorage(data, size, cb, null,
+                new ClientMetadata(), false, null, smallRAFFactory, true, baseContext.clone(), 
+                cryptoAlgorithm, cryptoKey, null, hashes, smallBucketFactory, checker, 
+                r, memoryLimitedJobRunner, jobRunner, ticker, keys, false, 0, 0, 0, 0);
+        executor.waitForIdle();
+        assertNotNull(storage.crossSegments);
+        SplitFileInserterStorage resumed = null;
+        SplitFileInserterSegmentStorage ready = null;
+        // Encode one cross-segment at a time until some segment has all its cross-check blocks.
+        for(int i=0;i<storage.crossSegments.length && ready == null;i++) {
+            memoryLimitedJobRunner = new MemoryLimitedJobRunner(9*1024*1024L, 1, executor, NativeThread.JAVA_PRIORITY_RANGE);
+            resumed = new SplitFileInserterStorage(storage.getRAF(), data, cb, r, 
+                    memoryLimitedJobRunner, jobRunner, ticker, keys, fg, persistentFileTracker, null);
+            resumed.start();
+            memoryLimitedJobRunner.shutdown();
+            memoryLimitedJobRunner.waitForShutdown();
+            executor.waitForIdle();
+            assertEquals(i+1, countEncodedCrossSegments(resumed));
+            for(SplitFileInserterSegmentStorage segment : resumed.segments) {
+                if(segment.crossSegmentsEncoded()) {
+                    ready = segment;
+                    break;
+                }
+            }
+        }
+        assertNotNull(ready);
+        assertTrue(countEncodedCrossSegments(resumed) < resumed.crossSegments.length);
+        memoryLimitedJobRunner = new MemoryLimitedJobRunner(9*1024*1024L, 1, executor, NativeThread.JAVA_PRIORITY_RANGE);
+        resumed = new SplitFileInserterStorage(storage.getRAF(), data, cb, r, 
+                memoryLimitedJobRunner, jobRunner, ticker, keys, fg, persistentFileTracker, null);
+        ready = resumed.segments[ready.segNo];
+        resumed.start();
+        // The ready segment is queued to encode along with the remaining cross-segments.
+        assertTrue(ready.isEncoding() || ready.isFinishedEncoding());
+        assertEquals(Status.STARTED, resumed.getStatus());
+        cb.waitForFinishedEncode();
+        cb.waitForHasKeys();
+        executor.waitForIdle();
+        assertEquals(resumed.segments.length, countEncodedSegments(resumed));
+        resumed.encodeMetadata();
+        assertTrue(resumed.getStatus() == Status.ENCODED);
+        resumed.originalData.free();
+        resumed.getRAF().free();
+    }
+
+    /** Holds the jobs queued on it until the test runs them, so it can choose the order. */
+    private class HoldingJobRunner extends DummyJobRunner {
+
+        private final List<PersistentJob> held = new ArrayList<PersistentJob>();
+
+        HoldingJobRunner() {
+            super(executor, null);
+        }
+
+        @Override
+        public synchronized void queue(PersistentJob job, int priority) {
+            held.add(job);
+        }
+
+        synchronized List<PersistentJob> takeJobs() {
+            List<PersistentJob> jobs = new ArrayList<PersistentJob>(held);
+            held.clear();
+            return jobs;
+        }
+
+    }
+
+    /** The segment jobs can run before the job for the last cross-segment, e.g. if a segment was
+     * started by another cross-segment's job just as the last one finished. The insert must still 
+     * finish encoding. */
+    public void testSegmentsEncodedBeforeCrossSegmentJob() throws InsertException, IOException, MissingKeyException, StorageFormatException, ChecksumFailedException, ResumeFailedException {
+        long size = CHKBlock.DATA_LENGTH*128*21;
+        Random r = new Random(12132);
+        LockableRandomAccessBuffer data = generateData(r, size);
+        HashResult[] hashes = getHashes(data);
+        MyCallback cb = new MyCallback();
+        MyKeysFetchingLocally keys = new MyKeysFetchingLocally();
+        SplitFileInserterStorage storage = new SplitFileInserterStorage(data, size, cb, null,
+                new ClientMetadata(), false, null, smallRAFFactory, true, baseContext.clone(), 
+                cryptoAlgorithm, cryptoKey, null, hashes, smallBucketFactory, checker, 
+                r, memoryLimitedJobRunner, jobRunner, ticker, keys, false, 0, 0, 0, 0);
+        executor.waitForIdle();
+        assertNotNull(storage.crossSegments);
+        HoldingJobRunner holding = new HoldingJobRunner();
+        SplitFileInserterStorage resumed = new SplitFileInserterStorage(storage.getRAF(), data, cb, 
+                r, memoryLimitedJobRunner, holding, ticker, keys, fg, persistentFileTracker, null);
+        resumed.start();
+        executor.waitForIdle();
+        assertEquals(resumed.crossSegments.length, countEncodedCrossSegments(resumed));
+        List<PersistentJob> crossSegmentJobs = holding.takeJobs();
+        assertEquals(Status.STARTED, resumed.getStatus());
+        // As startReadySegmentEncodes() would.
+        for(SplitFileInserterSegmentStorage segment : resumed.segments)
+            segment.startEncode(cb.getPriorityClass());
+        executor.waitForIdle();
+        assertEquals(resumed.segments.length, countEncodedSegments(resumed));
+        for(PersistentJob job : holding.takeJobs())
+            job.run(null);
+        assertEquals(Status.ENCODED, resumed.getStatus());
+        cb.waitForFinishedEncode();
+        // The late cross-segment jobs don't change anything.
+        for(PersistentJob job : crossSegmentJobs)
+            job.run(null);
+        assertEquals(Status.ENCODED, resumed.getStatus());
+        for(PersistentJob job : holding.takeJobs())
+            job.run(null);
+        resumed.originalData.free();
+        resumed.getRAF().free();
+    }
+
     private int countEncodedSegments(SplitFileInserterStorage storage) {
         int total = 0;
         for(SplitFileInserterSegmentStorage segment : storage.segments) {
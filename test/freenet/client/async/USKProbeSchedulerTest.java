@@ -0,0 +1,145 @@
+package freenet.client.async;
+
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import freenet.client.async.USKProbeScheduler.SharedRequests;
+import freenet.crypt.DummyRandomSource;
+import freenet.keys.InsertableClientSSK;
+import freenet.keys.USK;
+
+public class USKProbeSchedulerTest extends TestCase {
+
+	private static final long MIN_SLEEP = MINUTES.toMillis(30);
+	private static final long MAX_SLEEP = HOURS.toMillis(24);
+
+	public void testShareResult() {
+		SharedRequests<String> shared = new SharedRequests<String>();
+		assertFalse(shared.join("key", "a", (short)2));
+		assertTrue(shared.join("key", "b", (short)2));
+		assertTrue(shared.join("key", "c", (short)3));
+		// Joining twice is harmless.
+		assertTrue(shared.join("key", "c", (short)3));
+		assertFalse(shared.join("other", "d", (short)2));
+		assertEquals(2, shared.running());
+		assertEquals(2, shared.shared());
+		assertEquals(Arrays.asList("b", "c"), shared.followers("key", "a"));
+		assertTrue(shared.followers("key", "b").isEmpty());
+		// Only the owner's result is passed on.
+		assertNull(shared.finish("key", "c"));
+		assertEquals(Arrays.asList("b"), shared.finish("key", "a"));
+		assertNull(shared.finish("key", "a"));
+		assertEquals(1, shared.running());
+	}
+
+	/** A request never waits for a less urgent one. */
+	public void testPriority() {
+		SharedRequests<String> shared = new SharedRequests<String>();
+		assertFalse(shared.join("key", "a", (short)4));
+		assertFalse(shared.join("key", "b", (short)2));
+		assertTrue(shared.join("key", "c", (short)4));
+		// b's own result isn't passed on to anyone.
+		assertNull(shared.finish("key", "b"));
+		assertEquals(Arrays.asList("c"), shared.finish("key", "a"));
+	}
+
+	/** If the owner is cancelled, the next one sends its own request. */
+	public void testLeave() {
+		SharedRequests<String> shared = new SharedRequests<String>();
+		assertFalse(shared.join("key", "a", (short)2));
+		assertTrue(shared.join("key", "b", (short)3));
+		assertTrue(shared.join("key", "c", (short)4));
+		assertNull(shared.leave("key", "c"));
+		assertEquals("b", shared.leave("key", "a"));
+		assertTrue(shared.join("key", "d", (short)3));
+		// Still less urgent than b.
+		assertTrue(shared.join("key", "e", (short)5));
+		assertEquals(Arrays.asList("d", "e"), shared.finish("key", "b"));
+		assertEquals(0, shared.running());
+		assertFalse(shared.join("key", "f", (short)2));
+		assertNull(shared.leave("key", "f"));
+		assertEquals(0, shared.running());
+	}
+
+	private static USK makeUSK(int seed) {
+		return new USK(InsertableClientSSK.createRandom(new DummyRandomSource(seed), "test"), 0).clearCopy();
+	}
+
+	public void testUpdateInterval() {
+		USKProbeScheduler probes = new USKProbeScheduler();
+		USK usk = makeUSK(1);
+		USK other = makeUSK(2);
+		long now = DAYS.toMillis(1000);
+		probes.onNewSlot(usk, 10, now);
+		assertEquals(-1, probes.getUpdateInterval(usk));
+		// Catching up on editions we didn't know about doesn't count.
+		for(int i=11;i<=15;i++)
+			probes.onNewSlot(usk, i, now + SECONDS.toMillis(i));
+		assertEquals(-1, probes.getUpdateInterval(usk));
+		now += HOURS.toMillis(6);
+		probes.onNewSlot(usk, 16, now);
+		assertEquals(HOURS.toMillis(6), probes.getUpdateInterval(usk));
+		// Several updates while we weren't looking.
+		now += HOURS.toMillis(12);
+		probes.onNewSlot(usk, 19, now);
+		assertEquals(MINUTES.toMillis(330), probes.getUpdateInterval(usk));
+		// Older editions are ignored.
+		probes.onNewSlot(usk, 18, now + HOURS.toMillis(1));
+		assertEquals(MINUTES.toMillis(330), probes.getUpdateInterval(usk));
+		assertEquals(-1, probes.getUpdateInterval(other));
+	}
+
+	public void testAdjustSleepTime() {
+		USKProbeScheduler probes = new USKProbeScheduler();
+		USK rare = makeUSK(1);
+		USK often = makeUSK(2);
+		USK unknown = makeUSK(3);
+		long now = DAYS.toMillis(1000);
+		for(int i=0;i<5;i++) {
+			probes.onNewSlot(rare, i, now + DAYS.toMillis(7) * i);
+			probes.onNewSlot(often, i, now + HOURS.toMillis(4) * i);
+		}
+		long after = now + DAYS.toMillis(28);
+		// Unknown: unchanged.
+		assertEquals(MIN_SLEEP * 2, probes.adjustSleepTime(unknown, MIN_SLEEP * 2, MIN_SLEEP, MAX_SLEEP, after));
+		// Updated weekly: straight to the maximum.
+		assertEquals(MAX_SLEEP, probes.adjustSleepTime(rare, MIN_SLEEP * 2, MIN_SLEEP, MAX_SLEEP, after));
+		// Updated every 4 hours: between 1 and 2 hours.
+		after = now + HOURS.toMillis(16);
+		assertEquals(HOURS.toMillis(1), probes.adjustSleepTime(often, MIN_SLEEP, MIN_SLEEP, MAX_SLEEP, after));
+		assertEquals(HOURS.toMillis(2), probes.adjustSleepTime(often, MAX_SLEEP, MIN_SLEEP, MAX_SLEEP, after));
+		assertEquals(HOURS.toMillis(1) + 1, probes.adjustSleepTime(often, HOURS.toMillis(1) + 1, MIN_SLEEP, MAX_SLEEP, after));
+	}
+
+	/** A USK which was updated often and then stops being updated backs off to the longest sleep, 
+	 * as the fetcher doubles its sleep time. */
+	public void testAdjustSleepTimeQuiet() {
+		USKProbeScheduler probes = new USKProbeScheduler();
+		USK usk = makeUSK(4);
+		long now = DAYS.toMillis(1000);
+		for(int i=0;i<5;i++)
+			probes.onNewSlot(usk, i, now + MINUTES.toMillis(60) * i);
+		long lastUpdate = now + HOURS.toMillis(4);
+		// Still being updated: at most half an hour.
+		assertEquals(MINUTES.toMillis(30), probes.adjustSleepTime(usk, MAX_SLEEP, MIN_SLEEP, MAX_SLEEP, lastUpdate));
+		// Nothing for a day: we may sleep for half a day.
+		assertEquals(HOURS.toMillis(12), probes.adjustSleepTime(usk, MAX_SLEEP, MIN_SLEEP, MAX_SLEEP, lastUpdate + DAYS.toMillis(1)));
+		// As USKFetcher would: double the sleep after each round.
+		long time = lastUpdate;
+		long sleep = MIN_SLEEP;
+		for(int i=0;i<100;i++) {
+			sleep = probes.adjustSleepTime(usk, Math.min(sleep * 2, MAX_SLEEP), MIN_SLEEP, MAX_SLEEP, time);
+			time += sleep;
+		}
+		assertEquals(MAX_SLEEP, sleep);
+		// The estimate itself is unchanged until it is updated again.
+		assertEquals(MINUTES.toMillis(60), probes.getUpdateInterval(usk));
+	}
+
+}
@@ -0,0 +1,161 @@
+package freenet.clients.http;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import freenet.client.async.CacheFetchResult;
+import freenet.keys.FreenetURI;
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.BucketTools;
+import freenet.support.io.FileUtil;
+
+public class FProxyResponseCacheTest extends TestCase {
+
+	private File base = new File("tmp.fproxy-response-cache-test");
+
+	@Override
+	public void setUp() {
+		base.mkdir();
+	}
+
+	@Override
+	public void tearDown() {
+		FileUtil.removeAll(base);
+	}
+
+	private static FreenetURI uri(String name) throws MalformedURLException {
+		return new FreenetURI("CHK@DTCDUmnkKFlrJi9UlDDVqXlktsIXvAJ~ZTseyx5cAZs,PmA2rLgWZKVyMXxSn-ZihSskPYDTY19uhrMwqDV-~Sk,AAICAAI/"+name);
+	}
+
+	private static Bucket data(int length, int seed) {
+		byte[] buf = new byte[length];
+		Arrays.fill(buf, (byte) seed);
+		return new ArrayBucket(buf);
+	}
+
+	private static byte[] read(CacheFetchResult result) throws IOException {
+		byte[] data = BucketTools.toByteArray(result.asBucket());
+		result.asBucket().free();
+		return data;
+	}
+
+	public void testLookup() throws IOException {
+		FProxyResponseCache cache = new FProxyResponseCache(base, new ArrayBucketFactory(), null, 100000, false);
+		assertNull(cache.lookupInstant(uri("a.html"), false, false, null));
+		cache.put(uri("a.html"), true, "text/html", data(100, 1));
+		// Filtered data is no use if we want it unfiltered.
+		assertNull(cache.lookupInstant(uri("a.html"), true, false, null));
+		CacheFetchResult result = cache.lookupInstant(uri("a.html"), false, false, null);
+		assertTrue(result.alreadyFiltered);
+		assertEquals("text/html", result.getMimeType());
+		assertTrue(Arrays.equals(BucketTools.toByteArray(data(100, 1)), read(result)));
+		// Unfiltered data can be filtered.
+		cache.put(uri("b.png"), false, "image/png", data(100, 2));
+		result = cache.lookupInstant(uri("b.png"), false, true, null);
+		assertFalse(result.alreadyFiltered);
+		assertTrue(Arrays.equals(BucketTools.toByteArray(data(100, 2)), read(result)));
+		assertEquals(2, cache.getHits());
+		assertEquals(2, cache.getMisses());
+	}
+
+	/** The same content is only stored once. */
+	public void testSameContent() throws IOException {
+		FProxyResponseCache cache = new FProxyResponseCache(base, new ArrayBucketFactory(), null, 100000, false);
+		cache.put(uri("a.png"), false, "image/png", data(1000, 1));
+		cache.put(uri("b.png"), false, "image/png", data(1000, 1));
+		cache.put(uri("b.png"), true, "image/png", data(1000, 1));
+		assertEquals(3, cache.getItemCount());
+		assertEquals(1000, cache.getTotalSize());
+		cache.put(uri("b.png"), true, "image/png", data(1000, 2));
+		assertEquals(2000, cache.getTotalSize());
+	}
+
+	public void testEviction() throws IOException {
+		FProxyResponseCache cache = new FProxyResponseCache(base, new ArrayBucketFactory(), null, 8000, false);
+		// Too big.
+		cache.put(uri("big.png"), false, "image/png", data(1001, 0));
+		assertEquals(0, cache.getItemCount());
+		for(int i=0;i<10;i++) {
+			cache.put(uri(i+".png"), false, "image/png", data(1000, i));
+			read(cache.lookupInstant(uri("0.png"), false, false, null));
+		}
+		assertEquals(8000, cache.getTotalSize());
+		assertEquals(8, cache.getItemCount());
+		assertEquals(2, cache.getEvicted());
+		assertNotNull(cache.lookupInstant(uri("0.png"), false, false, null));
+		assertNull(cache.lookupInstant(uri("1.png"), false, false, null));
+		assertNull(cache.lookupInstant(uri("2.png"), false, false, null));
+		cache.setMaxSize(4000);
+		assertEquals(4, cache.getItemCount());
+	}
+
+	/** Data which has been returned is still there until the caller frees it. */
+	public void testEvictWhileReading() throws IOException {
+		File dir = new File(base, "cache");
+		FProxyResponseCache cache = new FProxyResponseCache(dir, new ArrayBucketFactory(), null, 8000, true);
+		cache.put(uri("a.png"), false, "image/png", data(1000, 1));
+		CacheFetchResult result = cache.lookupInstant(uri("a.png"), false, false, null);
+		cache.setMaxSize(0);
+		assertEquals(0, cache.getTotalSize());
+		assertEquals(1, dir.listFiles().length);
+		assertTrue(Arrays.equals(BucketTools.toByteArray(data(1000, 1)), read(result)));
+		assertEquals(0, dir.listFiles().length);
+	}
+
+	public void testPersistent() throws IOException {
+		File dir = new File(base, "cache");
+		FProxyResponseCache cache = new FProxyResponseCache(dir, new ArrayBucketFactory(), null, 100000, true);
+		for(int i=0;i<5;i++)
+			cache.put(uri(i+".html"), true, "text/html", data(1000, i));
+		cache.put(uri("copy.html"), true, "text/html", data(1000, 1));
+		cache.writeIndex();
+		new File(dir, "junk").createNewFile();
+		cache = new FProxyResponseCache(dir, new ArrayBucketFactory(), null, 100000, true);
+		assertEquals(6, cache.getItemCount());
+		assertEquals(5000, cache.getTotalSize());
+		CacheFetchResult result = cache.lookupInstant(uri("copy.html"), false, false, null);
+		assertTrue(result.alreadyFiltered);
+		assertEquals("text/html", result.getMimeType());
+		assertTrue(Arrays.equals(BucketTools.toByteArray(data(1000, 1)), read(result)));
+		assertFalse(new File(dir, "junk").exists());
+		// Least recently used first.
+		cache.setMaxSize(1000);
+		assertNotNull(cache.lookupInstant(uri("copy.html"), false, false, null));
+		assertNull(cache.lookupInstant(uri("4.html"), false, false, null));
+	}
+
+	public void testNotPersistent() throws IOException {
+		File dir = new File(base, "cache");
+		FProxyResponseCache cache = new FProxyResponseCache(dir, new ArrayBucketFactory(), null, 100000, true);
+		cache.put(uri("a.html"), true, "text/html", data(1000, 1));
+		cache.writeIndex();
+		// E.g. the security level was raised.
+		cache.setPersistent(false);
+		assertFalse(dir.exists());
+		assertNull(cache.lookupInstant(uri("a.html"), false, false, null));
+		cache.put(uri("a.html"), true, "text/html", data(1000, 1));
+		assertNotNull(cache.lookupInstant(uri("a.html"), false, false, null));
+		assertFalse(dir.exists());
+		cache.wipe();
+		assertEquals(0, cache.getItemCount());
+	}
+
+	/** The security level was raised while the node was shut down. */
+	public void testNotPersistentOnStartup() throws IOException {
+		File dir = new File(base, "cache");
+		FProxyResponseCache cache = new FProxyResponseCache(dir, new ArrayBucketFactory(), null, 100000, true);
+		cache.put(uri("a.html"), true, "text/html", data(1000, 1));
+		cache.writeIndex();
+		assertTrue(dir.exists());
+		cache = new FProxyResponseCache(dir, new ArrayBucketFactory(), null, 100000, false);
+		assertFalse(dir.exists());
+		assertNull(cache.lookupInstant(uri("a.html"), false, false, null));
+	}
+
+}
@@ -17,6 +17,7 @@ import junit.framework.TestCase;
 
 import freenet.crypt.ciphers.Rijndael;
 import freenet.support.HexUtil;
+import freenet.support.TestProperty;
 import freenet.support.math.MersenneTwister;
 
 public class CTRBlockCipherTest extends TestCase {
@@ -182,13 +183,15 @@ public class CTRBlockCipherTest extends TestCase {
 			assertTrue(Arrays.equals(output, ciphertext));
 		}
 
-		Rijndael cipher = new Rijndael(bits, 128);
-		cipher.initialize(key);
-		CTRBlockCipher ctr = new CTRBlockCipher(cipher);
-		ctr.init(iv);
-		byte[] output = new byte[plaintext.length];
-		ctr.processBytes(plaintext, 0, plaintext.length, output, 0);
-		assertTrue(Arrays.equals(output, ciphertext));
+		for (boolean allowJCA : new boolean[] { false, true }) {
+			Rijndael cipher = new Rijndael(bits, 128);
+			cipher.initialize(key);
+			CTRBlockCipher ctr = new CTRBlockCipher(cipher, allowJCA);
+			ctr.init(iv);
+			byte[] output = new byte[plaintext.length];
+			ctr.processBytes(plaintext, 0, plaintext.length, output, 0);
+			assertTrue(Arrays.equals(output, ciphertext));
+		}
 	}
 
 	private void checkNISTRandomLength(int bits, byte[] key, byte[] iv,
@@ -225,20 +228,22 @@ public class CTRBlockCipherTest extends TestCase {
 				assertTrue(Arrays.equals(output, ciphertext));
 			}
 
-			Rijndael cipher = new Rijndael(bits, 128);
-			cipher.initialize(key);
-			CTRBlockCipher ctr = new CTRBlockCipher(cipher);
-			ctr.init(iv);
-			byte[] output = new byte[plaintext.length];
-			MersenneTwister random = new MersenneTwister(seed);
-			int ptr = 0;
-			while (ptr < plaintext.length) {
-				int max = plaintext.length - ptr;
-				int count = (max == 1) ? 1 : (random.nextInt(max - 1) + 1);
-				ctr.processBytes(plaintext, ptr, count, output, ptr);
-				ptr += count;
+			for (boolean allowJCA : new boolean[] { false, true }) {
+				Rijndael cipher = new Rijndael(bits, 128);
+				cipher.initialize(key);
+				CTRBlockCipher ctr = new CTRBlockCipher(cipher, allowJCA);
+				ctr.init(iv);
+				byte[] output = new byte[plaintext.length];
+				MersenneTwister random = new MersenneTwister(seed);
+				int ptr = 0;
+				while (ptr < plaintext.length) {
+					int max = plaintext.length - ptr;
+					int count = (max == 1) ? 1 : (random.nextInt(max - 1) + 1);
+					ctr.processBytes(plaintext, ptr, count, output, ptr);
+					ptr += count;
+				}
+				assertTrue(Arrays.equals(output, ciphertext));
 			}
-			assertTrue(Arrays.equals(output, ciphertext));
 		}
 	}
 	
@@ -312,4 +317,120 @@ public class CTRBlockCipherTest extends TestCase {
 		}
 	}
 
+	/** The JCA path must be bit-identical to the built-in one, whatever the chunking, across
+	 * many JCA_BLOCKS boundaries, and with processByte() mixed in. */
+	public void testJCAMatchesBuiltin() throws UnsupportedCipherException {
+		if(!TEST_JCA) return;
+		for(int i=0;i<256;i++) {
+			byte[] plaintext = new byte[mt.nextInt(CTRBlockCipher.JCA_BLOCKS * 16 * 4)+1];
+			byte[] key = new byte[32];
+			byte[] iv = new byte[16];
+			mt.nextBytes(plaintext);
+			mt.nextBytes(key);
+			mt.nextBytes(iv);
+			// Exercise the counter carry too.
+			if(i % 4 == 0) Arrays.fill(iv, 4, 16, (byte)0xFF);
+			Rijndael cipher = new Rijndael(256, 128);
+			cipher.initialize(key);
+			CTRBlockCipher builtin = new CTRBlockCipher(cipher, false);
+			builtin.init(iv);
+			byte[] expected = new byte[plaintext.length];
+			builtin.processBytes(plaintext, 0, plaintext.length, expected, 0);
+			CTRBlockCipher jca = new CTRBlockCipher(cipher, true);
+			jca.init(iv);
+			byte[] output = new byte[plaintext.length];
+			int ptr = 0;
+			while (ptr < plaintext.length) {
+				if(mt.nextInt(8) == 0) {
+					output[ptr] = jca.processByte(plaintext[ptr]);
+					ptr++;
+					continue;
+				}
+				int max = plaintext.length - ptr;
+				int count = (max == 1) ? 1 : (mt.nextInt(max - 1) + 1);
+				jca.processBytes(plaintext, ptr, count, output, ptr);
+				ptr += count;
+			}
+			assertTrue(Arrays.equals(expected, output));
+		}
+	}
+
+	/** Rijndael instances are shared between threads, e.g. a peer's session key. */
+	public void testSharedCipherConcurrent() throws Exception {
+		byte[] key = new byte[32];
+		mt.nextBytes(key);
+		final Rijndael cipher = new Rijndael(256, 256);
+		cipher.initialize(key);
+		final byte[] plaintext = new byte[32];
+		mt.nextBytes(plaintext);
+		final byte[] expected = new byte[32];
+		cipher.encipher(plaintext.clone(), expected);
+		final boolean[] failed = new boolean[1];
+		Thread[] threads = new Thread[8];
+		for(int t=0;t<threads.length;t++) {
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					byte[] buf = new byte[32];
+					for(int i=0;i<10000;i++) {
+						cipher.encipher(plaintext, buf);
+						if(!Arrays.equals(buf, expected)) failed[0] = true;
+						cipher.decipher(buf, buf);
+						if(!Arrays.equals(buf, plaintext)) failed[0] = true;
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for(Thread t : threads) t.join();
+		assertFalse(failed[0]);
+	}
+
+	// gradle test -Dtest.benchmark=true --tests freenet.crypt.CTRBlockCipherTest
+	public void testBenchmark() throws Exception {
+		if(!TestProperty.BENCHMARK) return;
+		final byte[] key = new byte[32];
+		mt.nextBytes(key);
+		final Rijndael aes = new Rijndael(256, 128);
+		aes.initialize(key);
+		final Rijndael rijndael256 = new Rijndael(256, 256);
+		rijndael256.initialize(key);
+		final int BYTES = 64 * 1024 * 1024;
+		final int CHUNK = 32768;
+		for(int mode = 0; mode < 3; mode++) {
+			final int m = mode;
+			String name = mode == 0 ? "CTR (built-in)" : mode == 1 ? "CTR (JCA)" : "PCFB Rijndael-256 (shared key)";
+			if(mode == 1 && !TEST_JCA) continue;
+			for(int threads = 1; threads <= Runtime.getRuntime().availableProcessors() * 2; threads *= 2) {
+				final int perThread = BYTES / threads / CHUNK;
+				Thread[] workers = new Thread[threads];
+				long t1 = System.nanoTime();
+				for(int t=0;t<threads;t++) {
+					workers[t] = new Thread() {
+						@Override
+						public void run() {
+							byte[] iv = new byte[32];
+							byte[] buf = new byte[CHUNK];
+							for(int i=0;i<perThread;i++) {
+								if(m == 2) {
+									PCFBMode pcfb = PCFBMode.create(rijndael256, iv);
+									pcfb.blockEncipher(buf, 0, buf.length);
+								} else {
+									CTRBlockCipher ctr = new CTRBlockCipher(aes, m == 1);
+									ctr.init(iv, 0, 16);
+									ctr.processBytes(buf, 0, buf.length, buf, 0);
+								}
+							}
+						}
+					};
+					workers[t].start();
+				}
+				for(Thread t : workers) t.join();
+				long t2 = System.nanoTime();
+				System.out.println(name+" "+threads+" threads: "+
+						((long)BYTES * 1000000 / ((t2 - t1) / 1000) / (1024 * 1024))+" MiB/s");
+			}
+		}
+	}
+
 }
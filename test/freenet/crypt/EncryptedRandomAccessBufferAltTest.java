@@ -3,12 +3,22 @@ package freenet.crypt;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
 import freenet.support.api.RandomAccessBuffer;
 import freenet.support.io.ByteArrayRandomAccessBuffer;
 import freenet.support.io.RandomAccessBufferTestBase;
+import freenet.support.TestProperty;
 
 public class EncryptedRandomAccessBufferAltTest extends RandomAccessBufferTestBase {
     
@@ -37,4 +47,122 @@ public class EncryptedRandomAccessBufferAltTest extends RandomAccessBufferTestBa
         }
     }
 
+    /** The keystream depends only on the offset: writing in pieces, in any order, must give the 
+     * same ciphertext as writing it all at once. */
+    public void testPiecewiseMatchesWhole() throws IOException, GeneralSecurityException {
+        int size = EncryptedRandomAccessBuffer.WRITE_BUFFER_SIZE * 3 + 1000;
+        byte[] data = new byte[size];
+        Random r = new Random(1234);
+        r.nextBytes(data);
+        byte[] underlying = new byte[size + types[0].headerLen];
+        ByteArrayRandomAccessBuffer barat = new ByteArrayRandomAccessBuffer(underlying);
+        EncryptedRandomAccessBuffer erat = new EncryptedRandomAccessBuffer(types[0], barat, secret, true);
+        erat.pwrite(0, data, 0, size);
+        byte[] whole = underlying.clone();
+        Arrays.fill(underlying, types[0].headerLen, underlying.length, (byte)0);
+        List<Integer> starts = new ArrayList<Integer>();
+        for(int i=0;i<size;i+=1000)
+            starts.add(i);
+        Collections.shuffle(starts, r);
+        for(int start : starts)
+            erat.pwrite(start, data, start, Math.min(1000, size - start));
+        assertTrue(Arrays.equals(whole, underlying));
+        // Unaligned reads.
+        byte[] buf = new byte[size];
+        for(int i=0;i<100;i++) {
+            int offset = r.nextInt(size);
+            int length = r.nextInt(size - offset + 1);
+            erat.pread(offset, buf, 0, length);
+            for(int j=0;j<length;j++)
+                assertEquals(data[offset+j], buf[j]);
+        }
+        erat.close();
+    }
+
+    /** Unaligned reads and writes from several threads on an encrypted buffer over another 
+     * encrypted buffer, so the pooled ciphers and write buffers are used by both layers at once. 
+     * Every write rewrites the same plaintext, so a read must always return it, and the 
+     * ciphertext must end up the same as from a single write. */
+    public void testConcurrentNested() throws Exception {
+        final int size = EncryptedRandomAccessBuffer.WRITE_BUFFER_SIZE * 8 + 1000;
+        final byte[] data = new byte[size];
+        new Random(4321).nextBytes(data);
+        int headerLen = types[0].headerLen;
+        byte[] underlying = new byte[size + headerLen * 2];
+        EncryptedRandomAccessBuffer inner = new EncryptedRandomAccessBuffer(types[0], 
+                new ByteArrayRandomAccessBuffer(underlying), secret, true);
+        final EncryptedRandomAccessBuffer erat = 
+            new EncryptedRandomAccessBuffer(types[0], inner, secret, true);
+        erat.pwrite(0, data, 0, size);
+        byte[] whole = underlying.clone();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+        for(int t=0;t<8;t++) {
+            final Random random = new Random(t);
+            results.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    byte[] buf = new byte[size];
+                    for(int i=0;i<200;i++) {
+                        int offset = random.nextInt(size);
+                        int length = random.nextInt(Math.min(size - offset, 
+                                EncryptedRandomAccessBuffer.WRITE_BUFFER_SIZE * 3) + 1);
+                        if(random.nextBoolean()) {
+                            erat.pwrite(offset, data, offset, length);
+                        } else {
+                            erat.pread(offset, buf, 0, length);
+                            for(int j=0;j<length;j++)
+                                assertEquals(data[offset+j], buf[j]);
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        executor.shutdown();
+        for(Future<Void> result : results)
+            result.get();
+        assertTrue(Arrays.equals(whole, underlying));
+        assertTrue(EncryptedRandomAccessBuffer.freeWriteBuffers.get() <= 
+            EncryptedRandomAccessBuffer.MAX_WRITE_BUFFERS);
+        erat.close();
+    }
+
+    /** Random 4KiB reads on a 64MiB buffer, several threads. */
+    public void testBenchmark() throws Exception {
+        if(!TestProperty.BENCHMARK) return;
+        final int BLOCK = 4096;
+        final int SIZE = 64*1024*1024;
+        final RandomAccessBuffer erat = construct(SIZE);
+        final int ITERATIONS = 100000;
+        for(int threadCount = 1; threadCount <= 8; threadCount *= 2) {
+            Thread[] threads = new Thread[threadCount];
+            final int perThread = ITERATIONS / threadCount;
+            long t1 = System.nanoTime();
+            for(int t=0;t<threadCount;t++) {
+                final int thread = t;
+                threads[t] = new Thread() {
+                    @Override
+                    public void run() {
+                        Random random = new Random(thread);
+                        byte[] buf = new byte[BLOCK];
+                        try {
+                            for(int i=0;i<perThread;i++)
+                                erat.pread(random.nextInt(SIZE / BLOCK) * (long)BLOCK, buf, 0, BLOCK);
+                        } catch (IOException e) {
+                            throw new Error(e);
+                        }
+                    }
+                };
+                threads[t].start();
+            }
+            for(Thread t : threads)
+                t.join();
+            long t2 = System.nanoTime();
+            System.out.println(threadCount+" threads: "+
+                    ((long)ITERATIONS * BLOCK * 1000 / Math.max(1, t2 - t1))+"MB/s random reads");
+        }
+        erat.close();
+    }
+
 }
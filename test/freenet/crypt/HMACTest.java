@@ -71,6 +71,80 @@ public class HMACTest extends TestCase {
     assertEquals(Hex.toHexString(hmac), Hex.toHexString(knownSHA256));
   }
 
+  public void testKeyedMatchesStatic() {
+    byte[] key = new byte[32];
+    random.nextBytes(key);
+    HMAC.Keyed keyed = new HMAC.Keyed(HMAC.SHA2_256, key);
+    for (int len = 0; len < 300; len += 7) {
+      byte[] data = new byte[len];
+      random.nextBytes(data);
+      byte[] expected = HMAC.macWithSHA256(key, data);
+      // Twice, to check the cached Mac is reset after use.
+      assertEquals(Hex.toHexString(expected), Hex.toHexString(keyed.mac(data)));
+      assertEquals(Hex.toHexString(expected), Hex.toHexString(keyed.mac(data)));
+      assertTrue(keyed.verify(data, expected));
+    }
+    assertEquals(Hex.toHexString(knownSHA256),
+        Hex.toHexString(new HMAC.Keyed(HMAC.SHA2_256, knownKey).mac(plaintext)));
+  }
+
+  public void testKeyedRangeAndTruncatedVerify() {
+    HMAC.Keyed keyed = new HMAC.Keyed(HMAC.SHA2_256, knownKey);
+    byte[] buf = new byte[10 + plaintext.length];
+    System.arraycopy(plaintext, 0, buf, 10, plaintext.length);
+    assertEquals(Hex.toHexString(knownSHA256),
+        Hex.toHexString(keyed.mac(buf, 10, plaintext.length)));
+    System.arraycopy(knownSHA256, 0, buf, 0, 10);
+    assertTrue(keyed.verify(buf, 10, plaintext.length, buf, 0, 10));
+    buf[3] ^= 1;
+    assertFalse(keyed.verify(buf, 10, plaintext.length, buf, 0, 10));
+    try {
+      keyed.verify(buf, 10, plaintext.length, new byte[40], 0, 33);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // This is expected
+    }
+  }
+
+  public void testKeyedWrongKeySize() {
+    try {
+      new HMAC.Keyed(HMAC.SHA2_256, new byte[31]);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // This is expected
+    }
+  }
+
+  public void testKeyedConcurrent() throws InterruptedException {
+    final HMAC.Keyed keyed = new HMAC.Keyed(HMAC.SHA2_256, knownKey);
+    final boolean[] failed = new boolean[1];
+    Thread[] threads = new Thread[8];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < 2000; j++) {
+            if (!keyed.verify(plaintext, knownSHA256)) {
+              synchronized (failed) {
+                failed[0] = true;
+              }
+            }
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    synchronized (failed) {
+      assertFalse(failed[0]);
+    }
+    // The pool is bounded however many threads used the key.
+    assertTrue(keyed.pooled() <= HMAC.Keyed.POOL_SIZE);
+    assertTrue(keyed.verify(plaintext, knownSHA256));
+  }
+
   // ant -Dtest.skip=false -Dtest.class=freenet.crypt.HMACTest -Dtest.benchmark=true unit
   public void testBenchmark() {
     if (!TestProperty.BENCHMARK) {
@@ -103,6 +177,16 @@ public class HMACTest extends TestCase {
       }
       long currentLength = System.currentTimeMillis() - t1;
 
+      HMAC.Keyed keyed = new HMAC.Keyed(HMAC.SHA2_256, knownKey);
+      t1 = System.currentTimeMillis();
+      for (int i = 0; i < ITERATIONS; i++) {
+        byte[] r1 = keyed.mac(plaintext);
+        for (int j = 0; j < r1.length; j++) {
+          count += r1[j];
+        }
+      }
+      long keyedLength = System.currentTimeMillis() - t1;
+
       t1 = System.currentTimeMillis();
       for (int i = 0; i < ITERATIONS; i++) {
         byte[] r1 = new byte[32];
@@ -118,6 +202,7 @@ public class HMACTest extends TestCase {
       long BCLength = System.currentTimeMillis() - t1;
       System.out.println("Legacy HMAC took " + TimeUtil.formatTime(legacyLength, 6, true));
       System.out.println("Current HMAC took " + TimeUtil.formatTime(currentLength, 6, true));
+      System.out.println("Keyed HMAC took " + TimeUtil.formatTime(keyedLength, 6, true));
       System.out.println("BC HMAC took " + TimeUtil.formatTime(BCLength, 6, true));
     }
   }
@@ -0,0 +1,154 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import freenet.support.TestProperty;
+
+/**
+ * Tests for {@link PerThreadRandom}, plus a contention benchmark comparing a shared source
+ * with per-thread streams.
+ */
+public class PerThreadRandomTest extends TestCase {
+
+	public void testSameThreadSameStream() {
+		PerThreadRandom r = new PerThreadRandom(new DummyRandomSource(1234));
+		assertSame(r.get(), r.get());
+		assertEquals(1, r.getStreamCount());
+	}
+
+	public void testThreadsGetDifferentStreams() throws InterruptedException {
+		final PerThreadRandom r = new PerThreadRandom(new DummyRandomSource(1234));
+		final byte[] mine = new byte[64];
+		r.get().nextBytes(mine);
+		final AtomicReference<Random> other = new AtomicReference<Random>();
+		final byte[] theirs = new byte[64];
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				other.set(r.get());
+				r.get().nextBytes(theirs);
+			}
+		};
+		t.start();
+		t.join();
+		assertNotSame(r.get(), other.get());
+		assertFalse(Arrays.equals(mine, theirs));
+		assertEquals(2, r.getStreamCount());
+		assertEquals(2, r.getReseedCount());
+	}
+
+	/** Same seed source, same output: the stream is a deterministic function of the seed. */
+	public void testDeterministicGivenSeed() {
+		byte[] a = new byte[1000];
+		byte[] b = new byte[1000];
+		new PerThreadRandom(new DummyRandomSource(42)).get().nextBytes(a);
+		new PerThreadRandom(new DummyRandomSource(42)).get().nextBytes(b);
+		assertTrue(Arrays.equals(a, b));
+		new PerThreadRandom(new DummyRandomSource(43)).get().nextBytes(b);
+		assertFalse(Arrays.equals(a, b));
+	}
+
+	public void testReseedAfterBytes() {
+		PerThreadRandom r = new PerThreadRandom(new DummyRandomSource(1234), 4096, Long.MAX_VALUE / 2);
+		Random stream = r.get();
+		stream.nextBytes(new byte[4096]);
+		assertEquals(1, r.getReseedCount());
+		stream.nextBytes(new byte[4096]);
+		assertEquals(2, r.getReseedCount());
+		for(int i=0;i<1024;i++)
+			stream.nextInt();
+		assertEquals(3, r.getReseedCount());
+	}
+
+	public void testReseedAfterInterval() throws InterruptedException {
+		PerThreadRandom r = new PerThreadRandom(new DummyRandomSource(1234), Long.MAX_VALUE, 1);
+		Random stream = r.get();
+		stream.nextInt();
+		assertEquals(1, r.getReseedCount());
+		Thread.sleep(1);
+		stream.nextBytes(new byte[1024]);
+		assertTrue(r.getReseedCount() > 1);
+	}
+
+	public void testRanges() {
+		Random stream = new PerThreadRandom(new DummyRandomSource(1234)).get();
+		int[] counts = new int[10];
+		for(int i=0;i<100000;i++)
+			counts[stream.nextInt(10)]++;
+		for(int count : counts)
+			assertTrue("count="+count, count > 9000 && count < 11000);
+		for(int i=0;i<1000;i++) {
+			double d = stream.nextDouble();
+			assertTrue(d >= 0.0 && d < 1.0);
+		}
+	}
+
+	public void testDummySourceIsItsOwnStream() {
+		// Simulations rely on a seeded DummyRandomSource being reproducible.
+		RandomSource dummy = new DummyRandomSource(1234);
+		assertSame(dummy, dummy.threadLocal());
+		assertNull(dummy.getPerThreadRandom());
+	}
+
+	/** Contention benchmark: a shared source versus per-thread streams. */
+	public void testBenchmark() throws InterruptedException {
+		if(!TestProperty.BENCHMARK) return;
+		final int ITERATIONS = 4000000;
+		for(int threads = 1; threads <= 16; threads *= 2) {
+			final RandomSource shared = new DummyRandomSource(1234);
+			final PerThreadRandom perThread = new PerThreadRandom(shared);
+			final int perThreadIterations = ITERATIONS / threads;
+			long t1 = System.nanoTime();
+			runThreads(threads, new Runnable() {
+				@Override
+				public void run() {
+					for(int i=0;i<perThreadIterations;i++)
+						shared.nextInt();
+				}
+			});
+			long t2 = System.nanoTime();
+			runThreads(threads, new Runnable() {
+				@Override
+				public void run() {
+					Random r = perThread.get();
+					for(int i=0;i<perThreadIterations;i++)
+						r.nextInt();
+				}
+			});
+			long t3 = System.nanoTime();
+			System.out.println(threads+" threads: shared "+(ITERATIONS * 1000L / Math.max(1, (t2 - t1) / 1000))+
+					" ints/ms, per-thread "+(ITERATIONS * 1000L / Math.max(1, (t3 - t2) / 1000))+" ints/ms, "+
+					perThread.getReseedCount()+" reseeds");
+		}
+	}
+
+	private static void runThreads(int count, final Runnable r) throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[count];
+		for(int i=0;i<count;i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					r.run();
+				}
+			};
+			threads[i].start();
+		}
+		start.countDown();
+		for(Thread t : threads)
+			t.join();
+	}
+}
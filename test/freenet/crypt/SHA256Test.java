@@ -0,0 +1,93 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import freenet.support.HexUtil;
+import freenet.support.TestProperty;
+
+public class SHA256Test extends TestCase {
+
+	// FIPS 180-2 test vector.
+	private static final byte[] ABC = new byte[] { 'a', 'b', 'c' };
+	private static final String ABC_HASH =
+		"ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+
+	public void testDigest() {
+		assertEquals(ABC_HASH, HexUtil.bytesToHex(SHA256.digest(ABC)));
+		// Again, with the digest that was just returned.
+		assertEquals(ABC_HASH, HexUtil.bytesToHex(SHA256.digest(ABC)));
+	}
+
+	public void testDigestRange() {
+		byte[] in = new byte[] { 0, 0, 'a', 'b', 'c', 0 };
+		byte[] out = new byte[40];
+		SHA256.digest(in, 2, 3, out, 4);
+		assertEquals(ABC_HASH, HexUtil.bytesToHex(Arrays.copyOfRange(out, 4, 36)));
+		for(int i=0;i<4;i++)
+			assertEquals(0, out[i]);
+		try {
+			SHA256.digest(in, 2, 3, out, 10);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Expected, output too short.
+		}
+		// The digest must have been reset and returned despite the failure.
+		assertEquals(ABC_HASH, HexUtil.bytesToHex(SHA256.digest(ABC)));
+	}
+
+	/** Several digests checked out at once on one thread must be distinct. */
+	public void testNestedGet() {
+		MessageDigest md1 = SHA256.getMessageDigest();
+		MessageDigest md2 = SHA256.getMessageDigest();
+		assertNotSame(md1, md2);
+		md1.update(ABC);
+		assertEquals(ABC_HASH, HexUtil.bytesToHex(SHA256.digest(ABC)));
+		assertEquals(ABC_HASH, HexUtil.bytesToHex(md1.digest()));
+		SHA256.returnMessageDigest(md1);
+		SHA256.returnMessageDigest(md2);
+	}
+
+	public void testReturnedDigestIsReset() {
+		MessageDigest md = SHA256.getMessageDigest();
+		md.update(new byte[] { 1, 2, 3 });
+		SHA256.returnMessageDigest(md);
+		md = SHA256.getMessageDigest();
+		assertEquals(ABC_HASH, HexUtil.bytesToHex(md.digest(ABC)));
+		SHA256.returnMessageDigest(md);
+	}
+
+	public void testBenchmark() throws InterruptedException {
+		if(!TestProperty.BENCHMARK) return;
+		final byte[] data = new byte[1024];
+		new Random(1234).nextBytes(data);
+		final int ITERATIONS = 1000000;
+		for(int threads = 1; threads <= 16; threads *= 2) {
+			final int perThread = ITERATIONS / threads;
+			Thread[] t = new Thread[threads];
+			long t1 = System.nanoTime();
+			for(int i=0;i<threads;i++) {
+				t[i] = new Thread() {
+					@Override
+					public void run() {
+						byte[] out = new byte[32];
+						for(int j=0;j<perThread;j++)
+							SHA256.digest(data, 0, data.length, out, 0);
+					}
+				};
+				t[i].start();
+			}
+			for(Thread thread : t)
+				thread.join();
+			long t2 = System.nanoTime();
+			System.out.println(threads+" threads: "+(ITERATIONS * 1000L / Math.max(1, (t2 - t1) / 1000))+
+					" 1KiB digests/ms");
+		}
+	}
+}
@@ -0,0 +1,162 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import freenet.crypt.ECDH;
+import freenet.crypt.ECDHLightContext;
+import freenet.support.PooledExecutor;
+import freenet.support.TestProperty;
+
+public class ECDHContextPoolTest extends TestCase {
+
+	private static final long INTERVAL = 30000;
+
+	private PooledExecutor executor;
+	private final AtomicInteger created = new AtomicInteger();
+
+	private final ECDHContextPool.ContextFactory factory = new ECDHContextPool.ContextFactory() {
+		@Override
+		public ECDHLightContext create() {
+			created.incrementAndGet();
+			return new ECDHLightContext(ECDH.Curves.P256);
+		}
+	};
+
+	@Override
+	protected void setUp() {
+		executor = new PooledExecutor();
+		executor.start();
+	}
+
+	public void testFill() {
+		ECDHContextPool pool = new ECDHContextPool(executor, factory, 10, INTERVAL);
+		assertNull(pool.get(System.currentTimeMillis()));
+		pool.fill();
+		assertTrue(pool.size() >= 10);
+		assertEquals(10, pool.targetSize());
+	}
+
+	public void testRoundRobinAndLookup() {
+		ECDHContextPool pool = new ECDHContextPool(executor, factory, 5, INTERVAL);
+		pool.fill();
+		waitForGenerators(pool);
+		long now = System.currentTimeMillis();
+		Set<ECDHLightContext> seen = new HashSet<ECDHLightContext>();
+		for(int i=0;i<5;i++) {
+			ECDHLightContext ctx = pool.get(now);
+			seen.add(ctx);
+			assertSame(ctx, pool.findByPublicKey(ctx.getPublicKeyNetworkFormat()));
+		}
+		assertEquals(5, seen.size());
+		byte[] unknown = new ECDHLightContext(ECDH.Curves.P256).getPublicKeyNetworkFormat();
+		assertNull(pool.findByPublicKey(unknown));
+	}
+
+	/** A burst of handshakes grows the pool, without any caller waiting for key generation. */
+	public void testGrowsWithHandshakeRate() {
+		ECDHContextPool pool = new ECDHContextPool(executor, factory, 5, INTERVAL);
+		pool.fill();
+		long now = System.currentTimeMillis();
+		for(int i=0;i<50;i++)
+			assertNotNull(pool.get(now));
+		assertEquals(50, pool.targetSize());
+		waitForGenerators(pool);
+		assertEquals(50, pool.size());
+	}
+
+	/** Old contexts are replaced, but stay findable for a while. */
+	public void testReplaceOldContexts() throws InterruptedException {
+		// Contexts expire after 3 * 100ms.
+		ECDHContextPool pool = new ECDHContextPool(executor, factory, 3, 100);
+		pool.fill();
+		waitForGenerators(pool);
+		long now = System.currentTimeMillis();
+		ECDHLightContext[] old = new ECDHLightContext[3];
+		for(int i=0;i<3;i++)
+			old[i] = pool.get(now);
+		long generated = pool.generatedCount();
+		Thread.sleep(350);
+		pool.get(System.currentTimeMillis());
+		long deadline = System.currentTimeMillis() + 60000;
+		while(pool.generatedCount() < generated + 3 && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		waitForGenerators(pool);
+		assertTrue(pool.generatedCount() >= generated + 3);
+		Set<ECDHLightContext> current = new HashSet<ECDHLightContext>();
+		for(int i=0;i<pool.size();i++)
+			current.add(pool.get(System.currentTimeMillis()));
+		for(ECDHLightContext ctx : old) {
+			assertFalse(current.contains(ctx));
+			assertSame(ctx, pool.findByPublicKey(ctx.getPublicKeyNetworkFormat()));
+		}
+	}
+
+	/** get() doesn't take the lock when no refill is due. */
+	public void testGetWithoutLock() throws InterruptedException {
+		final ECDHContextPool pool = new ECDHContextPool(executor, factory, 5, INTERVAL);
+		pool.fill();
+		waitForGenerators(pool);
+		// The last generator job to finish makes the next get() check.
+		assertNotNull(pool.get(System.currentTimeMillis()));
+		final ECDHLightContext[] got = new ECDHLightContext[1];
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				got[0] = pool.get(System.currentTimeMillis());
+			}
+		};
+		synchronized(pool) {
+			t.start();
+			t.join(10000);
+			assertFalse(t.isAlive());
+		}
+		assertNotNull(got[0]);
+	}
+
+	public void testBenchmark() {
+		if(!TestProperty.BENCHMARK) return;
+		ECDHContextPool pool = new ECDHContextPool(executor, factory, 20, INTERVAL);
+		long t1 = System.nanoTime();
+		pool.fill();
+		long t2 = System.nanoTime();
+		// Simulate a mass reconnect: 2000 handshakes as fast as possible.
+		int failed = 0;
+		for(int i=0;i<2000;i++)
+			if(pool.get(System.currentTimeMillis()) == null) failed++;
+		long t3 = System.nanoTime();
+		waitForGenerators(pool);
+		long t4 = System.nanoTime();
+		System.out.println("Initial fill of 20: "+(t2-t1)/1000000+"ms; 2000 handshakes took "+(t3-t2)/1000000+
+				"ms with "+failed+" failures; grew to "+pool.size()+" in "+(t4-t2)/1000000+"ms");
+	}
+
+	private void waitForGenerators(ECDHContextPool pool) {
+		long deadline = System.currentTimeMillis() + 60000;
+		while(System.currentTimeMillis() < deadline) {
+			synchronized(pool) {
+				if(pool.size() >= pool.targetSize() && created.get() == pool.generatedCount()) {
+					// Let any job still running finish its loop.
+					try {
+						pool.wait(50);
+					} catch (InterruptedException e) {
+						// Ignore
+					}
+					if(created.get() == pool.generatedCount()) return;
+				}
+				try {
+					pool.wait(100);
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+			}
+		}
+		fail("Timed out waiting for contexts");
+	}
+}
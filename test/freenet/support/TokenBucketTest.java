@@ -0,0 +1,174 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+import freenet.io.xfer.PacketThrottle;
+
+/**
+ * Tests for {@link TokenBucket} and {@link PacketThrottle}, including a contention benchmark
+ * with many sending threads.
+ */
+@SuppressWarnings("deprecation")
+public class TokenBucketTest extends TestCase {
+
+	/** Ticks so slowly that no tokens are added during a test. */
+	private static final long SLOW_TICK = Long.MAX_VALUE / 4;
+
+	public void testInstantGrab() {
+		TokenBucket bucket = new TokenBucket(1000, SLOW_TICK, 100);
+		assertTrue(bucket.instantGrab(60));
+		assertFalse(bucket.instantGrab(60));
+		assertTrue(bucket.instantGrab(40));
+		assertEquals(0, bucket.count());
+	}
+
+	public void testPartialInstantGrab() {
+		TokenBucket bucket = new TokenBucket(1000, SLOW_TICK, 100);
+		assertEquals(60, bucket.partialInstantGrab(60));
+		assertEquals(40, bucket.partialInstantGrab(60));
+		assertEquals(0, bucket.partialInstantGrab(60));
+		assertEquals(0, bucket.count());
+	}
+
+	public void testForceGrabGoesNegative() {
+		TokenBucket bucket = new TokenBucket(1000, SLOW_TICK, 100);
+		bucket.forceGrab(150);
+		assertEquals(-50, bucket.count());
+		assertFalse(bucket.instantGrab(1));
+		assertEquals(0, bucket.partialInstantGrab(10));
+		bucket.recycle(70);
+		assertEquals(20, bucket.count());
+	}
+
+	public void testRecycleClipped() {
+		TokenBucket bucket = new TokenBucket(100, SLOW_TICK, 50);
+		bucket.recycle(1000);
+		assertEquals(100, bucket.count());
+		bucket.changeBucketSize(10);
+		assertEquals(10, bucket.getCount());
+	}
+
+	public void testTokensAdded() throws InterruptedException {
+		// One token per millisecond, starting empty.
+		TokenBucket bucket = new TokenBucket(1000000, 1000000, 0);
+		Thread.sleep(50);
+		long count = bucket.getCount();
+		assertTrue("count="+count, count >= 40);
+		assertTrue("count="+count, count <= 1000);
+	}
+
+	/** Many threads grabbing at once must never grab more tokens than were ever available. */
+	public void testConcurrentGrabsNeverOvercommit() throws InterruptedException {
+		final TokenBucket bucket = new TokenBucket(100000, SLOW_TICK, 100000);
+		final AtomicLong grabbed = new AtomicLong();
+		runThreads(8, new Runnable() {
+			@Override
+			public void run() {
+				for(int i=0;i<20000;i++) {
+					if(bucket.instantGrab(1)) grabbed.incrementAndGet();
+					grabbed.addAndGet(bucket.partialInstantGrab(2));
+				}
+			}
+		});
+		assertEquals(100000, grabbed.get());
+		assertEquals(0, bucket.count());
+	}
+
+	public void testConcurrentForceGrab() throws InterruptedException {
+		final TokenBucket bucket = new TokenBucket(1000, SLOW_TICK, 0);
+		runThreads(8, new Runnable() {
+			@Override
+			public void run() {
+				for(int i=0;i<10000;i++)
+					bucket.forceGrab(1);
+			}
+		});
+		assertEquals(-80000, bucket.count());
+	}
+
+	public void testPacketThrottleWindow() {
+		PacketThrottle throttle = new PacketThrottle(1024);
+		assertEquals(2.0, throttle.getWindowSize(), 0.0001);
+		// Slow start: grows by a third per ack.
+		throttle.notifyOfPacketAcknowledged(100);
+		assertEquals(2.0 + 2.0 / 3.0, throttle.getWindowSize(), 0.0001);
+		throttle.notifyOfPacketsLost(1);
+		assertEquals((2.0 + 2.0 / 3.0) * 0.875, throttle.getWindowSize(), 0.0001);
+		// Never below one packet.
+		throttle.notifyOfPacketsLost(100);
+		assertEquals(1.0, throttle.getWindowSize(), 0.0001);
+		// Capped at maxWindowSize.
+		for(int i=0;i<1000;i++)
+			throttle.notifyOfPacketAcknowledged(5);
+		assertEquals(5.0, throttle.getWindowSize(), 0.0001);
+	}
+
+	public void testPacketThrottleConcurrentAcks() throws InterruptedException {
+		final PacketThrottle throttle = new PacketThrottle(1024);
+		runThreads(8, new Runnable() {
+			@Override
+			public void run() {
+				for(int i=0;i<10000;i++) {
+					throttle.notifyOfPacketAcknowledged(1000);
+					if(i % 100 == 0) throttle.notifyOfPacketsLost(1);
+				}
+			}
+		});
+		double w = throttle.getWindowSize();
+		assertTrue("window="+w, w >= 1.0 && w <= 1000.0);
+	}
+
+	/** Contention benchmark: many threads sharing one bucket, as the global output limiter does. */
+	public void testBenchmark() throws InterruptedException {
+		if(!TestProperty.BENCHMARK) return;
+		final int ITERATIONS = 2000000;
+		for(int threads = 1; threads <= 32; threads *= 2) {
+			final TokenBucket bucket = new TokenBucket(Long.MAX_VALUE / 4, 1, Long.MAX_VALUE / 8);
+			final PacketThrottle throttle = new PacketThrottle(1024);
+			final int perThread = ITERATIONS / threads;
+			long t1 = System.nanoTime();
+			runThreads(threads, new Runnable() {
+				@Override
+				public void run() {
+					for(int i=0;i<perThread;i++) {
+						bucket.instantGrab(1);
+						bucket.forceGrab(1);
+						throttle.notifyOfPacketAcknowledged(1000);
+						throttle.getWindowSize();
+					}
+				}
+			});
+			long t2 = System.nanoTime();
+			System.out.println(threads+" threads: "+(ITERATIONS * 1000L / Math.max(1, (t2 - t1) / 1000))+
+					" grabs/ms");
+		}
+	}
+
+	private static void runThreads(int count, final Runnable r) throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[count];
+		for(int i=0;i<count;i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					r.run();
+				}
+			};
+			threads[i].start();
+		}
+		start.countDown();
+		for(Thread t : threads)
+			t.join();
+	}
+}
@@ -0,0 +1,196 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import junit.framework.TestCase;
+
+import freenet.support.TestProperty;
+
+public class ParallelBzip2DecompressorTest extends TestCase {
+
+	private ExecutorService executor;
+
+	@Override
+	protected void setUp() {
+		executor = Executors.newFixedThreadPool(4);
+	}
+
+	@Override
+	protected void tearDown() {
+		executor.shutdown();
+	}
+
+	/** Several blocks of text-like data, with runs so that the block boundaries end up at every
+	 * possible bit offset sooner or later. */
+	private static byte[] testData(int length, long seed) {
+		Random random = new Random(seed);
+		byte[] data = new byte[length];
+		int i = 0;
+		while(i < length) {
+			int run = Math.min(length - i, 1 + random.nextInt(20));
+			if(random.nextBoolean()) {
+				Arrays.fill(data, i, i + run, (byte) random.nextInt(256));
+			} else {
+				for(int j=0;j<run;j++)
+					data[i+j] = (byte) ('a' + random.nextInt(26));
+			}
+			i += run;
+		}
+		return data;
+	}
+
+	private static byte[] compress(byte[] data) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		new Bzip2Compressor().compress(new ByteArrayInputStream(data), baos, Long.MAX_VALUE, Long.MAX_VALUE);
+		return baos.toByteArray();
+	}
+
+	private byte[] decompress(byte[] compressed, long maxLength, int inFlight) throws IOException {
+		return decompress(compressed, maxLength, inFlight, null);
+	}
+
+	private byte[] decompress(byte[] compressed, long maxLength, int inFlight, long[] falseBoundaries) throws IOException {
+		return decompress(compressed, maxLength, inFlight, falseBoundaries, new Semaphore(inFlight));
+	}
+
+	private byte[] decompress(byte[] compressed, long maxLength, int inFlight, long[] falseBoundaries,
+			Semaphore budget) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		ParallelBzip2Decompressor decompressor = new ParallelBzip2Decompressor(executor, inFlight, budget);
+		decompressor.falseBoundaries = falseBoundaries;
+		decompressor.decompress(new ByteArrayInputStream(compressed), baos, maxLength, maxLength * 4);
+		return baos.toByteArray();
+	}
+
+	public void testDecompress() throws IOException {
+		for(int length : new int[] { 0, 1, 1000, 900*1000, 5*1024*1024 }) {
+			byte[] data = testData(length, length);
+			byte[] compressed = compress(data);
+			for(int inFlight : new int[] { 1, 3 })
+				assertTrue(Arrays.equals(data, decompress(compressed, length + 1, inFlight)));
+		}
+	}
+
+	/** The block magic number occurs by chance inside a block. */
+	public void testFalseBoundary() throws IOException {
+		byte[] data = testData(3*1024*1024, 4);
+		byte[] compressed = compress(data);
+		// Several in the first block, so the halves have to be joined more than once.
+		long[] falseBoundaries = new long[] { 16 + 80003, 16 + 160005, 16 + 240007 };
+		for(int inFlight : new int[] { 1, 3 })
+			assertTrue(Arrays.equals(data, decompress(compressed, data.length, inFlight, falseBoundaries)));
+	}
+
+	/** Decode on the calling thread when the shared budget is used up, and give back the permits. */
+	public void testBudget() throws IOException {
+		byte[] data = testData(3*1024*1024, 7);
+		byte[] compressed = compress(data);
+		long[] falseBoundaries = new long[] { 16 + 80003 };
+		for(int permits : new int[] { 0, 1, 2 }) {
+			Semaphore budget = new Semaphore(permits);
+			assertTrue(Arrays.equals(data, decompress(compressed, data.length, 3, null, budget)));
+			assertEquals(permits, budget.availablePermits());
+			assertTrue(Arrays.equals(data, decompress(compressed, data.length, 3, falseBoundaries, budget)));
+			assertEquals(permits, budget.availablePermits());
+			byte[] corrupt = compressed.clone();
+			corrupt[corrupt.length / 2] ^= 0x10;
+			try {
+				decompress(corrupt, Long.MAX_VALUE / 8, 3, null, budget);
+				fail();
+			} catch (IOException e) {
+				// Expected.
+			}
+			assertEquals(permits, budget.availablePermits());
+		}
+	}
+
+	/** A block of long runs decompresses to much more than we buffer. */
+	public void testLargeBlock() throws IOException {
+		byte[] data = new byte[3*ParallelBzip2Decompressor.MAX_BUFFERED_OUTPUT];
+		byte[] text = testData(2*1024*1024, 5);
+		System.arraycopy(text, 0, data, data.length - text.length, text.length);
+		byte[] compressed = compress(data);
+		for(int inFlight : new int[] { 1, 3 })
+			assertTrue(Arrays.equals(data, decompress(compressed, data.length, inFlight)));
+		try {
+			decompress(compressed, ParallelBzip2Decompressor.MAX_BUFFERED_OUTPUT, 3);
+			fail();
+		} catch (CompressionOutputSizeException e) {
+			assertEquals(data.length, e.estimatedSize);
+		}
+	}
+
+	public void testTooBig() throws IOException {
+		byte[] data = testData(3*1024*1024, 1);
+		byte[] compressed = compress(data);
+		try {
+			decompress(compressed, 1024*1024, 3);
+			fail();
+		} catch (CompressionOutputSizeException e) {
+			// Within maxCheckSizeBytes, so we know the size.
+			assertEquals(data.length, e.estimatedSize);
+		}
+	}
+
+	public void testCorrupt() throws IOException {
+		byte[] compressed = compress(testData(2*1024*1024, 2));
+		byte[] truncated = Arrays.copyOf(compressed, compressed.length / 2);
+		try {
+			decompress(truncated, Long.MAX_VALUE / 8, 3);
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+		byte[] corrupt = compressed.clone();
+		corrupt[corrupt.length / 2] ^= 0x10;
+		try {
+			decompress(corrupt, Long.MAX_VALUE / 8, 3);
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+	/** Don't keep joining the rest of the stream onto a corrupt block. */
+	public void testCorruptFirstBlock() throws IOException {
+		byte[] compressed = compress(testData(8*1024*1024, 6));
+		compressed[100] ^= 0x10;
+		long start = System.currentTimeMillis();
+		try {
+			decompress(compressed, Long.MAX_VALUE / 8, 3);
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+		// Only joins blocks up to the maximum block size, so it doesn't take long.
+		assertTrue(System.currentTimeMillis() - start < 10000);
+	}
+
+	public void testBenchmark() throws IOException {
+		if(!TestProperty.BENCHMARK) return;
+		byte[] data = testData(32*1024*1024, 3);
+		byte[] compressed = compress(data);
+		for(int i=0;i<3;i++) {
+			long t1 = System.nanoTime();
+			new Bzip2Compressor().decompress(new ByteArrayInputStream(compressed),
+					new ByteArrayOutputStream(), data.length, -1);
+			long t2 = System.nanoTime();
+			new ParallelBzip2Decompressor().decompress(new ByteArrayInputStream(compressed),
+					new ByteArrayOutputStream(), data.length, -1);
+			long t3 = System.nanoTime();
+			System.out.println("32MB: serial "+(t2-t1)/1000000+"ms, parallel "+(t3-t2)/1000000+"ms on "+
+					ParallelBzip2Decompressor.threads()+" threads");
+		}
+	}
+
+}
@@ -0,0 +1,173 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.compress;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+
+import freenet.crypt.HashResult;
+import freenet.crypt.HashType;
+import freenet.crypt.MultiHashInputStream;
+import freenet.support.TestProperty;
+import freenet.support.api.RandomAccessBucket;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.Closer;
+
+public class ParallelCompressorTrialTest extends TestCase {
+
+	private static final int BLOCK_SIZE = 32768;
+	private static final COMPRESSOR_TYPE[] COMPS =
+		new COMPRESSOR_TYPE[] { COMPRESSOR_TYPE.GZIP, COMPRESSOR_TYPE.BZIP2 };
+	private static final long HASHES = HashType.SHA256.bitmask | HashType.MD5.bitmask;
+
+	private ExecutorService executor;
+
+	@Override
+	protected void setUp() {
+		executor = Executors.newCachedThreadPool();
+	}
+
+	@Override
+	protected void tearDown() {
+		executor.shutdown();
+	}
+
+	/** Same choice as trying the compressors one at a time. */
+	public void testMatchesSequential() throws IOException {
+		byte[] data = compressibleData(1024*1024, 1234);
+		COMPRESSOR_TYPE expected = null;
+		long expectedSize = 0;
+		long bestBlocks = data.length / BLOCK_SIZE;
+		for(COMPRESSOR_TYPE comp : COMPS) {
+			long size = compress(comp, data).length;
+			if(size / BLOCK_SIZE < bestBlocks) {
+				expected = comp;
+				expectedSize = size;
+				bestBlocks = size / BLOCK_SIZE;
+			}
+		}
+		assertNotNull(expected);
+		ParallelCompressorTrial.Result result = trial(COMPS, 0).run(bucket(data), 0);
+		assertEquals(expected, result.codec);
+		assertEquals(expectedSize, result.data.size());
+		assertNull(result.hashes);
+		assertTrue(Arrays.equals(data, decompress(result.codec, result.data, data.length)));
+		result.data.free();
+	}
+
+	public void testHashes() throws IOException {
+		byte[] data = compressibleData(300*1000, 5678);
+		ParallelCompressorTrial.Result result = trial(COMPS, 0).run(bucket(data), HASHES);
+		assertNotNull(result.codec);
+		assertTrue(HashResult.strictEquals(hashes(data), result.hashes));
+		result.data.free();
+	}
+
+	/** Nothing beats random data, but we still get the hashes. */
+	public void testIncompressible() throws IOException {
+		byte[] data = new byte[200*1000];
+		new Random(91011).nextBytes(data);
+		ParallelCompressorTrial.Result result = trial(COMPS, 0).run(bucket(data), HASHES);
+		assertNull(result.codec);
+		assertNull(result.data);
+		assertTrue(HashResult.strictEquals(hashes(data), result.hashes));
+	}
+
+	public void testFitsInMinSize() throws IOException {
+		byte[] data = new byte[100*1000];
+		ParallelCompressorTrial.Result result = trial(COMPS, 1024).run(bucket(data), HASHES);
+		assertNotNull(result.codec);
+		assertTrue(result.data.size() <= 1024);
+		assertTrue(Arrays.equals(data, decompress(result.codec, result.data, data.length)));
+		assertTrue(HashResult.strictEquals(hashes(data), result.hashes));
+		result.data.free();
+	}
+
+	public void testBenchmark() throws IOException {
+		if(!TestProperty.BENCHMARK) return;
+		byte[] data = compressibleData(16*1024*1024, 1213);
+		for(int i=0;i<3;i++) {
+			long t1 = System.nanoTime();
+			// As InsertCompressor: one read per compressor, hashing on the first.
+			hashes(data);
+			for(COMPRESSOR_TYPE comp : COMPS)
+				compress(comp, data);
+			long t2 = System.nanoTime();
+			ParallelCompressorTrial.Result result = trial(COMPS, 0).run(bucket(data), HASHES);
+			long t3 = System.nanoTime();
+			if(result.data != null) result.data.free();
+			System.out.println("Sequential: "+(t2-t1)/1000000+"ms, parallel: "+(t3-t2)/1000000+"ms");
+		}
+	}
+
+	private ParallelCompressorTrial trial(COMPRESSOR_TYPE[] comps, long minSize) {
+		return new ParallelCompressorTrial(comps, BLOCK_SIZE, minSize, new ArrayBucketFactory(),
+				0, 0, Long.MAX_VALUE, executor);
+	}
+
+	private static RandomAccessBucket bucket(byte[] data) {
+		return new ArrayBucket(data);
+	}
+
+	/** Text-like data, a mixture of repeated words and noise. */
+	private static byte[] compressibleData(int length, long seed) {
+		Random random = new Random(seed);
+		String[] words = new String[] { "freenet ", "splitfile ", "segment ", "block ", "insert ",
+				"request ", "compression ", "node " };
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(length);
+		while(baos.size() < length) {
+			if(random.nextInt(8) == 0) {
+				baos.write(random.nextInt(256));
+			} else {
+				byte[] word = words[random.nextInt(words.length)].getBytes();
+				baos.write(word, 0, word.length);
+			}
+		}
+		return Arrays.copyOf(baos.toByteArray(), length);
+	}
+
+	private static byte[] compress(COMPRESSOR_TYPE comp, byte[] data) throws IOException {
+		ArrayBucket in = new ArrayBucket(data);
+		ArrayBucket out = new ArrayBucket();
+		InputStream is = in.getInputStream();
+		OutputStream os = out.getOutputStream();
+		try {
+			comp.compress(is, os, data.length, Long.MAX_VALUE);
+		} finally {
+			Closer.close(is);
+			Closer.close(os);
+		}
+		return out.toByteArray();
+	}
+
+	private static byte[] decompress(COMPRESSOR_TYPE comp, RandomAccessBucket data, int length)
+			throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		InputStream is = data.getInputStream();
+		try {
+			comp.decompress(is, baos, length, length);
+		} finally {
+			Closer.close(is);
+		}
+		return baos.toByteArray();
+	}
+
+	private static HashResult[] hashes(byte[] data) throws IOException {
+		MultiHashInputStream hasher = new MultiHashInputStream(new ArrayBucket(data).getInputStream(), HASHES);
+		hasher.skip(Long.MAX_VALUE);
+		hasher.close();
+		return hasher.getResults();
+	}
+
+}
@@ -0,0 +1,190 @@
+package freenet.support.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import freenet.support.TestProperty;
+
+public class ChunkedPipeTest extends TestCase {
+
+	/** Writes the data in randomly sized pieces, including single bytes. */
+	private static class Writer extends Thread {
+		final OutputStream os;
+		final byte[] data;
+		final long seed;
+		Throwable error;
+
+		Writer(OutputStream os, byte[] data, long seed) {
+			this.os = os;
+			this.data = data;
+			this.seed = seed;
+		}
+
+		@Override
+		public void run() {
+			Random random = new Random(seed);
+			try {
+				int offset = 0;
+				while(offset < data.length) {
+					if(random.nextInt(10) == 0) {
+						os.write(data[offset++]);
+					} else {
+						int len = Math.min(data.length - offset, random.nextInt(100000));
+						os.write(data, offset, len);
+						offset += len;
+					}
+					if(random.nextInt(20) == 0) os.flush();
+				}
+				os.close();
+			} catch (Throwable t) {
+				error = t;
+			}
+		}
+	}
+
+	private static byte[] readFully(InputStream is, Random random) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		byte[] buf = new byte[65536];
+		while(true) {
+			if(random.nextInt(10) == 0) {
+				int b = is.read();
+				if(b == -1) break;
+				baos.write(b);
+			} else {
+				int read = is.read(buf, 0, 1 + random.nextInt(buf.length - 1));
+				if(read == -1) break;
+				baos.write(buf, 0, read);
+			}
+		}
+		return baos.toByteArray();
+	}
+
+	public void testCopy() throws Exception {
+		for(int chunkSize : new int[] { 1, 7, 1024, ChunkedPipe.DEFAULT_CHUNK_SIZE }) {
+			byte[] data = new byte[1024*1024];
+			new Random(chunkSize).nextBytes(data);
+			ChunkedPipe pipe = new ChunkedPipe(chunkSize, 4);
+			Writer writer = new Writer(pipe.getOutputStream(), data, chunkSize);
+			writer.start();
+			byte[] read = readFully(pipe.getInputStream(), new Random(chunkSize + 1));
+			writer.join();
+			assertNull(writer.error);
+			assertTrue(Arrays.equals(data, read));
+			// Stays at EOF.
+			assertEquals(-1, pipe.getInputStream().read());
+		}
+	}
+
+	public void testEmpty() throws IOException {
+		ChunkedPipe pipe = new ChunkedPipe();
+		pipe.getOutputStream().close();
+		assertEquals(-1, pipe.getInputStream().read());
+		assertEquals(-1, pipe.getInputStream().read(new byte[10], 0, 10));
+	}
+
+	public void testFlush() throws IOException {
+		ChunkedPipe pipe = new ChunkedPipe();
+		OutputStream os = pipe.getOutputStream();
+		InputStream is = pipe.getInputStream();
+		os.write(new byte[] { 1, 2, 3 });
+		assertEquals(0, is.available());
+		os.flush();
+		assertEquals(3, is.available());
+		byte[] buf = new byte[10];
+		// Returns what is there rather than waiting for more.
+		assertEquals(3, is.read(buf));
+		os.write(4);
+		os.close();
+		assertEquals(4, is.read());
+		assertEquals(-1, is.read());
+	}
+
+	/** The writer blocks when the pipe is full, and fails if the reader goes away. */
+	public void testReaderClosed() throws Exception {
+		final ChunkedPipe pipe = new ChunkedPipe(1024, 2);
+		Writer writer = new Writer(pipe.getOutputStream(), new byte[1024*1024], 1);
+		writer.start();
+		InputStream is = pipe.getInputStream();
+		assertTrue(is.read() >= 0);
+		Thread.sleep(100);
+		assertTrue(writer.isAlive());
+		is.close();
+		writer.join(10000);
+		assertFalse(writer.isAlive());
+		assertTrue(writer.error instanceof IOException);
+	}
+
+	/** The reader gets everything written before the failure, then the failure. */
+	public void testAbort() throws IOException {
+		ChunkedPipe pipe = new ChunkedPipe(4, 4);
+		ChunkedPipe.Output os = pipe.getOutputStream();
+		os.write(new byte[] { 1, 2, 3, 4, 5 });
+		Exception cause = new Exception("Test");
+		os.abort(cause);
+		InputStream is = pipe.getInputStream();
+		for(int i=1;i<=4;i++)
+			assertEquals(i, is.read());
+		try {
+			is.read();
+			fail();
+		} catch (IOException e) {
+			assertSame(cause, e.getCause());
+		}
+		try {
+			os.write(1);
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+	public void testBenchmark() throws Exception {
+		if(!TestProperty.BENCHMARK) return;
+		byte[] data = new byte[64*1024*1024];
+		new Random(1).nextBytes(data);
+		for(int i=0;i<3;i++) {
+			PipedInputStream pis = new PipedInputStream();
+			PipedOutputStream pos = new PipedOutputStream(pis);
+			long t1 = System.nanoTime();
+			copy(pos, pis, data);
+			long t2 = System.nanoTime();
+			ChunkedPipe pipe = new ChunkedPipe();
+			copy(pipe.getOutputStream(), pipe.getInputStream(), data);
+			long t3 = System.nanoTime();
+			System.out.println("64MB through PipedInputStream: "+(t2-t1)/1000000+"ms, ChunkedPipe: "+
+					(t3-t2)/1000000+"ms");
+		}
+	}
+
+	private static void copy(final OutputStream os, InputStream is, final byte[] data) throws Exception {
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					for(int i=0;i<data.length;i+=4096)
+						os.write(data, i, 4096);
+					os.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		writer.start();
+		byte[] buf = new byte[4096];
+		long total = 0;
+		int read;
+		while((read = is.read(buf)) != -1)
+			total += read;
+		writer.join();
+		assertEquals(data.length, total);
+	}
+
+}
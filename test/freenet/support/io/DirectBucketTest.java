@@ -0,0 +1,122 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import freenet.support.api.Bucket;
+
+public class DirectBucketTest extends BucketTestBase {
+	private final DirectChunkPool pool = new DirectChunkPool(16);
+
+	@Override
+	protected Bucket makeBucket(long size) throws IOException {
+		return new DirectBucket(pool);
+	}
+
+	@Override
+	protected void freeBucket(Bucket bucket) throws IOException {
+		bucket.free();
+	}
+
+	public void testChunksRecycled() throws IOException {
+		DirectBucket bucket = new DirectBucket(pool);
+		OutputStream os = bucket.getOutputStream();
+		os.write(new byte[DirectChunkPool.CHUNK_SIZE * 3 + 1]);
+		os.close();
+		assertEquals(4, pool.chunksInUse());
+		long created = pool.chunksCreated();
+		bucket.free();
+		assertEquals(0, pool.chunksInUse());
+		assertEquals(4, pool.idleChunks());
+		// Reused, and zeroed.
+		DirectRandomAccessBuffer raf = new DirectRandomAccessBuffer(pool, DirectChunkPool.CHUNK_SIZE * 2);
+		assertEquals(created, pool.chunksCreated());
+		byte[] buf = new byte[DirectChunkPool.CHUNK_SIZE * 2];
+		raf.pread(0, buf, 0, buf.length);
+		for(byte b : buf)
+			assertEquals(0, b);
+		raf.free();
+		assertEquals(0, pool.chunksInUse());
+	}
+
+	public void testIdleLimit() throws IOException {
+		DirectChunkPool small = new DirectChunkPool(2);
+		DirectRandomAccessBuffer raf = new DirectRandomAccessBuffer(small, DirectChunkPool.CHUNK_SIZE * 5);
+		assertEquals(5, small.chunksInUse());
+		raf.free();
+		assertEquals(0, small.chunksInUse());
+		assertEquals(2, small.idleChunks());
+	}
+
+	/** Free chunks count towards the total limit, e.g. after many small buckets each took a
+	 * whole chunk. */
+	public void testTotalLimit() throws IOException {
+		DirectChunkPool small = new DirectChunkPool(16, 4);
+		DirectRandomAccessBuffer raf = new DirectRandomAccessBuffer(small, DirectChunkPool.CHUNK_SIZE * 6);
+		assertEquals(6, small.chunksInUse());
+		raf.free();
+		assertEquals(0, small.chunksInUse());
+		assertEquals(4, small.idleChunks());
+		raf = new DirectRandomAccessBuffer(small, DirectChunkPool.CHUNK_SIZE * 3);
+		assertEquals(1, small.idleChunks());
+		// Lowering the limit drops free chunks.
+		small.setLimits(16, 3);
+		assertEquals(0, small.idleChunks());
+		raf.free();
+		assertEquals(3, small.idleChunks());
+		small.setLimits(2, 3);
+		assertEquals(2, small.idleChunks());
+	}
+
+	/** Streams opened before free() keep working, like ArrayBucket, and the memory is only 
+	 * released when they are closed. */
+	public void testReadAfterFree() throws IOException {
+		DirectBucket bucket = new DirectBucket(pool);
+		OutputStream os = bucket.getOutputStream();
+		os.write(new byte[] { 1, 2, 3 });
+		os.close();
+		InputStream is = bucket.getInputStream();
+		bucket.free();
+		assertEquals(1, pool.chunksInUse());
+		assertEquals(1, is.read());
+		is.close();
+		assertEquals(0, pool.chunksInUse());
+		try {
+			bucket.getInputStream();
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+	public void testToRandomAccessBuffer() throws IOException {
+		DirectBucket bucket = new DirectBucket(pool);
+		OutputStream os = bucket.getOutputStream();
+		byte[] data = new byte[DirectChunkPool.CHUNK_SIZE + 10];
+		for(int i=0;i<data.length;i++)
+			data[i] = (byte) i;
+		os.write(data);
+		os.close();
+		DirectRandomAccessBuffer raf = (DirectRandomAccessBuffer) bucket.toRandomAccessBuffer();
+		assertTrue(bucket.isReadOnly());
+		assertEquals(data.length, raf.size());
+		// The buffer owns the memory now.
+		bucket.free();
+		byte[] buf = new byte[data.length];
+		raf.pread(0, buf, 0, buf.length);
+		for(int i=0;i<data.length;i++)
+			assertEquals(data[i], buf[i]);
+		try {
+			raf.pwrite(0, buf, 0, 1);
+			fail();
+		} catch (IOException e) {
+			// Expected, read only.
+		}
+		raf.free();
+		assertEquals(0, pool.chunksInUse());
+	}
+}
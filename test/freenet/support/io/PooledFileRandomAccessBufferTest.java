@@ -283,6 +283,79 @@ public class PooledFileRandomAccessBufferTest extends RandomAccessBufferTestBase
         b.free();
     }
     
+    /** Several threads reading and writing different parts of one file, and of several files 
+     * sharing a single fd. */
+    public void testConcurrentReadWrite() throws Exception {
+        fds.setMaxFDs(2);
+        final int BLOCK = 4096;
+        final int BLOCKS = 64;
+        final PooledFileRandomAccessBuffer[] files = new PooledFileRandomAccessBuffer[3];
+        for(int i=0;i<files.length;i++)
+            files[i] = construct(BLOCK * BLOCKS);
+        final Throwable[] failure = new Throwable[1];
+        Thread[] threads = new Thread[8];
+        for(int t=0;t<threads.length;t++) {
+            final int thread = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Random random = new Random(thread);
+                        byte[] buf = new byte[BLOCK];
+                        byte[] check = new byte[BLOCK];
+                        // Each thread owns the blocks congruent to its number.
+                        for(int i=0;i<200;i++) {
+                            PooledFileRandomAccessBuffer f = files[random.nextInt(files.length)];
+                            long offset = (long)BLOCK * (thread + 8 * random.nextInt(BLOCKS / 8));
+                            random.nextBytes(buf);
+                            f.pwrite(offset, buf, 0, BLOCK);
+                            f.pread(offset, check, 0, BLOCK);
+                            assertTrue(Arrays.equals(buf, check));
+                        }
+                    } catch (Throwable e) {
+                        synchronized(failure) {
+                            failure[0] = e;
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for(Thread t : threads)
+            t.join();
+        if(failure[0] != null) throw new Exception(failure[0]);
+        assertTrue(fds.getOpenFDs() <= 2);
+        for(PooledFileRandomAccessBuffer f : files) {
+            f.close();
+            f.free();
+        }
+        assertEquals(0, fds.getOpenFDs());
+    }
+    
+    /** Interrupting a thread closes the channel. Neither it nor other users should fail. */
+    public void testInterrupted() throws IOException {
+        int sz = 1024;
+        fds.setMaxFDs(1);
+        PooledFileRandomAccessBuffer a = construct(sz);
+        byte[] buf = new byte[sz];
+        r.nextBytes(buf);
+        a.pwrite(0, buf, 0, sz);
+        Thread.currentThread().interrupt();
+        byte[] check = new byte[sz];
+        a.pread(0, check, 0, sz);
+        assertTrue(Thread.interrupted());
+        assertTrue(Arrays.equals(buf, check));
+        Thread.currentThread().interrupt();
+        a.pwrite(0, buf, 0, sz);
+        assertTrue(Thread.interrupted());
+        a.pread(0, check, 0, sz);
+        assertTrue(Arrays.equals(buf, check));
+        assertEquals(1, fds.getOpenFDs());
+        a.close();
+        assertEquals(0, fds.getOpenFDs());
+        a.free();
+    }
+    
     // FIXME more tests???
     
 }
@@ -82,7 +82,7 @@ public abstract class TempBucketFactoryRAFBase extends RandomAccessBufferTestBas
         RandomAccessBuffer raf = construct(len);
         TempRandomAccessBuffer t = (TempRandomAccessBuffer) raf;
         assertFalse(t.hasMigrated());
-        assertEquals(factory.getRamUsed(), len);
+        assertEquals(factory.getRamUsed(), DirectChunkPool.roundUp(len));
         t.migrateToDisk();
         assertTrue(t.hasMigrated());
         assertEquals(factory.getRamUsed(), 0);
@@ -7,7 +7,9 @@ import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.security.Security;
+import java.util.Arrays;
 import java.util.Random;
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
@@ -21,7 +23,9 @@ import freenet.crypt.RandomSource;
 import freenet.support.Executor;
 import freenet.support.SerialExecutor;
 import freenet.support.api.Bucket;
+import freenet.support.api.LockableRandomAccessBuffer;
 import freenet.support.io.TempBucketFactory.TempBucket;
+import freenet.support.io.TempBucketFactory.TempRandomAccessBuffer;
 
 public class TempBucketTest extends TestSuite {
 
@@ -43,17 +47,18 @@ public class TempBucketTest extends TestSuite {
 		}
 
 		public void testRamLimitCreate() throws IOException {
-			TempBucketFactory tbf = new TempBucketFactory(exec, fg, 16, 128, weakPRNG, false, MIN_DISK_SPACE, secret);
+			final int CHUNK = DirectChunkPool.CHUNK_SIZE;
+			TempBucketFactory tbf = new TempBucketFactory(exec, fg, CHUNK, CHUNK * 8, weakPRNG, false, MIN_DISK_SPACE, secret);
 
-			int maxRamBucket = 128 / 16;
+			int maxRamBucket = 8;
 
 			// create excess maxTotalRamSize, last one should be on disk
 			TempBucket[] b = new TempBucket[maxRamBucket + 1];
 			for (int i = 0; i < maxRamBucket + 1; i++) {
-				b[i] = (TempBucket) tbf.makeBucket(16);
+				b[i] = (TempBucket) tbf.makeBucket(CHUNK);
 
 				OutputStream os = b[i].getOutputStream();
-				os.write(new byte[16]);
+				os.write(new byte[CHUNK]);
 				os.close();
 			}
 
@@ -76,7 +81,7 @@ public class TempBucketTest extends TestSuite {
 		}
 
 		public void testWriteExcessConversionFactor() throws IOException {
-			TempBucketFactory tbf = new TempBucketFactory(exec, fg, 16, 128, weakPRNG, false, MIN_DISK_SPACE, secret);
+			TempBucketFactory tbf = new TempBucketFactory(exec, fg, 16, DirectChunkPool.CHUNK_SIZE, weakPRNG, false, MIN_DISK_SPACE, secret);
 
 			TempBucket b = (TempBucket) tbf.makeBucket(16);
 			try {
@@ -97,15 +102,16 @@ public class TempBucketTest extends TestSuite {
 		}
 
 		public void testWriteExcessLimit() throws IOException {
-			TempBucketFactory tbf = new TempBucketFactory(exec, fg, 16, 17, weakPRNG, false, MIN_DISK_SPACE, secret);
+			final int CHUNK = DirectChunkPool.CHUNK_SIZE;
+			TempBucketFactory tbf = new TempBucketFactory(exec, fg, CHUNK, CHUNK + 1, weakPRNG, false, MIN_DISK_SPACE, secret);
 
-			TempBucket b = (TempBucket) tbf.makeBucket(16);
+			TempBucket b = (TempBucket) tbf.makeBucket(CHUNK);
 			try {
 				assertTrue(b.isRAMBucket());
 
 				OutputStream os = b.getOutputStreamUnbuffered();
 
-				os.write(new byte[16]);
+				os.write(new byte[CHUNK]);
 				assertTrue(b.isRAMBucket());
 
 				os.write(new byte[2]);
@@ -115,6 +121,77 @@ public class TempBucketTest extends TestSuite {
 			}
 		}
 		
+		/** Small buckets are charged a whole chunk each, so can't use more direct memory than
+		 * the limit. */
+		public void testSmallBucketsLimit() throws IOException {
+			final int CHUNK = DirectChunkPool.CHUNK_SIZE;
+			TempBucketFactory tbf = new TempBucketFactory(exec, fg, CHUNK, CHUNK * 16, weakPRNG, false, MIN_DISK_SPACE, secret);
+			TempBucket[] buckets = new TempBucket[32];
+			int inRAM = 0;
+			for(int i=0;i<buckets.length;i++) {
+				buckets[i] = (TempBucket) tbf.makeBucket(10);
+				OutputStream os = buckets[i].getOutputStreamUnbuffered();
+				os.write(new byte[10]);
+				os.close();
+				if(buckets[i].isRAMBucket()) inRAM++;
+			}
+			assertEquals(16, inRAM);
+			assertEquals(CHUNK * 16, tbf.getRamUsed());
+			assertEquals(16, tbf.getChunkPool().chunksInUse());
+			for(TempBucket bucket : buckets)
+				bucket.free();
+			assertEquals(0, tbf.getRamUsed());
+		}
+
+		/** Runs out of direct memory after a given number of chunks. */
+		private static class LimitedChunkPool extends DirectChunkPool {
+			int available;
+			LimitedChunkPool(int available) {
+				super(16);
+				this.available = available;
+			}
+			@Override
+			ByteBuffer allocate() throws IOException {
+				if(available == 0) throw new OutOfDirectMemoryException();
+				available--;
+				return super.allocate();
+			}
+		}
+
+		/** If the JVM runs out of direct memory, the data goes to disk rather than the write 
+		 * failing. */
+		public void testOutOfDirectMemory() throws IOException {
+			final int CHUNK = DirectChunkPool.CHUNK_SIZE;
+			LimitedChunkPool pool = new LimitedChunkPool(2);
+			TempBucketFactory tbf = new TempBucketFactory(exec, fg, CHUNK * 4, CHUNK * 16, weakPRNG, false, MIN_DISK_SPACE, secret, pool);
+			TempBucket bucket = (TempBucket) tbf.makeBucket(CHUNK * 3);
+			assertTrue(bucket.isRAMBucket());
+			byte[] data = new byte[CHUNK * 3];
+			new Random(90).nextBytes(data);
+			OutputStream os = bucket.getOutputStreamUnbuffered();
+			os.write(data, 0, CHUNK);
+			os.write(data, CHUNK, 10);
+			assertTrue(bucket.isRAMBucket());
+			os.write(data, CHUNK + 10, CHUNK * 2 - 10);
+			assertFalse(bucket.isRAMBucket());
+			os.close();
+			assertEquals(0, tbf.getRamUsed());
+			assertEquals(0, pool.chunksInUse());
+			byte[] readTo = new byte[data.length];
+			InputStream is = bucket.getInputStream();
+			new DataInputStream(is).readFully(readTo);
+			is.close();
+			assertTrue(Arrays.equals(data, readTo));
+			bucket.free();
+			// A RAF goes straight to disk.
+			pool.available = 1;
+			LockableRandomAccessBuffer raf = tbf.makeRAF(CHUNK * 2);
+			assertFalse(raf instanceof TempRandomAccessBuffer);
+			assertEquals(0, tbf.getRamUsed());
+			assertEquals(0, pool.chunksInUse());
+			raf.free();
+		}
+		
 		// This CAN happen due to memory pressure.
 		public void testConversionWhileReading() throws IOException {
 			TempBucketFactory tbf = new TempBucketFactory(exec, fg, 1024, 65536, weakPRNG, false, MIN_DISK_SPACE, secret);
@@ -132,6 +209,29 @@ public class TempBucketTest extends TestSuite {
 			os.close();
 		}
 		
+		public void testRAMBucketsOffHeap() throws IOException {
+			TempBucketFactory tbf = new TempBucketFactory(exec, fg, 4096, 65536, weakPRNG, false, MIN_DISK_SPACE, secret);
+			TempBucket bucket = (TempBucket) tbf.makeBucket(2048);
+			assertTrue(bucket.getUnderlying() instanceof DirectBucket);
+			OutputStream os = bucket.getOutputStreamUnbuffered();
+			os.write(new byte[2048]);
+			os.close();
+			// Charged for the whole chunk.
+			assertEquals(DirectChunkPool.CHUNK_SIZE, tbf.getRamUsed());
+			assertEquals(1, tbf.getChunkPool().chunksInUse());
+			long created = tbf.getChunkPool().chunksCreated();
+			bucket.free();
+			assertEquals(0, tbf.getRamUsed());
+			assertEquals(0, tbf.getChunkPool().chunksInUse());
+			// The next bucket reuses the chunk.
+			bucket = (TempBucket) tbf.makeBucket(2048);
+			os = bucket.getOutputStreamUnbuffered();
+			os.write(new byte[2048]);
+			os.close();
+			assertEquals(created, tbf.getChunkPool().chunksCreated());
+			bucket.free();
+		}
+		
 		// Do a bigger read, verify contents.
 		public void testBigConversionWhileReading() throws IOException {
 			TempBucketFactory tbf = new TempBucketFactory(exec, fg, 4096, 65536, weakPRNG, false, MIN_DISK_SPACE, secret);